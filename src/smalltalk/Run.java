@@ -5,6 +5,9 @@ import smalltalk.compiler.Compiler;
 import smalltalk.compiler.STSymbolTable;
 import smalltalk.vm.SystemDictionary;
 import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.ast.AstInterpreter;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.register.RegisterInterpreter;
 import smalltalk.vm.primitive.STObject;
 
 import java.io.File;
@@ -14,12 +17,57 @@ import java.net.URL;
 
 /** Main entry to the Smalltalk interpreter */
 public class Run {
+	/** Compile with optimizations that change the generated code, such as
+	 *  inlining ifTrue:, whileTrue:, etc... on literal blocks, tail
+	 *  sends, closure conversion, reusing the descriptors of blocks that
+	 *  can't escape, peephole rewriting and arithmetic bytecodes; set by -O.
+	 */
+	public static boolean optimize = false;
+
+	/** Print VM counters, such as block allocations elided, to stderr
+	 *  after execution; set by -stats.
+	 */
+	public static boolean stats = false;
+
+	/** Compile hot methods to JVM classes; set by -jit. */
+	public static boolean jit = false;
+
+	/** Have the JIT compile to method handle trees rather than classes;
+	 *  set by -jit-handles, which implies -jit.
+	 */
+	public static boolean jitHandles = false;
+
+	/** Run methods on self-specializing node trees instead of the
+	 *  bytecode loop; set by -ast. Tracing still uses the loop, which
+	 *  shows each instruction.
+	 */
+	public static boolean ast = false;
+
+	/** Run methods on register code lowered from their bytecode instead
+	 *  of the bytecode loop; set by -registers. As with -ast, tracing
+	 *  still uses the loop.
+	 */
+	public static boolean registers = false;
+
+	public static final String USAGE =
+		"usage: java smalltalk.Run [-O] [-trace] [-stats] [-jit | -jit-handles] [-ast | -registers] file.st";
+
 	public static void main(String[] args) throws Exception {
 		int fi = 0;
 		boolean trace = false;
-		if (args.length > 0 && args[0].equals("-trace")) {
-			fi = 1;
-			trace = true;
+		for (; fi < args.length && args[fi].startsWith("-"); fi++) {
+			if ( args[fi].equals("-trace") ) trace = true;
+			else if ( args[fi].equals("-O") ) optimize = true;
+			else if ( args[fi].equals("-stats") ) stats = true;
+			else if ( args[fi].equals("-jit") ) jit = true;
+			else if ( args[fi].equals("-jit-handles") ) jit = jitHandles = true;
+			else if ( args[fi].equals("-ast") ) ast = true;
+			else if ( args[fi].equals("-registers") ) registers = true;
+			else {
+				System.err.println("unknown option "+args[fi]);
+				System.err.println(USAGE);
+				System.exit(1);
+			}
 		}
 		String fileName = null;
 		if ( args.length>=1 ) fileName = args[fi];
@@ -39,15 +87,19 @@ public class Run {
 		return compile(null, "smalltalk/image.st", genDbg);
 	}
 
-	public static STSymbolTable compile(STSymbolTable symtab, String fileName, boolean genDbg) {
-		Compiler c;
-		if ( symtab!=null ) {
-			c = new Compiler(symtab);
-		}
-		else {
-			c = new Compiler();
-		}
+	/** A compiler adding to symtab, or to a new symbol table if it's null,
+	 *  with the optimizations -O asked for. Files and strings both compile
+	 *  with one of these so that they get the same code.
+	 */
+	static Compiler newCompiler(STSymbolTable symtab, boolean genDbg) {
+		Compiler c = symtab!=null ? new Compiler(symtab) : new Compiler();
 		c.genDbg = genDbg;
+		c.setOptimize(optimize);
+		return c;
+	}
+
+	public static STSymbolTable compile(STSymbolTable symtab, String fileName, boolean genDbg) {
+		Compiler c = newCompiler(symtab, genDbg);
 
 		URL imageURL = getImageURL(fileName);
 		try {
@@ -66,14 +118,7 @@ public class Run {
 	}
 
 	public static STSymbolTable compileString(STSymbolTable symtab, String input, boolean genDbg) {
-		Compiler c;
-		if ( symtab!=null ) {
-			c = new Compiler(symtab);
-		}
-		else {
-			c = new Compiler();
-		}
-		c.genDbg = genDbg;
+		Compiler c = newCompiler(symtab, genDbg);
 
 		ANTLRInputStream imageInput = new ANTLRInputStream(input);
 		imageInput.name = "<string>";
@@ -93,7 +138,33 @@ public class Run {
 	public static STObject exec(STSymbolTable symtab, boolean trace) {
 		VirtualMachine vm = new VirtualMachine(symtab);
 		vm.trace = trace;
-		return vm.execMain();
+		vm.countDispatched = stats;
+		if ( jit ) {
+			vm.jit = new Jit(vm);
+			vm.jit.methodHandles = jitHandles;
+		}
+		if ( ast && !trace ) vm.ast = new AstInterpreter(vm);
+		if ( registers && !trace ) vm.registers = new RegisterInterpreter(vm);
+		STObject result = vm.execMain();
+		if ( stats ) {
+			System.err.printf("block descriptors: %d allocations elided, %d copied to heap%n",
+							  vm.elidedBlocks, vm.escapedBlocks);
+			if ( vm.jit!=null ) {
+				System.err.printf("jit: %d methods compiled, %d left interpreted%n",
+								  vm.jit.compiled, vm.jit.failed);
+			}
+			if ( vm.ast!=null ) {
+				System.err.printf("ast: %d trees built%n", vm.ast.treesBuilt);
+			}
+			if ( vm.registers!=null ) {
+				System.err.printf("registers: %d blocks lowered, %d instructions executed%n",
+								  vm.registers.blocksLowered, vm.registers.dispatched);
+			}
+			else if ( vm.ast==null ) {
+				System.err.printf("bytecode loop: %d instructions executed%n", vm.dispatched);
+			}
+		}
+		return result;
 	}
 
 	public static URL getImageURL(String fileName) {
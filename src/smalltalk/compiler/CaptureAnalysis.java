@@ -0,0 +1,183 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.Scope;
+import org.antlr.symtab.VariableSymbol;
+import smalltalk.parser.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Free variable analysis for closure conversion, run between symbol
+ *  resolution and code generation when {@link Compiler#closureConversion}
+ *  is on. Rather than pointing at the context that created it, a block
+ *  descriptor then holds copies of just the variables its block refers
+ *  to, so a block stored away doesn't keep whole activation records alive.
+ *
+ *  For each method and block that gets a context at runtime, we collect
+ *  {@link STBlock#captures}: the variables of enclosing scopes it or its
+ *  nested blocks refer to. A block nested two deep in a method captures
+ *  a method local from the block around it, which must therefore capture
+ *  it too. We also note which blocks need self and which ^ return.
+ *
+ *  Copying is only safe if the variable can't change once copied. A
+ *  captured local that is assigned by another block, or by its own scope
+ *  after the capturing BLOCK instruction may have executed, is marked
+ *  {@link STVariable#boxed} instead: its scope keeps it in a heap cell and
+ *  the blocks copy the cell. Arguments can't be assigned so are never boxed.
+ *
+ *  Blocks that {@link CodeGenerator} compiles in place get no context, so
+ *  their references belong to the nearest scope that does.
+ */
+public class CaptureAnalysis extends SmalltalkBaseListener {
+	public final CodeGenerator gen;
+
+	/** The methods and blocks that get a context, innermost first */
+	protected final Deque<STBlock> scopes = new ArrayDeque<>();
+
+	/** For each captured variable, the blocks in its own scope's code
+	 *  whose BLOCK instruction copies it.
+	 */
+	protected final Map<VariableSymbol, List<SmalltalkParser.BlockContext>> captureSites = new LinkedHashMap<>();
+
+	/** Assignments to each local by the code of the scope defining it */
+	protected final Map<STVariable, List<SmalltalkParser.AssignContext>> assignments = new HashMap<>();
+
+	public CaptureAnalysis(CodeGenerator gen) {
+		this.gen = gen;
+	}
+
+	@Override
+	public void enterMain(SmalltalkParser.MainContext ctx) {
+		if ( ctx.body().getChildCount()==0 ) return;
+		pushScope(ctx.scope);
+	}
+
+	@Override
+	public void exitMain(SmalltalkParser.MainContext ctx) {
+		if ( ctx.body().getChildCount()==0 ) return;
+		scopes.pop();
+	}
+
+	@Override
+	public void enterSmalltalkMethodBlock(SmalltalkParser.SmalltalkMethodBlockContext ctx) {
+		pushScope(((SmalltalkParser.MethodContext)ctx.getParent()).scope);
+	}
+
+	@Override
+	public void exitSmalltalkMethodBlock(SmalltalkParser.SmalltalkMethodBlockContext ctx) {
+		scopes.pop();
+	}
+
+	@Override
+	public void enterBlock(SmalltalkParser.BlockContext ctx) {
+		if ( !gen.isInlinedOperand(ctx) ) pushScope(ctx.scope);
+	}
+
+	@Override
+	public void exitBlock(SmalltalkParser.BlockContext ctx) {
+		if ( !gen.isInlinedOperand(ctx) ) scopes.pop();
+	}
+
+	@Override
+	public void enterId(SmalltalkParser.IdContext ctx) {
+		if ( ctx.sym instanceof STField ) usesSelf();
+		else if ( ctx.sym instanceof VariableSymbol && ctx.sym.getScope() instanceof STBlock ) {
+			reference((VariableSymbol)ctx.sym);
+		}
+	}
+
+	@Override
+	public void enterAssign(SmalltalkParser.AssignContext ctx) {
+		VariableSymbol sym = ctx.lvalue().sym;
+		if ( sym instanceof STField ) usesSelf();
+		else if ( sym instanceof STVariable ) { // stores to arguments generate no code
+			STVariable v = (STVariable)sym;
+			if ( reference(v) ) v.boxed = true; // assigned from a block
+			else assignments.computeIfAbsent(v, k -> new ArrayList<>()).add(ctx);
+		}
+	}
+
+	@Override
+	public void enterLiteral(SmalltalkParser.LiteralContext ctx) {
+		if ( ctx.getText().equals("self") ) usesSelf();
+	}
+
+	@Override
+	public void enterSuperKeywordSend(SmalltalkParser.SuperKeywordSendContext ctx) {
+		usesSelf();
+	}
+
+	@Override
+	public void enterUnarySuperMsgSend(SmalltalkParser.UnarySuperMsgSendContext ctx) {
+		usesSelf();
+	}
+
+	@Override
+	public void enterReturn(SmalltalkParser.ReturnContext ctx) {
+		for (STBlock s : scopes) {
+			if ( s.isMethod() ) break;
+			s.hasNonLocalReturn = true;
+		}
+	}
+
+	@Override
+	public void exitFile(SmalltalkParser.FileContext ctx) {
+		for (Map.Entry<STVariable, List<SmalltalkParser.AssignContext>> e : assignments.entrySet()) {
+			List<SmalltalkParser.BlockContext> sites =
+				captureSites.getOrDefault(e.getKey(), Collections.emptyList());
+			for (SmalltalkParser.AssignContext assign : e.getValue()) {
+				for (SmalltalkParser.BlockContext site : sites) {
+					if ( mayRunAfter(assign, site) ) e.getKey().boxed = true;
+				}
+			}
+		}
+	}
+
+	protected void pushScope(STBlock scope) {
+		scope.captures = new ArrayList<>();
+		scope.usesSelf = false;
+		scope.hasNonLocalReturn = false;
+		scopes.push(scope);
+	}
+
+	/** Record a reference to v from the current scope. Each scope between
+	 *  here and v's own captures v. Return true if v isn't local.
+	 */
+	protected boolean reference(VariableSymbol v) {
+		Scope home = v.getScope();
+		STBlock site = null;
+		for (STBlock s : scopes) {
+			if ( s==home ) break;
+			if ( !s.captures.contains(v) ) s.captures.add(v);
+			site = s;
+		}
+		if ( site==null ) return false;
+		captureSites.computeIfAbsent(v, k -> new ArrayList<>())
+			.add((SmalltalkParser.BlockContext)site.getDefNode());
+		return true;
+	}
+
+	protected void usesSelf() {
+		for (STBlock s : scopes) {
+			if ( s.isMethod() ) break;
+			s.usesSelf = true;
+		}
+	}
+
+	/** Can assign, in the same scope's code as the block literal site,
+	 *  execute after site has created its descriptor? Only if it comes
+	 *  later; an assignment completes after its right side. Control goes
+	 *  backwards within a scope's code only in inlined whileTrue: loops,
+	 *  and those can't contain a block literal that gets a context (see
+	 *  {@link CodeGenerator#isInlinable(SmalltalkParser.BlockContext)}).
+	 */
+	protected boolean mayRunAfter(SmalltalkParser.AssignContext assign, SmalltalkParser.BlockContext site) {
+		return assign.stop.getTokenIndex()>site.start.getTokenIndex();
+	}
+}
@@ -3,17 +3,24 @@ package smalltalk.compiler;
 import org.antlr.symtab.Scope;
 import org.antlr.symtab.StringTable;
 import org.antlr.symtab.Symbol;
+import org.antlr.symtab.VariableSymbol;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.NotNull;
 import smalltalk.misc.Utils;
 import smalltalk.parser.*;
+import smalltalk.vm.Bytecode;
 import smalltalk.vm.primitive.Primitive;
 import smalltalk.vm.primitive.STCompiledBlock;
 import smalltalk.vm.primitive.STString;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /** Fill STBlock, STMethod objects in Symbol table with bytecode,
  * {@link smalltalk.vm.primitive.STCompiledBlock}.
@@ -30,6 +37,28 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     //method to put
 	public final Map<Scope,StringTable> blockToStrings = new HashMap<>();
 
+	/** Selectors whose literal block operands are compiled in place as
+	 *  jumps when {@link Compiler#inlineControlFlow} is on.
+	 */
+	public static final Set<String> inlinedSelectors = new HashSet<>(
+		Arrays.asList("ifTrue:", "ifFalse:", "ifTrue:ifFalse:", "and:", "or:", "whileTrue:")
+	);
+
+	/** Selectors of the primitives that evaluate their block operands
+	 *  without keeping them; see {@link #isStackBlock}.
+	 */
+	public static final Set<String> blockEvaluatingSelectors = new HashSet<>(
+		Arrays.asList("value", "value:", "value:value:", "whileTrue:", "ifTrue:", "ifTrue:ifFalse:",
+					  "to:do:", "to:by:do:", "timesRepeat:", "do:")
+	);
+
+	/** The block scopes whose code we are currently generating in place.
+	 *  They get no context at runtime, so literals, local variable
+	 *  references and scope counts belong to the nearest enclosing scope
+	 *  not in this set; see {@link #codeScope()}.
+	 */
+	protected final Set<Scope> inlinedScopes = new HashSet<>();
+
 	public CodeGenerator(Compiler compiler) {
 		this.compiler = compiler;
         currentScope = compiler.symtab.GLOBALS;
@@ -91,7 +120,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         }
         pushScope(ctx.classScope);
         pushScope(ctx.scope);
-        Code code = visitChildren(ctx);
+        Code code = Code.join(boxLocals(ctx.scope), visitChildren(ctx));
 
         // add DBG visitMain. At the end of the body, before pop, self, return.
         if (ctx.body() instanceof  SmalltalkParser.FullBodyContext){
@@ -161,7 +190,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		SmalltalkParser.MethodContext methodNode = (SmalltalkParser.MethodContext)ctx.getParent();
         pushScope(methodNode.scope);
 //		System.out.println("Gen code for " + methodNode.scope.getName()+" "+getProgramSourceForSubtree(ctx));
-		Code code = visitChildren(ctx);
+		Code code = Code.join(boxLocals(methodNode.scope), visitChildren(ctx));
 
 		// always add ^self in case no return statement
         //DBG After visiting the children, before the pop, self,
@@ -190,6 +219,33 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         if (code != null){
             /////// mark!!!!! bytecode !!!!!!!!
             compiledBlock.bytecode = code.bytes();
+            if (compiler.peephole) {
+                compiledBlock.bytecode = PeepholeOptimizer.optimize(compiledBlock.bytecode);
+            }
+            if (compiler.tailSends) {
+                Bytecode.markTailSends(compiledBlock.bytecode, blk.isMethod() ? Bytecode.RETURN : Bytecode.BLOCK_RETURN);
+            }
+            if (compiler.compactSends) {
+                compiledBlock.bytecode = PeepholeOptimizer.compactSends(compiledBlock.bytecode);
+            }
+            compiledBlock.maxStack = Bytecode.maxStack(compiledBlock.bytecode);
+            if (compiler.trivialMethods && blk.isMethod()) {
+                Bytecode.classifyTrivial(compiledBlock);
+            }
+            if (compiler.compactOperands) {
+                compiledBlock.bytecode = PeepholeOptimizer.compactOperands(compiledBlock.bytecode);
+            }
+        }
+        if (blk.captures != null && !blk.isMethod()) {
+            compiledBlock.captures = new int[blk.captures.size()];
+            STBlock creator = (STBlock)blk.getEnclosingScope();
+            for (int i = 0; i < compiledBlock.captures.length; i++) {
+                VariableSymbol var = blk.captures.get(i);
+                compiledBlock.captures[i] = var.getScope() == creator ?
+                    var.getInsertionOrderNumber() : ~creator.captures.indexOf(var);
+            }
+            compiledBlock.usesSelf = blk.usesSelf;
+            compiledBlock.hasNonLocalReturn = blk.hasNonLocalReturn;
         }
         if (blockToStrings.containsKey(blk)){//that scope
             //pass StringTable with key (blk)scope to compiledBlock->literals
@@ -223,7 +279,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
         Code indexCode = new Code();
         short bIndex = (short)ctx.scope.index;
-        indexCode.join(Compiler.block(bIndex));
+        indexCode.join(isStackBlock(ctx) ? Compiler.stack_block(bIndex) : Compiler.block(bIndex));
 //        indexCode.join(Compiler.block(test));
 //        test++;
 //        if( bIndex == 0 ){
@@ -238,7 +294,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 //        System.out.println(test);
         //System.out.println("local"+ctx.scope.numNestedBlocks);
 
-        Code code = visitChildren(ctx);
+        Code code = Code.join(boxLocals(ctx.scope), visitChildren(ctx));
         //After you join code for visitChildren()
         if (ctx.body() instanceof SmalltalkParser.EmptyBodyContext){
             code = code.join(Compiler.push_nil());
@@ -332,6 +388,9 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         if (debug) {
             System.out.println("Visit KeywordSend!");
         }
+        if (isInlinable(ctx)) {
+            return genInlinedSend(ctx);
+        }
         //recv=binaryExpression ( KEYWORD args+=binaryExpression )*
         Code code = visit(ctx.recv);
         Code args = new Code();
@@ -360,13 +419,260 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
             //Before you join code for Send
             int argSize = ctx.args.size();
-            args.join(Compiler.send(argSize, argIndex));
+            args.join(send(argSize, str, argIndex));
         }
         //join
         aggregateResult(code, args);
         return code;
     }
 
+    /** Can ctx be compiled to jumps instead of a send? The selector must
+     *  be one of {@link #inlinedSelectors} and every block operand (the
+     *  arguments, plus the receiver of whileTrue:) a literal block that
+     *  can be inlined; see {@link #isInlinable(SmalltalkParser.BlockContext)}.
+     */
+    public boolean isInlinable(SmalltalkParser.KeywordSendContext ctx) {
+        if (!compiler.inlineControlFlow) return false;
+        String selector = getSelector(ctx);
+        if (!inlinedSelectors.contains(selector)) return false;
+        if (selector.equals("whileTrue:") && !isInlinable(literalBlock(ctx.recv))) return false;
+        for (SmalltalkParser.BinaryExpressionContext arg : ctx.args) {
+            if (!isInlinable(literalBlock(arg))) return false;
+        }
+        return true;
+    }
+
+    /** A block can be inlined if it has no arguments and no locals, since
+     *  it gets no context of its own. For the same reason, any block nested
+     *  within it must itself be inlined: there's no context a BLOCK
+     *  instruction could capture as its lexically enclosing one.
+     */
+    public boolean isInlinable(SmalltalkParser.BlockContext blk) {
+        if (blk == null || blk.scope.nargs() > 0 || blk.scope.nlocals() > 0) return false;
+        for (SmalltalkParser.BlockContext nested : getNestedBlocks(blk.body(), new ArrayList<>())) {
+            if (!isInlinedOperand(nested)) return false;
+        }
+        return true;
+    }
+
+    /** Is blk a literal block operand of a send that we inline? */
+    boolean isInlinedOperand(SmalltalkParser.BlockContext blk) {
+        ParserRuleContext e = blk.getParent();
+        while (e != null && !(e instanceof SmalltalkParser.BinaryExpressionContext)) {
+            e = e.getParent();
+        }
+        if (e == null || literalBlock((SmalltalkParser.BinaryExpressionContext)e) != blk ||
+            !(e.getParent() instanceof SmalltalkParser.KeywordSendContext)) {
+            return false;
+        }
+        SmalltalkParser.KeywordSendContext send = (SmalltalkParser.KeywordSendContext)e.getParent();
+        return isInlinable(send) &&
+               (send.args.contains(e) || (send.recv == e && getSelector(send).equals("whileTrue:")));
+    }
+
+    /** Can blk compile to STACK_BLOCK, whose descriptor the VM reuses? It
+     *  must be a literal operand of one of {@link #blockEvaluatingSelectors}
+     *  that the primitive only evaluates: the receiver of value, value:,
+     *  value:value: and whileTrue:, or an argument of the others. Nothing
+     *  else can then refer to the descriptor once the send returns, if the
+     *  send reaches that primitive; the VM checks that part.
+     *
+     *  Without closure conversion, a block nested in blk refers to the
+     *  context evaluating blk, which refers to the context creating it.
+     *  That context isn't materialized for a stack block, so a nested
+     *  block that could outlive it must not exist: each must itself be
+     *  inlined or a stack block.
+     */
+    public boolean isStackBlock(SmalltalkParser.BlockContext blk) {
+        if (!compiler.stackBlocks) return false;
+        ParserRuleContext u = blk.getParent().getParent();
+        if (!(u instanceof SmalltalkParser.UnaryIsPrimaryContext)) return false;
+        if (u.getParent() instanceof SmalltalkParser.UnaryMsgSendContext) {
+            if (!((SmalltalkParser.UnaryMsgSendContext)u.getParent()).ID().getText().equals("value")) return false;
+        }
+        else {
+            if (!(u.getParent() instanceof SmalltalkParser.BinaryExpressionContext)) return false;
+            SmalltalkParser.BinaryExpressionContext e = (SmalltalkParser.BinaryExpressionContext)u.getParent();
+            if (literalBlock(e) != blk || !(e.getParent() instanceof SmalltalkParser.KeywordSendContext)) return false;
+            SmalltalkParser.KeywordSendContext send = (SmalltalkParser.KeywordSendContext)e.getParent();
+            String selector = getSelector(send);
+            if (!blockEvaluatingSelectors.contains(selector)) return false; // also rejects no send at all
+            boolean evaluatesRecv = selector.startsWith("value") || selector.equals("whileTrue:");
+            if (send.recv == e ? !evaluatesRecv : selector.startsWith("value")) return false;
+        }
+        if (compiler.closureConversion) return true;
+        for (SmalltalkParser.BlockContext nested : getNestedBlocks(blk.body(), new ArrayList<>())) {
+            if (!isInlinedOperand(nested) && !isStackBlock(nested)) return false;
+        }
+        return true;
+    }
+
+    /** Return the block literal that e consists of, or null if e is anything else */
+    static SmalltalkParser.BlockContext literalBlock(SmalltalkParser.BinaryExpressionContext e) {
+        if (e.bop().size() != 0 || !(e.unaryExpression(0) instanceof SmalltalkParser.UnaryIsPrimaryContext)) {
+            return null;
+        }
+        return ((SmalltalkParser.UnaryIsPrimaryContext)e.unaryExpression(0)).primary().block();
+    }
+
+    /** Collect the outermost blocks within tree, not those nested in them */
+    static List<SmalltalkParser.BlockContext> getNestedBlocks(ParserRuleContext tree,
+                                                              List<SmalltalkParser.BlockContext> blocks)
+    {
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (tree.getChild(i) instanceof SmalltalkParser.BlockContext) {
+                blocks.add((SmalltalkParser.BlockContext)tree.getChild(i));
+            }
+            else if (tree.getChild(i) instanceof ParserRuleContext) {
+                getNestedBlocks((ParserRuleContext)tree.getChild(i), blocks);
+            }
+        }
+        return blocks;
+    }
+
+    static String getSelector(SmalltalkParser.KeywordSendContext ctx) {
+        String str = "";
+        for (int i = 0; i < ctx.KEYWORD().size(); i++) {
+            str += ctx.KEYWORD(i).getText();
+        }
+        return str;
+    }
+
+    /** Compile a send accepted by {@link #isInlinable(SmalltalkParser.KeywordSendContext)}
+     *  to straight-line code. ifTrue:ifFalse: [a] [b] becomes:
+     *
+     *      cond
+     *  L:  jump_if_false else, fallback
+     *      a
+     *      jump end
+     *  fallback:
+     *      send 0 'mustBeBoolean'
+     *      jump L
+     *  else:
+     *      b
+     *  end:
+     *
+     *  The others are variations on this. The conditional jumps pop a
+     *  Boolean but jump to fallback with anything else still on the
+     *  stack, which is sent mustBeBoolean; if that answers a Boolean, we
+     *  test again.
+     */
+    public Code genInlinedSend(SmalltalkParser.KeywordSendContext ctx) {
+        String selector = getSelector(ctx);
+        if (selector.equals("whileTrue:")) {
+            return genWhileTrue(ctx);
+        }
+        Code cond = visit(ctx.recv);
+        Code then = inlineBlock(literalBlock(ctx.args.get(0)));
+        switch (selector) {
+            case "ifTrue:":
+                return genConditional(ctx, cond, Bytecode.JUMP_IF_FALSE, then, Compiler.push_nil());
+            case "ifFalse:":
+                return genConditional(ctx, cond, Bytecode.JUMP_IF_TRUE, then, Compiler.push_nil());
+            case "ifTrue:ifFalse:":
+                Code orElse = inlineBlock(literalBlock(ctx.args.get(1)));
+                return genConditional(ctx, cond, Bytecode.JUMP_IF_FALSE, then, orElse);
+            case "and:":
+                return genConditional(ctx, cond, Bytecode.JUMP_IF_FALSE, then, Compiler.push_false());
+            default: // or:
+                return genConditional(ctx, cond, Bytecode.JUMP_IF_TRUE, then, Compiler.push_true());
+        }
+    }
+
+    Code genConditional(SmalltalkParser.KeywordSendContext ctx, Code cond, short jumpOpcode,
+                        Code fallThrough, Code target)
+    {
+        Code fallback = genMustBeBoolean(ctx);
+        int toEnd = instructionSize(jumpOpcode) + fallThrough.size();
+        int toFallback = toEnd + instructionSize(Bytecode.JUMP);
+        int toRetest = toFallback + fallback.size();
+        int toTarget = toRetest + instructionSize(Bytecode.JUMP);
+        int end = toTarget + target.size();
+        return Code.join(cond,
+                         jumpOpcode == Bytecode.JUMP_IF_TRUE ?
+                             Compiler.jump_if_true(toTarget, toFallback) :
+                             Compiler.jump_if_false(toTarget, toFallback),
+                         fallThrough,
+                         Compiler.jump(end - toEnd),
+                         fallback,
+                         Compiler.jump(-toRetest),
+                         target);
+    }
+
+    /** [cond] whileTrue: [body] becomes:
+     *
+     *  top:
+     *      cond
+     *  L:  jump_if_false exit, fallback
+     *      body
+     *      pop
+     *      jump top
+     *  fallback:
+     *      send 0 'mustBeBoolean'
+     *      jump L
+     *  exit:
+     *      nil
+     */
+    Code genWhileTrue(SmalltalkParser.KeywordSendContext ctx) {
+        Code cond = inlineBlock(literalBlock(ctx.recv));
+        Code body = inlineBlock(literalBlock(ctx.args.get(0)));
+        Code fallback = genMustBeBoolean(ctx);
+        int test = cond.size();
+        int toTop = test + instructionSize(Bytecode.JUMP_IF_FALSE) + body.size() + 1; // +1 for pop
+        int toFallback = toTop + instructionSize(Bytecode.JUMP);
+        int toRetest = toFallback + fallback.size();
+        int exit = toRetest + instructionSize(Bytecode.JUMP);
+        return Code.join(cond,
+                         Compiler.jump_if_false(exit - test, toFallback - test),
+                         body,
+                         Compiler.pop(),
+                         Compiler.jump(-toTop),
+                         fallback,
+                         Compiler.jump(test - toRetest),
+                         Compiler.push_nil());
+    }
+
+    Code genMustBeBoolean(SmalltalkParser.KeywordSendContext ctx) {
+        Code code = Code.None;
+        if (compiler.genDbg) {
+            dealBlockToStrings(compiler.getFileName());
+            code = dbg(ctx.KEYWORD(0).getSymbol());
+        }
+        dealBlockToStrings("mustBeBoolean");
+        return Code.join(code, Compiler.send(0, getLiteralIndex("mustBeBoolean")));
+    }
+
+    /** Generate code for the body of blk in place, leaving its value on
+     *  the stack as a [...] evaluation would. The block still needs a
+     *  compiled block in its method's block table, but no BLOCK
+     *  instruction will ever refer to it.
+     */
+    Code inlineBlock(SmalltalkParser.BlockContext blk) {
+        pushScope(blk.scope);
+        inlinedScopes.add(blk.scope);
+        Code code = visit(blk.body());
+        if (blk.body() instanceof SmalltalkParser.EmptyBodyContext) {
+            code = Code.join(code, Compiler.push_nil());
+        }
+        inlinedScopes.remove(blk.scope);
+        popScope();
+        blk.scope.compiledBlock = getCompiledBlock(blk.scope, null);
+        return code;
+    }
+
+    /** A send of selector, whose literal index is index; one of the
+     *  special arithmetic sends if {@link Compiler#specialSends} is on
+     *  and selector is one of {@link Bytecode#specialSelectors}.
+     */
+    Code send(int nargs, String selector, int index) {
+        short op = compiler.specialSends ? Bytecode.specialSendOpcode(selector) : -1;
+        return op>=0 ? Compiler.special_send(op, index) : Compiler.send(nargs, index);
+    }
+
+    static int instructionSize(short opcode) {
+        return Bytecode.instructionSize(Bytecode.instructions[opcode]);
+    }
+
     @Override
     public Code visitSuperKeywordSend(SmalltalkParser.SuperKeywordSendContext ctx) {
         if (debug) {
@@ -414,7 +720,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
                 dealBlockToStrings(str);
                 int index = getLiteralIndex(str);
                 //Before you join code for Send
-                code = aggregateResult(code,Compiler.send(1,index));
+                code = aggregateResult(code,send(1,str,index));
             }
         }
         return code;
@@ -543,9 +849,22 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		currentScope = currentScope.getEnclosingScope();
 	}
 
+	/** The scope whose compiled block receives the code we generate:
+	 *  the current scope unless that is being inlined, in which case
+	 *  the nearest enclosing scope that is not.
+	 */
+	public Scope codeScope() {
+		Scope scope = currentScope;
+		while (inlinedScopes.contains(scope)) {
+			scope = scope.getEnclosingScope();
+		}
+		return scope;
+	}
+
 	public int getLiteralIndex(String s) {
-        if(blockToStrings.containsKey(currentScope)) {
-            StringTable st = blockToStrings.get(currentScope);
+        Scope scope = codeScope();
+        if(blockToStrings.containsKey(scope)) {
+            StringTable st = blockToStrings.get(scope);
             String[] strs = st.toArray();
 //            int index = 0;
 //            for (String str : strs){
@@ -576,12 +895,13 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         }
         if (str.contains("'"))
             str = str.substring(str.indexOf("'") + 1, str.lastIndexOf("'"));
-        if( blockToStrings.get(currentScope) != null){
-            blockToStrings.get(currentScope).add(str);
+        Scope scope = codeScope();
+        if( blockToStrings.get(scope) != null){
+            blockToStrings.get(scope).add(str);
         }else{//create
             StringTable st = new StringTable();
             st.add(str);//!!!!!!!!!!!!!!! noob!!!
-            blockToStrings.put(currentScope, st);
+            blockToStrings.put(scope, st);
         }
     }
 
@@ -595,8 +915,17 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
             // store_local i
             int i = var.getInsertionOrderNumber();
             // this is really the delta from current scope to var.scope
-            int d = ((STBlock) currentScope).getRelativeScopeCount(var.getScope().getName());
-            code.join(Compiler.store_local(d, i));
+            STBlock scope = (STBlock) codeScope();
+            int d = scope.getRelativeScopeCount(var.getScope().getName());
+            if (scope.captures != null && d > 0) { // captured, so boxed
+                code.join(Compiler.store_copy_box(scope.captures.indexOf(var)));
+            }
+            else if (((STVariable) var).boxed) {
+                code.join(Compiler.store_box(i));
+            }
+            else {
+                code.join(Compiler.store_local(d, i));
+            }
         }
         else {//mark
             // store_local i
@@ -636,13 +965,37 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 //                var.setInsertionOrderNumber(index);
             } else {
                 int i = var.getInsertionOrderNumber();
-                int d = ((STBlock) currentScope).getRelativeScopeCount(var.getScope().getName());
-                code.join(Compiler.push_local(d, i));
+                STBlock scope = (STBlock) codeScope();
+                int d = scope.getRelativeScopeCount(var.getScope().getName());
+                boolean boxed = var instanceof STVariable && ((STVariable) var).boxed;
+                if (scope.captures != null && d > 0) { // copied into our descriptor
+                    int j = scope.captures.indexOf(var);
+                    code.join(boxed ? Compiler.push_copy_box(j) : Compiler.push_copy(j));
+                }
+                else if (boxed) {
+                    code.join(Compiler.push_box(i));
+                }
+                else {
+                    code.join(Compiler.push_local(d, i));
+                }
             }
         }
         return code;
     }
 
+	/** Put each boxed local of blk in its box on entry to blk, before
+	 *  anything can read or capture it; see {@link CaptureAnalysis}.
+	 */
+	public Code boxLocals(STBlock blk) {
+		Code code = Code.None;
+		for (Symbol s : blk.getSymbols()) {
+			if (s instanceof STVariable && ((STVariable) s).boxed) {
+				code = Code.join(code, Compiler.box_local(s.getInsertionOrderNumber()));
+			}
+		}
+		return code;
+	}
+
 	public Code dbgAtEndMain(Token t) {
 		int charPos = t.getCharPositionInLine() + t.getText().length();
 		return dbg(t.getLine(), charPos);
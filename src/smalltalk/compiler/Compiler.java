@@ -29,6 +29,15 @@ public class Compiler {
     protected SmalltalkParser.FileContext fileTree;
 	protected String fileName;
 	public boolean genDbg; // generate dbg file,line instructions
+	public boolean inlineControlFlow; // compile ifTrue:, whileTrue:, ... on literal blocks to jumps
+	public boolean tailSends; // mark sends whose result is returned as TAIL_SEND
+	public boolean closureConversion; // blocks copy the variables they use; see CaptureAnalysis
+	public boolean stackBlocks; // reuse descriptors of blocks that can't escape; see CodeGenerator.isStackBlock
+	public boolean peephole; // shorten generated code; see PeepholeOptimizer
+	public boolean specialSends; // send_add etc... for arithmetic and comparison selectors
+	public boolean trivialMethods; // mark accessors etc... for SEND to run inline; see Bytecode.classifyTrivial
+	public boolean compactSends; // SEND_0..SEND_2 with a byte selector index; see PeepholeOptimizer.compactSends
+	public boolean compactOperands; // one-byte forms of push_local etc...; see PeepholeOptimizer.compactOperands
 
 	public Compiler() {
 		symtab = new STSymbolTable();
@@ -40,6 +49,19 @@ public class Compiler {
         //fileName = "<string>";
 	}
 
+	/** Turn all of the optimizations above on or off together, as -O does */
+	public void setOptimize(boolean optimize) {
+		inlineControlFlow = optimize;
+		tailSends = optimize;
+		closureConversion = optimize;
+		stackBlocks = optimize;
+		peephole = optimize;
+		specialSends = optimize;
+		trivialMethods = optimize;
+		compactSends = optimize;
+		compactOperands = optimize;
+	}
+
 	public String getFileName() {
 		//return fileName
         //System.out.println(tokens.getSourceName());
@@ -56,6 +78,9 @@ public class Compiler {
 			defSymbols(tree);
 			resolveSymbols(tree);
 			CodeGenerator gen = new CodeGenerator(this);
+			if ( closureConversion ) {
+				ParseTreeWalker.DEFAULT.walk(new CaptureAnalysis(gen), tree);
+			}
 			gen.visit(tree);
 		}
 
@@ -167,16 +192,31 @@ public class Compiler {
     public static Code store_field(int f) 		    { return Code.of(Bytecode.STORE_FIELD).join(Utils.shortToBytes(f)); }
     public static Code store_local(int d, int i)    { return Code.of(Bytecode.STORE_LOCAL).join(Utils.shortToBytes(d)).join(Utils.shortToBytes(i)); }
 
+    //closure conversion; see CaptureAnalysis
+    public static Code push_copy(int i)             { return Code.of(Bytecode.PUSH_COPY).join(Utils.shortToBytes(i)); }
+    public static Code push_copy_box(int i)         { return Code.of(Bytecode.PUSH_COPY_BOX).join(Utils.shortToBytes(i)); }
+    public static Code store_copy_box(int i)        { return Code.of(Bytecode.STORE_COPY_BOX).join(Utils.shortToBytes(i)); }
+    public static Code push_box(int i)              { return Code.of(Bytecode.PUSH_BOX).join(Utils.shortToBytes(i)); }
+    public static Code store_box(int i)             { return Code.of(Bytecode.STORE_BOX).join(Utils.shortToBytes(i)); }
+    public static Code box_local(int i)             { return Code.of(Bytecode.BOX_LOCAL).join(Utils.shortToBytes(i)); }
+
 
     //public static Code method(short m)            { return Code.of(Bytecode.METHOD); }
     public static Code method_return() 			    { return Code.of(Bytecode.RETURN); }
 
     //send
     public static Code send(int size, int i)        { return Code.of(Bytecode.SEND).join(Utils.toLiteral(size).join(Utils.toLiteral(i))); }
+    public static Code special_send(short op, int i){ return Code.of(op).join(Utils.toLiteral(1).join(Utils.toLiteral(i))); }
     public static Code send_super(int size, int i)  { return Code.of(Bytecode.SEND_SUPER).join(Utils.toLiteral(size).join(Utils.toLiteral(i))); }
 
+    //jump; addresses are relative to the start of the jump instruction
+    public static Code jump(int a)                  { return Code.of(Bytecode.JUMP).join(Utils.intToBytes(a)); }
+    public static Code jump_if_true(int a, int f)   { return Code.of(Bytecode.JUMP_IF_TRUE).join(Utils.intToBytes(a)).join(Utils.intToBytes(f)); }
+    public static Code jump_if_false(int a, int f)  { return Code.of(Bytecode.JUMP_IF_FALSE).join(Utils.intToBytes(a)).join(Utils.intToBytes(f)); }
+
     //block
     public static Code block(short b) 			    { return Code.of(Bytecode.BLOCK).join(Utils.shortToBytes(b)); }
+    public static Code stack_block(short b)         { return Code.of(Bytecode.STACK_BLOCK).join(Utils.shortToBytes(b)); }
     public static Code block_return()               { return Code.of(Bytecode.BLOCK_RETURN); }
 
     //dbg
@@ -195,6 +235,21 @@ public class Compiler {
                 .join(Utils.intToBytes(Bytecode.combineLineCharPos(line,charPos))));
 	}
 
+    //compact forms; see PeepholeOptimizer.compactOperands. Operands must be < 256
+    public static Code push_local_0(int i)          { return Code.of((short)(Bytecode.PUSH_LOCAL_0_0 + i)); } // i < 8
+    public static Code push_field_n(int f)          { return Code.of((short)(Bytecode.PUSH_FIELD_0 + f)); }   // f < 8
+    public static Code push_local_b(int d, int i)   { return Code.of(Bytecode.PUSH_LOCAL_B, (short)d, (short)i); }
+    public static Code store_local_b(int d, int i)  { return Code.of(Bytecode.STORE_LOCAL_B, (short)d, (short)i); }
+    public static Code pop_local_b(int d, int i)    { return Code.of(Bytecode.STORE_LOCAL_POP_B, (short)d, (short)i); }
+    public static Code push_field_b(int f)          { return Code.of(Bytecode.PUSH_FIELD_B, (short)f); }
+    public static Code store_field_b(int f)         { return Code.of(Bytecode.STORE_FIELD_B, (short)f); }
+    public static Code push_literal_b(int l)        { return Code.of(Bytecode.PUSH_LITERAL_B, (short)l); }
+    public static Code push_global_b(int g)         { return Code.of(Bytecode.PUSH_GLOBAL_B, (short)g); }
+    public static Code send_n(int nargs, int i)     { return Code.of((short)(Bytecode.SEND_0 + nargs), (short)i); } // nargs <= 2
+    public static Code dbg_b(int litIndex, int lineAndPos) { // line < 256
+        return Code.of(Bytecode.DBG_B, (short)litIndex).join(Utils.shortToBytes(lineAndPos));
+    }
+
 	// Error support
 	public void error(String msg) {
 		errors.add(msg);
@@ -0,0 +1,275 @@
+package smalltalk.compiler;
+
+import smalltalk.misc.Utils;
+import smalltalk.vm.Bytecode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Rewrite the byte code of one method or block into an equivalent but
+ *  shorter sequence when {@link Compiler#peephole} is on.
+ *  {@link CodeGenerator#getCompiledBlock} runs it before marking tail
+ *  sends and computing the stack depth. It does the following:
+ *
+ *  <ul>
+ *  <li>drops instructions that can't be reached, such as the pop, self,
+ *  return the generator appends after a method's explicit ^ return;</li>
+ *  <li>drops a dbg that repeats the location set by the last dbg that
+ *  executed;</li>
+ *  <li>turns store x; pop; push x into store x, since a store leaves its
+ *  value on the stack. x can be a local, field or boxed variable;</li>
+ *  <li>fuses store_local; pop into pop_local, self; return into
+ *  return_self and nil; block_return into block_ret_nil.</li>
+ *  </ul>
+ *
+ *  Control can only enter a pattern at its first instruction, so no
+ *  instruction after that one may be a jump target. Jump operands are
+ *  relative to their own instruction, so they are all recomputed once
+ *  the instructions have their new addresses.
+ */
+public class PeepholeOptimizer {
+	/** One instruction of the code being rewritten: its opcode and
+	 *  operand bytes, and its address in the original code. Jump targets
+	 *  still refer to original addresses until {@link #assemble}.
+	 */
+	static class Instr {
+		final int addr;
+		final byte[] bytes;
+
+		Instr(int addr, byte[] bytes) {
+			this.addr = addr;
+			this.bytes = bytes;
+		}
+
+		int opcode() { return bytes[0]; }
+
+		/** Same opcode and operands as i, ignoring addresses? */
+		boolean sameOperands(Instr i) {
+			return Arrays.equals(Arrays.copyOfRange(bytes, 1, bytes.length),
+								 Arrays.copyOfRange(i.bytes, 1, i.bytes.length));
+		}
+	}
+
+	/** Stores and the pushes that read back what they stored */
+	static final Map<Integer, Integer> pushAfterStore = new HashMap<>();
+	static {
+		pushAfterStore.put((int)Bytecode.STORE_LOCAL, (int)Bytecode.PUSH_LOCAL);
+		pushAfterStore.put((int)Bytecode.STORE_FIELD, (int)Bytecode.PUSH_FIELD);
+		pushAfterStore.put((int)Bytecode.STORE_BOX, (int)Bytecode.PUSH_BOX);
+		pushAfterStore.put((int)Bytecode.STORE_COPY_BOX, (int)Bytecode.PUSH_COPY_BOX);
+	}
+
+	public static byte[] optimize(byte[] code) {
+		List<Instr> instrs = decode(code);
+		Set<Integer> targets = new HashSet<>();
+		instrs = reachable(instrs, targets);
+		return assemble(rewrite(instrs, targets));
+	}
+
+	/** Replace each SEND of at most two arguments whose selector is one of
+	 *  the first 256 literals with the SEND_0..SEND_2 form that has the
+	 *  argument count in its opcode and a one-byte selector index. Other
+	 *  sends keep the general encoding. Runs after
+	 *  {@link Bytecode#markTailSends}, so TAIL_SENDs stay as they are.
+	 */
+	public static byte[] compactSends(byte[] code) {
+		List<Instr> instrs = decode(code);
+		for (int i=0; i<instrs.size(); i++) {
+			Instr I = instrs.get(i);
+			if ( I.opcode()!=Bytecode.SEND ) continue;
+			int nargs = Bytecode.getShort(I.bytes, 1);
+			int lit = Bytecode.getShort(I.bytes, 3);
+			if ( nargs<=2 && lit<256 ) {
+				instrs.set(i, new Instr(I.addr, Compiler.send_n(nargs, lit).bytes()));
+			}
+		}
+		return assemble(instrs);
+	}
+
+	/** Replace each push_local, store_local, pop_local, push_field,
+	 *  store_field, push_literal, push_global and dbg whose operands fit
+	 *  in a byte with its compact form (see {@link Bytecode#generalOpcode}):
+	 *  push_local 0, i and push_field i become a single byte for i &lt; 8.
+	 *  Operands that don't fit keep the general two-byte encoding. This
+	 *  runs last, after everything that reads the general forms.
+	 */
+	public static byte[] compactOperands(byte[] code) {
+		List<Instr> instrs = decode(code);
+		for (int i=0; i<instrs.size(); i++) {
+			Instr I = instrs.get(i);
+			Code compact = compactForm(I);
+			if ( compact!=null ) instrs.set(i, new Instr(I.addr, compact.bytes()));
+		}
+		return assemble(instrs);
+	}
+
+	/** The compact form of I, or null if it has none or its operands are too big */
+	static Code compactForm(Instr I) {
+		int a = I.bytes.length>=3 ? Bytecode.getShort(I.bytes, 1) : 0;
+		int b = I.bytes.length>=5 ? Bytecode.getShort(I.bytes, 3) : 0;
+		switch ( I.opcode() ) {
+			case Bytecode.PUSH_LOCAL :
+				if ( a==0 && b<8 ) return Compiler.push_local_0(b);
+				return a<256 && b<256 ? Compiler.push_local_b(a, b) : null;
+			case Bytecode.STORE_LOCAL :
+				return a<256 && b<256 ? Compiler.store_local_b(a, b) : null;
+			case Bytecode.STORE_LOCAL_POP :
+				return a<256 && b<256 ? Compiler.pop_local_b(a, b) : null;
+			case Bytecode.PUSH_FIELD :
+				if ( a<8 ) return Compiler.push_field_n(a);
+				return a<256 ? Compiler.push_field_b(a) : null;
+			case Bytecode.STORE_FIELD :
+				return a<256 ? Compiler.store_field_b(a) : null;
+			case Bytecode.PUSH_LITERAL :
+				return a<256 ? Compiler.push_literal_b(a) : null;
+			case Bytecode.PUSH_GLOBAL :
+				return a<256 ? Compiler.push_global_b(a) : null;
+			case Bytecode.DBG :
+				int location = Bytecode.getInt(I.bytes, 3);
+				return a<256 && Bytecode.lineFromCombined(location)<256 ? Compiler.dbg_b(a, location) : null;
+			default :
+				return null;
+		}
+	}
+
+	static List<Instr> decode(byte[] code) {
+		List<Instr> instrs = new ArrayList<>();
+		int ip = 0;
+		while ( ip<code.length ) {
+			int size = Bytecode.instructionSize(Bytecode.instructions[code[ip]]);
+			instrs.add(new Instr(ip, Arrays.copyOfRange(code, ip, ip+size)));
+			ip += size;
+		}
+		return instrs;
+	}
+
+	/** The instructions reachable from the first, in order. The original
+	 *  addresses that the reachable jumps go to are added to targets.
+	 */
+	static List<Instr> reachable(List<Instr> instrs, Set<Integer> targets) {
+		Map<Integer, Integer> indexOf = new HashMap<>();
+		for (int i=0; i<instrs.size(); i++) indexOf.put(instrs.get(i).addr, i);
+		boolean[] live = new boolean[instrs.size()];
+		Deque<Integer> work = new ArrayDeque<>();
+		if ( !instrs.isEmpty() ) work.push(0);
+		while ( !work.isEmpty() ) {
+			int i = work.pop();
+			if ( i>=instrs.size() || live[i] ) continue;
+			live[i] = true;
+			Instr I = instrs.get(i);
+			for (int target : jumpTargets(I)) {
+				targets.add(target);
+				work.push(indexOf.get(target));
+			}
+			if ( I.opcode()!=Bytecode.JUMP && !Bytecode.isReturn(I.opcode()) ) work.push(i+1);
+		}
+		List<Instr> result = new ArrayList<>();
+		for (int i=0; i<instrs.size(); i++) {
+			if ( live[i] ) result.add(instrs.get(i));
+		}
+		return result;
+	}
+
+	/** Original addresses I can jump to; a conditional jump's fallback too */
+	static List<Integer> jumpTargets(Instr I) {
+		List<Integer> targets = new ArrayList<>();
+		switch ( I.opcode() ) {
+			case Bytecode.JUMP_IF_TRUE :
+			case Bytecode.JUMP_IF_FALSE :
+				targets.add(I.addr + Bytecode.getInt(I.bytes, 5)); // fallback first
+				targets.add(I.addr + Bytecode.getInt(I.bytes, 1));
+				break;
+			case Bytecode.JUMP :
+				targets.add(I.addr + Bytecode.getInt(I.bytes, 1));
+				break;
+		}
+		return targets;
+	}
+
+	static List<Instr> rewrite(List<Instr> instrs, Set<Integer> targets) {
+		List<Instr> out = new ArrayList<>();
+		Instr lastDbg = null; // location in effect when falling into the next instruction
+		int i = 0;
+		while ( i<instrs.size() ) {
+			Instr I = instrs.get(i);
+			if ( targets.contains(I.addr) ) lastDbg = null; // could come from anywhere
+			int op = I.opcode();
+			Instr next = fusible(instrs, i+1, targets);
+			Instr third = next!=null ? fusible(instrs, i+2, targets) : null;
+			if ( op==Bytecode.DBG ) {
+				if ( lastDbg==null || !I.sameOperands(lastDbg) ) out.add(I);
+				lastDbg = I;
+				i++;
+			}
+			else if ( pushAfterStore.containsKey(op) && next!=null && next.opcode()==Bytecode.POP &&
+					  third!=null && third.opcode()==pushAfterStore.get(op) && third.sameOperands(I) )
+			{
+				out.add(I);
+				i += 3;
+			}
+			else if ( op==Bytecode.STORE_LOCAL && next!=null && next.opcode()==Bytecode.POP ) {
+				out.add(fuse(I, Bytecode.STORE_LOCAL_POP));
+				i += 2;
+			}
+			else if ( op==Bytecode.SELF && next!=null && next.opcode()==Bytecode.RETURN ) {
+				out.add(fuse(I, Bytecode.RETURN_SELF));
+				i += 2;
+			}
+			else if ( op==Bytecode.NIL && next!=null && next.opcode()==Bytecode.BLOCK_RETURN ) {
+				out.add(fuse(I, Bytecode.BLOCK_RETURN_NIL));
+				i += 2;
+			}
+			else {
+				out.add(I);
+				i++;
+			}
+		}
+		return out;
+	}
+
+	/** Return instrs[i] if it can join a pattern starting before it */
+	static Instr fusible(List<Instr> instrs, int i, Set<Integer> targets) {
+		if ( i>=instrs.size() || targets.contains(instrs.get(i).addr) ) return null;
+		return instrs.get(i);
+	}
+
+	/** An instruction at first's address with first's operands but opcode op */
+	static Instr fuse(Instr first, short op) {
+		byte[] bytes = first.bytes.clone();
+		bytes[0] = (byte)op;
+		return new Instr(first.addr, bytes);
+	}
+
+	/** Lay out instrs contiguously and point the jumps at the new
+	 *  addresses of their targets. Every target is the address of some
+	 *  instruction in instrs since rewrite never drops a target.
+	 */
+	static byte[] assemble(List<Instr> instrs) {
+		Map<Integer, Integer> newAddr = new HashMap<>();
+		int size = 0;
+		for (Instr I : instrs) {
+			newAddr.put(I.addr, size);
+			size += I.bytes.length;
+		}
+		byte[] code = new byte[size];
+		int ip = 0;
+		for (Instr I : instrs) {
+			System.arraycopy(I.bytes, 0, code, ip, I.bytes.length);
+			List<Integer> targets = jumpTargets(I);
+			for (int t=0; t<targets.size(); t++) { // fallback first for conditional jumps
+				int opnd = targets.size()==2 && t==0 ? 5 : 1;
+				Code rel = Utils.intToBytes(newAddr.get(targets.get(t)) - ip);
+				System.arraycopy(rel.elements, 0, code, ip+opnd, 4);
+			}
+			ip += I.bytes.length;
+		}
+		return code;
+	}
+}
@@ -2,10 +2,13 @@ package smalltalk.compiler;
 
 import org.antlr.symtab.MethodSymbol;
 import org.antlr.symtab.Scope;
+import org.antlr.symtab.VariableSymbol;
 import org.antlr.v4.runtime.ParserRuleContext;
 import smalltalk.vm.primitive.STCompiledBlock;
 import smalltalk.vm.primitive.STMetaClassObject;
 
+import java.util.List;
+
 /** A block is an anonymous method defined within a method or another block.
  *  Ala gnu impl., blocks aren't stored en masse inline.
  *
@@ -45,6 +48,20 @@ public class STBlock extends MethodSymbol {
 
 	public STCompiledBlock compiledBlock;
 
+	/** With {@link Compiler#closureConversion} on, the variables of
+	 *  enclosing scopes referenced in this block or the blocks nested in
+	 *  it, in the order the BLOCK instruction copies them into the block
+	 *  descriptor. Empty for methods; null without closure conversion.
+	 *  Set by {@link CaptureAnalysis}.
+	 */
+	public List<VariableSymbol> captures;
+
+	/** Does this block or a block nested in it refer to self, super or a field? */
+	public boolean usesSelf;
+
+	/** Does this block or a block nested in it ^ return from its method? */
+	public boolean hasNonLocalReturn;
+
 	/** Used by subclass STMethod */
 	protected STBlock(String name, ParserRuleContext tree) {
 		super(name);
@@ -3,6 +3,12 @@ package smalltalk.compiler;
 import org.antlr.symtab.VariableSymbol;
 
 public class STVariable extends VariableSymbol {
+	/** Is this local captured by a block and assignable after the block
+	 *  copies it? Then it lives in a {@link smalltalk.vm.primitive.VariableBox}
+	 *  shared by its scope and those blocks; see {@link CaptureAnalysis}.
+	 */
+	public boolean boxed;
+
 	public STVariable(String name) {
 		super(name);
 	}
@@ -2,7 +2,10 @@ package smalltalk.vm;
 
 import smalltalk.vm.primitive.STCompiledBlock;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 public class Bytecode {
@@ -22,7 +25,9 @@ public class Bytecode {
 
 	public enum OperandType {
 		NONE(0), BYTE(1), CHAR(2), ADDR(4), SHORT(2), LITERAL(2), INT(4), FLOAT(4),
-		DBG_LOCATION(4) // upper 24 bits are line number; lowest eight bits are the character position within the line
+		BYTE_LITERAL(1), // literal index < 256
+		DBG_LOCATION(4), // upper 24 bits are line number; lowest eight bits are the character position within the line
+		SHORT_DBG_LOCATION(2) // DBG_LOCATION of a line < 256
 		;
 		public final int sizeInBytes;
 		OperandType(int sizeInBytes) { this.sizeInBytes = sizeInBytes; }
@@ -70,6 +75,10 @@ public class Bytecode {
 	public static final short STORE_FIELD			= 18;
 	public static final short STORE_LOCAL 			= 19;
 	public static final short POP					= 20;
+	public static final short JUMP					= 21;
+	public static final short JUMP_IF_TRUE			= 22; // pop Boolean, jump if true
+	public static final short JUMP_IF_FALSE			= 23; // pop Boolean, jump if false
+	public static final short TAIL_SEND				= 24; // SEND whose result is returned at once
 
 	public static final short SEND					= 25;
 	public static final short SEND_SUPER			= 26;
@@ -79,6 +88,61 @@ public class Bytecode {
 
 	public static final short DBG					= 30;
 
+	// closure conversion: blocks copy the variables they use; see CaptureAnalysis
+	public static final short PUSH_COPY				= 31; // push copied variable i of the block
+	public static final short PUSH_COPY_BOX			= 32; // push contents of the box copied as variable i
+	public static final short STORE_COPY_BOX		= 33;
+	public static final short PUSH_BOX				= 34; // push contents of the box in local i
+	public static final short STORE_BOX				= 35;
+	public static final short BOX_LOCAL				= 36; // put local i in a box
+
+	public static final short STACK_BLOCK			= 37; // BLOCK whose descriptor can't outlive the send it's passed to
+
+	// fused instructions from PeepholeOptimizer
+	public static final short STORE_LOCAL_POP		= 38; // STORE_LOCAL then POP
+	public static final short RETURN_SELF			= 39; // SELF then RETURN
+	public static final short BLOCK_RETURN_NIL		= 40; // NIL then BLOCK_RETURN
+
+	// SEND of a special selector: computed in place for two Integers or
+	// two Floats, otherwise an ordinary send; see specialSelectors
+	public static final short SEND_ADD				= 41;
+	public static final short SEND_SUB				= 42;
+	public static final short SEND_MUL				= 43;
+	public static final short SEND_DIV				= 44;
+	public static final short SEND_LT				= 45;
+	public static final short SEND_GT				= 46;
+	public static final short SEND_LE				= 47;
+	public static final short SEND_GE				= 48;
+	public static final short SEND_EQ				= 49;
+	public static final short SEND_NE				= 50;
+	public static final short SEND_MOD				= 51;
+
+	// SEND of 0, 1 or 2 args whose selector index fits in a byte
+	public static final short SEND_0				= 52;
+	public static final short SEND_1				= 53;
+	public static final short SEND_2				= 54;
+
+	// compact encodings of common instructions, produced last by
+	// PeepholeOptimizer.compactOperands. The VM never sees them:
+	// predecode expands each to its general form; see generalOpcode
+	public static final short PUSH_LOCAL_0_0		= 55; // PUSH_LOCAL 0, n for n in 0..7
+	public static final short PUSH_LOCAL_0_7		= 62;
+	public static final short PUSH_FIELD_0			= 63; // PUSH_FIELD n for n in 0..7
+	public static final short PUSH_FIELD_7			= 70;
+	public static final short PUSH_LOCAL_B			= 71; // the rest have one-byte operands
+	public static final short STORE_LOCAL_B			= 72;
+	public static final short STORE_LOCAL_POP_B		= 73;
+	public static final short PUSH_FIELD_B			= 74;
+	public static final short STORE_FIELD_B			= 75;
+	public static final short PUSH_LITERAL_B		= 76;
+	public static final short PUSH_GLOBAL_B			= 77;
+	public static final short DBG_B					= 78;
+
+	/** The selectors of SEND_ADD..SEND_MOD, in opcode order */
+	public static final String[] specialSelectors = {
+		"+", "-", "*", "/", "<", ">", "<=", ">=", "=", "~=", "mod:"
+	};
+
 	/** Used for disassembly; describes instruction set */
 	public static final Instruction[] instructions = new Instruction[] {
 		null, // <INVALID>
@@ -100,8 +164,10 @@ public class Bytecode {
 		new Instruction("store_field", OperandType.SHORT),
 		new Instruction("store_local", OperandType.SHORT, OperandType.SHORT),
 		new Instruction("pop"),
-
-		null, null, null, null, 		// leave room for gap in ints
+		new Instruction("jump", OperandType.ADDR),
+		new Instruction("jump_if_true", OperandType.ADDR, OperandType.ADDR),  // target, non-Boolean fallback
+		new Instruction("jump_if_false", OperandType.ADDR, OperandType.ADDR),
+		new Instruction("tail_send", OperandType.SHORT, OperandType.LITERAL),
 
 		new Instruction("send", OperandType.SHORT, OperandType.LITERAL),
 		new Instruction("send_super", OperandType.SHORT, OperandType.LITERAL),
@@ -110,8 +176,111 @@ public class Bytecode {
 		new Instruction("return"),
 
 		new Instruction("dbg", OperandType.LITERAL, OperandType.DBG_LOCATION), // filename, line:charpos in file
+
+		new Instruction("push_copy", OperandType.SHORT),
+		new Instruction("push_copy_box", OperandType.SHORT),
+		new Instruction("store_copy_box", OperandType.SHORT),
+		new Instruction("push_box", OperandType.SHORT),
+		new Instruction("store_box", OperandType.SHORT),
+		new Instruction("box_local", OperandType.SHORT),
+
+		new Instruction("stack_block", OperandType.SHORT),
+
+		new Instruction("pop_local", OperandType.SHORT, OperandType.SHORT),
+		new Instruction("return_self"),
+		new Instruction("block_ret_nil"),
+
+		new Instruction("send_add", OperandType.SHORT, OperandType.LITERAL), // same operands as send
+		new Instruction("send_sub", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_mul", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_div", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_lt", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_gt", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_le", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_ge", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_eq", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_ne", OperandType.SHORT, OperandType.LITERAL),
+		new Instruction("send_mod", OperandType.SHORT, OperandType.LITERAL),
+
+		new Instruction("send0", OperandType.BYTE_LITERAL), // nargs is in the opcode
+		new Instruction("send1", OperandType.BYTE_LITERAL),
+		new Instruction("send2", OperandType.BYTE_LITERAL),
+
+		new Instruction("push_local_0_0"),
+		new Instruction("push_local_0_1"),
+		new Instruction("push_local_0_2"),
+		new Instruction("push_local_0_3"),
+		new Instruction("push_local_0_4"),
+		new Instruction("push_local_0_5"),
+		new Instruction("push_local_0_6"),
+		new Instruction("push_local_0_7"),
+		new Instruction("push_field_0"),
+		new Instruction("push_field_1"),
+		new Instruction("push_field_2"),
+		new Instruction("push_field_3"),
+		new Instruction("push_field_4"),
+		new Instruction("push_field_5"),
+		new Instruction("push_field_6"),
+		new Instruction("push_field_7"),
+		new Instruction("push_local_b", OperandType.BYTE, OperandType.BYTE),
+		new Instruction("store_local_b", OperandType.BYTE, OperandType.BYTE),
+		new Instruction("pop_local_b", OperandType.BYTE, OperandType.BYTE),
+		new Instruction("push_field_b", OperandType.BYTE),
+		new Instruction("store_field_b", OperandType.BYTE),
+		new Instruction("push_literal_b", OperandType.BYTE_LITERAL),
+		new Instruction("push_global_b", OperandType.BYTE_LITERAL),
+		new Instruction("dbg_b", OperandType.BYTE_LITERAL, OperandType.SHORT_DBG_LOCATION),
 	};
 
+	/** The SEND_x opcode for selector, or -1 if it isn't special */
+	public static short specialSendOpcode(String selector) {
+		for (int i=0; i<specialSelectors.length; i++) {
+			if ( specialSelectors[i].equals(selector) ) return (short)(SEND_ADD + i);
+		}
+		return -1;
+	}
+
+	/** Is opcode a send of any kind, with a selector to look up? */
+	public static boolean isSend(int opcode) {
+		return opcode==SEND || opcode==SEND_SUPER || opcode==TAIL_SEND ||
+			   (opcode>=SEND_ADD && opcode<=SEND_MOD) || (opcode>=SEND_0 && opcode<=SEND_2);
+	}
+
+	/** The general instruction that compact opcode stands for, or opcode
+	 *  itself if it isn't one of PUSH_LOCAL_0_0..DBG_B.
+	 */
+	public static short generalOpcode(int opcode) {
+		if ( opcode>=PUSH_LOCAL_0_0 && opcode<=PUSH_LOCAL_0_7 ) return PUSH_LOCAL;
+		if ( opcode>=PUSH_FIELD_0 && opcode<=PUSH_FIELD_7 ) return PUSH_FIELD;
+		switch ( opcode ) {
+			case PUSH_LOCAL_B :		 return PUSH_LOCAL;
+			case STORE_LOCAL_B :	 return STORE_LOCAL;
+			case STORE_LOCAL_POP_B : return STORE_LOCAL_POP;
+			case PUSH_FIELD_B :		 return PUSH_FIELD;
+			case STORE_FIELD_B :	 return STORE_FIELD;
+			case PUSH_LITERAL_B :	 return PUSH_LITERAL;
+			case PUSH_GLOBAL_B :	 return PUSH_GLOBAL;
+			case DBG_B :			 return DBG;
+			default :				 return (short)opcode;
+		}
+	}
+
+	/** Store the operands that opcode implies without encoding them, such
+	 *  as 0, 3 for PUSH_LOCAL_0_3, at the start of opnds and return how many.
+	 */
+	static int impliedOperands(int opcode, int[] opnds) {
+		if ( opcode>=PUSH_LOCAL_0_0 && opcode<=PUSH_LOCAL_0_7 ) {
+			opnds[0] = 0;
+			opnds[1] = opcode - PUSH_LOCAL_0_0;
+			return 2;
+		}
+		if ( opcode>=PUSH_FIELD_0 && opcode<=PUSH_FIELD_7 ) {
+			opnds[0] = opcode - PUSH_FIELD_0;
+			return 1;
+		}
+		return 0;
+	}
+
 	public static String disassemble(STCompiledBlock blk, int start) {
 		StringBuilder buf = new StringBuilder();
 		int i=start;
@@ -130,6 +299,7 @@ public class Bytecode {
 
 	public static int disassembleInstruction(StringBuilder buf, STCompiledBlock blk, int ip) {
 		byte[] code = blk.bytecode;
+		int start = ip;
 		int opcode = code[ip];
 		if ( ip>=code.length ) {
 			throw new IllegalArgumentException("ip out of range: "+ip);
@@ -141,7 +311,7 @@ public class Bytecode {
 				" at address "+ip+" of "+ blk.name+"\n"+blk.toString());
 		}
 		String instrName = I.name;
-		if ( instrName.equals("dbg") ) {
+		if ( instrName.startsWith("dbg") ) {
 			buf.append(String.format("%04d:  %s ", ip, instrName));
 		}
 		else {
@@ -158,7 +328,7 @@ public class Bytecode {
 				case NONE:
 					break;
 				case BYTE:
-					operands.add(String.valueOf(code[ip]));
+					operands.add(String.valueOf(code[ip]&0xFF));
 					break;
 				case CHAR :
 					operands.add(String.valueOf(getShort(code, ip)));
@@ -167,13 +337,16 @@ public class Bytecode {
 					operands.add(String.valueOf(getShort(code, ip)));
 					break;
 				case LITERAL:
+				case BYTE_LITERAL:
 					if ( blk.literals==null ) operands.add("<no literals>");
 					else {
-						int lit = getShort(code, ip);
+						int lit = decodeOperand(code, ip, I.type[i]);
 						operands.add(String.valueOf('\''+blk.literals[lit]+'\''));
 					}
 					break;
 				case ADDR :
+					operands.add(String.valueOf(start+getInt(code, ip)));
+					break;
 				case INT :
 					operands.add(String.valueOf(getInt(code, ip)));
 					break;
@@ -182,7 +355,8 @@ public class Bytecode {
 					operands.add(String.valueOf(f));
 					break;
 				case DBG_LOCATION :
-					int lineAndPos = getInt(code, ip);
+				case SHORT_DBG_LOCATION :
+					int lineAndPos = decodeOperand(code, ip, I.type[i]);
 					int charPos = charPosFromCombined(lineAndPos);
 					int line = lineFromCombined(lineAndPos);
 					operands.add(line+":"+charPos);
@@ -201,6 +375,323 @@ public class Bytecode {
 		return ip;
 	}
 
+	/** Link-time pass that converts blk.bytecode into the pre-decoded
+	 *  form executed by the VM: each instruction becomes its opcode followed
+	 *  by one int per operand in blk.code.  Operands are fully decoded
+	 *  (shorts, ints, float bits) so the interpreter never reassembles
+	 *  them from bytes. ADDR operands are byte offsets relative to the start
+	 *  of their instruction, so the compiler can emit jumps within a code
+	 *  fragment before it knows where the fragment lands; they are
+	 *  translated to absolute indexes into blk.code.
+	 *
+	 *  blk.byteOffsets maps each index into blk.code back to the byte
+	 *  offset of that instruction so that tracing and VM stack dumps can
+	 *  still disassemble the canonical byte code.
+	 *
+	 *  The selector operand of the sends and the name operand of
+	 *  PUSH_GLOBAL are interned in symbols and replaced by their symbol
+	 *  ids, so dispatch and global lookup never hash a string.
+	 *
+	 *  Each send site also gets an empty {@link InlineCache} in
+	 *  blk.sendCaches at the same index as its instruction.
+	 *
+	 *  Compact instructions like PUSH_LOCAL_0_3 or PUSH_FIELD_B are
+	 *  expanded to their general form (see {@link #generalOpcode}), so
+	 *  the VM only executes those.
+	 */
+	public static void predecode(STCompiledBlock blk, SymbolTable symbols) {
+		byte[] bytes = blk.bytecode!=null ? blk.bytecode : new byte[0];
+		// pass 1: size the decoded stream and map byte addresses to code indexes
+		int[] addrToIndex = new int[bytes.length+1];
+		int size = 0;
+		int ip = 0;
+		while ( ip<bytes.length ) {
+			Instruction I = instruction(blk, bytes[ip], ip);
+			addrToIndex[ip] = size;
+			size += 1 + instructions[generalOpcode(bytes[ip])].n;
+			ip += instructionSize(I);
+		}
+		addrToIndex[bytes.length] = size;
+		// pass 2: decode
+		int[] code = new int[size];
+		int[] byteOffsets = new int[size];
+		InlineCache[] sendCaches = new InlineCache[size];
+		int pc = 0;
+		ip = 0;
+		while ( ip<bytes.length ) {
+			Instruction I = instruction(blk, bytes[ip], ip);
+			int start = ip;
+			byteOffsets[pc] = ip;
+			int opcode = generalOpcode(bytes[ip]);
+			Instruction G = instructions[opcode];
+			int[] opnds = new int[G.n];
+			int[] opndOffsets = new int[G.n];
+			int implied = impliedOperands(bytes[ip], opnds);
+			Arrays.fill(opndOffsets, 0, implied, start);
+			ip++;
+			for (int i=0; i<I.n; i++) {
+				opnds[implied+i] = decodeOperand(bytes, ip, I.type[i]);
+				opndOffsets[implied+i] = ip;
+				ip += I.type[i].sizeInBytes;
+			}
+			boolean interned = isSend(opcode) || opcode==PUSH_GLOBAL;
+			if ( isSend(opcode) ) {
+				sendCaches[pc] = new InlineCache();
+			}
+			code[pc++] = opcode;
+			for (int i=0; i<G.n; i++) {
+				int opnd = opnds[i];
+				if ( G.type[i]==OperandType.ADDR ) opnd = addrToIndex[start+opnd];
+				else if ( (G.type[i]==OperandType.LITERAL || G.type[i]==OperandType.BYTE_LITERAL) && interned ) {
+					opnd = symbols.intern(blk.literals[opnd]);
+				}
+				byteOffsets[pc] = opndOffsets[i];
+				code[pc++] = opnd;
+			}
+		}
+		blk.code = code;
+		blk.byteOffsets = byteOffsets;
+		blk.sendCaches = sendCaches;
+	}
+
+	/** Compute the deepest the operand stack gets while executing code,
+	 *  like the JVM's max_stack. This is a flow analysis over the byte
+	 *  code: each reachable instruction is visited with the stack depth on
+	 *  entry, which must be the same along every path to it.
+	 *
+	 *  A send pops its receiver and arguments before anything is pushed
+	 *  for the result, in the caller and in primitives, so a send never
+	 *  makes the stack deeper than it was with the arguments pushed.
+	 *
+	 *  A conditional jump pops its Boolean on both branches but leaves a
+	 *  non-Boolean on the stack when it goes to its fallback address.
+	 */
+	public static int maxStack(byte[] code) {
+		if ( code==null ) return 0;
+		int[] depthAt = new int[code.length];
+		Arrays.fill(depthAt, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		int max = 0;
+		if ( code.length>0 ) {
+			depthAt[0] = 0;
+			work.push(0);
+		}
+		while ( !work.isEmpty() ) {
+			int ip = work.pop();
+			int depth = depthAt[ip];
+			while ( ip<code.length ) {
+				int start = ip;
+				int opcode = code[ip];
+				Instruction I = instructions[opcode];
+				int opnd = I.n>0 ? decodeOperand(code, ip+1, I.type[0]) : 0;
+				if ( opcode==JUMP_IF_TRUE || opcode==JUMP_IF_FALSE ) {
+					int fallback = decodeOperand(code, ip+1+I.type[0].sizeInBytes, I.type[1]);
+					flowTo(depthAt, work, start+fallback, depth);
+					flowTo(depthAt, work, start+opnd, depth-1);
+				}
+				depth += stackEffect(opcode, opnd);
+				max = Math.max(max, depth);
+				ip += instructionSize(I);
+				if ( opcode==JUMP ) {
+					flowTo(depthAt, work, start+opnd, depth);
+					break;
+				}
+				if ( isReturn(opcode) || ip>=code.length ) break;
+				if ( depthAt[ip]>=0 ) break; // already visited along another path
+				depthAt[ip] = depth;
+			}
+		}
+		return max;
+	}
+
+	/** Does opcode leave the context, so control never falls through it? */
+	public static boolean isReturn(int opcode) {
+		return opcode==RETURN || opcode==BLOCK_RETURN || opcode==RETURN_SELF || opcode==BLOCK_RETURN_NIL;
+	}
+
+	private static void flowTo(int[] depthAt, Deque<Integer> work, int target, int depth) {
+		if ( target<depthAt.length && depthAt[target]<0 ) {
+			depthAt[target] = depth;
+			work.push(target);
+		}
+	}
+
+	/** Turn each SEND whose result is returned straight away into a
+	 *  TAIL_SEND. That is a SEND followed by returnOpcode, possibly after
+	 *  DBG instructions and unconditional jumps. returnOpcode is RETURN in
+	 *  a method and BLOCK_RETURN in a block. A RETURN in a block is a
+	 *  non-local return that must unwind the contexts in between, so it
+	 *  is not a tail position.
+	 */
+	public static void markTailSends(byte[] code, short returnOpcode) {
+		int ip = 0;
+		while ( ip<code.length ) {
+			int next = ip + instructionSize(instructions[code[ip]]);
+			if ( code[ip]==SEND && returnsAt(code, next, returnOpcode) ) {
+				code[ip] = TAIL_SEND;
+			}
+			ip = next;
+		}
+	}
+
+	static boolean returnsAt(byte[] code, int ip, short returnOpcode) {
+		for (int steps=0; ip<code.length && steps<code.length; steps++) { // bounded in case of a jump cycle
+			if ( code[ip]==DBG ) ip += instructionSize(instructions[DBG]);
+			else if ( code[ip]==JUMP ) ip += getInt(code, ip+1);
+			else return code[ip]==returnOpcode;
+		}
+		return false;
+	}
+
+	/** Set method.trivialKind if its code is just one of the following,
+	 *  ignoring DBG instructions and anything after the return:
+	 *
+	 *  <pre>
+	 *  push_field i; return                             RETURN_FIELD
+	 *  push_local 0, 0; store_field i; pop; self; return SET_FIELD (one argument)
+	 *  self; return                                     RETURN_SELF
+	 *  nil, true, false, push_int or push_char; return   RETURN_CONSTANT
+	 *  </pre>
+	 *
+	 *  self; return may also be the fused return_self. SEND then does
+	 *  what the method would without activating it.
+	 */
+	public static void classifyTrivial(STCompiledBlock method) {
+		method.trivialKind = STCompiledBlock.NOT_TRIVIAL;
+		if ( method.isPrimitive() || method.bytecode==null ) return;
+		byte[] code = method.bytecode;
+		List<Integer> ops = new ArrayList<>();		// up to and including the first return
+		List<Integer> starts = new ArrayList<>();	// where each is in code
+		int ip = 0;
+		while ( ip<code.length && ops.size()<6 ) {
+			int opcode = code[ip];
+			if ( opcode==RETURN_SELF ) { // as if unfused
+				ops.add((int)SELF);
+				starts.add(ip);
+				opcode = RETURN;
+			}
+			if ( opcode!=DBG ) {
+				ops.add(opcode);
+				starts.add(ip);
+				if ( isReturn(opcode) ) break;
+			}
+			ip += instructionSize(instructions[code[ip]]);
+		}
+		int n = ops.size();
+		if ( n<2 || ops.get(n-1)!=RETURN ) return;
+		int first = ops.get(0);
+		int operand = starts.get(0) + 1;
+		if ( n==2 && first==PUSH_FIELD ) {
+			method.trivialKind = STCompiledBlock.RETURN_FIELD;
+			method.trivialOperand = getShort(code, operand);
+		}
+		else if ( n==2 && first==SELF ) {
+			method.trivialKind = STCompiledBlock.RETURN_SELF;
+		}
+		else if ( n==2 && (first==NIL || first==TRUE || first==FALSE || first==PUSH_INT || first==PUSH_CHAR) ) {
+			method.trivialKind = STCompiledBlock.RETURN_CONSTANT;
+			method.trivialOpcode = first;
+			method.trivialOperand = first==PUSH_INT ? getInt(code, operand) : first==PUSH_CHAR ? getShort(code, operand) : 0;
+		}
+		else if ( n==5 && method.nargs==1 && first==PUSH_LOCAL && ops.get(1)==STORE_FIELD &&
+				  ops.get(2)==POP && ops.get(3)==SELF &&
+				  getShort(code, operand)==0 && getShort(code, operand+2)==0 ) // the argument
+		{
+			method.trivialKind = STCompiledBlock.SET_FIELD;
+			method.trivialOperand = getShort(code, starts.get(1) + 1);
+		}
+	}
+
+	/** Net change in operand stack depth from executing opcode, whose
+	 *  first operand is opnd.
+	 */
+	public static int stackEffect(int opcode, int opnd) {
+		switch ( opcode ) {
+			case NIL :
+			case SELF :
+			case TRUE :
+			case FALSE :
+			case PUSH_CHAR :
+			case PUSH_INT :
+			case PUSH_FLOAT :
+			case PUSH_FIELD :
+			case PUSH_LOCAL :
+			case PUSH_LITERAL :
+			case PUSH_GLOBAL :
+			case PUSH_COPY :
+			case PUSH_COPY_BOX :
+			case PUSH_BOX :
+			case BLOCK :
+			case STACK_BLOCK :
+			case RETURN_SELF :			// push, then leave; the value needs a slot
+			case BLOCK_RETURN_NIL :
+				return 1;
+			case PUSH_ARRAY :
+				return 1-opnd;			// pops opnd elements, pushes the array
+			case SEND :
+			case SEND_SUPER :
+			case TAIL_SEND :
+			case SEND_ADD : case SEND_SUB : case SEND_MUL : case SEND_DIV :
+			case SEND_LT : case SEND_GT : case SEND_LE : case SEND_GE :
+			case SEND_EQ : case SEND_NE : case SEND_MOD :
+				return -opnd;			// pops receiver and args, pushes result
+			case SEND_0 :
+			case SEND_1 :
+			case SEND_2 :
+				return -(opcode-SEND_0);
+			case POP :
+			case STORE_LOCAL_POP :
+			case JUMP_IF_TRUE :			// along the branch and fall-through paths
+			case JUMP_IF_FALSE :
+			case BLOCK_RETURN :
+			case RETURN :
+				return -1;
+			default :
+				return 0;				// stores leave their value on the stack
+		}
+	}
+
+	/** How many bytes does I occupy in byte code, including the opcode? */
+	public static int instructionSize(Instruction I) {
+		int size = 1;
+		for (int i=0; i<I.n; i++) size += I.type[i].sizeInBytes;
+		return size;
+	}
+
+	/** How many ints does opcode occupy in pre-decoded code, including the opcode? */
+	public static int decodedSize(int opcode) {
+		return 1 + instructions[opcode].n;
+	}
+
+	static Instruction instruction(STCompiledBlock blk, int opcode, int ip) {
+		Instruction I = opcode>0 && opcode<instructions.length ? instructions[opcode] : null;
+		if ( I==null ) {
+			throw new IllegalArgumentException("no such instruction "+opcode+
+				" at address "+ip+" of "+blk.name);
+		}
+		return I;
+	}
+
+	static int decodeOperand(byte[] code, int ip, OperandType type) {
+		switch ( type ) {
+			case BYTE :
+			case BYTE_LITERAL :
+				return code[ip]&0xFF;
+			case CHAR :
+			case SHORT :
+			case LITERAL :
+			case SHORT_DBG_LOCATION :
+				return getShort(code, ip);
+			case ADDR :
+			case INT :
+			case FLOAT :
+			case DBG_LOCATION :
+				return getInt(code, ip);
+			default :
+				return 0;
+		}
+	}
+
 	public static int getInt(byte[] memory, int index) {
 		int b1 = memory[index++]&0xFF; // high byte
 		int b2 = memory[index++]&0xFF;
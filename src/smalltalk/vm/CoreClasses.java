@@ -0,0 +1,35 @@
+package smalltalk.vm;
+
+import smalltalk.vm.primitive.STMetaClassObject;
+
+/** The well-known classes from image.st that the VM instantiates itself,
+ *  resolved once when the image is installed so that primitive
+ *  allocation paths never look a class up by name.
+ *
+ *  A class missing from the image (e.g., when running without the core)
+ *  is simply null here, just as {@link SystemDictionary#lookupClass}
+ *  would return.
+ */
+public class CoreClasses {
+	public final STMetaClassObject undefinedObjectClass;
+	public final STMetaClassObject booleanClass;
+	public final STMetaClassObject integerClass;
+	public final STMetaClassObject floatClass;
+	public final STMetaClassObject characterClass;
+	public final STMetaClassObject stringClass;
+	public final STMetaClassObject arrayClass;
+	public final STMetaClassObject blockDescriptorClass;
+	public final STMetaClassObject transcriptStreamClass;
+
+	public CoreClasses(SystemDictionary systemDict) {
+		undefinedObjectClass = systemDict.lookupClass("UndefinedObject");
+		booleanClass = systemDict.lookupClass("Boolean");
+		integerClass = systemDict.lookupClass("Integer");
+		floatClass = systemDict.lookupClass("Float");
+		characterClass = systemDict.lookupClass("Character");
+		stringClass = systemDict.lookupClass("String");
+		arrayClass = systemDict.lookupClass("Array");
+		blockDescriptorClass = systemDict.lookupClass("BlockDescriptor");
+		transcriptStreamClass = systemDict.lookupClass("TranscriptStream");
+	}
+}
@@ -0,0 +1,108 @@
+package smalltalk.vm;
+
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+/** A polymorphic inline cache for a single SEND or SEND_SUPER
+ *  instruction. It remembers up to {@link #MAX_ENTRIES} receiver classes
+ *  and the methods that the send resolved to so that the next send to an
+ *  object of a cached class skips method lookup entirely.
+ *
+ *  A site starts out {@link State#EMPTY}, becomes
+ *  {@link State#MONOMORPHIC} after its first send and
+ *  {@link State#POLYMORPHIC} when it sees a second receiver class. Once
+ *  more than MAX_ENTRIES classes have been seen, the site goes
+ *  {@link State#MEGAMORPHIC}: it drops its entries and from then on
+ *  consults the VM-wide {@link MethodCache} instead.
+ *
+ *  Class methods and instance methods are found in the same method
+ *  dictionary, so whether the receiver was a class object is part of
+ *  the key. Only sends that passed the class-method/instance-method
+ *  check are cached, so a hit needs no further checking.
+ *
+ *  Entries are only valid for the VM cache generation they were filled
+ *  in; see {@link VirtualMachine#invalidateMethodCaches()}.
+ *
+ *  {@link smalltalk.vm.primitive.STCompiledBlock#sendCaches} holds one of
+ *  these per send site, indexed by instruction offset.
+ */
+public class InlineCache {
+	public enum State { EMPTY, MONOMORPHIC, POLYMORPHIC, MEGAMORPHIC }
+
+	/** How many receiver classes can a site cache before going megamorphic? */
+	public static final int MAX_ENTRIES = 4;
+
+	public State state = State.EMPTY;
+
+	/** The receiver classes seen so far; the first size entries are valid */
+	public final STMetaClassObject[] receiverClasses = new STMetaClassObject[MAX_ENTRIES];
+
+	/** Was receiverClasses[i] seen as a class object (class-side send)? */
+	public final boolean[] receiverIsClass = new boolean[MAX_ENTRIES];
+
+	/** The method that receiverClasses[i] resolved to */
+	public final STCompiledBlock[] methods = new STCompiledBlock[MAX_ENTRIES];
+
+	/** Number of valid entries */
+	public int size;
+
+	/** The VM cache generation in which the entries were filled in */
+	public int generation;
+
+	/** How many sends found their method without a full lookup? */
+	public int hits;
+
+	/** How many sends had to look up the method? */
+	public int misses;
+
+	/** Return the cached method for cl or null if cl is not cached */
+	public STCompiledBlock lookup(STMetaClassObject cl, boolean isClass) {
+		for (int i=0; i<size; i++) {
+			if ( receiverClasses[i]==cl && receiverIsClass[i]==isClass ) return methods[i];
+		}
+		return null;
+	}
+
+	/** Record that cl resolved to method, going megamorphic on overflow */
+	public void add(STMetaClassObject cl, boolean isClass, STCompiledBlock method) {
+		if ( state==State.MEGAMORPHIC ) return;
+		if ( size==MAX_ENTRIES ) {
+			clearEntries();
+			state = State.MEGAMORPHIC;
+			return;
+		}
+		receiverClasses[size] = cl;
+		receiverIsClass[size] = isClass;
+		methods[size] = method;
+		size++;
+		state = size==1 ? State.MONOMORPHIC : State.POLYMORPHIC;
+	}
+
+	/** Forget all entries and start over empty in the given generation */
+	public void reset(int generation) {
+		clearEntries();
+		state = State.EMPTY;
+		this.generation = generation;
+	}
+
+	private void clearEntries() {
+		for (int i=0; i<size; i++) {
+			receiverClasses[i] = null;
+			methods[i] = null;
+		}
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		if ( state==State.EMPTY ) buf.append("<empty>");
+		else if ( state==State.MEGAMORPHIC ) buf.append("<megamorphic>");
+		for (int i=0; i<size; i++) {
+			if ( i>0 ) buf.append(',');
+			buf.append(receiverClasses[i].getName());
+		}
+		buf.append(" hits=").append(hits).append(" misses=").append(misses);
+		return buf.toString();
+	}
+}
@@ -0,0 +1,55 @@
+package smalltalk.vm;
+
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+/** A VM-wide (class, selector) to method cache in the style of the
+ *  Blue Book method cache: a direct-mapped hash table where a colliding
+ *  entry simply overwrites the old one. Megamorphic send sites, whose
+ *  {@link InlineCache} has given up, consult this before doing a full
+ *  method lookup.
+ *
+ *  The class is the class where lookup starts, i.e., the superclass of
+ *  the receiver's class for SEND_SUPER. Selectors are symbol ids from
+ *  {@link VirtualMachine#symbols}.
+ */
+public class MethodCache {
+	public static final int SIZE = 1024; // must be a power of 2
+
+	protected final STMetaClassObject[] classes = new STMetaClassObject[SIZE];
+	protected final int[] selectors = new int[SIZE];
+	protected final STCompiledBlock[] methods = new STCompiledBlock[SIZE];
+
+	public int hits;
+	public int misses;
+
+	/** Return the cached method for (cl, selector) or null */
+	public STCompiledBlock lookup(STMetaClassObject cl, int selector) {
+		int i = hash(cl, selector);
+		if ( classes[i]==cl && selectors[i]==selector ) {
+			hits++;
+			return methods[i];
+		}
+		misses++;
+		return null;
+	}
+
+	public void put(STMetaClassObject cl, int selector, STCompiledBlock method) {
+		int i = hash(cl, selector);
+		classes[i] = cl;
+		selectors[i] = selector;
+		methods[i] = method;
+	}
+
+	/** Drop all entries; called when classes or methods are redefined */
+	public void flush() {
+		for (int i=0; i<SIZE; i++) {
+			classes[i] = null;
+			methods[i] = null;
+		}
+	}
+
+	protected static int hash(STMetaClassObject cl, int selector) {
+		return (System.identityHashCode(cl) ^ selector*31) & (SIZE-1);
+	}
+}
@@ -0,0 +1,38 @@
+package smalltalk.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The VM-wide table of interned selectors. Each distinct name gets a
+ *  dense integer id, assigned in order of first interning, so that
+ *  method tables can be arrays indexed by selector id rather than
+ *  string-keyed maps.
+ */
+public class SymbolTable {
+	protected final Map<String,Integer> ids = new HashMap<>();
+	protected final List<String> names = new ArrayList<>();
+
+	/** Return the id for name, assigning the next free id if it's new */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if ( id==null ) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	/** Return the id for name or -1 if it has never been interned */
+	public int lookup(String name) {
+		Integer id = ids.get(name);
+		return id!=null ? id : -1;
+	}
+
+	public String name(int id) { return names.get(id); }
+
+	/** How many names have been interned? Ids are 0..size()-1 */
+	public int size() { return names.size(); }
+}
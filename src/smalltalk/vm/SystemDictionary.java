@@ -3,9 +3,9 @@ package smalltalk.vm;
 import smalltalk.compiler.STMethod;
 import smalltalk.compiler.STSymbolTable;
 import smalltalk.vm.primitive.STMetaClassObject;
-import smalltalk.vm.primitive.STNil;
 import smalltalk.vm.primitive.STObject;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -19,6 +19,9 @@ public class SystemDictionary {
 	// All metaclass info and any predefined global objects like nil, true, ...
 	protected final Map<String,STObject> objects = new LinkedHashMap<>();
 
+	/** The same objects indexed by the symbol id of their name, for PUSH_GLOBAL */
+	protected STObject[] objectsById = new STObject[64];
+
 	public final VirtualMachine vm;
 
 	public SystemDictionary(VirtualMachine vm) {
@@ -38,13 +41,18 @@ public class SystemDictionary {
 
 	/** Define predefined object Transcript. */
 	public void initPredefinedObjects() {
-        this.define("NIL",new STNil(vm));
+		this.define("NIL", vm.nil());
 	}
 
 	public STObject lookup(String id) {
 		return objects.get(id);
 	}
 
+	/** Look up a global by the symbol id of its name; null if undefined */
+	public STObject lookup(int symbol) {
+		return symbol<objectsById.length ? objectsById[symbol] : null;
+	}
+
     //superClass in STMetaClassObject
 	public STMetaClassObject lookupClass(String id) {
         if(objects.get(id) != null){
@@ -54,10 +62,24 @@ public class SystemDictionary {
 	}
 
 	public void defineMetaObject(String name, STMetaClassObject meta) {
-        objects.put(name,meta);
+		define(name, meta);
 	}
 
 	public Collection<STObject> getObjects() { return objects.values(); }
 
-	public void define(String id, STObject v) { objects.put(id, v); }
+	/** Define or redefine a global. Redefining a class invalidates the
+	 *  VM's method caches.
+	 */
+	public void define(String id, STObject v) {
+		STObject old = objects.put(id, v);
+		int symbol = vm.symbols.intern(id);
+		if ( symbol>=objectsById.length ) {
+			objectsById = Arrays.copyOf(objectsById, Math.max(symbol+1, objectsById.length*2));
+		}
+		objectsById[symbol] = v;
+		if ( old instanceof STMetaClassObject ) {
+			if ( vm.core!=null ) vm.core = new CoreClasses(this);
+			vm.invalidateMethodCaches();
+		}
+	}
 }
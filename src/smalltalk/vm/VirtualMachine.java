@@ -17,9 +17,15 @@ import smalltalk.vm.exceptions.UndefinedGlobal;
 import smalltalk.vm.exceptions.UnknownClass;
 import smalltalk.vm.exceptions.UnknownField;
 import smalltalk.vm.exceptions.VMException;
+import smalltalk.vm.ast.AstInterpreter;
+import smalltalk.vm.register.RegisterInterpreter;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.jit.JitBailout;
 import smalltalk.vm.primitive.*;
 
+import java.lang.invoke.SwitchPoint;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -41,9 +47,144 @@ public class VirtualMachine {
 	 */
 	public BlockContext ctx;
 
+	/** The value returned by the outermost method context of exec() */
+	public STObject returnValue;
+
 	/** Trace instructions and show stack during exec? */
 	public boolean trace = false;
 
+	/** Run method sends on the contiguous {@link #frames} stack rather
+	 *  than allocating a fresh BlockContext with its own arrays per send?
+	 */
+	public boolean useFrameStack = true;
+
+	/** Compiles hot methods to JVM classes, which SEND then invokes
+	 *  instead of interpreting them; null to only interpret.
+	 */
+	public Jit jit;
+
+	/** Executes contexts by walking self-specializing node trees built
+	 *  from their code instead of the bytecode loop; null to use the loop.
+	 */
+	public AstInterpreter ast;
+
+	/** Executes contexts by running register code lowered from their
+	 *  code instead of the bytecode loop; null to use the loop.
+	 */
+	public RegisterInterpreter registers;
+
+	/** How many instructions has the bytecode loop executed? Only
+	 *  counted with {@link #countDispatched} on.
+	 */
+	public long dispatched = 0;
+
+	/** Count instructions into {@link #dispatched} and
+	 *  {@link RegisterInterpreter#dispatched}? Off by default, which keeps
+	 *  the counter out of the loops; -stats and the benchmarks set it.
+	 */
+	public boolean countDispatched = false;
+
+	/** How many times is the interpreter running nested inside itself on
+	 *  the Java stack, as when a loop primitive evaluates its block with
+	 *  {@link #invokeBlock}? Each level costs several Java frames rather
+	 *  than a context, so deep Smalltalk recursion through such a level
+	 *  would overflow the Java stack. Past {@link #MAX_NESTING} we only
+	 *  run code in ways that don't nest.
+	 */
+	public int nesting = 0;
+
+	public static final int MAX_NESTING = 100;
+
+	public static final int FRAME_STACK_SIZE = 1<<16;
+
+	/** One contiguous stack holding the locals and operand stacks of all
+	 *  frame-stack activations. A callee's locals window starts where its
+	 *  arguments were pushed on the caller's operand stack so arguments
+	 *  are never copied. When a send doesn't fit, it falls back to a heap
+	 *  BlockContext.
+	 */
+	public final STObject[] frames = new STObject[FRAME_STACK_SIZE];
+
+	/** First slot of {@link #frames} past the innermost frame-stack activation */
+	public int frameTop = 0;
+
+	/** Reusable frame-stack contexts indexed by {@link BlockContext#depth} */
+	protected BlockContext[] framePool = new BlockContext[64];
+
+	protected static final STObject[] NO_COPIED_VALUES = new STObject[0];
+
+	/** Reusable descriptors for STACK_BLOCK, indexed by
+	 *  {@link BlockContext#depth} then block index; see {@link #stackBlock}.
+	 */
+	protected BlockDescriptor[][] stackBlocks = new BlockDescriptor[64][];
+
+	/** STACK_BLOCK executions that reused a descriptor rather than allocating one */
+	public long elidedBlocks = 0;
+
+	/** Reused descriptors copied to the heap because a send might keep them */
+	public long escapedBlocks = 0;
+
+	public static final int MIN_CACHED_INT = -1024;
+	public static final int MAX_CACHED_INT = 65535;
+
+	/** Shared Integer instances for small values; see {@link #newInteger}.
+	 *  Null disables the cache, which is only useful to measure its effect.
+	 */
+	public STInteger[] smallIntegers = new STInteger[MAX_CACHED_INT-MIN_CACHED_INT+1];
+
+	/** Classes the VM allocates instances of, resolved once image.st is
+	 *  installed and again if one of them is redefined.
+	 */
+	public CoreClasses core;
+
+	/** The one and only nil, true and false, created once image.st is installed */
+	public final STNil nil;
+	public final STBoolean trueObject;
+	public final STBoolean falseObject;
+
+	/** Preallocated Characters for codes 0..255; see {@link #newChar} */
+	public final STCharacter[] characters = new STCharacter[256];
+
+	/** Interned selectors; ids index {@link STMetaClassObject#methodTable} */
+	public final SymbolTable symbols = new SymbolTable();
+
+	/** (class, selector) cache shared by all megamorphic send sites */
+	public final MethodCache methodCache = new MethodCache();
+
+	/** Bumped by {@link #invalidateMethodCaches()}; inline caches filled in
+	 *  an older generation are stale.
+	 */
+	public int cacheGeneration = 0;
+
+	/** Invalidated and replaced by {@link #invalidateMethodCaches()}; the
+	 *  invokedynamic send sites of compiled code link under it.
+	 */
+	public SwitchPoint methodsChanged = new SwitchPoint();
+
+	/** The primitives Integer and Float must still implement each of
+	 *  {@link Bytecode#specialSelectors} for SEND_ADD etc... to compute
+	 *  the result in place. ~= has no primitive; see
+	 *  {@link #checkSpecialSelectors}.
+	 */
+	protected static final Primitive[] integerSpecials = {
+		Primitive.Integer_ADD, Primitive.Integer_SUB, Primitive.Integer_MULT, Primitive.Integer_DIV,
+		Primitive.Integer_LT, Primitive.Integer_GT, Primitive.Integer_LE, Primitive.Integer_GE,
+		Primitive.Integer_EQ, null, Primitive.Integer_MOD
+	};
+	protected static final Primitive[] floatSpecials = {
+		Primitive.Float_ADD, Primitive.Float_SUB, Primitive.Float_MULT, Primitive.Float_DIV,
+		Primitive.Float_LT, Primitive.Float_GT, Primitive.Float_LE, Primitive.Float_GE,
+		Primitive.Float_EQ, null, null
+	};
+
+	/** Which special sends may be computed in place for two Integers and
+	 *  for two Floats, indexed by opcode - SEND_ADD. Valid while
+	 *  {@link #specialsGeneration} is {@link #cacheGeneration}.
+	 */
+	protected final boolean[] integerFastPaths = new boolean[Bytecode.specialSelectors.length];
+	protected final boolean[] floatFastPaths = new boolean[Bytecode.specialSelectors.length];
+	protected int specialsGeneration = -1;
+
 	public VirtualMachine(STSymbolTable symtab) {
 		systemDict = new SystemDictionary(this);
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
@@ -52,7 +193,15 @@ public class VirtualMachine {
 								  new STMetaClassObject(this,(STClass)s));
 			}
 		}
-		STObject transcript = new STObject(systemDict.lookupClass("TranscriptStream"));
+		buildMethodTables();
+		core = new CoreClasses(systemDict);
+		nil = new STNil(this);
+		trueObject = new STBoolean(this, true);
+		falseObject = new STBoolean(this, false);
+		for (int c=0; c<characters.length; c++) {
+			characters[c] = new STCharacter(this, c);
+		}
+		STObject transcript = new STObject(core.transcriptStreamClass);
 		systemDict.define("Transcript", transcript);
 
         //init
@@ -85,190 +234,765 @@ public class VirtualMachine {
 	 */
 	public STObject exec(STObject self, STCompiledBlock method) {
 		ctx = null;
+		frameTop = 0;
+		nesting = 0;
+		if ( method.code==null ) method.predecode(symbols);
 		BlockContext initialContext = new BlockContext(this, method, self);
+		returnValue = null;
 		pushContext(initialContext);
-		// fetch-decode-execute loop
-		while ( ctx.ip < ctx.compiledBlock.bytecode.length ) {
-            int index;
+		run(-1);
+		return ctx!=null ? ctx.receiver : returnValue;
+	}
+
+	/** Evaluate blk from within a primitive and return its value. This runs
+	 *  the interpreter reentrantly until the block returns to the
+	 *  primitive's context, so that a primitive can loop over a block
+	 *  without the context chain growing.
+	 *
+	 *  If the block does a ^ return that unwinds past the primitive's
+	 *  context instead, this returns null. The primitive must then return
+	 *  null too, without touching its context's stack; the interpreter
+	 *  carries on in whichever context the ^ returned to.
+	 *
+	 *  This nests the interpreter; see {@link #nesting}. Primitives that
+	 *  use it fall back to Smalltalk code when that is too deep.
+	 */
+	public STObject invokeBlock(BlockDescriptor blk) {
+		return invokeBlock(blk, 0, null);
+	}
+
+	public STObject invokeBlock(BlockDescriptor blk, STObject arg) {
+		return invokeBlock(blk, 1, arg);
+	}
+
+	protected STObject invokeBlock(BlockDescriptor blk, int nargs, STObject arg) {
+		if ( blk.block.nargs!=nargs ) {
+			error("MismatchedBlockArg", "wrong number of arguments to block "+blk.block.qualifiedName+
+				  "; expecting "+blk.block.nargs+" got "+nargs);
+		}
+		BlockContext caller = ctx;
+		pushContext(new BlockContext(this, blk));
+		if ( nargs>0 ) ctx.locals[0] = arg;
+		nesting++;
+		try {
+			run(caller.depth);
+		}
+		finally {
+			nesting--;
+		}
+		if ( ctx!=caller ) return null; // non-local return unwound past caller
+		return caller.pop();
+	}
+
+	/** Instead of performing primitive, send the receiver and nargs
+	 *  arguments on top of ctx's stack to the Smalltalk method named by
+	 *  {@link Primitive#fallback}. Like value, this only pushes the
+	 *  method's context and returns null; the interpreter runs it.
+	 */
+	public STObject fallBack(BlockContext ctx, int nargs, Primitive primitive) {
+		STObject receiver = ctx.stack[ctx.sp - nargs];
+		STCompiledBlock method = lookupMethod(Bytecode.SEND, receiver, symbols.intern(primitive.fallback()));
+		BlockContext callee = new BlockContext(this, method, receiver);
+		for (int j=nargs-1; j>=0; j--) {
+			callee.locals[j] = ctx.pop();
+		}
+		ctx.pop();
+		pushContext(callee);
+		return null;
+	}
+
+	/** The fetch-decode-execute loop over pre-decoded instructions. Run
+	 *  until the active context returns into a context at stopDepth or
+	 *  shallower, or until the outermost method returns, in which case
+	 *  ctx is null and its value is in {@link #returnValue}. With
+	 *  {@link #ast} or {@link #registers} set, that engine runs the
+	 *  contexts instead.
+	 */
+	public void run(int stopDepth) {
+		if ( ast!=null ) {
+			ast.run(stopDepth);
+			return;
+		}
+		if ( registers!=null ) {
+			registers.run(stopDepth);
+			return;
+		}
+		interpret(stopDepth);
+	}
+
+	/** The bytecode loop itself, whichever engine is set. Other engines
+	 *  that run on the Java stack hand it their callees past
+	 *  {@link #MAX_NESTING}, since it runs sends in heap contexts.
+	 */
+	public void interpret(int stopDepth) {
+		boolean count = countDispatched;
+		// code caches ctx.compiledBlock.code and must be reloaded whenever ctx changes
+		int[] code = ctx.compiledBlock.code;
+		while ( ctx.ip < code.length ) {
+			int ip = ctx.ip;
+			int index;
 			if ( trace ) traceInstr(); // show instr first then stack after to show results
-            ctx.prev_ip = ctx.ip;//fix
-            int op = ctx.compiledBlock.bytecode[ctx.ip++];
+			ctx.prev_ip = ip;
+			if ( count ) dispatched++;
+			int op = code[ip];
 			switch ( op ) {
 				case Bytecode.NIL:
+					ctx.ip = ip + 1;
 					ctx.push(nil());
 					break;
-                case Bytecode.SELF:
-                    ctx.push(ctx.receiver);
-                    break;
-                case Bytecode.TRUE:
-                    ctx.push(newBoolean(true));
-                    //System.out.println(newBoolean(true));
-                    break;
-                case Bytecode.FALSE:
-                    ctx.push(newBoolean(false));
-                    break;
-                case Bytecode.PUSH_CHAR:
-                    char c = (char) consumeShort();
-                    ctx.push(newChar(c));
-                    break;
-                case Bytecode.PUSH_INT:
-                    ctx.push(newInteger(consumeInt()));
-                    break;
-                case Bytecode.PUSH_FLOAT:
-                    ctx.push(newFloat(consumeFloat()));
-                    break;
-                case Bytecode.PUSH_FIELD:
-                    index = consumeShort();
-//                    if (ctx.receiver.fields[index] == null){
-//                        ctx.push(nil());
-//                    } else{
-                        ctx.push(ctx.receiver.fields[index]);
-//                    }
-                    break;
-                case Bytecode.PUSH_LOCAL:
-                    int d = consumeShort();
-                    int i = consumeShort();
-                    BlockContext blk = ctx;
-                    for (int j=0; j<d; j++) {
-                        blk = blk.enclosingContext;
-                    }
-                    ctx.push(blk.locals[i]);
-                    break;
-                case Bytecode.PUSH_LITERAL:
-                    index = consumeShort();
-                    ctx.push(newString(ctx.compiledBlock.literals[index]));
-                    break;
-                case Bytecode.PUSH_GLOBAL:
-                    index = consumeShort();
-                    ctx.push(systemDict.lookup(ctx.compiledBlock.literals[index]));
-                    break;
-                case Bytecode.PUSH_ARRAY:
-                    ctx.push(newArray(this));
-                    break;
-                case Bytecode.STORE_FIELD:
-                    index = consumeShort();
-                    ctx.receiver.fields[index] = ctx.top();
-                    break;
-                case Bytecode.STORE_LOCAL:
-                    d = consumeShort();
-                    i = consumeShort();
-                    blk = ctx;
-                    for (int j=0; j<d; j++) {
-                        blk = blk.enclosingContext;
-                    }
-                    // ctx.stack[ctx.sp]
-                    blk.locals[i] = ctx.top();
-                    break;
-                case Bytecode.POP:
-                    ctx.pop();
-                    break;
-                case Bytecode.SEND: // SEND nargs, literals_index
-                    // fetch the nargs, index into the literals table
-                    int nargs = consumeShort();
-                    STObject receiver = ctx.stack[ctx.sp - nargs];
-                    int litindex = consumeShort();
-
-                    String messageName = ctx.compiledBlock.literals[litindex];
-                    STCompiledBlock stb;
-                    stb = receiver.getSTClass().resolveMethod(messageName);
-//                    "ClassMessageSentToInstance: new is a class method sent to instance of Integer\n" +
-//                            "    at                              MainClass>>main[][99](<string>:1:3)       executing 0012:  send           0, 'new'\n";
-                    if (stb.isClassMethod && !(receiver instanceof STMetaClassObject)) {
-                        error("ClassMessageSentToInstance", messageName + " is a class method sent to instance of " + receiver.getSTClass().getName());
-                    }else if (!stb.isClassMethod && receiver instanceof STMetaClassObject) {
-                        error("MessageNotUnderstood", messageName + " is an instance method sent to class object " + receiver.getSTClass().getName());
-                    }
-
-                    if (stb.isPrimitive()){
-                        STObject result = stb.primitive.perform(ctx,nargs);
-                        if (result != null){
-                            ctx.push(result);
-                        }
-                    }else{
-                        BlockContext curCtx = new BlockContext(this, stb, receiver);
-                        for(int j=nargs-1; j>=0; j--){
-                            curCtx.locals[j] = ctx.pop();
-                        }
-                        ctx.pop();
-                        pushContext(curCtx);
-                    }
-                    break;
-                case Bytecode.SEND_SUPER:
-                    // fetch the nargs, index into the literals table
-                    nargs = consumeShort();
-                    receiver = ctx.stack[ctx.sp - nargs];
-                    litindex = consumeShort();
-
-                    messageName = ctx.compiledBlock.literals[litindex];
-                    stb = receiver.getSTClass().superClass.resolveMethod(messageName);
-                    if (stb.isClassMethod && !(receiver instanceof STMetaClassObject)) {
-                        error("ClassMessageSentToInstance", messageName + " is a class method sent to instance of " + receiver.getSTClass().getName());
-                    } else if (!stb.isClassMethod && receiver instanceof STMetaClassObject) {
-                        error("MessageNotUnderstood", messageName + " is an instance method sent to class object " + receiver.getSTClass().getName());
-                    }
-                    if (stb.isPrimitive()){
-                        STObject result = stb.primitive.perform(ctx,nargs);
-                        if (result != null){
-                            ctx.push(result);
-                        }
-                    }else{
-                        BlockContext curCtx = new BlockContext(this, stb, receiver);
-                        for(int j=nargs-1; j>=0; j--){
-                            curCtx.locals[j] = ctx.pop();
-                        }
-                        ctx.pop();
-                        pushContext(curCtx);
-                    }
-                    break;
-                case Bytecode.BLOCK:
-                    index = consumeShort();
-                    blk = ctx.enclosingMethodContext;
-                    ctx.push(new BlockDescriptor(blk.compiledBlock.blocks[index], ctx));
-                    break;
-                case Bytecode.BLOCK_RETURN:
-                    STObject br = ctx.pop();
-                    popContext();
-                    ctx.push(br);
-                    break;
-                case Bytecode.RETURN:
-                    STObject r = ctx.pop();
-                    //deal with double return!!!
-                    if (ctx.enclosingMethodContext.enclosingContext != BlockContext.RETURNED) {
-                        ctx = ctx.enclosingMethodContext;
-                        ctx.enclosingContext = BlockContext.RETURNED;
-                        popContext();
-                        if (ctx == null) {
-                            return r;
-                        } else {
-                            ctx.push(r);
-                        }
-                    }else {
-//                        "BlockCannotReturn: T>>f-block0 can't trigger return again from method T>>f\n" +
-//                                "    at                                    f>>f-block0[][](<string>:2:9)       executing 0012:  return           \n" +
-//                                "    at                             MainClass>>main[a T][](<string>:6:3)       executing 0052:  send           0, 'value'\n";
-                        error("BlockCannotReturn", ctx.compiledBlock.enclosingClass.getName() + ">>" +
-                                ctx.compiledBlock.name + " can't trigger return again from method " +
-                                ctx.enclosingMethodContext.compiledBlock.qualifiedName);
-                    }
-                    break;
-                case Bytecode.DBG:
-                    d = consumeShort();
-                    i = consumeInt();
-                    ctx.currentFile = ctx.compiledBlock.literals[d];
-                    ctx.currentCharPos = Bytecode.charPosFromCombined(i);
-                    ctx.currentLine = Bytecode.lineFromCombined(i);
-                    break;
-                default:
-                    break;
+				case Bytecode.SELF:
+					ctx.ip = ip + 1;
+					ctx.push(ctx.receiver);
+					break;
+				case Bytecode.TRUE:
+					ctx.ip = ip + 1;
+					ctx.push(newBoolean(true));
+					break;
+				case Bytecode.FALSE:
+					ctx.ip = ip + 1;
+					ctx.push(newBoolean(false));
+					break;
+				case Bytecode.PUSH_CHAR:
+					ctx.ip = ip + 2;
+					ctx.push(newChar((char)code[ip+1]));
+					break;
+				case Bytecode.PUSH_INT:
+					ctx.ip = ip + 2;
+					ctx.push(newInteger(code[ip+1]));
+					break;
+				case Bytecode.PUSH_FLOAT:
+					ctx.ip = ip + 2;
+					ctx.push(newFloat(Float.intBitsToFloat(code[ip+1])));
+					break;
+				case Bytecode.PUSH_FIELD:
+					ctx.ip = ip + 2;
+					ctx.push(ctx.receiver.fields[code[ip+1]]);
+					break;
+				case Bytecode.PUSH_LOCAL: {
+					ctx.ip = ip + 3;
+					int d = code[ip+1];
+					BlockContext blk = ctx;
+					for (int j=0; j<d; j++) {
+						blk = blk.enclosingContext;
+					}
+					ctx.push(blk.locals[blk.localsBase + code[ip+2]]);
+					break;
+				}
+				case Bytecode.PUSH_LITERAL:
+					ctx.ip = ip + 2;
+					ctx.push(newString(ctx.compiledBlock.literals[code[ip+1]]));
+					break;
+				case Bytecode.PUSH_GLOBAL:
+					ctx.ip = ip + 2;
+					ctx.push(systemDict.lookup(code[ip+1]));
+					break;
+				case Bytecode.PUSH_ARRAY:
+					ctx.ip = ip + 2;
+					ctx.push(newArray(code[ip+1]));
+					break;
+				case Bytecode.STORE_FIELD:
+					ctx.ip = ip + 2;
+					ctx.receiver.fields[code[ip+1]] = ctx.top();
+					break;
+				case Bytecode.STORE_LOCAL: {
+					ctx.ip = ip + 3;
+					int d = code[ip+1];
+					BlockContext blk = ctx;
+					for (int j=0; j<d; j++) {
+						blk = blk.enclosingContext;
+					}
+					blk.locals[blk.localsBase + code[ip+2]] = ctx.top();
+					break;
+				}
+				case Bytecode.STORE_LOCAL_POP: {
+					ctx.ip = ip + 3;
+					int d = code[ip+1];
+					BlockContext blk = ctx;
+					for (int j=0; j<d; j++) {
+						blk = blk.enclosingContext;
+					}
+					blk.locals[blk.localsBase + code[ip+2]] = ctx.pop();
+					break;
+				}
+				case Bytecode.PUSH_COPY:
+					ctx.ip = ip + 2;
+					ctx.push(ctx.copied[code[ip+1]]);
+					break;
+				case Bytecode.PUSH_COPY_BOX:
+					ctx.ip = ip + 2;
+					ctx.push(((VariableBox)ctx.copied[code[ip+1]]).value);
+					break;
+				case Bytecode.STORE_COPY_BOX:
+					ctx.ip = ip + 2;
+					((VariableBox)ctx.copied[code[ip+1]]).value = ctx.top();
+					break;
+				case Bytecode.PUSH_BOX:
+					ctx.ip = ip + 2;
+					ctx.push(((VariableBox)ctx.locals[ctx.localsBase + code[ip+1]]).value);
+					break;
+				case Bytecode.STORE_BOX:
+					ctx.ip = ip + 2;
+					((VariableBox)ctx.locals[ctx.localsBase + code[ip+1]]).value = ctx.top();
+					break;
+				case Bytecode.BOX_LOCAL:
+					ctx.ip = ip + 2;
+					index = ctx.localsBase + code[ip+1];
+					ctx.locals[index] = new VariableBox(ctx.locals[index]);
+					break;
+				case Bytecode.POP:
+					ctx.ip = ip + 1;
+					ctx.pop();
+					break;
+				case Bytecode.JUMP:
+					ctx.ip = code[ip+1];
+					if ( jit!=null && ctx.ip<=ip ) ctx.compiledBlock.backEdges++;
+					break;
+				case Bytecode.JUMP_IF_TRUE: // JUMP_IF_x target, fallback
+				case Bytecode.JUMP_IF_FALSE: {
+					STObject cond = ctx.top();
+					if ( cond==trueObject || cond==falseObject ) {
+						ctx.pop();
+						boolean jump = (cond==trueObject) == (op==Bytecode.JUMP_IF_TRUE);
+						ctx.ip = jump ? code[ip+1] : ip + 3;
+					}
+					else {
+						ctx.ip = code[ip+2]; // not a Boolean; leave it for the fallback send
+					}
+					break;
+				}
+				case Bytecode.SEND_ADD:
+				case Bytecode.SEND_SUB:
+				case Bytecode.SEND_MUL:
+				case Bytecode.SEND_DIV:
+				case Bytecode.SEND_LT:
+				case Bytecode.SEND_GT:
+				case Bytecode.SEND_LE:
+				case Bytecode.SEND_GE:
+				case Bytecode.SEND_EQ:
+				case Bytecode.SEND_NE:
+				case Bytecode.SEND_MOD:
+				case Bytecode.SEND: // SEND nargs, selector symbol id
+				case Bytecode.SEND_SUPER:
+				case Bytecode.TAIL_SEND:
+				case Bytecode.SEND_0: // SEND_n selector symbol id
+				case Bytecode.SEND_1:
+				case Bytecode.SEND_2: {
+					if ( op>=Bytecode.SEND_ADD && op<=Bytecode.SEND_MOD ) {
+						STObject result = specialSend(op, ctx.stack[ctx.sp-1], ctx.stack[ctx.sp]);
+						if ( result!=null ) {
+							ctx.ip = ip + 3;
+							ctx.sp--;
+							ctx.stack[ctx.sp] = result;
+							break;
+						}
+						// not two numbers, or the operator was redefined: send it
+					}
+					int nargs, selector;
+					if ( op>=Bytecode.SEND_0 ) {
+						ctx.ip = ip + 2;
+						nargs = op - Bytecode.SEND_0;
+						selector = code[ip+1];
+					}
+					else {
+						ctx.ip = ip + 3;
+						nargs = code[ip+1];
+						selector = code[ip+2];
+					}
+					STObject receiver = ctx.stack[ctx.sp - nargs];
+					STMetaClassObject cl = receiver.getSTClass();
+					boolean isClass = receiver instanceof STMetaClassObject;
+					InlineCache ic = ctx.compiledBlock.sendCaches[ip];
+					STCompiledBlock stb = ic.generation==cacheGeneration ? ic.lookup(cl, isClass) : null;
+					if ( stb!=null ) {
+						ic.hits++;
+					}
+					else {
+						stb = cacheMiss(ic, op, receiver, isClass, selector);
+					}
+					if ( ctx.liveStackBlocks>0 ) passStackBlocks(stb, nargs);
+					if ( stb.trivialKind!=STCompiledBlock.NOT_TRIVIAL ) {
+						STObject result = runTrivial(stb, receiver);
+						ctx.sp -= nargs + 1;
+						ctx.push(result);
+					}
+					else if (stb.isPrimitive()) {
+						STObject result = stb.primitive.perform(ctx, nargs);
+						if ( ctx==null || ctx.depth<=stopDepth ) return; // ^ out of a block the primitive invoked
+						if (result != null) {
+							ctx.push(result);
+						}
+					}
+					else if ( jit!=null && nesting<MAX_NESTING && jit.compiled(stb)!=null ) {
+						STObject result = invokeCompiled(stb, receiver, nargs);
+						if ( ctx==null || ctx.depth<=stopDepth ) return; // a ^ return unwound through it
+						if ( result!=null ) {
+							ctx.push(result);
+						}
+					}
+					else if ( op==Bytecode.TAIL_SEND && !ctx.captured ) {
+						tailCall(stb, receiver, nargs);
+					}
+					else if ( !useFrameStack || !activateFrame(stb, receiver, nargs) ) {
+						BlockContext curCtx = new BlockContext(this, stb, receiver);
+						for (int j=nargs-1; j>=0; j--) {
+							curCtx.locals[j] = ctx.pop();
+						}
+						ctx.pop();
+						pushContext(curCtx);
+					}
+					code = ctx.compiledBlock.code; // primitives like value can switch contexts too
+					break;
+				}
+				case Bytecode.BLOCK: {
+					ctx.ip = ip + 2;
+					STCompiledBlock blk = ctx.compiledBlock.method.blocks[code[ip+1]];
+					if ( blk.captures!=null ) {
+						ctx.push(newClosure(blk));
+					}
+					else {
+						ctx.materialize(); // the descriptor captures ctx
+						ctx.push(new BlockDescriptor(blk, ctx));
+					}
+					break;
+				}
+				case Bytecode.STACK_BLOCK:
+					ctx.ip = ip + 2;
+					ctx.push(stackBlock(ctx.compiledBlock.method.blocks[code[ip+1]], code[ip+1]));
+					break;
+				case Bytecode.BLOCK_RETURN_NIL:
+				case Bytecode.BLOCK_RETURN: {
+					ctx.ip = ip + 1;
+					STObject br = op==Bytecode.BLOCK_RETURN_NIL ? nil() : ctx.pop();
+					popContext();
+					ctx.push(br);
+					if ( ctx.depth<=stopDepth ) return;
+					code = ctx.compiledBlock.code;
+					break;
+				}
+				case Bytecode.RETURN_SELF:
+				case Bytecode.RETURN: {
+					ctx.ip = ip + 1;
+					STObject r = op==Bytecode.RETURN_SELF ? ctx.receiver : ctx.pop();
+					// deal with double return: can't return from a method that already returned
+					if (ctx.enclosingMethodContext.enclosingContext != BlockContext.RETURNED) {
+						ctx = ctx.enclosingMethodContext;
+						ctx.enclosingContext = BlockContext.RETURNED;
+						popContext();
+						if (ctx == null) {
+							returnValue = r;
+							return;
+						}
+						ctx.push(r);
+						if ( ctx.depth<=stopDepth ) return;
+						code = ctx.compiledBlock.code;
+					}
+					else {
+						error("BlockCannotReturn", ctx.compiledBlock.enclosingClass.getName() + ">>" +
+							  ctx.compiledBlock.name + " can't trigger return again from method " +
+							  ctx.enclosingMethodContext.compiledBlock.qualifiedName);
+					}
+					break;
+				}
+				case Bytecode.DBG:
+					ctx.ip = ip + 3;
+					ctx.currentFile = ctx.compiledBlock.literals[code[ip+1]];
+					ctx.currentCharPos = Bytecode.charPosFromCombined(code[ip+2]);
+					ctx.currentLine = Bytecode.lineFromCombined(code[ip+2]);
+					break;
+				default:
+					throw new InternalVMException(null, "invalid opcode "+op+" at "+ip+" of "+
+												  ctx.compiledBlock.qualifiedName, getVMStackString());
 			}
 			if ( trace ) traceStack(); // show stack *after* execution
 		}
-		return ctx!=null ? ctx.receiver : null;
+	}
+
+	/** Invoke the JVM code {@link Jit} compiled for method, with the
+	 *  receiver and nargs arguments on top of the active context's stack,
+	 *  and return its result. The method gets a context like an
+	 *  interpreted one, so that primitives and stack dumps work as usual.
+	 *
+	 *  Return null if a ^ return from a block unwound past the method
+	 *  instead. As with {@link #invokeBlock}, the caller must then carry on
+	 *  in whichever context the ^ returned to.
+	 *
+	 *  Compiled code runs on the Java stack, so this nests; see
+	 *  {@link #nesting}. The interpreter doesn't call it past
+	 *  {@link #MAX_NESTING}.
+	 */
+	protected STObject invokeCompiled(STCompiledBlock method, STObject receiver, int nargs) {
+		BlockContext caller = ctx;
+		BlockContext callee = new BlockContext(this, method, receiver);
+		for (int j=nargs-1; j>=0; j--) {
+			callee.locals[j] = caller.pop();
+		}
+		caller.pop();
+		pushContext(callee);
+		nesting++;
+		try {
+			STObject result = method.jitCode.invoke(this, callee);
+			popContext();
+			return result;
+		}
+		catch (JitBailout b) {
+			return null;
+		}
+		finally {
+			nesting--;
+		}
+	}
+
+	/** Call method's compiled code directly from an invokedynamic send
+	 *  site in other compiled code; args holds the receiver and then the
+	 *  arguments. A ^ return out of a block unwinding past the callee
+	 *  leaves as {@link JitBailout}; its home can't be the caller, which
+	 *  has no blocks.
+	 */
+	public STObject callCompiled(STCompiledBlock method, STObject[] args) {
+		BlockContext callee = new BlockContext(this, method, args[0]);
+		System.arraycopy(args, 1, callee.locals, 0, args.length-1);
+		return callCompiled(callee);
+	}
+
+	/** Run the compiled code of callee, whose locals hold the arguments.
+	 *  Past {@link #MAX_NESTING}, interpret callee instead; the interpreter
+	 *  then runs in heap contexts until the recursion comes back up.
+	 */
+	public STObject callCompiled(BlockContext callee) {
+		BlockContext caller = ctx;
+		pushContext(callee);
+		if ( nesting>=MAX_NESTING ) return interpretFromCompiled(caller);
+		nesting++;
+		try {
+			STObject result = callee.compiledBlock.jitCode.invoke(this, callee);
+			popContext();
+			return result;
+		}
+		finally {
+			nesting--;
+		}
+	}
+
+	/** Perform a send from JVM code compiled by {@link Jit} running in
+	 *  context caller, whose stack holds the receiver and nargs arguments.
+	 *  This does what SEND does for the instruction at pc except that it
+	 *  runs an interpreted callee to completion and returns its result.
+	 *  Throws {@link JitBailout} if a ^ return from a block unwinds past
+	 *  caller, which compiled code can't continue from.
+	 */
+	public STObject sendFromCompiled(BlockContext caller, int op, int nargs, int selector, int pc) {
+		STObject receiver = caller.stack[caller.sp - nargs];
+		STMetaClassObject cl = receiver.getSTClass();
+		boolean isClass = receiver instanceof STMetaClassObject;
+		InlineCache ic = caller.compiledBlock.sendCaches[pc];
+		STCompiledBlock stb = ic.generation==cacheGeneration ? ic.lookup(cl, isClass) : null;
+		if ( stb!=null ) {
+			ic.hits++;
+		}
+		else {
+			stb = cacheMiss(ic, op, receiver, isClass, selector);
+		}
+		STObject result = null;
+		if ( stb.trivialKind!=STCompiledBlock.NOT_TRIVIAL ) {
+			result = runTrivial(stb, receiver);
+			caller.sp -= nargs + 1;
+			return result;
+		}
+		else if ( stb.isPrimitive() ) {
+			result = stb.primitive.perform(caller, nargs); // value etc... push a context and return null
+		}
+		else if ( nesting<MAX_NESTING && jit.compiled(stb)!=null ) {
+			result = invokeCompiled(stb, receiver, nargs);
+		}
+		else {
+			BlockContext callee = new BlockContext(this, stb, receiver);
+			for (int j=nargs-1; j>=0; j--) {
+				callee.locals[j] = caller.pop();
+			}
+			caller.pop();
+			pushContext(callee);
+		}
+		if ( result!=null && ctx==caller ) return result;
+		return interpretFromCompiled(caller);
+	}
+
+	/** Run the interpreter, nested, until whatever was pushed on top of
+	 *  the compiled code's context caller returns into it; then pop and
+	 *  return the result. Throws {@link JitBailout} if a ^ return unwound
+	 *  past caller instead.
+	 */
+	protected STObject interpretFromCompiled(BlockContext caller) {
+		if ( ctx!=null && ctx.depth>caller.depth ) {
+			nesting++;
+			try {
+				run(caller.depth);
+			}
+			finally {
+				nesting--;
+			}
+		}
+		if ( ctx!=caller ) throw JitBailout.INSTANCE;
+		return caller.pop();
+	}
+
+	/** SEND_ADD etc... from compiled code: compute the result in place as
+	 *  the interpreter does or else send it like {@link #sendFromCompiled}.
+	 */
+	public STObject specialSendFromCompiled(BlockContext caller, STObject receiver, STObject arg,
+											int op, int selector, int pc)
+	{
+		STObject result = specialSend(op, receiver, arg);
+		if ( result!=null ) return result;
+		caller.push(receiver);
+		caller.push(arg);
+		return sendFromCompiled(caller, op, 1, selector, pc);
+	}
+
+	/** Do what the trivial method (see {@link Bytecode#classifyTrivial})
+	 *  would do if invoked on receiver with the arguments on top of the
+	 *  active context's stack, and return its result. The caller pops the
+	 *  receiver and arguments.
+	 */
+	protected STObject runTrivial(STCompiledBlock method, STObject receiver) {
+		return runTrivial(method, receiver, ctx.top());
+	}
+
+	/** Run trivial method on receiver; arg is its last argument, if any */
+	public STObject runTrivial(STCompiledBlock method, STObject receiver, STObject arg) {
+		switch ( method.trivialKind ) {
+			case STCompiledBlock.RETURN_FIELD:
+				return receiver.fields[method.trivialOperand];
+			case STCompiledBlock.SET_FIELD:
+				receiver.fields[method.trivialOperand] = arg;
+				return receiver;
+			case STCompiledBlock.RETURN_SELF:
+				return receiver;
+			default: // RETURN_CONSTANT
+				switch ( method.trivialOpcode ) {
+					case Bytecode.TRUE: return newBoolean(true);
+					case Bytecode.FALSE: return newBoolean(false);
+					case Bytecode.PUSH_INT: return newInteger(method.trivialOperand);
+					case Bytecode.PUSH_CHAR: return newChar(method.trivialOperand);
+					default: return nil();
+				}
+		}
+	}
+
+	/** Compute the result of special send op (see
+	 *  {@link Bytecode#specialSelectors}) to receiver with argument arg
+	 *  without a send, just as the Integer or Float primitive would. Return
+	 *  null if we can't, so the caller sends the message after all: the
+	 *  operands aren't both Integers or both Floats, the primitive would
+	 *  fail (divide by zero), or the method was redefined.
+	 */
+	public STObject specialSend(int op, STObject receiver, STObject arg) {
+		if ( specialsGeneration!=cacheGeneration ) checkSpecialSelectors();
+		int i = op - Bytecode.SEND_ADD;
+		if ( receiver instanceof STInteger && arg instanceof STInteger && integerFastPaths[i] ) {
+			int x = ((STInteger)receiver).v;
+			int y = ((STInteger)arg).v;
+			switch ( op ) { // comparisons subtract like the primitives do
+				case Bytecode.SEND_ADD: return newInteger(x + y);
+				case Bytecode.SEND_SUB: return newInteger(x - y);
+				case Bytecode.SEND_MUL: return newInteger(x * y);
+				case Bytecode.SEND_DIV: return y!=0 ? newInteger(x / y) : null;
+				case Bytecode.SEND_LT: return newBoolean(x - y < 0);
+				case Bytecode.SEND_GT: return newBoolean(x - y > 0);
+				case Bytecode.SEND_LE: return newBoolean(x - y <= 0);
+				case Bytecode.SEND_GE: return newBoolean(x - y >= 0);
+				case Bytecode.SEND_EQ: return newBoolean(x == y);
+				case Bytecode.SEND_NE: return newBoolean(x != y);
+				case Bytecode.SEND_MOD: return y!=0 ? newInteger(x % y) : null;
+			}
+		}
+		else if ( receiver instanceof STFloat && arg instanceof STFloat && floatFastPaths[i] ) {
+			float x = ((STFloat)receiver).v;
+			float y = ((STFloat)arg).v;
+			switch ( op ) {
+				case Bytecode.SEND_ADD: return newFloat(x + y);
+				case Bytecode.SEND_SUB: return newFloat(x - y);
+				case Bytecode.SEND_MUL: return newFloat(x * y);
+				case Bytecode.SEND_DIV: return newFloat(x / y);
+				case Bytecode.SEND_LT: return newBoolean(x - y < 0);
+				case Bytecode.SEND_GT: return newBoolean(x - y > 0);
+				case Bytecode.SEND_LE: return newBoolean(x - y <= 0);
+				case Bytecode.SEND_GE: return newBoolean(x - y >= 0);
+				case Bytecode.SEND_EQ: return newBoolean(x - y == 0);
+				case Bytecode.SEND_NE: return newBoolean(x - y != 0);
+			}
+		}
+		return null;
+	}
+
+	/** May special send op be computed in place for two Integers? */
+	public boolean integerFastPath(int op) {
+		if ( specialsGeneration!=cacheGeneration ) checkSpecialSelectors();
+		return integerFastPaths[op - Bytecode.SEND_ADD];
+	}
+
+	/** Work out which special sends we may compute in place: those whose
+	 *  method in Integer or Float is still the expected primitive. ~= is
+	 *  Object's (self = x) not, so it qualifies if = does and nobody
+	 *  overrides ~= between Object and the number class. Run again
+	 *  whenever methods or classes change.
+	 */
+	protected void checkSpecialSelectors() {
+		STMetaClassObject objectClass = systemDict.lookupClass("Object");
+		for (int i=0; i<Bytecode.specialSelectors.length; i++) {
+			int selector = symbols.intern(Bytecode.specialSelectors[i]);
+			integerFastPaths[i] = implementsSpecial(core.integerClass, objectClass, selector, integerSpecials[i]);
+			floatFastPaths[i] = implementsSpecial(core.floatClass, objectClass, selector, floatSpecials[i]);
+		}
+		int ne = Bytecode.SEND_NE - Bytecode.SEND_ADD;
+		int eq = Bytecode.SEND_EQ - Bytecode.SEND_ADD;
+		integerFastPaths[ne] &= integerFastPaths[eq];
+		floatFastPaths[ne] &= floatFastPaths[eq];
+		specialsGeneration = cacheGeneration;
+	}
+
+	static boolean implementsSpecial(STMetaClassObject cl, STMetaClassObject objectClass,
+									 int selector, Primitive primitive)
+	{
+		if ( cl==null ) return false;
+		STCompiledBlock m = cl.lookupMethod(selector);
+		if ( m==null ) return false;
+		if ( primitive==null ) { // only ~=; must be Object's
+			return objectClass!=null && m==objectClass.lookupMethod(selector);
+		}
+		return m.isPrimitive() && m.primitive==primitive;
+	}
+
+	/** Resolve a send whose inline cache had no entry for the receiver
+	 *  class. A stale cache is reset first. Megamorphic sites try the
+	 *  global {@link #methodCache} before doing a full lookup; a hit there
+	 *  still counts as a hit for the site.
+	 */
+	public STCompiledBlock cacheMiss(InlineCache ic, int op, STObject receiver,
+										boolean isClass, int selector)
+	{
+		if ( ic.generation!=cacheGeneration ) ic.reset(cacheGeneration);
+		STMetaClassObject cl = receiver.getSTClass();
+		if ( ic.state==InlineCache.State.MEGAMORPHIC ) {
+			STMetaClassObject start = op==Bytecode.SEND_SUPER ? cl.superClass : cl;
+			STCompiledBlock stb = methodCache.lookup(start, selector);
+			if ( stb!=null && stb.isClassMethod==isClass ) {
+				ic.hits++;
+				return stb;
+			}
+			ic.misses++;
+			stb = lookupMethod(op, receiver, selector);
+			methodCache.put(start, selector, stb);
+			return stb;
+		}
+		ic.misses++;
+		STCompiledBlock stb = lookupMethod(op, receiver, selector);
+		if ( ic.size==InlineCache.MAX_ENTRIES ) {
+			// going megamorphic; hand the entries the site drops to the global cache
+			for (int i=0; i<ic.size; i++) {
+				STMetaClassObject c = ic.receiverClasses[i];
+				methodCache.put(op==Bytecode.SEND_SUPER ? c.superClass : c, selector, ic.methods[i]);
+			}
+			methodCache.put(op==Bytecode.SEND_SUPER ? cl.superClass : cl, selector, stb);
+		}
+		ic.add(cl, isClass, stb);
+		return stb;
+	}
+
+	/** (Re)build the flattened method table of every installed class */
+	public void buildMethodTables() {
+		List<STMetaClassObject> classes = new ArrayList<>();
+		for (STObject o : systemDict.getObjects()) {
+			if ( o instanceof STMetaClassObject ) {
+				STMetaClassObject cl = (STMetaClassObject)o;
+				cl.methodTable = null;
+				classes.add(cl);
+			}
+		}
+		for (STMetaClassObject cl : classes) {
+			if ( cl.methodTable==null ) cl.buildMethodTable();
+		}
+	}
+
+	/** Flush the global method cache and make every send-site inline cache
+	 *  stale. Must be called whenever a class or method is (re)defined
+	 *  after execution may have started.
+	 */
+	public void invalidateMethodCaches() {
+		cacheGeneration++;
+		methodCache.flush();
+		SwitchPoint.invalidateAll(new SwitchPoint[] {methodsChanged});
+		methodsChanged = new SwitchPoint();
+	}
+
+	/** Find the method invoked by a SEND or SEND_SUPER of the selector with
+	 *  the given symbol id to receiver, checking that class methods are only
+	 *  sent to class objects and vice versa.
+	 */
+	public STCompiledBlock lookupMethod(int op, STObject receiver, int selector) {
+		STMetaClassObject cl = receiver.getSTClass();
+		if ( op==Bytecode.SEND_SUPER ) cl = cl.superClass;
+		STCompiledBlock stb = cl!=null ? cl.lookupMethod(selector) : null;
+		String messageName = symbols.name(selector);
+		if ( stb==null ) {
+			error("MessageNotUnderstood", receiver.getSTClass().getName() + " does not understand " + messageName);
+		}
+		else if (stb.isClassMethod && !(receiver instanceof STMetaClassObject)) {
+			error("ClassMessageSentToInstance", messageName + " is a class method sent to instance of " + receiver.getSTClass().getName());
+		}
+		else if (!stb.isClassMethod && receiver instanceof STMetaClassObject) {
+			error("MessageNotUnderstood", messageName + " is an instance method sent to class object " + receiver.getSTClass().getName());
+		}
+		return stb;
+	}
+
+	/** Sum the hit and miss counters of all send-site inline caches in
+	 *  all methods and blocks installed in this VM: {hits, misses}.
+	 */
+	public long[] getInlineCacheStats() {
+		long[] stats = new long[2];
+		for (InlineCache ic : getInlineCaches()) {
+			stats[0] += ic.hits;
+			stats[1] += ic.misses;
+		}
+		return stats;
+	}
+
+	/** Count the send sites in each {@link InlineCache.State}, indexed by
+	 *  the state's ordinal.
+	 */
+	public int[] getInlineCacheStateCounts() {
+		int[] counts = new int[InlineCache.State.values().length];
+		for (InlineCache ic : getInlineCaches()) {
+			InlineCache.State state = ic.generation==cacheGeneration ? ic.state : InlineCache.State.EMPTY;
+			counts[state.ordinal()]++;
+		}
+		return counts;
+	}
+
+	/** All send-site inline caches in all methods and blocks installed in this VM */
+	public List<InlineCache> getInlineCaches() {
+		List<InlineCache> caches = new ArrayList<>();
+		for (STObject o : systemDict.getObjects()) {
+			if ( o instanceof STMetaClassObject ) {
+				for (STCompiledBlock m : ((STMetaClassObject)o).methods.values()) {
+					addInlineCaches(m, caches);
+					for (STCompiledBlock blk : m.blocks) addInlineCaches(blk, caches);
+				}
+			}
+		}
+		return caches;
+	}
+
+	private static void addInlineCaches(STCompiledBlock blk, List<InlineCache> caches) {
+		if ( blk.sendCaches==null ) return;
+		for (InlineCache ic : blk.sendCaches) {
+			if ( ic!=null ) caches.add(ic);
+		}
 	}
 
     //self
     public void assertNumOperands(int i) {
-        assert ctx.sp >= i-1;
+        assert ctx.sp - ctx.stackBase >= i-1;
     }
 
 	public void error(String type, String msg) throws VMException {
@@ -311,10 +1035,189 @@ public class VirtualMachine {
 
 	public void pushContext(BlockContext ctx) {
 		ctx.invokingContext = this.ctx;
+		ctx.depth = this.ctx!=null ? this.ctx.depth+1 : 0;
+		ctx.savedFrameTop = frameTop;
 		this.ctx = ctx;
 	}
 
-	public void popContext() { ctx = ctx.invokingContext; }
+	public void popContext() {
+		frameTop = ctx.savedFrameTop;
+		ctx = ctx.invokingContext;
+	}
+
+	/** Invoke method on the frame stack: the nargs arguments on top of the
+	 *  current context's operand stack become the callee's first locals
+	 *  in place when the caller is itself on the frame stack; otherwise
+	 *  they are copied to {@link #frameTop}. Return false, changing
+	 *  nothing, if the activation doesn't fit.
+	 */
+	public boolean activateFrame(STCompiledBlock method, STObject receiver, int nargs) {
+		boolean inPlace = ctx.stack==frames;
+		int localsBase = inPlace ? ctx.sp - nargs + 1 : frameTop;
+		int end = localsBase + method.nargs + method.nlocals + method.maxStack;
+		if ( end>frames.length ) return false;
+		if ( !inPlace ) {
+			System.arraycopy(ctx.stack, ctx.sp - nargs + 1, frames, localsBase, nargs);
+		}
+		ctx.sp -= nargs + 1; // args now belong to the callee; receiver is gone too
+		int depth = ctx.depth + 1;
+		if ( depth>=framePool.length ) framePool = Arrays.copyOf(framePool, depth*2);
+		BlockContext callee = framePool[depth];
+		if ( callee==null ) {
+			callee = new BlockContext(this);
+			framePool[depth] = callee;
+		}
+		callee.activate(method, receiver, localsBase);
+		pushContext(callee);
+		frameTop = Math.max(frameTop, end);
+		return true;
+	}
+
+	/** Invoke method in place of the current context, whose TAIL_SEND
+	 *  result would only be returned: the callee returns straight to our
+	 *  invoker, so the context chain doesn't grow. A frame-stack context
+	 *  is reused, the arguments moving down over its locals; otherwise a
+	 *  heap context replaces it. The callee counts how many frames were
+	 *  elided on its way so getVMStackString can show them.
+	 */
+	public void tailCall(STCompiledBlock method, STObject receiver, int nargs) {
+		BlockContext caller = ctx;
+		int elided = caller.elidedFrames + 1;
+		int firstArg = caller.sp - nargs + 1;
+		int end = caller.localsBase + method.nargs + method.nlocals + method.maxStack;
+		if ( caller.onFrameStack && end<=frames.length ) {
+			System.arraycopy(frames, firstArg, frames, caller.localsBase, nargs);
+			caller.activate(method, receiver, caller.localsBase);
+			frameTop = Math.max(caller.savedFrameTop, end);
+		}
+		else {
+			BlockContext callee = new BlockContext(this, method, receiver);
+			System.arraycopy(caller.stack, firstArg, callee.locals, 0, nargs);
+			popContext();
+			pushContext(callee);
+		}
+		ctx.elidedFrames = elided;
+	}
+
+	/** Create the descriptor for a block compiled with closure conversion
+	 *  in the active context. It copies just the captured variables, so
+	 *  the context can be recycled or collected when it returns. Only a
+	 *  block that can ^ return needs, and captures, the method context.
+	 *  A clean block gets the same descriptor every time.
+	 */
+	public BlockDescriptor newClosure(STCompiledBlock blk) {
+		if ( blk.isClean() ) {
+			BlockDescriptor d = blk.cleanDescriptor;
+			if ( d==null || d.metaclass!=core.blockDescriptorClass ) { // first use in this VM
+				d = new BlockDescriptor(this, blk, nil(), null, NO_COPIED_VALUES);
+				blk.cleanDescriptor = d;
+			}
+			return d;
+		}
+		BlockContext home = null;
+		if ( blk.hasNonLocalReturn ) {
+			home = ctx.enclosingMethodContext;
+			home.materialize();
+		}
+		STObject[] copied = copyCaptures(blk, new STObject[blk.captures.length]);
+		return new BlockDescriptor(this, blk, blk.usesSelf ? ctx.receiver : nil(), home, copied);
+	}
+
+	/** Fill copied with the values blk captures from the active context */
+	protected STObject[] copyCaptures(STCompiledBlock blk, STObject[] copied) {
+		for (int i=0; i<copied.length; i++) {
+			int c = blk.captures[i];
+			copied[i] = c>=0 ? ctx.locals[ctx.localsBase + c] : ctx.copied[~c];
+		}
+		return copied;
+	}
+
+	/** Create the descriptor for a block literal the compiler proved is
+	 *  only passed to a send that evaluates it (see
+	 *  {@link smalltalk.compiler.CodeGenerator#isStackBlock}). Nothing
+	 *  can refer to it once that send returns, so no more than one
+	 *  descriptor per literal is live at each context depth. We reuse
+	 *  that one rather than allocating, and don't materialize the
+	 *  active context because the descriptor can't outlive it.
+	 *
+	 *  The compiler can't see what a send resolves to, though. The SEND
+	 *  instruction gives the callee a heap copy instead if it might keep
+	 *  the block; see {@link #passStackBlocks}.
+	 */
+	public BlockDescriptor stackBlock(STCompiledBlock blk, int index) {
+		if ( blk.isClean() ) return newClosure(blk); // already shared
+		int depth = ctx.depth;
+		if ( depth>=stackBlocks.length ) stackBlocks = Arrays.copyOf(stackBlocks, depth*2);
+		BlockDescriptor[] slots = stackBlocks[depth];
+		if ( slots==null || index>=slots.length ) {
+			slots = slots==null ? new BlockDescriptor[index+4] : Arrays.copyOf(slots, index+4);
+			stackBlocks[depth] = slots;
+		}
+		BlockDescriptor d = slots[index];
+		if ( d!=null ) {
+			elidedBlocks++;
+		}
+		else {
+			d = new BlockDescriptor(this);
+			slots[index] = d;
+		}
+		d.block = blk;
+		if ( blk.captures==null ) {
+			d.enclosingContext = ctx;
+			d.enclosingMethodContext = ctx.enclosingMethodContext;
+			d.receiver = ctx.receiver;
+			d.copied = null;
+		}
+		else {
+			d.enclosingContext = null;
+			d.enclosingMethodContext = blk.hasNonLocalReturn ? ctx.enclosingMethodContext : null;
+			d.receiver = blk.usesSelf ? ctx.receiver : nil();
+			if ( d.copied==null || d.copied.length!=blk.captures.length ) {
+				d.copied = new STObject[blk.captures.length];
+			}
+			copyCaptures(blk, d.copied);
+		}
+		ctx.liveStackBlocks++;
+		return d;
+	}
+
+	/** A send is about to pass the receiver and nargs arguments on the
+	 *  active context's operand stack to method. Replace each reusable
+	 *  descriptor among them with a heap copy unless method is a
+	 *  primitive that won't keep it (see {@link Primitive#mayRetain}).
+	 */
+	public void passStackBlocks(STCompiledBlock method, int nargs) {
+		int first = ctx.sp - nargs;
+		for (int i=first; i<=ctx.sp; i++) {
+			if ( !(ctx.stack[i] instanceof BlockDescriptor) ) continue;
+			BlockDescriptor d = (BlockDescriptor)ctx.stack[i];
+			if ( !d.reusable ) continue;
+			ctx.liveStackBlocks--;
+			if ( !method.isPrimitive() || method.primitive.mayRetain(i-first) ) {
+				ctx.stack[i] = escape(d);
+			}
+		}
+	}
+
+	/** Copy a reusable descriptor to the heap, materializing whatever
+	 *  context it refers to just as BLOCK would have.
+	 */
+	protected BlockDescriptor escape(BlockDescriptor d) {
+		escapedBlocks++;
+		if ( d.block.captures==null ) {
+			d.enclosingContext.materialize();
+			return new BlockDescriptor(d.block, d.enclosingContext);
+		}
+		if ( d.enclosingMethodContext!=null ) d.enclosingMethodContext.materialize();
+		return new BlockDescriptor(this, d.block, d.receiver, d.enclosingMethodContext, d.copied.clone());
+	}
+
+	/** A pooled context was captured; stop recycling it */
+	public void detachFrame(BlockContext ctx) {
+		if ( ctx.depth<framePool.length && framePool[ctx.depth]==ctx ) {
+			framePool[ctx.depth] = null;
+		}
+	}
 
 	public static STObject TranscriptStream_SHOW(BlockContext ctx, int nArgs, Primitive primitive) {
 		VirtualMachine vm = ctx.vm;
@@ -349,17 +1252,32 @@ public class VirtualMachine {
 		return new STObject(metaclass);
 	}
 
+	/** Return the Integer for v. Values in
+	 *  [{@link #MIN_CACHED_INT}, {@link #MAX_CACHED_INT}] share one
+	 *  instance per VM, created the first time the value is needed, so
+	 *  loop counters and arithmetic on small values don't allocate.
+	 */
 	public STInteger newInteger(int v) {
-        return new STInteger(this,v);
+		if ( smallIntegers!=null && v>=MIN_CACHED_INT && v<=MAX_CACHED_INT ) {
+			STInteger i = smallIntegers[v-MIN_CACHED_INT];
+			if ( i==null ) {
+				i = new STInteger(this, v);
+				smallIntegers[v-MIN_CACHED_INT] = i;
+			}
+			return i;
+		}
+		return new STInteger(this, v);
 	}
 
 	public STFloat newFloat(float v) {
 		return new STFloat(this,v);
 	}
 
-    public STCharacter newChar(int c) {
-        return new STCharacter(this,c);
-    }
+	/** Return the Character for c, shared for codes 0..255 */
+	public STCharacter newChar(int c) {
+		if ( c>=0 && c<characters.length ) return characters[c];
+		return new STCharacter(this,c);
+	}
 
 	public STString newString(String s) {
         int index=-1;
@@ -382,53 +1300,24 @@ public class VirtualMachine {
         //return new STString(this,s);
 	}
 
+	/** Return the true or false singleton; never allocates */
 	public STBoolean newBoolean(boolean b) {
-        return new STBoolean(this,b);
+		return b ? trueObject : falseObject;
 	}
 
-    public STArray newArray(VirtualMachine vm){
-        int n = consumeShort();
+    /** Pop n elements off the operand stack into a new array */
+    public STArray newArray(int n){
         STObject[] stos = new STObject[n];
         for (int i = 0; i<n; i++) {
             stos[n - i - 1] = ctx.pop();
         }
-        return new STArray(vm, stos);
+        return new STArray(this, stos);
     }
 
 	public STNil nil() {
-        //return new STNil(this);
-        return (STNil) systemDict.lookup("NIL");
+		return nil;
 	}
 
-	public int consumeShort() {
-		int x = getShort(ctx.ip);
-		ctx.ip += Bytecode.OperandType.SHORT.sizeInBytes;
-		return x;
-	}
-
-    public int consumeInt(){
-        int x = getInt(ctx.ip);
-        ctx.ip += Bytecode.OperandType.INT.sizeInBytes;
-        return x;
-    }
-
-    public float consumeFloat(){
-        int x = getInt(ctx.ip);
-        ctx.ip += Bytecode.OperandType.FLOAT.sizeInBytes;
-        return Float.intBitsToFloat(x);
-    }
-
-
-    public int getInt(int index) {
-        byte[] code = ctx.compiledBlock.bytecode;
-        return Bytecode.getInt(code, index);
-    }
-
-	// get short operand out of bytecode sequence
-	public int getShort(int index) {
-		byte[] code = ctx.compiledBlock.bytecode;
-		return Bytecode.getShort(code, index);
-	}
 	// D e b u g g i n g
 
 	void trace() {
@@ -437,7 +1326,7 @@ public class VirtualMachine {
 	}
 
 	void traceInstr() {
-		String instr = Bytecode.disassembleInstruction(ctx.compiledBlock, ctx.ip);
+		String instr = Bytecode.disassembleInstruction(ctx.compiledBlock, ctx.compiledBlock.byteOffset(ctx.ip));
 		System.out.printf("%-40s", instr);
 	}
 
@@ -458,7 +1347,7 @@ public class VirtualMachine {
 		while ( c!=null ) {
 			int ip = c.prev_ip;
 			if ( ip<0 ) ip = c.ip;
-			String instr = Bytecode.disassembleInstruction(c.compiledBlock, ip);
+			String instr = Bytecode.disassembleInstruction(c.compiledBlock, c.compiledBlock.byteOffset(ip));
 			String location = c.currentFile+":"+c.currentLine+":"+c.currentCharPos;
 			String mctx = c.compiledBlock.qualifiedName + pLocals(c) + pContextWorkStack(c);
 			String s = String.format("    at %50s%-20s executing %s\n",
@@ -466,6 +1355,9 @@ public class VirtualMachine {
 									 String.format("(%s)",location),
 									 instr);
 			stack.append(s);
+			if ( c.elidedFrames>0 ) {
+				stack.append(String.format("    ... %d frame(s) elided by tail sends\n", c.elidedFrames));
+			}
 			c = c.invokingContext;
 		}
 		return stack.toString();
@@ -474,8 +1366,8 @@ public class VirtualMachine {
 	public String pContextWorkStack(BlockContext ctx) {
 		StringBuilder buf = new StringBuilder();
 		buf.append("[");
-		for (int i=0; i<=ctx.sp; i++) {
-			if ( i>0 ) buf.append(", ");
+		for (int i=ctx.stackBase; i<=ctx.sp; i++) {
+			if ( i>ctx.stackBase ) buf.append(", ");
 			pValue(buf, ctx.stack[i]);
 		}
 		buf.append("]");
@@ -485,9 +1377,10 @@ public class VirtualMachine {
 	public String pLocals(BlockContext ctx) {
 		StringBuilder buf = new StringBuilder();
 		buf.append("[");
-		for (int i=0; i<ctx.locals.length; i++) {
+		int n = ctx.compiledBlock.nargs + ctx.compiledBlock.nlocals;
+		for (int i=0; i<n; i++) {
 			if ( i>0 ) buf.append(", ");
-			pValue(buf, ctx.locals[i]);
+			pValue(buf, ctx.locals[ctx.localsBase + i]);
 		}
 		buf.append("]");
 		return buf.toString();
@@ -496,6 +1389,7 @@ public class VirtualMachine {
 	public void pValue(StringBuilder buf, STObject v) {
 		if ( v==null ) buf.append("null");
 		else if ( v==nil() ) buf.append("nil");
+		else if ( v instanceof VariableBox ) pValue(buf, ((VariableBox)v).value);
 		else if ( v instanceof STString) buf.append("'"+v.asString()+"'");
 		else if ( v instanceof BlockDescriptor) {
 			BlockDescriptor blk = (BlockDescriptor) v;
@@ -0,0 +1,93 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+/** An execution engine that walks a tree of nodes per block instead of
+ *  dispatching on each instruction. {@link TreeBuilder} makes the tree
+ *  from the block's pre-decoded code the first time the block runs and
+ *  it is kept in {@link STCompiledBlock#ast}. As the tree runs, its send
+ *  nodes rewrite themselves for the receivers they see: a
+ *  {@link SpecialSendNode} to an {@link SpecialSendNode.IntegerOp} on
+ *  Integers, and a {@link SendNode}'s dispatch chain to
+ *  {@link SendNode.Cached} nodes for each receiver class.
+ *
+ *  Contexts, their stacks and the primitives are the same as under the
+ *  bytecode loop. A send runs the callee's tree on the Java stack, so a
+ *  ^ return out of a block that unwinds past a context running in a tree
+ *  leaves it by throwing {@link Unwind}; the {@link #run} that was
+ *  waiting for the unwound context catches it. Past
+ *  {@link VirtualMachine#MAX_NESTING} nested runs, callees go to the
+ *  bytecode loop instead, which doesn't nest, until the recursion comes
+ *  back up. A TAIL_SEND doesn't nest either: its callee replaces the
+ *  context and throws {@link TailCall} to the run executing it, which
+ *  carries on with the callee's tree.
+ */
+public class AstInterpreter {
+	/** Thrown to abandon the tree of a context that a ^ return unwound */
+	public static class Unwind extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public static final Unwind INSTANCE = new Unwind();
+		private Unwind() { super(null, null, false, false); }
+	}
+
+	/** Thrown to abandon the tree of a context a tail send replaced */
+	public static class TailCall extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public static final TailCall INSTANCE = new TailCall();
+		private TailCall() { super(null, null, false, false); }
+	}
+
+	public final VirtualMachine vm;
+
+	/** How many trees were built? */
+	public int treesBuilt;
+
+	public AstInterpreter(VirtualMachine vm) {
+		this.vm = vm;
+	}
+
+	/** Run the active context, as {@link VirtualMachine#run} does, until it
+	 *  returns into a context at stopDepth or shallower, or a ^ return
+	 *  unwinds past it.
+	 */
+	public void run(int stopDepth) {
+		BlockContext ctx = vm.ctx;
+		if ( ctx==null || ctx.depth<=stopDepth ) return;
+		if ( vm.nesting>=VirtualMachine.MAX_NESTING ) {
+			vm.interpret(stopDepth);
+			return;
+		}
+		vm.nesting++;
+		try {
+			while ( true ) {
+				try {
+					tree(ctx.compiledBlock).execute(ctx);
+					return;
+				}
+				catch (TailCall t) {
+					ctx = vm.ctx;
+				}
+			}
+		}
+		catch (Unwind u) {
+			// vm.ctx is where the ^ return went
+		}
+		finally {
+			vm.nesting--;
+		}
+	}
+
+	/** The node tree of blk for this interpreter, built on first use */
+	public MethodNode tree(STCompiledBlock blk) {
+		MethodNode t = blk.ast;
+		if ( t==null || t.interpreter!=this ) { // compiled blocks are shared by VMs
+			if ( blk.code==null ) blk.predecode(vm.symbols);
+			t = new TreeBuilder(vm, blk).build(this);
+			blk.ast = t;
+			treesBuilt++;
+		}
+		return t;
+	}
+}
@@ -0,0 +1,37 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.primitive.BlockContext;
+
+/** A straight-line run of statements and the {@link Nodes.Terminator}
+ *  that picks the next basic block.
+ */
+public class BasicBlockNode extends Node {
+	/** Where the block starts in the pre-decoded code */
+	public final int start;
+
+	public BasicBlockNode(int start, Node[] statements, Nodes.Terminator end) {
+		super(start, append(statements, end));
+		this.start = start;
+	}
+
+	/** Execute the statements and return the next block's index, or -1
+	 *  if the context has returned.
+	 */
+	public int run(BlockContext ctx) {
+		Node[] statements = children;
+		int n = statements.length - 1;
+		for (int i=0; i<n; i++) {
+			statements[i].execute(ctx);
+		}
+		return ((Nodes.Terminator)statements[n]).next(ctx);
+	}
+
+	public void execute(BlockContext ctx) { throw new UnsupportedOperationException(); }
+
+	static Node[] append(Node[] statements, Node end) {
+		Node[] all = new Node[statements.length+1];
+		System.arraycopy(statements, 0, all, 0, statements.length);
+		all[statements.length] = end;
+		return all;
+	}
+}
@@ -0,0 +1,30 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+/** The root of the tree for one method or block: its basic blocks, the
+ *  first being the entry. Trees are built per {@link AstInterpreter}
+ *  because their nodes specialize on the classes of one VM.
+ */
+public class MethodNode extends Node {
+	public final STCompiledBlock block;
+	public final AstInterpreter interpreter;
+
+	public MethodNode(STCompiledBlock block, AstInterpreter interpreter, BasicBlockNode[] blocks) {
+		super(0, blocks);
+		this.block = block;
+		this.interpreter = interpreter;
+	}
+
+	public BasicBlockNode[] getBlocks() { return (BasicBlockNode[])children; }
+
+	/** Run ctx from the start until it returns */
+	public void execute(BlockContext ctx) {
+		Node[] blocks = children;
+		int b = 0;
+		while ( b>=0 ) {
+			b = ((BasicBlockNode)blocks[b]).run(ctx);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.primitive.BlockContext;
+
+/** A node of the tree {@link TreeBuilder} makes from a block's pre-decoded
+ *  code. Values still live on the context's operand stack, exactly where
+ *  the bytecode loop would put them, so primitives, blocks and stack
+ *  dumps see the same contexts under either engine. An expression node
+ *  executes its children in order and pushes one value; a statement node
+ *  pushes nothing.
+ *
+ *  A node can {@link #replace} itself with a version specialized to what
+ *  it has seen, so that the call from its parent stays monomorphic.
+ */
+public abstract class Node {
+	/** The instruction the node came from, for stack dumps; -1 if none */
+	public final int pc;
+
+	protected Node parent;
+	protected final Node[] children;
+
+	protected Node(int pc, Node... children) {
+		this.pc = pc;
+		this.children = children;
+		for (Node c : children) c.parent = this;
+	}
+
+	public abstract void execute(BlockContext ctx);
+
+	/** Put n in this node's place in the tree and return it */
+	public Node replace(Node n) {
+		n.parent = parent;
+		Node[] siblings = parent.children;
+		for (int i=0; i<siblings.length; i++) {
+			if ( siblings[i]==this ) siblings[i] = n;
+		}
+		return n;
+	}
+
+	public Node[] getChildren() { return children; }
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder(getClass().getSimpleName());
+		if ( children.length>0 ) {
+			buf.append('(');
+			for (int i=0; i<children.length; i++) {
+				if ( i>0 ) buf.append(", ");
+				buf.append(children[i]);
+			}
+			buf.append(')');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,334 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.BlockDescriptor;
+import smalltalk.vm.primitive.STArray;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STObject;
+import smalltalk.vm.primitive.VariableBox;
+
+/** The nodes for instructions that don't specialize: one per push,
+ *  store and other simple instruction, plus the {@link Terminator}s that
+ *  end a {@link BasicBlockNode}. Each does what its instruction does in
+ *  {@link VirtualMachine#run}.
+ */
+public final class Nodes {
+	private Nodes() { }
+
+	/** A value the context's stack already holds, left by an earlier
+	 *  statement or another basic block.
+	 */
+	public static class Pushed extends Node {
+		public Pushed() { super(-1); }
+		public void execute(BlockContext ctx) { }
+	}
+
+	public static class Nil extends Node {
+		public Nil(int pc) { super(pc); }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.nil()); }
+	}
+
+	public static class Self extends Node {
+		public Self(int pc) { super(pc); }
+		public void execute(BlockContext ctx) { ctx.push(ctx.receiver); }
+	}
+
+	/** true or false */
+	public static class Constant extends Node {
+		final STObject value;
+		public Constant(int pc, STObject value) { super(pc); this.value = value; }
+		public void execute(BlockContext ctx) { ctx.push(value); }
+	}
+
+	public static class PushChar extends Node {
+		final int value;
+		public PushChar(int pc, int value) { super(pc); this.value = value; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.newChar((char)value)); }
+	}
+
+	/** An Integer literal; {@link VirtualMachine#newInteger} shares the small ones */
+	public static class PushInt extends Node {
+		final int value;
+		public PushInt(int pc, int value) { super(pc); this.value = value; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.newInteger(value)); }
+	}
+
+	public static class PushFloat extends Node {
+		final float value;
+		public PushFloat(int pc, float value) { super(pc); this.value = value; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.newFloat(value)); }
+	}
+
+	public static class PushField extends Node {
+		final int index;
+		public PushField(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.receiver.fields[index]); }
+	}
+
+	/** A local or argument of this context */
+	public static class PushLocal extends Node {
+		final int index;
+		public PushLocal(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.locals[ctx.localsBase + index]); }
+	}
+
+	/** A local or argument of the context depth blocks out */
+	public static class PushOuterLocal extends Node {
+		final int depth, index;
+		public PushOuterLocal(int pc, int depth, int index) { super(pc); this.depth = depth; this.index = index; }
+		public void execute(BlockContext ctx) {
+			BlockContext blk = outer(ctx, depth);
+			ctx.push(blk.locals[blk.localsBase + index]);
+		}
+	}
+
+	public static class PushLiteral extends Node {
+		final String value;
+		public PushLiteral(int pc, String value) { super(pc); this.value = value; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.newString(value)); }
+	}
+
+	public static class PushGlobal extends Node {
+		final int symbol;
+		public PushGlobal(int pc, int symbol) { super(pc); this.symbol = symbol; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.vm.systemDict.lookup(symbol)); }
+	}
+
+	public static class PushArray extends Node {
+		public PushArray(int pc, Node... elements) { super(pc, elements); }
+		public void execute(BlockContext ctx) {
+			for (Node e : children) e.execute(ctx);
+			int n = children.length;
+			STObject[] elements = new STObject[n];
+			System.arraycopy(ctx.stack, ctx.sp - n + 1, elements, 0, n);
+			ctx.sp -= n;
+			ctx.push(new STArray(ctx.vm, elements));
+		}
+	}
+
+	public static class PushCopy extends Node {
+		final int index;
+		public PushCopy(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) { ctx.push(ctx.copied[index]); }
+	}
+
+	public static class PushCopyBox extends Node {
+		final int index;
+		public PushCopyBox(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) { ctx.push(((VariableBox)ctx.copied[index]).value); }
+	}
+
+	public static class PushBox extends Node {
+		final int index;
+		public PushBox(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) {
+			ctx.push(((VariableBox)ctx.locals[ctx.localsBase + index]).value);
+		}
+	}
+
+	public static class Block extends Node {
+		final int index;
+		public Block(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) {
+			STCompiledBlock blk = ctx.compiledBlock.method.blocks[index];
+			if ( blk.captures!=null ) {
+				ctx.push(ctx.vm.newClosure(blk));
+			}
+			else {
+				ctx.materialize(); // the descriptor captures ctx
+				ctx.push(new BlockDescriptor(blk, ctx));
+			}
+		}
+	}
+
+	public static class StackBlock extends Node {
+		final int index;
+		public StackBlock(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) {
+			ctx.push(ctx.vm.stackBlock(ctx.compiledBlock.method.blocks[index], index));
+		}
+	}
+
+	/** Stores leave the value they store on the stack */
+	public static class StoreField extends Node {
+		final int index;
+		public StoreField(int pc, int index, Node value) { super(pc, value); this.index = index; }
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			ctx.receiver.fields[index] = ctx.top();
+		}
+	}
+
+	public static class StoreLocal extends Node {
+		final int depth, index;
+		public StoreLocal(int pc, int depth, int index, Node value) {
+			super(pc, value);
+			this.depth = depth;
+			this.index = index;
+		}
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			BlockContext blk = outer(ctx, depth);
+			blk.locals[blk.localsBase + index] = ctx.top();
+		}
+	}
+
+	public static class StoreLocalPop extends Node {
+		final int depth, index;
+		public StoreLocalPop(int pc, int depth, int index, Node value) {
+			super(pc, value);
+			this.depth = depth;
+			this.index = index;
+		}
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			BlockContext blk = outer(ctx, depth);
+			blk.locals[blk.localsBase + index] = ctx.pop();
+		}
+	}
+
+	public static class StoreCopyBox extends Node {
+		final int index;
+		public StoreCopyBox(int pc, int index, Node value) { super(pc, value); this.index = index; }
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			((VariableBox)ctx.copied[index]).value = ctx.top();
+		}
+	}
+
+	public static class StoreBox extends Node {
+		final int index;
+		public StoreBox(int pc, int index, Node value) { super(pc, value); this.index = index; }
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			((VariableBox)ctx.locals[ctx.localsBase + index]).value = ctx.top();
+		}
+	}
+
+	public static class BoxLocal extends Node {
+		final int index;
+		public BoxLocal(int pc, int index) { super(pc); this.index = index; }
+		public void execute(BlockContext ctx) {
+			int i = ctx.localsBase + index;
+			ctx.locals[i] = new VariableBox(ctx.locals[i]);
+		}
+	}
+
+	public static class Pop extends Node {
+		public Pop(int pc, Node value) { super(pc, value); }
+		public void execute(BlockContext ctx) {
+			children[0].execute(ctx);
+			ctx.pop();
+		}
+	}
+
+	public static class Dbg extends Node {
+		final String file;
+		final int line, charPos;
+		public Dbg(int pc, String file, int lineAndPos) {
+			super(pc);
+			this.file = file;
+			this.line = Bytecode.lineFromCombined(lineAndPos);
+			this.charPos = Bytecode.charPosFromCombined(lineAndPos);
+		}
+		public void execute(BlockContext ctx) {
+			ctx.currentFile = file;
+			ctx.currentCharPos = charPos;
+			ctx.currentLine = line;
+		}
+	}
+
+	static BlockContext outer(BlockContext ctx, int depth) {
+		for (int j=0; j<depth; j++) ctx = ctx.enclosingContext;
+		return ctx;
+	}
+
+	// T e r m i n a t o r s
+
+	/** The last node of a basic block, which says where to go next */
+	public static abstract class Terminator extends Node {
+		protected Terminator(int pc, Node... children) { super(pc, children); }
+
+		/** Index of the next basic block, or -1 once the context has returned */
+		public abstract int next(BlockContext ctx);
+
+		public void execute(BlockContext ctx) { throw new UnsupportedOperationException(); }
+	}
+
+	/** A JUMP, or falling into the next basic block */
+	public static class Goto extends Terminator {
+		final int target;
+		public Goto(int pc, int target) { super(pc); this.target = target; }
+		public int next(BlockContext ctx) { return target; }
+	}
+
+	/** JUMP_IF_TRUE or JUMP_IF_FALSE. A condition that isn't a Boolean
+	 *  stays on the stack for the fallback block's mustBeBoolean send.
+	 */
+	public static class Branch extends Terminator {
+		final boolean ifTrue;
+		final int target, fallThrough, fallback;
+		public Branch(int pc, boolean ifTrue, int target, int fallThrough, int fallback, Node condition) {
+			super(pc, condition);
+			this.ifTrue = ifTrue;
+			this.target = target;
+			this.fallThrough = fallThrough;
+			this.fallback = fallback;
+		}
+		public int next(BlockContext ctx) {
+			children[0].execute(ctx);
+			VirtualMachine vm = ctx.vm;
+			STObject cond = ctx.top();
+			if ( cond==vm.trueObject || cond==vm.falseObject ) {
+				ctx.pop();
+				return (cond==vm.trueObject)==ifTrue ? target : fallThrough;
+			}
+			return fallback;
+		}
+	}
+
+	/** RETURN or RETURN_SELF: return from the block's method */
+	public static class Return extends Terminator {
+		public Return(int pc, Node value) { super(pc, value); }
+		public int next(BlockContext ctx) {
+			children[0].execute(ctx);
+			ctx.prev_ip = pc;
+			VirtualMachine vm = ctx.vm;
+			STObject r = ctx.pop();
+			BlockContext home = ctx.enclosingMethodContext;
+			// deal with double return: can't return from a method that already returned
+			if ( home.enclosingContext==BlockContext.RETURNED ) {
+				vm.error("BlockCannotReturn", ctx.compiledBlock.enclosingClass.getName() + ">>" +
+						 ctx.compiledBlock.name + " can't trigger return again from method " +
+						 home.compiledBlock.qualifiedName);
+			}
+			vm.ctx = home;
+			home.enclosingContext = BlockContext.RETURNED;
+			vm.popContext();
+			if ( vm.ctx==null ) vm.returnValue = r;
+			else vm.ctx.push(r);
+			return -1;
+		}
+	}
+
+	/** BLOCK_RETURN or BLOCK_RETURN_NIL: return from the block to its invoker */
+	public static class BlockReturn extends Terminator {
+		public BlockReturn(int pc, Node value) { super(pc, value); }
+		public int next(BlockContext ctx) {
+			children[0].execute(ctx);
+			VirtualMachine vm = ctx.vm;
+			STObject r = ctx.pop();
+			vm.popContext();
+			vm.ctx.push(r);
+			return -1;
+		}
+	}
+
+	/** Running off the end of the code, which the bytecode loop also just stops at */
+	public static class End extends Terminator {
+		public End(int pc) { super(pc); }
+		public int next(BlockContext ctx) { return -1; }
+	}
+}
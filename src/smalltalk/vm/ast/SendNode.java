@@ -0,0 +1,174 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject;
+
+/** SEND, SEND_SUPER, TAIL_SEND or SEND_0..SEND_2: evaluate the receiver
+ *  and arguments, find the method through {@link #dispatch} and invoke
+ *  it as SEND does.
+ *
+ *  The dispatch chain starts as a single {@link Uninitialized} node.
+ *  Each receiver class it sees adds a {@link Cached} node in front of it
+ *  that tests for that class, so a monomorphic send is one class test.
+ *  A send that sees more than {@link #MAX_CACHED} classes rewrites the
+ *  chain to a {@link Generic} node that uses the send's
+ *  {@link InlineCache} like the bytecode loop. Cached entries are only
+ *  good for the VM cache generation they were made in; the first send
+ *  after a class or method is redefined starts the chain over.
+ */
+public class SendNode extends Node {
+	public static final int MAX_CACHED = InlineCache.MAX_ENTRIES;
+
+	public final int op;
+	public final int nargs;
+	public final int selector;
+
+	/** The head of the dispatch chain */
+	public DispatchNode dispatch = new Uninitialized();
+	/** How many {@link Cached} nodes the chain has */
+	protected int cached;
+
+	public SendNode(int pc, int op, int nargs, int selector, Node... receiverAndArgs) {
+		super(pc, receiverAndArgs);
+		this.op = op;
+		this.nargs = nargs;
+		this.selector = selector;
+	}
+
+	/** A node taking n's place, with its children and dispatch chain */
+	protected SendNode(SendNode n) {
+		this(n.pc, n.op, n.nargs, n.selector, n.children);
+		dispatch = n.dispatch;
+		cached = n.cached;
+	}
+
+	public void execute(BlockContext ctx) {
+		for (Node c : children) c.execute(ctx);
+		ctx.prev_ip = pc;
+		send(ctx);
+	}
+
+	/** Send to the receiver and arguments on top of ctx's stack, leaving
+	 *  the result in their place. Throws {@link AstInterpreter.Unwind} if
+	 *  a ^ return from a block unwinds past ctx, and a TAIL_SEND throws
+	 *  {@link AstInterpreter.TailCall} once its callee has replaced ctx.
+	 */
+	public void send(BlockContext ctx) {
+		VirtualMachine vm = ctx.vm;
+		STObject receiver = ctx.stack[ctx.sp - nargs];
+		STCompiledBlock stb = dispatch.lookup(this, vm, ctx, receiver, receiver.getSTClass(),
+											  receiver instanceof STMetaClassObject);
+		if ( ctx.liveStackBlocks>0 ) vm.passStackBlocks(stb, nargs);
+		STObject result = null;
+		if ( stb.trivialKind!=STCompiledBlock.NOT_TRIVIAL ) {
+			result = vm.runTrivial(stb, receiver, ctx.top());
+			ctx.sp -= nargs + 1;
+			ctx.push(result);
+			return;
+		}
+		else if ( stb.isPrimitive() ) {
+			result = stb.primitive.perform(ctx, nargs);
+		}
+		else if ( op==Bytecode.TAIL_SEND && !ctx.captured ) {
+			vm.tailCall(stb, receiver, nargs);
+			throw AstInterpreter.TailCall.INSTANCE; // the callee runs in ctx's place
+		}
+		else {
+			BlockContext callee = new BlockContext(vm, stb, receiver);
+			for (int j=nargs-1; j>=0; j--) {
+				callee.locals[j] = ctx.pop();
+			}
+			ctx.pop();
+			vm.pushContext(callee);
+		}
+		if ( result!=null && vm.ctx==ctx ) {
+			ctx.push(result);
+			return;
+		}
+		if ( vm.ctx!=null && vm.ctx.depth>ctx.depth ) vm.ast.run(ctx.depth);
+		if ( vm.ctx!=ctx ) throw AstInterpreter.Unwind.INSTANCE;
+		// the callee's return left its value on our stack
+	}
+
+	// D i s p a t c h
+
+	/** A link in a send's dispatch chain */
+	public static abstract class DispatchNode extends Node {
+		protected DispatchNode(Node... next) { super(-1, next); }
+
+		/** The method receiver, of class cl, runs for send */
+		public abstract STCompiledBlock lookup(SendNode send, VirtualMachine vm, BlockContext ctx,
+											   STObject receiver, STMetaClassObject cl, boolean isClass);
+
+		public void execute(BlockContext ctx) { throw new UnsupportedOperationException(); }
+	}
+
+	/** The end of the chain: look the method up and cache it in front */
+	public static class Uninitialized extends DispatchNode {
+		public STCompiledBlock lookup(SendNode send, VirtualMachine vm, BlockContext ctx,
+									  STObject receiver, STMetaClassObject cl, boolean isClass)
+		{
+			if ( send.cached==MAX_CACHED ) {
+				send.dispatch = new Generic();
+				send.cached = 0;
+				return send.dispatch.lookup(send, vm, ctx, receiver, cl, isClass);
+			}
+			STCompiledBlock stb = vm.lookupMethod(send.op, receiver, send.selector); // errors aren't cached
+			send.dispatch = new Cached(cl, isClass, stb, vm.cacheGeneration, send.dispatch);
+			send.cached++;
+			return stb;
+		}
+	}
+
+	/** One receiver class and the method it resolved to */
+	public static class Cached extends DispatchNode {
+		final STMetaClassObject cl;
+		final boolean isClass;
+		final STCompiledBlock method;
+		final int generation;
+
+		public Cached(STMetaClassObject cl, boolean isClass, STCompiledBlock method, int generation,
+					  DispatchNode next)
+		{
+			super(next);
+			this.cl = cl;
+			this.isClass = isClass;
+			this.method = method;
+			this.generation = generation;
+		}
+
+		public STCompiledBlock lookup(SendNode send, VirtualMachine vm, BlockContext ctx,
+									  STObject receiver, STMetaClassObject cl, boolean isClass)
+		{
+			if ( generation!=vm.cacheGeneration ) { // redefined; start over
+				send.dispatch = new Uninitialized();
+				send.cached = 0;
+				return send.dispatch.lookup(send, vm, ctx, receiver, cl, isClass);
+			}
+			if ( cl==this.cl && isClass==this.isClass ) return method;
+			return ((DispatchNode)children[0]).lookup(send, vm, ctx, receiver, cl, isClass);
+		}
+	}
+
+	/** Too many receiver classes: use the send's inline cache and then
+	 *  the VM's method cache, as the bytecode loop does.
+	 */
+	public static class Generic extends DispatchNode {
+		public STCompiledBlock lookup(SendNode send, VirtualMachine vm, BlockContext ctx,
+									  STObject receiver, STMetaClassObject cl, boolean isClass)
+		{
+			InlineCache ic = ctx.compiledBlock.sendCaches[send.pc];
+			STCompiledBlock stb = ic.generation==vm.cacheGeneration ? ic.lookup(cl, isClass) : null;
+			if ( stb!=null ) {
+				ic.hits++;
+				return stb;
+			}
+			return vm.cacheMiss(ic, send.op, receiver, isClass, send.selector);
+		}
+	}
+}
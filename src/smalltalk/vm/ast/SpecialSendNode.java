@@ -0,0 +1,160 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STInteger;
+import smalltalk.vm.primitive.STObject;
+
+/** SEND_ADD..SEND_MOD. The node starts {@link Uninitialized} and on its
+ *  first execution rewrites itself for the operands it sees: to the
+ *  {@link IntegerOp} for its operator if both are Integers, otherwise to
+ *  {@link Generic}, which computes in place through
+ *  {@link VirtualMachine#specialSend} where it can. An integer node that
+ *  later sees anything else, or finds the operator redefined, rewrites
+ *  itself to Generic for good. Sends that can't be computed in place go
+ *  through the dispatch chain of {@link SendNode}.
+ */
+public abstract class SpecialSendNode extends SendNode {
+	protected SpecialSendNode(int pc, int op, int selector, Node receiver, Node arg) {
+		super(pc, op, 1, selector, receiver, arg);
+	}
+
+	protected SpecialSendNode(SendNode n) { super(n); }
+
+	public static SpecialSendNode create(int pc, int op, int selector, Node receiver, Node arg) {
+		return new Uninitialized(pc, op, selector, receiver, arg);
+	}
+
+	public void execute(BlockContext ctx) {
+		children[0].execute(ctx);
+		children[1].execute(ctx);
+		ctx.prev_ip = pc;
+		STObject result = compute(ctx.vm, ctx.stack[ctx.sp-1], ctx.stack[ctx.sp]);
+		if ( result!=null ) {
+			ctx.sp--;
+			ctx.stack[ctx.sp] = result;
+		}
+		else {
+			send(ctx);
+		}
+	}
+
+	/** The result for receiver and arg, or null to send the message */
+	protected abstract STObject compute(VirtualMachine vm, STObject receiver, STObject arg);
+
+	/** Replace this node with a {@link Generic} one and compute with that */
+	protected STObject generalize(VirtualMachine vm, STObject receiver, STObject arg) {
+		return ((SpecialSendNode)replace(new Generic(this))).compute(vm, receiver, arg);
+	}
+
+	public static class Uninitialized extends SpecialSendNode {
+		Uninitialized(int pc, int op, int selector, Node receiver, Node arg) {
+			super(pc, op, selector, receiver, arg);
+		}
+
+		protected STObject compute(VirtualMachine vm, STObject receiver, STObject arg) {
+			if ( receiver instanceof STInteger && arg instanceof STInteger && vm.integerFastPath(op) ) {
+				return ((SpecialSendNode)replace(IntegerOp.create(this))).compute(vm, receiver, arg);
+			}
+			return generalize(vm, receiver, arg);
+		}
+	}
+
+	/** Computed by the VM where it can, as the bytecode loop does */
+	public static class Generic extends SpecialSendNode {
+		Generic(SendNode n) { super(n); }
+
+		protected STObject compute(VirtualMachine vm, STObject receiver, STObject arg) {
+			return vm.specialSend(op, receiver, arg);
+		}
+	}
+
+	/** An operator on two Integers, computed as the Integer primitive would */
+	public static abstract class IntegerOp extends SpecialSendNode {
+		IntegerOp(SendNode n) { super(n); }
+
+		static IntegerOp create(SendNode n) {
+			switch ( n.op ) {
+				case Bytecode.SEND_ADD: return new Add(n);
+				case Bytecode.SEND_SUB: return new Sub(n);
+				case Bytecode.SEND_MUL: return new Mul(n);
+				case Bytecode.SEND_DIV: return new Div(n);
+				case Bytecode.SEND_LT: return new LessThan(n);
+				case Bytecode.SEND_GT: return new GreaterThan(n);
+				case Bytecode.SEND_LE: return new LessOrEqual(n);
+				case Bytecode.SEND_GE: return new GreaterOrEqual(n);
+				case Bytecode.SEND_EQ: return new Equal(n);
+				case Bytecode.SEND_NE: return new NotEqual(n);
+				default: return new Mod(n);
+			}
+		}
+
+		protected STObject compute(VirtualMachine vm, STObject receiver, STObject arg) {
+			if ( receiver instanceof STInteger && arg instanceof STInteger && vm.integerFastPath(op) ) {
+				return compute(vm, ((STInteger)receiver).v, ((STInteger)arg).v);
+			}
+			return generalize(vm, receiver, arg);
+		}
+
+		/** The result, or null if the primitive would fail */
+		protected abstract STObject compute(VirtualMachine vm, int x, int y);
+	}
+
+	// comparisons subtract like the primitives do
+
+	public static class Add extends IntegerOp {
+		Add(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newInteger(x + y); }
+	}
+
+	public static class Sub extends IntegerOp {
+		Sub(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newInteger(x - y); }
+	}
+
+	public static class Mul extends IntegerOp {
+		Mul(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newInteger(x * y); }
+	}
+
+	public static class Div extends IntegerOp {
+		Div(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return y!=0 ? vm.newInteger(x / y) : null; }
+	}
+
+	public static class Mod extends IntegerOp {
+		Mod(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return y!=0 ? vm.newInteger(x % y) : null; }
+	}
+
+	public static class LessThan extends IntegerOp {
+		LessThan(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x - y < 0); }
+	}
+
+	public static class GreaterThan extends IntegerOp {
+		GreaterThan(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x - y > 0); }
+	}
+
+	public static class LessOrEqual extends IntegerOp {
+		LessOrEqual(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x - y <= 0); }
+	}
+
+	public static class GreaterOrEqual extends IntegerOp {
+		GreaterOrEqual(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x - y >= 0); }
+	}
+
+	public static class Equal extends IntegerOp {
+		Equal(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x == y); }
+	}
+
+	public static class NotEqual extends IntegerOp {
+		NotEqual(SendNode n) { super(n); }
+		protected STObject compute(VirtualMachine vm, int x, int y) { return vm.newBoolean(x != y); }
+	}
+}
@@ -0,0 +1,252 @@
+package smalltalk.vm.ast;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/** Build the node tree of a block from its pre-decoded code.
+ *
+ *  The code is cut into basic blocks at every jump target, fallback
+ *  address and instruction after a conditional jump. Within a basic block
+ *  the builder simulates the operand stack with nodes: a push becomes a
+ *  leaf and an instruction that consumes values, like a send, takes its
+ *  operands off the simulated stack as its children. Children run in
+ *  order before their parent, so a tree runs its instructions in the order
+ *  the code has them.
+ *
+ *  A statement (POP, STORE_LOCAL_POP, DBG, BOX_LOCAL) or the end of a
+ *  basic block runs at once, though, so any operands still waiting below
+ *  the ones it consumes become statements first. Those leave their
+ *  values on the context's stack, and a {@link Nodes.Pushed} node stands
+ *  for each value from then on. A basic block starts with one of those
+ *  for each value on the stack when control reaches it.
+ */
+public class TreeBuilder {
+	protected final VirtualMachine vm;
+	protected final STCompiledBlock blk;
+	protected final int[] code;
+
+	/** Operand stack depth before each instruction; -1 if unreachable */
+	protected int[] depth;
+	/** Index of the basic block starting at each instruction; -1 if none */
+	protected int[] blockAt;
+	protected int nblocks;
+	/** Index of an empty basic block for jumps past the end of the code; -1 until needed */
+	protected int endBlock = -1;
+
+	/** The simulated stack of the basic block being built */
+	protected final List<Node> stack = new ArrayList<>();
+	protected final List<Node> statements = new ArrayList<>();
+
+	public TreeBuilder(VirtualMachine vm, STCompiledBlock blk) {
+		this.vm = vm;
+		this.blk = blk;
+		this.code = blk.code;
+	}
+
+	public MethodNode build(AstInterpreter interpreter) {
+		findBlocks();
+		List<BasicBlockNode> blocks = new ArrayList<>();
+		for (int pc=0; pc<code.length; pc++) {
+			if ( blockAt[pc]>=0 ) blocks.add(buildBlock(pc));
+		}
+		if ( nblocks==0 ) endBlock = 0; // no code
+		if ( endBlock>=0 ) blocks.add(new BasicBlockNode(code.length, new Node[0], new Nodes.End(code.length)));
+		return new MethodNode(blk, interpreter, blocks.toArray(new BasicBlockNode[blocks.size()]));
+	}
+
+	protected BasicBlockNode buildBlock(int start) {
+		stack.clear();
+		statements.clear();
+		for (int i=0; i<depth[start]; i++) stack.add(new Nodes.Pushed());
+		int pc = start;
+		Nodes.Terminator end = null;
+		while ( end==null ) {
+			if ( pc>=code.length ) {
+				flush();
+				end = new Nodes.End(pc);
+			}
+			else if ( pc>start && blockAt[pc]>=0 ) { // fall into the next block
+				flush();
+				end = new Nodes.Goto(pc, block(pc));
+			}
+			else {
+				end = instruction(pc);
+				pc += Bytecode.decodedSize(code[pc]);
+			}
+		}
+		return new BasicBlockNode(start, statements.toArray(new Node[statements.size()]), end);
+	}
+
+	/** Add the node for the instruction at pc to the block being built,
+	 *  returning it if it ends the block.
+	 */
+	protected Nodes.Terminator instruction(int pc) {
+		int op = code[pc];
+		int opnd = code.length>pc+1 ? code[pc+1] : 0;
+		switch ( op ) {
+			case Bytecode.NIL :				push(new Nodes.Nil(pc)); break;
+			case Bytecode.SELF :			push(new Nodes.Self(pc)); break;
+			case Bytecode.TRUE :			push(new Nodes.Constant(pc, vm.trueObject)); break;
+			case Bytecode.FALSE :			push(new Nodes.Constant(pc, vm.falseObject)); break;
+			case Bytecode.PUSH_CHAR :		push(new Nodes.PushChar(pc, opnd)); break;
+			case Bytecode.PUSH_INT :		push(new Nodes.PushInt(pc, opnd)); break;
+			case Bytecode.PUSH_FLOAT :		push(new Nodes.PushFloat(pc, Float.intBitsToFloat(opnd))); break;
+			case Bytecode.PUSH_FIELD :		push(new Nodes.PushField(pc, opnd)); break;
+			case Bytecode.PUSH_LITERAL :	push(new Nodes.PushLiteral(pc, blk.literals[opnd])); break;
+			case Bytecode.PUSH_GLOBAL :		push(new Nodes.PushGlobal(pc, opnd)); break;
+			case Bytecode.PUSH_COPY :		push(new Nodes.PushCopy(pc, opnd)); break;
+			case Bytecode.PUSH_COPY_BOX :	push(new Nodes.PushCopyBox(pc, opnd)); break;
+			case Bytecode.PUSH_BOX :		push(new Nodes.PushBox(pc, opnd)); break;
+			case Bytecode.BLOCK :			push(new Nodes.Block(pc, opnd)); break;
+			case Bytecode.STACK_BLOCK :		push(new Nodes.StackBlock(pc, opnd)); break;
+			case Bytecode.PUSH_LOCAL :
+				push(opnd==0 ? new Nodes.PushLocal(pc, code[pc+2]) : new Nodes.PushOuterLocal(pc, opnd, code[pc+2]));
+				break;
+			case Bytecode.PUSH_ARRAY :		push(new Nodes.PushArray(pc, pop(opnd))); break;
+			case Bytecode.STORE_FIELD :		push(new Nodes.StoreField(pc, opnd, pop())); break;
+			case Bytecode.STORE_LOCAL :		push(new Nodes.StoreLocal(pc, opnd, code[pc+2], pop())); break;
+			case Bytecode.STORE_COPY_BOX :	push(new Nodes.StoreCopyBox(pc, opnd, pop())); break;
+			case Bytecode.STORE_BOX :		push(new Nodes.StoreBox(pc, opnd, pop())); break;
+			case Bytecode.STORE_LOCAL_POP :	statement(new Nodes.StoreLocalPop(pc, opnd, code[pc+2], pop())); break;
+			case Bytecode.POP :				statement(new Nodes.Pop(pc, pop())); break;
+			case Bytecode.BOX_LOCAL :		statement(new Nodes.BoxLocal(pc, opnd)); break;
+			case Bytecode.DBG :
+				statement(new Nodes.Dbg(pc, blk.literals[opnd], code[pc+2]));
+				break;
+			case Bytecode.JUMP :
+				flush();
+				return new Nodes.Goto(pc, block(opnd));
+			case Bytecode.JUMP_IF_TRUE :
+			case Bytecode.JUMP_IF_FALSE : {
+				Node cond = pop();
+				flush();
+				int next = pc + Bytecode.decodedSize(op);
+				return new Nodes.Branch(pc, op==Bytecode.JUMP_IF_TRUE, block(opnd), block(next),
+										block(code[pc+2]), cond);
+			}
+			case Bytecode.RETURN :
+				return terminator(new Nodes.Return(pc, pop()));
+			case Bytecode.RETURN_SELF :
+				return terminator(new Nodes.Return(pc, new Nodes.Self(pc)));
+			case Bytecode.BLOCK_RETURN :
+				return terminator(new Nodes.BlockReturn(pc, pop()));
+			case Bytecode.BLOCK_RETURN_NIL :
+				return terminator(new Nodes.BlockReturn(pc, new Nodes.Nil(pc)));
+			case Bytecode.SEND :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.TAIL_SEND : // see SendNode.send
+				push(new SendNode(pc, op, opnd, code[pc+2], pop(opnd+1)));
+				break;
+			case Bytecode.SEND_0 :
+			case Bytecode.SEND_1 :
+			case Bytecode.SEND_2 : {
+				int nargs = op - Bytecode.SEND_0;
+				push(new SendNode(pc, op, nargs, opnd, pop(nargs+1)));
+				break;
+			}
+			default :
+				if ( op>=Bytecode.SEND_ADD && op<=Bytecode.SEND_MOD ) {
+					Node arg = pop();
+					Node receiver = pop();
+					push(SpecialSendNode.create(pc, op, code[pc+2], receiver, arg));
+					break;
+				}
+				throw new IllegalArgumentException("invalid opcode "+op+" at "+pc+" of "+blk.qualifiedName);
+		}
+		return null;
+	}
+
+	/** The index of the basic block starting at pc */
+	protected int block(int pc) {
+		if ( pc<code.length ) return blockAt[pc];
+		if ( endBlock<0 ) endBlock = nblocks;
+		return endBlock;
+	}
+
+	protected void push(Node n) { stack.add(n); }
+
+	protected Node pop() { return stack.remove(stack.size()-1); }
+
+	/** The top n nodes, bottom first */
+	protected Node[] pop(int n) {
+		Node[] nodes = new Node[n];
+		for (int i=n-1; i>=0; i--) nodes[i] = pop();
+		return nodes;
+	}
+
+	/** Add a statement, after running what's still waiting on the stack */
+	protected void statement(Node n) {
+		flush();
+		statements.add(n);
+	}
+
+	protected Nodes.Terminator terminator(Nodes.Terminator t) {
+		flush();
+		return t;
+	}
+
+	/** Run the nodes on the simulated stack as statements, leaving their
+	 *  values on the context's stack.
+	 */
+	protected void flush() {
+		for (int i=0; i<stack.size(); i++) {
+			Node n = stack.get(i);
+			if ( n instanceof Nodes.Pushed ) continue;
+			statements.add(n);
+			stack.set(i, new Nodes.Pushed());
+		}
+	}
+
+	/** Find the stack depth at each reachable instruction, as
+	 *  {@link Bytecode#maxStack} does, and number the basic blocks.
+	 */
+	protected void findBlocks() {
+		depth = new int[code.length];
+		blockAt = new int[code.length];
+		boolean[] leader = new boolean[code.length];
+		Arrays.fill(depth, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		flowTo(0, 0, work, leader, true);
+		while ( !work.isEmpty() ) {
+			int pc = work.pop();
+			int d = depth[pc];
+			int op = code[pc];
+			int next = pc + Bytecode.decodedSize(op);
+			int after = d + Bytecode.stackEffect(op, code.length>pc+1 ? code[pc+1] : 0);
+			switch ( op ) {
+				case Bytecode.JUMP :
+					flowTo(code[pc+1], after, work, leader, true);
+					break;
+				case Bytecode.JUMP_IF_TRUE :
+				case Bytecode.JUMP_IF_FALSE :
+					flowTo(code[pc+1], after, work, leader, true);
+					flowTo(code[pc+2], d, work, leader, true);
+					flowTo(next, after, work, leader, true);
+					break;
+				default :
+					if ( Bytecode.isReturn(op) ) break;
+					flowTo(next, after, work, leader, false);
+			}
+		}
+		Arrays.fill(blockAt, -1);
+		for (int pc=0; pc<code.length; pc++) {
+			if ( leader[pc] && depth[pc]>=0 ) blockAt[pc] = nblocks++;
+		}
+	}
+
+	protected void flowTo(int pc, int d, Deque<Integer> work, boolean[] leader, boolean target) {
+		if ( pc>=code.length ) return;
+		if ( target ) leader[pc] = true;
+		if ( depth[pc]<0 ) {
+			depth[pc] = d;
+			work.push(pc);
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package smalltalk.vm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/** Just enough of a JVM class file writer for {@link Translator}: one
+ *  public final class with a constant pool and methods whose code is
+ *  built with {@link Method}. Class names are internal names such as
+ *  smalltalk/vm/VirtualMachine.
+ *
+ *  Version 52 (Java 8) code must carry a StackMapTable. Translator keeps
+ *  the JVM operand stack empty at every branch target and never changes
+ *  the declared type of a local, so each target gets the same full frame:
+ *  {@link Method#frameLocals} and an empty stack.
+ */
+public class ClassFile {
+	public static final int MAGIC = 0xCAFEBABE;
+	public static final int VERSION = 52;
+
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_FINAL  = 0x0010;
+	public static final int ACC_SUPER  = 0x0020;
+
+	// constant pool tags
+	static final int CONSTANT_Utf8 = 1;
+	static final int CONSTANT_Integer = 3;
+	static final int CONSTANT_Float = 4;
+	static final int CONSTANT_Class = 7;
+	static final int CONSTANT_String = 8;
+	static final int CONSTANT_Fieldref = 9;
+	static final int CONSTANT_Methodref = 10;
+	static final int CONSTANT_InterfaceMethodref = 11;
+	static final int CONSTANT_NameAndType = 12;
+	static final int CONSTANT_MethodHandle = 15;
+	static final int CONSTANT_InvokeDynamic = 18;
+
+	static final int REF_invokeStatic = 6;
+
+	// the instructions Translator uses
+	public static final int ACONST_NULL = 0x01;
+	public static final int ICONST_0 = 0x03;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC = 0x12;
+	public static final int LDC_W = 0x13;
+	public static final int ALOAD = 0x19;
+	public static final int ALOAD_0 = 0x2a;
+	public static final int AALOAD = 0x32;
+	public static final int ASTORE = 0x3a;
+	public static final int ASTORE_0 = 0x4b;
+	public static final int AASTORE = 0x53;
+	public static final int POP = 0x57;
+	public static final int DUP = 0x59;
+	public static final int IF_ACMPEQ = 0xa5;
+	public static final int IF_ACMPNE = 0xa6;
+	public static final int GOTO = 0xa7;
+	public static final int ARETURN = 0xb0;
+	public static final int RETURN = 0xb1;
+	public static final int GETFIELD = 0xb4;
+	public static final int PUTFIELD = 0xb5;
+	public static final int INVOKEVIRTUAL = 0xb6;
+	public static final int INVOKESPECIAL = 0xb7;
+	public static final int INVOKESTATIC = 0xb8;
+	public static final int INVOKEINTERFACE = 0xb9;
+	public static final int INVOKEDYNAMIC = 0xba;
+	public static final int NEW = 0xbb;
+	public static final int ANEWARRAY = 0xbd;
+	public static final int WIDE = 0xc4;
+
+	public final String name;
+	public final String superName;
+	public final String[] interfaces;
+
+	protected final List<byte[]> pool = new ArrayList<>();
+	protected final Map<String, Integer> poolIndex = new HashMap<>();
+	protected int poolSize = 1; // entry 0 is unused
+	protected final List<byte[]> methods = new ArrayList<>();
+	protected final List<byte[]> bootstrapMethods = new ArrayList<>();
+	protected final Map<String, Integer> bootstrapIndex = new HashMap<>();
+
+	public ClassFile(String name, String superName, String... interfaces) {
+		this.name = name;
+		this.superName = superName;
+		this.interfaces = interfaces;
+	}
+
+	// C o n s t a n t  p o o l
+
+	public int utf8(String s) {
+		return constant("U"+s, out -> { out.writeByte(CONSTANT_Utf8); out.writeUTF(s); });
+	}
+
+	public int classRef(String internalName) {
+		int n = utf8(internalName);
+		return constant("C"+internalName, out -> { out.writeByte(CONSTANT_Class); out.writeShort(n); });
+	}
+
+	public int string(String s) {
+		int n = utf8(s);
+		return constant("S"+s, out -> { out.writeByte(CONSTANT_String); out.writeShort(n); });
+	}
+
+	public int integer(int v) {
+		return constant("I"+v, out -> { out.writeByte(CONSTANT_Integer); out.writeInt(v); });
+	}
+
+	public int floatConst(float v) {
+		return constant("F"+Float.floatToRawIntBits(v),
+						out -> { out.writeByte(CONSTANT_Float); out.writeFloat(v); });
+	}
+
+	public int nameAndType(String name, String descriptor) {
+		int n = utf8(name);
+		int d = utf8(descriptor);
+		return constant("N"+name+" "+descriptor,
+						out -> { out.writeByte(CONSTANT_NameAndType); out.writeShort(n); out.writeShort(d); });
+	}
+
+	public int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_Fieldref, owner, name, descriptor);
+	}
+
+	public int methodRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+	}
+
+	public int interfaceMethodRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_InterfaceMethodref, owner, name, descriptor);
+	}
+
+	protected int memberRef(int tag, String owner, String name, String descriptor) {
+		int c = classRef(owner);
+		int nt = nameAndType(name, descriptor);
+		return constant(tag+" "+owner+"."+name+descriptor,
+						out -> { out.writeByte(tag); out.writeShort(c); out.writeShort(nt); });
+	}
+
+	/** A handle on a static method, for bootstrap methods */
+	public int staticMethodHandle(String owner, String name, String descriptor) {
+		int m = methodRef(owner, name, descriptor);
+		return constant("H"+owner+"."+name+descriptor,
+						out -> { out.writeByte(CONSTANT_MethodHandle); out.writeByte(REF_invokeStatic); out.writeShort(m); });
+	}
+
+	/** An invokedynamic call site: the bootstrap method, a static method
+	 *  handle, gets the int constants staticArgs after the usual lookup,
+	 *  name and type.
+	 */
+	public int invokeDynamic(String name, String descriptor, int bootstrap, int... staticArgs) {
+		int[] args = new int[staticArgs.length];
+		StringBuilder key = new StringBuilder().append(bootstrap);
+		for (int i=0; i<args.length; i++) {
+			args[i] = integer(staticArgs[i]);
+			key.append(' ').append(args[i]);
+		}
+		Integer b = bootstrapIndex.get(key.toString());
+		if ( b==null ) {
+			b = bootstrapMethods.size();
+			bootstrapIndex.put(key.toString(), b);
+			bootstrapMethods.add(bytes(out -> {
+				out.writeShort(bootstrap);
+				out.writeShort(args.length);
+				for (int a : args) out.writeShort(a);
+			}));
+		}
+		int bsm = b;
+		int nt = nameAndType(name, descriptor);
+		return constant("D"+bsm+" "+name+descriptor,
+						out -> { out.writeByte(CONSTANT_InvokeDynamic); out.writeShort(bsm); out.writeShort(nt); });
+	}
+
+	interface Writer { void write(DataOutputStream out) throws IOException; }
+
+	/** Index of the entry with key, adding it with w if it's new */
+	protected int constant(String key, Writer w) {
+		Integer i = poolIndex.get(key);
+		if ( i!=null ) return i;
+		pool.add(bytes(w));
+		poolIndex.put(key, poolSize);
+		return poolSize++;
+	}
+
+	// M e t h o d s
+
+	/** The code of one method under construction */
+	public class Method {
+		public final int access;
+		public final String name;
+		public final String descriptor;
+		public int maxStack;
+		public int maxLocals;
+
+		/** Declared types of the locals in every StackMapTable frame */
+		public String[] frameLocals = new String[0];
+
+		protected final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		protected final TreeSet<Integer> frames = new TreeSet<>();
+
+		public Method(int access, String name, String descriptor) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+		}
+
+		public int pc() { return code.size(); }
+
+		public Method op(int opcode) { code.write(opcode); return this; }
+
+		public Method u1(int v) { code.write(v); return this; }
+
+		public Method u2(int v) { code.write(v>>8); code.write(v); return this; }
+
+		public Method aload(int local) { return local(ALOAD, ALOAD_0, local); }
+
+		public Method astore(int local) { return local(ASTORE, ASTORE_0, local); }
+
+		protected Method local(int opcode, int shortForm, int local) {
+			if ( local<=3 ) return op(shortForm + local);
+			if ( local<256 ) return op(opcode).u1(local);
+			return op(WIDE).op(opcode).u2(local);
+		}
+
+		public Method iconst(int v) {
+			if ( v>=-1 && v<=5 ) return op(ICONST_0 + v);
+			if ( v>=Byte.MIN_VALUE && v<=Byte.MAX_VALUE ) return op(BIPUSH).u1(v);
+			if ( v>=Short.MIN_VALUE && v<=Short.MAX_VALUE ) return op(SIPUSH).u2(v);
+			return ldc(integer(v));
+		}
+
+		public Method ldc(int index) {
+			return index<256 ? op(LDC).u1(index) : op(LDC_W).u2(index);
+		}
+
+		public Method field(int opcode, String owner, String name, String descriptor) {
+			return op(opcode).u2(fieldRef(owner, name, descriptor));
+		}
+
+		public Method invoke(int opcode, String owner, String name, String descriptor) {
+			if ( opcode==INVOKEINTERFACE ) {
+				return op(opcode).u2(interfaceMethodRef(owner, name, descriptor)).u1(argSlots(descriptor)+1).u1(0);
+			}
+			return op(opcode).u2(methodRef(owner, name, descriptor));
+		}
+
+		public Method invokeDynamic(int index) {
+			return op(INVOKEDYNAMIC).u2(index).u2(0);
+		}
+
+		public Method type(int opcode, String internalName) {
+			return op(opcode).u2(classRef(internalName));
+		}
+
+		/** Emit a branch to pc target, which gets a frame. Targets must
+		 *  be known, so forward branches go through {@link Label}s.
+		 */
+		public Method branch(int opcode, Label target) {
+			target.uses.add(pc());
+			return op(opcode).u2(0);
+		}
+
+		/** Give the next instruction a frame, as every branch target and
+		 *  every instruction after a goto or return needs one.
+		 */
+		public Method frame() {
+			frames.add(pc());
+			return this;
+		}
+
+		public Method mark(Label l) {
+			l.pc = pc();
+			return frame();
+		}
+
+		/** The method_info structure, resolving labels first. Return null
+		 *  if a branch is too far for a 16-bit offset.
+		 */
+		byte[] toByteArray(List<Label> labels) {
+			byte[] bytes = code.toByteArray();
+			for (Label l : labels) {
+				for (int use : l.uses) {
+					int offset = l.pc - use;
+					if ( offset<Short.MIN_VALUE || offset>Short.MAX_VALUE ) return null;
+					bytes[use+1] = (byte)(offset>>8);
+					bytes[use+2] = (byte)offset;
+				}
+			}
+			int codeAttr = utf8("Code");
+			int stackMapAttr = utf8("StackMapTable");
+			int[] localTypes = new int[frameLocals.length];
+			for (int i=0; i<localTypes.length; i++) localTypes[i] = classRef(frameLocals[i]);
+			byte[] stackMap = bytes(out -> {
+				out.writeShort(frames.size());
+				int last = -1;
+				for (int pc : frames) {
+					out.writeByte(255); // full_frame
+					out.writeShort(pc - last - 1);
+					out.writeShort(localTypes.length);
+					for (int t : localTypes) {
+						out.writeByte(7); // Object_variable_info
+						out.writeShort(t);
+					}
+					out.writeShort(0); // empty stack
+					last = pc;
+				}
+			});
+			int access = this.access;
+			int n = utf8(name);
+			int d = utf8(descriptor);
+			return bytes(out -> {
+				out.writeShort(access);
+				out.writeShort(n);
+				out.writeShort(d);
+				out.writeShort(1); // attributes
+				out.writeShort(codeAttr);
+				int attrs = frames.isEmpty() ? 0 : 1;
+				out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2 + (attrs>0 ? 6 + stackMap.length : 0));
+				out.writeShort(maxStack);
+				out.writeShort(maxLocals);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				out.writeShort(0); // exception table
+				out.writeShort(attrs);
+				if ( attrs>0 ) {
+					out.writeShort(stackMapAttr);
+					out.writeInt(stackMap.length);
+					out.write(stackMap);
+				}
+			});
+		}
+	}
+
+	/** A position in a method's code that branches can refer to before it's known */
+	public static class Label {
+		int pc = -1;
+		final List<Integer> uses = new ArrayList<>();
+	}
+
+	/** Add m to the class, resolving labels. Return false if it can't be encoded. */
+	public boolean add(Method m, List<Label> labels) {
+		byte[] info = m.toByteArray(labels);
+		if ( info==null ) return false;
+		methods.add(info);
+		return true;
+	}
+
+	/** Number of argument slots in a method descriptor; no long or double args */
+	static int argSlots(String descriptor) {
+		int n = 0;
+		int i = 1;
+		while ( descriptor.charAt(i)!=')' ) {
+			char c = descriptor.charAt(i);
+			while ( c=='[' ) c = descriptor.charAt(++i);
+			if ( c=='L' ) i = descriptor.indexOf(';', i);
+			i++;
+			n++;
+		}
+		return n;
+	}
+
+	public byte[] toByteArray() {
+		int thisClass = classRef(name);
+		int superClass = classRef(superName);
+		int[] ifaces = new int[interfaces.length];
+		for (int i=0; i<ifaces.length; i++) ifaces[i] = classRef(interfaces[i]);
+		int bootstrapAttr = bootstrapMethods.isEmpty() ? 0 : utf8("BootstrapMethods");
+		return bytes(out -> {
+			out.writeInt(MAGIC);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolSize);
+			for (byte[] entry : pool) out.write(entry);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(ifaces.length);
+			for (int i : ifaces) out.writeShort(i);
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] m : methods) out.write(m);
+			if ( bootstrapMethods.isEmpty() ) {
+				out.writeShort(0); // attributes
+				return;
+			}
+			out.writeShort(1);
+			out.writeShort(bootstrapAttr);
+			int length = 2;
+			for (byte[] b : bootstrapMethods) length += b.length;
+			out.writeInt(length);
+			out.writeShort(bootstrapMethods.size());
+			for (byte[] b : bootstrapMethods) out.write(b);
+		});
+	}
+
+	static byte[] bytes(Writer w) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			w.write(new DataOutputStream(buf));
+		}
+		catch (IOException ioe) {
+			throw new IllegalStateException(ioe); // can't happen writing to memory
+		}
+		return buf.toByteArray();
+	}
+}
@@ -0,0 +1,47 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STObject;
+
+import java.lang.invoke.MethodHandle;
+
+/** A method compiled by {@link HandleCompiler}: one method handle of type
+ *  (VirtualMachine, BlockContext) STObject per basic block, the first
+ *  being the entry. A block's handle returns the method's result, or a
+ *  {@link HandleCompiler.Jump} back to a loop head.
+ *
+ *  The handles are invoked from a field rather than a constant, which
+ *  the JDK compensates for by customizing their lambda forms once they
+ *  have been invoked often enough, so HotSpot sees the trees' bound
+ *  values as constants after all.
+ *
+ *  A tree's sends nest on the Java stack through several lambda form
+ *  frames each, more than a class's; they are bounded the same way, by
+ *  {@link VirtualMachine#MAX_NESTING} in callCompiled and sendFromCompiled.
+ */
+public class HandleCode implements JitCode {
+	protected final MethodHandle entry;
+	protected final MethodHandle[] blocks;
+
+	public HandleCode(MethodHandle[] blocks) {
+		this.entry = blocks[0];
+		this.blocks = blocks;
+	}
+
+	public STObject invoke(VirtualMachine vm, BlockContext ctx) {
+		try {
+			STObject result = (STObject)entry.invokeExact(vm, ctx);
+			while ( result instanceof HandleCompiler.Jump ) {
+				result = (STObject)blocks[((HandleCompiler.Jump)result).block].invokeExact(vm, ctx);
+			}
+			return result;
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable t) { // nothing in the trees throws checked exceptions
+			throw new IllegalStateException(t);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STArray;
+import smalltalk.vm.primitive.STBoolean;
+import smalltalk.vm.primitive.STCharacter;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STFloat;
+import smalltalk.vm.primitive.STInteger;
+import smalltalk.vm.primitive.STNil;
+import smalltalk.vm.primitive.STObject;
+import smalltalk.vm.primitive.STString;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/** Compile the pre-decoded code of one method into a tree of composed
+ *  method handles rather than a class; see {@link HandleCode}. Field and
+ *  local reads are getters on the receiver and context, literals are
+ *  bound constants, and sends are the dynamic invokers of
+ *  {@link SendSite}s, so they link just as in code from {@link Translator}.
+ *  No class file is generated, so nothing is loaded per method.
+ *
+ *  Each expression is a handle of type (VirtualMachine, BlockContext)
+ *  STObject whose argument handles run first, in the order the code has
+ *  them. Statements, like those of an AST, first push whatever values
+ *  are still waiting below the ones they consume onto the context's
+ *  stack, and later consumers read those values back from their slots.
+ *  So values only pass through the context's stack where the code has
+ *  them on the stack at a statement or a jump.
+ *
+ *  Each basic block is a handle returning the method's result. Control
+ *  falling or jumping forward into another block continues into that
+ *  block's handle, and a conditional jump is a guardWithTest, so a method
+ *  without loops is one tree. A backward jump returns a {@link Jump} to
+ *  the loop head instead, and {@link HandleCode} invokes that block's
+ *  handle next. That needs no loop combinator, which Java 8 lacks.
+ *
+ *  The same methods as {@link Translator} are compiled.
+ */
+public class HandleCompiler {
+	static final MethodType EXPR = methodType(STObject.class, VirtualMachine.class, BlockContext.class);
+	static final MethodType STMT = methodType(void.class, VirtualMachine.class, BlockContext.class);
+
+	static final MethodHandle NIL, SELF, TRUE, FALSE, NEW_CHAR, NEW_INTEGER, NEW_FLOAT, NEW_STRING;
+	static final MethodHandle LOCALS, FIELDS, ELEMENT, GLOBAL, NEW_ARRAY, SLOT, STORE_FIELD, STORE_LOCAL;
+	static final MethodHandle PUSH, BEFORE_SEND, SPECIAL_SEND, DBG, IS_TRUE, IS_FALSE, RESULT;
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		Class<?> vm = VirtualMachine.class, ctx = BlockContext.class, obj = STObject.class;
+		try {
+			MethodHandle receiver = MethodHandles.dropArguments(lookup.findGetter(ctx, "receiver", obj), 0, vm);
+			SELF = receiver;
+			NIL = fromVM(lookup.findVirtual(vm, "nil", methodType(STNil.class)));
+			TRUE = fromVM(lookup.findGetter(vm, "trueObject", STBoolean.class));
+			FALSE = fromVM(lookup.findGetter(vm, "falseObject", STBoolean.class));
+			NEW_CHAR = lookup.findVirtual(vm, "newChar", methodType(STCharacter.class, int.class));
+			NEW_INTEGER = lookup.findVirtual(vm, "newInteger", methodType(STInteger.class, int.class));
+			NEW_FLOAT = lookup.findVirtual(vm, "newFloat", methodType(STFloat.class, float.class));
+			NEW_STRING = lookup.findVirtual(vm, "newString", methodType(STString.class, String.class));
+			LOCALS = MethodHandles.dropArguments(lookup.findGetter(ctx, "locals", STObject[].class), 0, vm);
+			FIELDS = MethodHandles.filterReturnValue(receiver, lookup.findGetter(obj, "fields", STObject[].class));
+			ELEMENT = MethodHandles.arrayElementGetter(STObject[].class);
+			MethodType helper = methodType(obj, int.class, vm, ctx);
+			GLOBAL = lookup.findStatic(HandleCompiler.class, "global", helper);
+			SLOT = lookup.findStatic(HandleCompiler.class, "slot", helper);
+			NEW_ARRAY = lookup.findStatic(HandleCompiler.class, "newArray", methodType(obj, vm, ctx, STObject[].class));
+			STORE_FIELD = lookup.findStatic(HandleCompiler.class, "storeField", helper.appendParameterTypes(obj));
+			STORE_LOCAL = lookup.findStatic(HandleCompiler.class, "storeLocal", helper.appendParameterTypes(obj));
+			PUSH = lookup.findStatic(HandleCompiler.class, "push", methodType(void.class, vm, ctx, obj));
+			BEFORE_SEND = lookup.findStatic(HandleCompiler.class, "beforeSend", methodType(void.class, int.class, int.class, vm, ctx));
+			SPECIAL_SEND = lookup.findVirtual(vm, "specialSendFromCompiled",
+											  methodType(obj, ctx, obj, obj, int.class, int.class, int.class));
+			DBG = lookup.findStatic(HandleCompiler.class, "dbg",
+									methodType(void.class, String.class, int.class, int.class, vm, ctx));
+			IS_TRUE = lookup.findStatic(HandleCompiler.class, "isTrue", methodType(boolean.class, vm, ctx, obj));
+			IS_FALSE = lookup.findStatic(HandleCompiler.class, "isFalse", methodType(boolean.class, vm, ctx, obj));
+			RESULT = MethodHandles.dropArguments(MethodHandles.identity(obj), 0, vm, ctx);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** Returned by a basic block's handle to go to the block at a loop head */
+	public static final class Jump extends STObject {
+		public final int block;
+		Jump(int block) { super(null); this.block = block; }
+	}
+
+	/** What the simulated stack holds: a handle yet to run, or a value
+	 *  already in slot {@link #slot} of the context's stack.
+	 */
+	static class Value {
+		final MethodHandle expr;
+		final int slot;
+		Value(MethodHandle expr) { this.expr = expr; this.slot = -1; }
+		Value(int slot) { this.expr = null; this.slot = slot; }
+		boolean pushed() { return expr==null; }
+	}
+
+	protected final STCompiledBlock method;
+	protected final int[] code;
+
+	/** Operand stack depth before each instruction; -1 if unreachable */
+	protected int[] depth;
+	/** Index of the basic block starting at each instruction; -1 if none */
+	protected int[] blockAt;
+	protected int[] blockStart;
+	protected MethodHandle[] blocks;
+	protected Jump[] jumps;
+	/** Set if control can run off the end of the code */
+	protected boolean failed;
+
+	protected final List<Value> stack = new ArrayList<>();
+	protected final List<MethodHandle> statements = new ArrayList<>();
+
+	public HandleCompiler(STCompiledBlock method) {
+		this.method = method;
+		this.code = method.code;
+	}
+
+	/** The method's code, or null if it can't be compiled */
+	public HandleCode compile() {
+		if ( method.isPrimitive() || method.method!=method || code==null || !findBlocks() ) return null;
+		blocks = new MethodHandle[blockStart.length];
+		jumps = new Jump[blockStart.length];
+		for (int b=blocks.length-1; b>=0; b--) { // forward targets first
+			blocks[b] = block(b);
+			if ( failed ) return null;
+		}
+		return new HandleCode(blocks);
+	}
+
+	protected MethodHandle block(int b) {
+		stack.clear();
+		statements.clear();
+		int start = blockStart[b];
+		for (int i=0; i<depth[start]; i++) stack.add(new Value(i));
+		MethodHandle end = null;
+		int pc = start;
+		while ( end==null ) {
+			if ( pc>=code.length ) { // runs off the end
+				failed = true;
+				return null;
+			}
+			if ( pc>start && blockAt[pc]>=0 ) { // fall into the next block
+				flush();
+				end = jump(b, pc);
+				break;
+			}
+			end = instruction(b, pc);
+			if ( failed ) return null;
+			pc += Bytecode.decodedSize(code[pc]);
+		}
+		for (int i=statements.size()-1; i>=0; i--) {
+			end = MethodHandles.foldArguments(end, statements.get(i));
+		}
+		return end;
+	}
+
+	/** Add the instruction at pc in block b, returning the rest of the
+	 *  block's handle if it ends the block.
+	 */
+	protected MethodHandle instruction(int b, int pc) {
+		int op = code[pc];
+		int opnd = code.length>pc+1 ? code[pc+1] : 0;
+		switch ( op ) {
+			case Bytecode.NIL :			push(NIL); break;
+			case Bytecode.SELF :		push(SELF); break;
+			case Bytecode.TRUE :		push(TRUE); break;
+			case Bytecode.FALSE :		push(FALSE); break;
+			case Bytecode.PUSH_CHAR :	push(fromVM(MethodHandles.insertArguments(NEW_CHAR, 1, opnd))); break;
+			case Bytecode.PUSH_INT :	push(fromVM(MethodHandles.insertArguments(NEW_INTEGER, 1, opnd))); break;
+			case Bytecode.PUSH_FLOAT :
+				push(fromVM(MethodHandles.insertArguments(NEW_FLOAT, 1, Float.intBitsToFloat(opnd))));
+				break;
+			case Bytecode.PUSH_LITERAL :
+				push(fromVM(MethodHandles.insertArguments(NEW_STRING, 1, method.literals[opnd])));
+				break;
+			case Bytecode.PUSH_GLOBAL :	push(MethodHandles.insertArguments(GLOBAL, 0, opnd)); break;
+			case Bytecode.PUSH_FIELD :	push(element(FIELDS, opnd)); break;
+			case Bytecode.PUSH_LOCAL :	push(element(LOCALS, code[pc+2])); break;
+			case Bytecode.PUSH_ARRAY :
+				push(apply(NEW_ARRAY.asCollector(STObject[].class, opnd), null, pop(opnd)));
+				break;
+			case Bytecode.STORE_FIELD :
+				push(apply(MethodHandles.insertArguments(STORE_FIELD, 0, opnd), null, pop(1)));
+				break;
+			case Bytecode.STORE_LOCAL :
+				push(apply(MethodHandles.insertArguments(STORE_LOCAL, 0, code[pc+2]), null, pop(1)));
+				break;
+			case Bytecode.STORE_LOCAL_POP : {
+				MethodHandle store = MethodHandles.insertArguments(STORE_LOCAL, 0, code[pc+2]);
+				statement(apply(store, null, pop(1)).asType(STMT));
+				break;
+			}
+			case Bytecode.POP :
+				statement(apply(RESULT, null, pop(1)).asType(STMT));
+				break;
+			case Bytecode.DBG :
+				statement(MethodHandles.insertArguments(DBG, 0, method.literals[opnd],
+														Bytecode.lineFromCombined(code[pc+2]),
+														Bytecode.charPosFromCombined(code[pc+2])));
+				break;
+			case Bytecode.JUMP :
+				flush();
+				return jump(b, opnd);
+			case Bytecode.JUMP_IF_TRUE :
+			case Bytecode.JUMP_IF_FALSE : {
+				Value[] cond = pop(1);
+				flush();
+				MethodHandle taken = jump(b, opnd);
+				MethodHandle next = jump(b, pc + Bytecode.decodedSize(op));
+				MethodHandle fallback = jump(b, code[pc+2]);
+				if ( failed ) return null;
+				MethodHandle onTrue = op==Bytecode.JUMP_IF_TRUE ? taken : next;
+				MethodHandle onFalse = op==Bytecode.JUMP_IF_TRUE ? next : taken;
+				// not a Boolean: back on the stack for the fallback's mustBeBoolean send
+				MethodHandle other = MethodHandles.foldArguments(withValue(fallback), PUSH);
+				MethodHandle select =
+					MethodHandles.guardWithTest(IS_TRUE, withValue(onTrue),
+						MethodHandles.guardWithTest(IS_FALSE, withValue(onFalse), other));
+				return apply(select, null, cond);
+			}
+			case Bytecode.RETURN :
+				return terminator(apply(RESULT, null, pop(1)));
+			case Bytecode.RETURN_SELF :
+				return terminator(SELF);
+			case Bytecode.SEND :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.SEND_0 :
+			case Bytecode.SEND_1 :
+			case Bytecode.SEND_2 : {
+				int nargs = op>=Bytecode.SEND_0 ? op - Bytecode.SEND_0 : opnd;
+				int selector = op>=Bytecode.SEND_0 ? opnd : code[pc+2];
+				MethodType type = EXPR.appendParameterTypes(Collections.nCopies(nargs+1, STObject.class));
+				SendSite site = new SendSite(type, op, selector, pc);
+				push(apply(site.dynamicInvoker(), pc, pop(nargs+1)));
+				break;
+			}
+			default :
+				if ( op>=Bytecode.SEND_ADD && op<=Bytecode.SEND_MOD ) {
+					MethodHandle send = MethodHandles.insertArguments(SPECIAL_SEND, 4, op, code[pc+2], pc);
+					push(apply(send, pc, pop(2)));
+					break;
+				}
+				failed = true; // not in Translator.supported
+				return null;
+		}
+		return null;
+	}
+
+	/** The handle that continues at the block starting at pc from block b */
+	protected MethodHandle jump(int b, int pc) {
+		if ( pc>=code.length ) {
+			failed = true;
+			return null;
+		}
+		int target = blockAt[pc];
+		if ( target>b ) return blocks[target]; // built already
+		if ( jumps[target]==null ) jumps[target] = new Jump(target);
+		return MethodHandles.dropArguments(MethodHandles.constant(STObject.class, jumps[target]),
+										   0, VirtualMachine.class, BlockContext.class);
+	}
+
+	protected MethodHandle terminator(MethodHandle h) {
+		flush();
+		return h;
+	}
+
+	protected void push(MethodHandle expr) { stack.add(new Value(expr.asType(EXPR))); }
+
+	/** The top n values, bottom first */
+	protected Value[] pop(int n) {
+		Value[] values = new Value[n];
+		for (int i=n-1; i>=0; i--) values[i] = stack.remove(stack.size()-1);
+		return values;
+	}
+
+	protected void statement(MethodHandle h) {
+		flush();
+		statements.add(h);
+	}
+
+	/** Push the values still waiting on the simulated stack */
+	protected void flush() {
+		for (int i=0; i<stack.size(); i++) {
+			Value v = stack.get(i);
+			if ( v.pushed() ) continue;
+			statements.add(apply(PUSH, null, new Value[] {v}));
+			stack.set(i, new Value(i));
+		}
+	}
+
+	/** h, of type (VirtualMachine, BlockContext, STObject...), applied to
+	 *  args: each argument runs in order, then the values they read from
+	 *  the context's stack are popped, then the send at pc, if any, is
+	 *  noted as the context's current instruction, and then h runs.
+	 */
+	protected MethodHandle apply(MethodHandle h, Integer pc, Value[] args) {
+		int n = args.length;
+		Class<?>[] reversed = new Class<?>[n+2];
+		int[] reorder = new int[n+2];
+		for (int i=0; i<n; i++) {
+			reversed[i] = STObject.class;
+			reorder[2+i] = n-1-i;
+		}
+		reversed[n] = VirtualMachine.class;
+		reversed[n+1] = BlockContext.class;
+		reorder[0] = n;
+		reorder[1] = n+1;
+		h = h.asType(h.type().changeReturnType(h.type().returnType()==void.class ? void.class : STObject.class));
+		MethodHandle t = MethodHandles.permuteArguments(h, methodType(h.type().returnType(), reversed), reorder);
+		int firstSlot = -1;
+		for (Value v : args) {
+			if ( v.pushed() ) { firstSlot = v.slot; break; }
+		}
+		if ( firstSlot>=0 || pc!=null ) {
+			MethodHandle before = MethodHandles.insertArguments(BEFORE_SEND, 0, firstSlot, pc!=null ? pc : -1);
+			t = MethodHandles.foldArguments(t, MethodHandles.dropArguments(before, 0, Arrays.copyOf(reversed, n)));
+		}
+		for (int k=n-1; k>=0; k--) {
+			MethodHandle arg = args[k].pushed() ? MethodHandles.insertArguments(SLOT, 0, args[k].slot) : args[k].expr;
+			t = MethodHandles.foldArguments(t, MethodHandles.dropArguments(arg, 0, Arrays.copyOf(reversed, k)));
+		}
+		return t;
+	}
+
+	/** Block handle h, ignoring a value appended to its arguments */
+	static MethodHandle withValue(MethodHandle h) {
+		return MethodHandles.dropArguments(h, 2, STObject.class);
+	}
+
+	static MethodHandle element(MethodHandle array, int i) {
+		return MethodHandles.filterReturnValue(array, MethodHandles.insertArguments(ELEMENT, 1, i));
+	}
+
+	/** h taking just the VM, as an expression */
+	static MethodHandle fromVM(MethodHandle h) {
+		return MethodHandles.dropArguments(h, 1, BlockContext.class).asType(EXPR);
+	}
+
+	/** Find the stack depth at each reachable instruction and number the
+	 *  basic blocks in code order. Return false if an instruction isn't
+	 *  one {@link Translator} supports.
+	 */
+	protected boolean findBlocks() {
+		depth = new int[code.length];
+		blockAt = new int[code.length];
+		boolean[] leader = new boolean[code.length];
+		Arrays.fill(depth, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		flowTo(0, 0, work, leader, true);
+		while ( !work.isEmpty() ) {
+			int pc = work.pop();
+			int d = depth[pc];
+			int op = code[pc];
+			if ( op<0 || op>=Translator.supported.length || !Translator.supported[op] ) return false;
+			if ( (op==Bytecode.PUSH_LOCAL || op==Bytecode.STORE_LOCAL || op==Bytecode.STORE_LOCAL_POP) && code[pc+1]!=0 ) {
+				return false;
+			}
+			int next = pc + Bytecode.decodedSize(op);
+			int after = d + Bytecode.stackEffect(op, code.length>pc+1 ? code[pc+1] : 0);
+			switch ( op ) {
+				case Bytecode.JUMP :
+					flowTo(code[pc+1], after, work, leader, true);
+					break;
+				case Bytecode.JUMP_IF_TRUE :
+				case Bytecode.JUMP_IF_FALSE :
+					flowTo(code[pc+1], after, work, leader, true);
+					flowTo(code[pc+2], d, work, leader, true);
+					flowTo(next, after, work, leader, true);
+					break;
+				case Bytecode.RETURN :
+				case Bytecode.RETURN_SELF :
+					break;
+				default :
+					flowTo(next, after, work, leader, false);
+			}
+		}
+		Arrays.fill(blockAt, -1);
+		List<Integer> starts = new ArrayList<>();
+		for (int pc=0; pc<code.length; pc++) {
+			if ( leader[pc] && depth[pc]>=0 ) {
+				blockAt[pc] = starts.size();
+				starts.add(pc);
+			}
+		}
+		blockStart = new int[starts.size()];
+		for (int i=0; i<blockStart.length; i++) blockStart[i] = starts.get(i);
+		return true;
+	}
+
+	protected void flowTo(int pc, int d, Deque<Integer> work, boolean[] leader, boolean target) {
+		if ( pc>=code.length ) return;
+		if ( target ) leader[pc] = true;
+		if ( depth[pc]<0 ) {
+			depth[pc] = d;
+			work.push(pc);
+		}
+	}
+
+	// H e l p e r s  called from the handles
+
+	static STObject global(int symbol, VirtualMachine vm, BlockContext ctx) {
+		return vm.systemDict.lookup(symbol);
+	}
+
+	/** The value in slot i of the context's stack */
+	static STObject slot(int i, VirtualMachine vm, BlockContext ctx) {
+		return ctx.stack[ctx.stackBase + i];
+	}
+
+	static STObject newArray(VirtualMachine vm, BlockContext ctx, STObject[] elements) {
+		return new STArray(vm, elements);
+	}
+
+	static STObject storeField(int i, VirtualMachine vm, BlockContext ctx, STObject value) {
+		ctx.receiver.fields[i] = value;
+		return value;
+	}
+
+	static STObject storeLocal(int i, VirtualMachine vm, BlockContext ctx, STObject value) {
+		ctx.locals[i] = value;
+		return value;
+	}
+
+	static void push(VirtualMachine vm, BlockContext ctx, STObject value) {
+		ctx.push(value);
+	}
+
+	/** Pop the values read from slot firstSlot up, if any, and note pc as
+	 *  the current instruction for stack dumps, if it's a send.
+	 */
+	static void beforeSend(int firstSlot, int pc, VirtualMachine vm, BlockContext ctx) {
+		if ( firstSlot>=0 ) ctx.sp = ctx.stackBase + firstSlot - 1;
+		if ( pc>=0 ) ctx.prev_ip = pc;
+	}
+
+	static void dbg(String file, int line, int charPos, VirtualMachine vm, BlockContext ctx) {
+		ctx.currentFile = file;
+		ctx.currentLine = line;
+		ctx.currentCharPos = charPos;
+	}
+
+	static boolean isTrue(VirtualMachine vm, BlockContext ctx, STObject cond) { return cond==vm.trueObject; }
+
+	static boolean isFalse(VirtualMachine vm, BlockContext ctx, STObject cond) { return cond==vm.falseObject; }
+}
@@ -0,0 +1,100 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+/** The second execution tier: compiles hot methods to JVM classes with
+ *  {@link Translator}, or with {@link #methodHandles} on, to method handle
+ *  trees with {@link HandleCompiler}. A method is hot once the interpreter has invoked
+ *  it and jumped backwards within it {@link #threshold} times in total.
+ *  There is no on-stack replacement; a method compiled while it runs
+ *  keeps being interpreted until it is next invoked.
+ *
+ *  Only methods Translator accepts are compiled; the rest, and all
+ *  blocks, stay interpreted. Compiled and interpreted code call each
+ *  other through {@link VirtualMachine#sendFromCompiled} and the SEND
+ *  instruction; sends between compiled methods go through invokedynamic
+ *  {@link SendSite}s unless {@link #invokeDynamic} is off.
+ */
+public class Jit {
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	public final VirtualMachine vm;
+
+	public int threshold = DEFAULT_THRESHOLD;
+
+	/** Compile sends as invokedynamic; see {@link Translator#invokeDynamic} */
+	public boolean invokeDynamic = true;
+
+	/** Compile to method handle trees instead of classes, which keeps
+	 *  metaspace small when many scripts are loaded.
+	 */
+	public boolean methodHandles = false;
+
+	/** How many methods were compiled, and how many Translator refused */
+	public int compiled;
+	public int failed;
+
+	protected final Loader loader = new Loader(Jit.class.getClassLoader());
+
+	public Jit(VirtualMachine vm) {
+		this.vm = vm;
+	}
+
+	/** Count an invocation of method and return its compiled code,
+	 *  compiling it first if it just became hot; null if it has none.
+	 */
+	public JitCode compiled(STCompiledBlock method) {
+		if ( method.jitCode==null && !method.jitFailed &&
+			 ++method.invocations + method.backEdges >= threshold )
+		{
+			compile(method);
+		}
+		return method.jitCode;
+	}
+
+	/** Compile method now, setting {@link STCompiledBlock#jitCode} or
+	 *  {@link STCompiledBlock#jitFailed}. Return whether it worked.
+	 */
+	public boolean compile(STCompiledBlock method) {
+		if ( method.code==null ) method.predecode(vm.symbols);
+		if ( methodHandles ) {
+			method.jitCode = new HandleCompiler(method).compile();
+			return count(method.jitCode!=null, method);
+		}
+		String className = "smalltalk/vm/jit/Compiled"+(compiled+failed);
+		Translator translator = new Translator(method, className);
+		translator.invokeDynamic = invokeDynamic;
+		byte[] classFile = translator.translate();
+		if ( classFile!=null ) {
+			try {
+				Class<?> c = loader.define(className.replace('/', '.'), classFile);
+				method.jitCode = (JitCode)c.getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				throw new IllegalStateException("bad code for "+method.qualifiedName, e);
+			}
+		}
+		return count(classFile!=null, method);
+	}
+
+	protected boolean count(boolean ok, STCompiledBlock method) {
+		if ( ok ) {
+			compiled++;
+		}
+		else {
+			method.jitFailed = true;
+			failed++;
+		}
+		return ok;
+	}
+
+	/** Defines the classes of one Jit's compiled methods */
+	static class Loader extends ClassLoader {
+		Loader(ClassLoader parent) { super(parent); }
+
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package smalltalk.vm.jit;
+
+/** Thrown out of compiled code when a ^ return from a block unwinds past
+ *  its context. The JVM frames in between are abandoned and the
+ *  interpreter carries on in the context the ^ returned to; see
+ *  {@link smalltalk.vm.VirtualMachine#invokeCompiled}.
+ */
+public class JitBailout extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public static final JitBailout INSTANCE = new JitBailout();
+
+	private JitBailout() {
+		super(null, null, false, false); // no stack trace; it's control flow
+	}
+}
@@ -0,0 +1,15 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STObject;
+
+/** A method compiled to JVM code by {@link Jit}. Each compiled method is
+ *  one generated class implementing this interface, or a {@link HandleCode}.
+ */
+public interface JitCode {
+	/** Run the method in ctx, a context for it whose locals hold the
+	 *  arguments, and return its result. vm.ctx is ctx.
+	 */
+	STObject invoke(VirtualMachine vm, BlockContext ctx);
+}
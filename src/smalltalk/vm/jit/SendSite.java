@@ -0,0 +1,215 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/** The invokedynamic call site of one send in code compiled by
+ *  {@link Translator}. Its target has type (VirtualMachine, BlockContext
+ *  caller, receiver, arg1, ..., argn) STObject.
+ *
+ *  Like {@link smalltalk.vm.InlineCache}, the site starts empty and adds
+ *  a receiver class and the method found for it on each miss, up to
+ *  {@link #MAX_ENTRIES}; after that it goes megamorphic and every send
+ *  goes through {@link VirtualMachine#sendFromCompiled}. The target tests
+ *  the receiver class against each entry in turn and calls straight into
+ *  a compiled method or runs a trivial one in place, which HotSpot can
+ *  inline like a Java virtual call. Other methods are sent as usual. The
+ *  whole chain is guarded by the VM's {@link VirtualMachine#methodsChanged}
+ *  SwitchPoint, so redefining a class or method empties every site.
+ */
+public class SendSite extends MutableCallSite {
+	public static final int MAX_ENTRIES = 4;
+
+	public static final MethodType BOOTSTRAP_TYPE =
+		MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class,
+							  int.class, int.class, int.class);
+
+	static final MethodHandle MISS, SEND, SEND_THEN_CHECK, CALL_COMPILED, RUN_TRIVIAL, HAS_CLASS;
+
+	/** callCompiled for 0, 1 and 2 arguments, which needn't collect them into an array */
+	static final MethodHandle[] CALL_COMPILED_N = new MethodHandle[3];
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodType send = MethodType.methodType(STObject.class, VirtualMachine.class, BlockContext.class, STObject[].class);
+		try {
+			MISS = lookup.findVirtual(SendSite.class, "miss", send);
+			SEND = lookup.findVirtual(SendSite.class, "send", send);
+			SEND_THEN_CHECK = lookup.findVirtual(SendSite.class, "sendThenCheck",
+												 send.insertParameterTypes(0, STCompiledBlock.class));
+			CALL_COMPILED = lookup.findStatic(SendSite.class, "callCompiled",
+											  send.insertParameterTypes(0, STCompiledBlock.class));
+			RUN_TRIVIAL = lookup.findStatic(SendSite.class, "runTrivial",
+											send.insertParameterTypes(0, STCompiledBlock.class));
+			MethodType call = MethodType.methodType(STObject.class, STCompiledBlock.class, VirtualMachine.class,
+													BlockContext.class, STObject.class);
+			for (int n=0; n<CALL_COMPILED_N.length; n++) {
+				CALL_COMPILED_N[n] = lookup.findStatic(SendSite.class, "callCompiled", call);
+				call = call.appendParameterTypes(STObject.class);
+			}
+			HAS_CLASS = lookup.findStatic(SendSite.class, "hasClass",
+										  MethodType.methodType(boolean.class, STMetaClassObject.class,
+																boolean.class, STObject.class));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The send instruction, selector symbol id and pc in the method's
+	 *  pre-decoded code; see {@link VirtualMachine#sendFromCompiled}.
+	 */
+	public final int op;
+	public final int selector;
+	public final int pc;
+	public final int nargs;
+
+	/** The VM whose classes are in the entries. Compiled methods are shared
+	 *  by every VM made from the same symbol table, so a send from another
+	 *  VM starts the site over.
+	 */
+	protected VirtualMachine vm;
+	protected SwitchPoint validity;
+	protected final STMetaClassObject[] receiverClasses = new STMetaClassObject[MAX_ENTRIES];
+	protected final boolean[] classSides = new boolean[MAX_ENTRIES];
+	protected final STCompiledBlock[] methods = new STCompiledBlock[MAX_ENTRIES];
+	protected int size;
+	protected boolean megamorphic;
+
+	public int misses;
+
+	public SendSite(MethodType type, int op, int selector, int pc) {
+		super(type);
+		this.op = op;
+		this.selector = selector;
+		this.pc = pc;
+		this.nargs = type.parameterCount() - 3;
+		setTarget(spread(MISS.bindTo(this)));
+	}
+
+	/** The bootstrap method of every send in compiled code */
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type,
+									 int op, int selector, int pc)
+	{
+		return new SendSite(type, op, selector, pc);
+	}
+
+	/** Send without linking, then link the receiver class to the method found */
+	protected STObject miss(VirtualMachine vm, BlockContext caller, STObject[] args) {
+		misses++;
+		if ( vm!=this.vm || validity==null || validity.hasBeenInvalidated() ) reset(vm);
+		STMetaClassObject cl = args[0].getSTClass();
+		boolean isClass = args[0] instanceof STMetaClassObject;
+		STObject result = send(vm, caller, args);
+		if ( megamorphic ) return result;
+		if ( size==MAX_ENTRIES ) {
+			megamorphic = true;
+			setTarget(spread(SEND.bindTo(this)));
+			return result;
+		}
+		STMetaClassObject start = op==Bytecode.SEND_SUPER ? cl.superClass : cl;
+		STCompiledBlock stb = start!=null ? start.lookupMethod(selector) : null;
+		if ( stb!=null && stb.isClassMethod==isClass ) { // errors aren't cached
+			receiverClasses[size] = cl;
+			classSides[size] = isClass;
+			methods[size] = stb;
+			size++;
+			relink();
+		}
+		return result;
+	}
+
+	protected void reset(VirtualMachine vm) {
+		this.vm = vm;
+		validity = vm.methodsChanged;
+		size = 0;
+		megamorphic = false;
+		setTarget(spread(MISS.bindTo(this)));
+	}
+
+	/** Rebuild the target from the entries, the last added tested first */
+	protected void relink() {
+		MethodHandle chain = spread(MISS.bindTo(this));
+		for (int i=0; i<size; i++) {
+			MethodHandle test = MethodHandles.insertArguments(HAS_CLASS, 0, receiverClasses[i], classSides[i]);
+			test = MethodHandles.dropArguments(test, 0, VirtualMachine.class, BlockContext.class);
+			chain = MethodHandles.guardWithTest(test, invoker(methods[i]), chain);
+		}
+		setTarget(validity.guardWithTest(chain, spread(MISS.bindTo(this))));
+	}
+
+	/** What the site does once it knows the receiver's method */
+	protected MethodHandle invoker(STCompiledBlock stb) {
+		if ( stb.trivialKind!=STCompiledBlock.NOT_TRIVIAL ) {
+			return spread(RUN_TRIVIAL.bindTo(stb));
+		}
+		if ( stb.jitCode!=null ) {
+			if ( nargs<CALL_COMPILED_N.length ) return CALL_COMPILED_N[nargs].bindTo(stb);
+			return spread(CALL_COMPILED.bindTo(stb));
+		}
+		if ( !stb.isPrimitive() && !stb.jitFailed ) { // may get compiled; relink when it is
+			return spread(MethodHandles.insertArguments(SEND_THEN_CHECK, 0, this, stb));
+		}
+		return spread(SEND.bindTo(this));
+	}
+
+	/** Adapt a handle taking (VirtualMachine, BlockContext, STObject[]) to the site's type */
+	protected MethodHandle spread(MethodHandle h) {
+		return h.asCollector(STObject[].class, nargs+1).asType(type());
+	}
+
+	/** Send as SEND does, through the method's inline cache */
+	protected STObject send(VirtualMachine vm, BlockContext caller, STObject[] args) {
+		for (STObject o : args) caller.push(o);
+		return vm.sendFromCompiled(caller, op, nargs, selector, pc);
+	}
+
+	protected STObject sendThenCheck(STCompiledBlock stb, VirtualMachine vm, BlockContext caller, STObject[] args) {
+		STObject result = send(vm, caller, args);
+		if ( stb.jitCode!=null && !validity.hasBeenInvalidated() ) relink();
+		return result;
+	}
+
+	static STObject callCompiled(STCompiledBlock stb, VirtualMachine vm, BlockContext caller, STObject[] args) {
+		return vm.callCompiled(stb, args);
+	}
+
+	static STObject callCompiled(STCompiledBlock stb, VirtualMachine vm, BlockContext caller, STObject receiver) {
+		return vm.callCompiled(new BlockContext(vm, stb, receiver));
+	}
+
+	static STObject callCompiled(STCompiledBlock stb, VirtualMachine vm, BlockContext caller,
+								 STObject receiver, STObject arg)
+	{
+		BlockContext callee = new BlockContext(vm, stb, receiver);
+		callee.locals[0] = arg;
+		return vm.callCompiled(callee);
+	}
+
+	static STObject callCompiled(STCompiledBlock stb, VirtualMachine vm, BlockContext caller,
+								 STObject receiver, STObject arg1, STObject arg2)
+	{
+		BlockContext callee = new BlockContext(vm, stb, receiver);
+		callee.locals[0] = arg1;
+		callee.locals[1] = arg2;
+		return vm.callCompiled(callee);
+	}
+
+	static STObject runTrivial(STCompiledBlock stb, VirtualMachine vm, BlockContext caller, STObject[] args) {
+		return vm.runTrivial(stb, args[0], args[args.length-1]);
+	}
+
+	static boolean hasClass(STMetaClassObject cl, boolean isClass, STObject receiver) {
+		return receiver.getSTClass()==cl && (receiver instanceof STMetaClassObject)==isClass;
+	}
+}
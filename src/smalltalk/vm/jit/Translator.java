@@ -0,0 +1,310 @@
+package smalltalk.vm.jit;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static smalltalk.vm.jit.ClassFile.*;
+
+/** Translate the pre-decoded code of one method into a JVM class
+ *  implementing {@link JitCode}. JVM local 3 holds self, the method's
+ *  arguments and locals follow, and each slot of the Smalltalk operand
+ *  stack gets a JVM local after those, so the JVM stack is empty between
+ *  Smalltalk instructions. Instructions become direct field and array
+ *  accesses or calls on the VM. Sends are invokedynamic instructions
+ *  linked by {@link SendSite}, or with {@link #invokeDynamic} off, calls
+ *  to {@link smalltalk.vm.VirtualMachine#sendFromCompiled}, which uses
+ *  the send's inline cache in the method like SEND does.
+ *
+ *  Only methods made of the instructions in {@link #supported} are
+ *  translated: no blocks, which would need the locals in the context,
+ *  and no TAIL_SEND, which must run in constant depth.
+ */
+public class Translator {
+	static final String VM = "smalltalk/vm/VirtualMachine";
+	static final String CTX = "smalltalk/vm/primitive/BlockContext";
+	static final String OBJ = "smalltalk/vm/primitive/STObject";
+	static final String SEND_SITE = "smalltalk/vm/jit/SendSite";
+	static final String L_VM = "L"+VM+";";
+	static final String L_CTX = "L"+CTX+";";
+	static final String L_OBJ = "L"+OBJ+";";
+	static final String INVOKE = "("+L_VM+L_CTX+")"+L_OBJ;
+
+	static final int THIS = 0, VM_LOCAL = 1, CTX_LOCAL = 2, SELF = 3, VARS = 4;
+
+	static final boolean[] supported = new boolean[Bytecode.instructions.length];
+	static {
+		for (int op : new int[] {
+			Bytecode.NIL, Bytecode.SELF, Bytecode.TRUE, Bytecode.FALSE,
+			Bytecode.PUSH_CHAR, Bytecode.PUSH_INT, Bytecode.PUSH_FLOAT, Bytecode.PUSH_FIELD,
+			Bytecode.PUSH_LOCAL, Bytecode.PUSH_LITERAL, Bytecode.PUSH_GLOBAL, Bytecode.PUSH_ARRAY,
+			Bytecode.STORE_FIELD, Bytecode.STORE_LOCAL, Bytecode.STORE_LOCAL_POP, Bytecode.POP,
+			Bytecode.JUMP, Bytecode.JUMP_IF_TRUE, Bytecode.JUMP_IF_FALSE,
+			Bytecode.SEND, Bytecode.SEND_SUPER, Bytecode.SEND_0, Bytecode.SEND_1, Bytecode.SEND_2,
+			Bytecode.RETURN, Bytecode.RETURN_SELF, Bytecode.DBG
+		})
+		{
+			supported[op] = true;
+		}
+		for (int op=Bytecode.SEND_ADD; op<=Bytecode.SEND_MOD; op++) supported[op] = true;
+	}
+
+	protected final STCompiledBlock method;
+	protected final String className;
+	protected final int[] code;
+
+	/** Link sends with invokedynamic rather than calling the VM */
+	public boolean invokeDynamic = true;
+
+	/** Operand stack depth before each instruction; -1 if unreachable */
+	protected int[] depth;
+	/** A label for each instruction start that a branch goes to */
+	protected ClassFile.Label[] labels;
+	protected final List<ClassFile.Label> allLabels = new ArrayList<>();
+
+	protected ClassFile cf;
+	protected ClassFile.Method m;
+	protected int stackBase; // JVM local of Smalltalk stack slot 0
+
+	public Translator(STCompiledBlock method, String className) {
+		this.method = method;
+		this.className = className;
+		this.code = method.code;
+	}
+
+	/** The class file for the method, or null if it can't be translated */
+	public byte[] translate() {
+		if ( method.isPrimitive() || method.method!=method || code==null || !computeDepths() ) return null;
+		cf = new ClassFile(className, "java/lang/Object", "smalltalk/vm/jit/JitCode");
+		ClassFile.Method init = cf.new Method(ACC_PUBLIC, "<init>", "()V");
+		init.aload(THIS).invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V").op(ClassFile.RETURN);
+		init.maxStack = 1;
+		init.maxLocals = 1;
+		cf.add(init, allLabels);
+
+		int nvars = method.nargs + method.nlocals;
+		stackBase = VARS + nvars;
+		m = cf.new Method(ACC_PUBLIC, "invoke", INVOKE);
+		m.maxStack = 8 + method.maxStack; // specialSendFromCompiled takes 7; a send, vm, ctx and the stack
+		m.maxLocals = stackBase + method.maxStack;
+		m.frameLocals = new String[m.maxLocals];
+		Arrays.fill(m.frameLocals, OBJ);
+		m.frameLocals[THIS] = className;
+		m.frameLocals[VM_LOCAL] = VM;
+		m.frameLocals[CTX_LOCAL] = CTX;
+
+		// self and the variables come from the context; stack slots start null
+		m.aload(CTX_LOCAL).field(GETFIELD, CTX, "receiver", L_OBJ).astore(SELF);
+		for (int i=0; i<nvars; i++) {
+			m.aload(CTX_LOCAL).field(GETFIELD, CTX, "locals", "["+L_OBJ).iconst(i).op(AALOAD).astore(VARS+i);
+		}
+		for (int i=0; i<method.maxStack; i++) m.op(ACONST_NULL).astore(stackBase+i);
+
+		boolean fallsThrough = true;
+		for (int pc=0; pc<code.length; pc+=size(code[pc])) {
+			if ( depth[pc]<0 ) continue;
+			if ( labels[pc]!=null ) m.mark(labels[pc]);
+			else if ( !fallsThrough ) m.frame();
+			fallsThrough = translate(pc, depth[pc]);
+		}
+		if ( !cf.add(m, allLabels) ) return null;
+		return cf.toByteArray();
+	}
+
+	/** Emit the JVM code for the instruction at pc; return whether
+	 *  control can fall through to the next one.
+	 */
+	protected boolean translate(int pc, int d) {
+		int op = code[pc];
+		int opnd = code.length>pc+1 ? code[pc+1] : 0;
+		switch ( op ) {
+			case Bytecode.NIL :
+				m.aload(VM_LOCAL).invoke(INVOKEVIRTUAL, VM, "nil", "()Lsmalltalk/vm/primitive/STNil;");
+				return push(d);
+			case Bytecode.SELF :
+				m.aload(SELF);
+				return push(d);
+			case Bytecode.TRUE :
+				m.aload(VM_LOCAL).field(GETFIELD, VM, "trueObject", "Lsmalltalk/vm/primitive/STBoolean;");
+				return push(d);
+			case Bytecode.FALSE :
+				m.aload(VM_LOCAL).field(GETFIELD, VM, "falseObject", "Lsmalltalk/vm/primitive/STBoolean;");
+				return push(d);
+			case Bytecode.PUSH_CHAR :
+				m.aload(VM_LOCAL).iconst(opnd).invoke(INVOKEVIRTUAL, VM, "newChar", "(I)Lsmalltalk/vm/primitive/STCharacter;");
+				return push(d);
+			case Bytecode.PUSH_INT :
+				m.aload(VM_LOCAL).iconst(opnd).invoke(INVOKEVIRTUAL, VM, "newInteger", "(I)Lsmalltalk/vm/primitive/STInteger;");
+				return push(d);
+			case Bytecode.PUSH_FLOAT :
+				m.aload(VM_LOCAL).ldc(cf.floatConst(Float.intBitsToFloat(opnd)))
+				 .invoke(INVOKEVIRTUAL, VM, "newFloat", "(F)Lsmalltalk/vm/primitive/STFloat;");
+				return push(d);
+			case Bytecode.PUSH_FIELD :
+				m.aload(SELF).field(GETFIELD, OBJ, "fields", "["+L_OBJ).iconst(opnd).op(AALOAD);
+				return push(d);
+			case Bytecode.PUSH_LOCAL :
+				m.aload(VARS + code[pc+2]);
+				return push(d);
+			case Bytecode.PUSH_LITERAL :
+				m.aload(VM_LOCAL).ldc(cf.string(method.literals[opnd]))
+				 .invoke(INVOKEVIRTUAL, VM, "newString", "(Ljava/lang/String;)Lsmalltalk/vm/primitive/STString;");
+				return push(d);
+			case Bytecode.PUSH_GLOBAL :
+				m.aload(VM_LOCAL).field(GETFIELD, VM, "systemDict", "Lsmalltalk/vm/SystemDictionary;")
+				 .iconst(opnd).invoke(INVOKEVIRTUAL, "smalltalk/vm/SystemDictionary", "lookup", "(I)"+L_OBJ);
+				return push(d);
+			case Bytecode.PUSH_ARRAY :
+				m.type(NEW, "smalltalk/vm/primitive/STArray").op(DUP).aload(VM_LOCAL)
+				 .iconst(opnd).type(ANEWARRAY, OBJ);
+				for (int i=0; i<opnd; i++) {
+					m.op(DUP).iconst(i).aload(slot(d-opnd+i)).op(AASTORE);
+				}
+				m.invoke(INVOKESPECIAL, "smalltalk/vm/primitive/STArray", "<init>", "("+L_VM+"["+L_OBJ+")V");
+				return push(d-opnd);
+			case Bytecode.STORE_FIELD :
+				m.aload(SELF).field(GETFIELD, OBJ, "fields", "["+L_OBJ).iconst(opnd).aload(slot(d-1)).op(AASTORE);
+				return true;
+			case Bytecode.STORE_LOCAL :
+			case Bytecode.STORE_LOCAL_POP :
+				m.aload(slot(d-1)).astore(VARS + code[pc+2]);
+				// write through so error stacks show the context's variables
+				m.aload(CTX_LOCAL).field(GETFIELD, CTX, "locals", "["+L_OBJ).iconst(code[pc+2]).aload(slot(d-1)).op(AASTORE);
+				return true;
+			case Bytecode.POP :
+				return true;
+			case Bytecode.JUMP :
+				m.branch(GOTO, label(opnd));
+				return false;
+			case Bytecode.JUMP_IF_TRUE :
+			case Bytecode.JUMP_IF_FALSE : {
+				ClassFile.Label taken = label(opnd);
+				ClassFile.Label next = label(pc + size(op));
+				ClassFile.Label onTrue = op==Bytecode.JUMP_IF_TRUE ? taken : next;
+				ClassFile.Label onFalse = op==Bytecode.JUMP_IF_TRUE ? next : taken;
+				m.aload(slot(d-1)).aload(VM_LOCAL).field(GETFIELD, VM, "trueObject", "Lsmalltalk/vm/primitive/STBoolean;")
+				 .branch(IF_ACMPEQ, onTrue);
+				m.aload(slot(d-1)).aload(VM_LOCAL).field(GETFIELD, VM, "falseObject", "Lsmalltalk/vm/primitive/STBoolean;")
+				 .branch(IF_ACMPEQ, onFalse);
+				m.branch(GOTO, label(code[pc+2])); // not a Boolean; it stays in its slot for the fallback
+				return false;
+			}
+			case Bytecode.RETURN :
+				m.aload(slot(d-1)).op(ARETURN);
+				return false;
+			case Bytecode.RETURN_SELF :
+				m.aload(SELF).op(ARETURN);
+				return false;
+			case Bytecode.DBG :
+				m.aload(CTX_LOCAL).ldc(cf.string(method.literals[opnd])).field(PUTFIELD, CTX, "currentFile", "Ljava/lang/String;");
+				m.aload(CTX_LOCAL).iconst(Bytecode.lineFromCombined(code[pc+2])).field(PUTFIELD, CTX, "currentLine", "I");
+				m.aload(CTX_LOCAL).iconst(Bytecode.charPosFromCombined(code[pc+2])).field(PUTFIELD, CTX, "currentCharPos", "I");
+				return true;
+			default :
+				if ( op>=Bytecode.SEND_ADD && op<=Bytecode.SEND_MOD ) {
+					notePC(pc);
+					m.aload(VM_LOCAL).aload(CTX_LOCAL).aload(slot(d-2)).aload(slot(d-1))
+					 .iconst(op).iconst(code[pc+2]).iconst(pc)
+					 .invoke(INVOKEVIRTUAL, VM, "specialSendFromCompiled", "("+L_CTX+L_OBJ+L_OBJ+"III)"+L_OBJ);
+					return push(d-2);
+				}
+				// SEND, SEND_SUPER, SEND_0..SEND_2
+				int nargs = op>=Bytecode.SEND_0 ? op - Bytecode.SEND_0 : opnd;
+				int selector = op>=Bytecode.SEND_0 ? opnd : code[pc+2];
+				notePC(pc);
+				if ( invokeDynamic ) {
+					m.aload(VM_LOCAL).aload(CTX_LOCAL);
+					StringBuilder type = new StringBuilder("(").append(L_VM).append(L_CTX);
+					for (int i=d-nargs-1; i<d; i++) {
+						m.aload(slot(i));
+						type.append(L_OBJ);
+					}
+					type.append(")").append(L_OBJ);
+					int bootstrap = cf.staticMethodHandle(SEND_SITE, "bootstrap", SendSite.BOOTSTRAP_TYPE.toMethodDescriptorString());
+					m.invokeDynamic(cf.invokeDynamic("send", type.toString(), bootstrap, op, selector, pc));
+					return push(d-nargs-1);
+				}
+				for (int i=d-nargs-1; i<d; i++) {
+					m.aload(CTX_LOCAL).aload(slot(i)).invoke(INVOKEVIRTUAL, CTX, "push", "("+L_OBJ+")V");
+				}
+				m.aload(VM_LOCAL).aload(CTX_LOCAL).iconst(op).iconst(nargs).iconst(selector).iconst(pc)
+				 .invoke(INVOKEVIRTUAL, VM, "sendFromCompiled", "("+L_CTX+"IIII)"+L_OBJ);
+				return push(d-nargs-1);
+		}
+	}
+
+	/** Store the value on the JVM stack into Smalltalk stack slot i */
+	protected boolean push(int i) {
+		m.astore(slot(i));
+		return true;
+	}
+
+	protected int slot(int i) { return stackBase + i; }
+
+	/** Record the send at pc as the context's current instruction for stack dumps */
+	protected void notePC(int pc) {
+		m.aload(CTX_LOCAL).iconst(pc).field(PUTFIELD, CTX, "prev_ip", "I");
+	}
+
+	protected ClassFile.Label label(int pc) { return labels[pc]; }
+
+	protected static int size(int op) { return Bytecode.decodedSize(op); }
+
+	/** Find the stack depth at each reachable instruction as
+	 *  {@link Bytecode#maxStack} does, and a label for each branch target
+	 *  and each instruction after a conditional jump. Return false if an
+	 *  instruction isn't {@link #supported} or a local isn't in this context.
+	 */
+	protected boolean computeDepths() {
+		depth = new int[code.length];
+		labels = new ClassFile.Label[code.length];
+		Arrays.fill(depth, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		flowTo(0, 0, work, false);
+		while ( !work.isEmpty() ) {
+			int pc = work.pop();
+			int d = depth[pc];
+			int op = code[pc];
+			if ( op<0 || op>=supported.length || !supported[op] ) return false;
+			if ( (op==Bytecode.PUSH_LOCAL || op==Bytecode.STORE_LOCAL || op==Bytecode.STORE_LOCAL_POP) && code[pc+1]!=0 ) {
+				return false;
+			}
+			int next = pc + size(op);
+			int after = d + Bytecode.stackEffect(op, code.length>pc+1 ? code[pc+1] : 0);
+			switch ( op ) {
+				case Bytecode.JUMP :
+					flowTo(code[pc+1], after, work, true);
+					break;
+				case Bytecode.JUMP_IF_TRUE :
+				case Bytecode.JUMP_IF_FALSE :
+					flowTo(code[pc+1], after, work, true);
+					flowTo(code[pc+2], d, work, true);
+					flowTo(next, after, work, true);
+					break;
+				case Bytecode.RETURN :
+				case Bytecode.RETURN_SELF :
+					break;
+				default :
+					flowTo(next, after, work, false);
+			}
+		}
+		return true;
+	}
+
+	protected void flowTo(int pc, int d, Deque<Integer> work, boolean target) {
+		if ( pc>=code.length ) return;
+		if ( target && labels[pc]==null ) {
+			labels[pc] = new ClassFile.Label();
+			allLabels.add(labels[pc]);
+		}
+		if ( depth[pc]<0 ) {
+			depth[pc] = d;
+			work.push(pc);
+		}
+	}
+}
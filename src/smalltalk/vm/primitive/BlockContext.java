@@ -2,6 +2,8 @@ package smalltalk.vm.primitive;
 
 import smalltalk.vm.VirtualMachine;
 
+import java.util.Arrays;
+
 /** "The interpreter uses contexts to represent the state of its execution of
  *   CompiledMethods and blocks. A context can be a MethodContext or a
  *   BlockContext. A MethodContext represents the execution of a
@@ -55,18 +57,68 @@ public class BlockContext {
 	/** The compiled code associated with this context */
 	public STCompiledBlock compiledBlock;
 
-	/** All arguments and local variables associated with this block */
+	/** All arguments and local variables associated with this block,
+	 *  starting at {@link #localsBase}
+	 */
 	public STObject[] locals;
 
-	/** The instruction pointer that points into compiledBlock.bytcodes */
+	/** Index of the first argument within {@link #locals}. Zero except
+	 *  for frame-stack activations, whose locals are a window onto
+	 *  {@link VirtualMachine#frames}.
+	 */
+	public int localsBase = 0;
+
+	/** The instruction pointer that points into compiledBlock.code, the
+	 *  pre-decoded instructions; see {@link STCompiledBlock#byteOffset}
+	 *  to map it back to an offset in compiledBlock.bytecode.
+	 */
 	public int ip = 0;
 
-	/** The operand stack for this context */
+	/** The operand stack for this context, sized to
+	 *  {@link STCompiledBlock#maxStack}
+	 */
 	public STObject[] stack;
 
-	/** The operand stack pointer for this context; points at stack top */
+	/** Index of the bottom of the operand stack within {@link #stack}.
+	 *  Zero except for frame-stack activations.
+	 */
+	public int stackBase = 0;
+
+	/** The operand stack pointer for this context; points at stack top.
+	 *  Like the primitives, it is an absolute index into {@link #stack}.
+	 */
 	public int sp = -1;
 
+	// ----- FRAME STACK -----
+
+	/** Is this a pooled activation whose locals and operand stack live in
+	 *  {@link VirtualMachine#frames}? Such a context is recycled once it
+	 *  returns unless {@link #materialize()} detaches it first.
+	 */
+	public boolean onFrameStack = false;
+
+	/** How many contexts are below this one on the invokingContext chain */
+	public int depth = 0;
+
+	/** {@link VirtualMachine#frameTop} when this context was pushed;
+	 *  restored when it is popped.
+	 */
+	public int savedFrameTop = 0;
+
+	/** Has a {@link BlockDescriptor} captured this context? Its blocks can
+	 *  still read its locals or ^ return through it, so a TAIL_SEND
+	 *  mustn't replace it; see {@link VirtualMachine#tailCall}.
+	 */
+	public boolean captured = false;
+
+	/** How many contexts TAIL_SENDs replaced on the way to this one */
+	public int elidedFrames = 0;
+
+	/** Reusable descriptors pushed by STACK_BLOCK that no send has
+	 *  consumed yet; SEND only checks its operands for them when nonzero.
+	 */
+	public int liveStackBlocks = 0;
+
 	// ----- BLOCK CONTEXT INFO -----
 
 	/*  The following two fields are used only by block executions.
@@ -141,6 +193,11 @@ public class BlockContext {
 	 */
 	public BlockContext enclosingMethodContext;
 
+	/** The captured variables of a closure-converted block, from its
+	 *  {@link BlockDescriptor#copied}; null otherwise.
+	 */
+	public STObject[] copied;
+
 	// ----- DEBUGGING (dbg instruction) -----
 	public String currentFile;
 	public int currentLine;
@@ -154,16 +211,65 @@ public class BlockContext {
 		locals = null;
 	}
 
+	/** Create an empty context for {@link VirtualMachine}'s frame pool;
+	 *  see {@link #activate}.
+	 */
+	public BlockContext(VirtualMachine vm) {
+		this.vm = vm;
+		onFrameStack = true;
+	}
+
+	/** Reset a pooled context to execute compiledBlock with the nargs
+	 *  arguments already sitting in vm.frames at localsBase. The operand
+	 *  stack starts just past the locals; nothing is copied.
+	 */
+	public void activate(STCompiledBlock compiledBlock, STObject receiver, int localsBase) {
+		this.compiledBlock = compiledBlock;
+		this.receiver = receiver;
+		this.locals = vm.frames;
+		this.stack = vm.frames;
+		this.localsBase = localsBase;
+		stackBase = localsBase + compiledBlock.nargs + compiledBlock.nlocals;
+		for (int i=localsBase+compiledBlock.nargs; i<stackBase; i++) {
+			locals[i] = vm.nil();
+		}
+		sp = stackBase - 1;
+		ip = 0;
+		prev_ip = -1;
+		captured = false;
+		elidedFrames = 0;
+		liveStackBlocks = 0;
+		enclosingContext = null;
+		enclosingMethodContext = this;
+		copied = null;
+		currentFile = null;
+		currentLine = 0;
+		currentCharPos = 0;
+	}
+
+	/** Copy a frame-stack activation's locals to the heap and take it
+	 *  out of the frame pool so it survives returning, and mark it
+	 *  {@link #captured}. Done when a {@link BlockDescriptor} captures
+	 *  this context. The operand stack
+	 *  stays in place; nobody can see it once this context returns.
+	 */
+	public void materialize() {
+		captured = true;
+		if ( !onFrameStack ) return;
+		int n = compiledBlock.nargs + compiledBlock.nlocals;
+		locals = Arrays.copyOfRange(locals, localsBase, localsBase+n);
+		localsBase = 0;
+		onFrameStack = false;
+		vm.detachFrame(this);
+	}
+
 	/** Create a context from a STCompiledBlock and a receiver object */
 	public BlockContext(VirtualMachine vm, STCompiledBlock compiledBlock, STObject receiver) {
         this.vm = vm;
         this.receiver = receiver;
         this.compiledBlock = compiledBlock;
-        //use compiledBlock.bytecode.length insted of Init stack size for now
-        stack = new STObject[compiledBlock.bytecode.length];
-        for (int i=0;i<compiledBlock.bytecode.length;i++){
-            stack[i]=vm.nil();
-        }
+        // slots above sp are never read so the stack needs no nil-fill
+        stack = new STObject[compiledBlock.maxStack];
         locals = new STObject[compiledBlock.nargs+compiledBlock.nlocals];
         for(int i = 0; i< locals.length;i++){
             locals[i] = vm.nil();
@@ -197,14 +303,14 @@ public class BlockContext {
         this.vm = vm;
         this.receiver = descriptor.receiver;
         this.compiledBlock = descriptor.block;
-        //use compiledBlock.bytecode.length insted of Init stack size for now
-        stack = new STObject[compiledBlock.bytecode.length];
+        stack = new STObject[compiledBlock.maxStack];
         locals = new STObject[compiledBlock.nargs+compiledBlock.nlocals];
         for(int i=0;i<locals.length;i++){
             locals[i]=vm.nil();
         }
         enclosingMethodContext = descriptor.enclosingMethodContext;
         enclosingContext = descriptor.enclosingContext;
+        copied = descriptor.copied;
 
 	}
 
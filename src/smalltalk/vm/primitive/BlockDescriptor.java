@@ -16,8 +16,11 @@ import smalltalk.vm.VirtualMachine;
  *  See http://pharobooks.gforge.inria.fr/PharoByExampleTwo-Eng/latest/Block.pdf
  */
 public class BlockDescriptor extends STObject {
-	/** This object is a descriptor for which compiled block? */
-	public final STCompiledBlock block;
+	/** This object is a descriptor for which compiled block?
+	 *
+	 *  The fields are only reassigned for a {@link #reusable} descriptor.
+	 */
+	public STCompiledBlock block;
 
 	/** The immediately surrounding/enclosing method or block.
 	 *  If this block is a block within the outermost block (i.e., the method),
@@ -25,7 +28,7 @@ public class BlockDescriptor extends STObject {
 	 *
 	 *  See {@link BlockContext#enclosingContext} for more details.
 	 */
-	public final BlockContext enclosingContext;
+	public BlockContext enclosingContext;
 
 	/** A shortcut up the enclosingContext chain to the method in which the
 	 *  block associated with this context is defined.  We need to locate
@@ -36,7 +39,7 @@ public class BlockDescriptor extends STObject {
 	 *
 	 *  See {@link BlockContext#enclosingMethodContext} for more details.
 	 */
-	public final BlockContext enclosingMethodContext;
+	public BlockContext enclosingMethodContext;
 
 	/** The receiver of the method that created this block descriptor.
 	 *  SELF instruction in block passed to another method must return
@@ -53,20 +56,56 @@ public class BlockDescriptor extends STObject {
 	 * 	bar: blk
 	 * 		blk value
 	 */
-	public final STObject receiver;
+	public STObject receiver;
+
+	/** For a block compiled with closure conversion, the values of the
+	 *  variables it captures, in the order of {@link STCompiledBlock#captures};
+	 *  a {@link VariableBox} for those that can still be assigned. Such a
+	 *  descriptor has no enclosingContext, and an enclosingMethodContext
+	 *  only if the block can ^ return. Null for other blocks.
+	 */
+	public STObject[] copied;
+
+	/** Is this one of the descriptors the VM reuses for block literals
+	 *  that can't outlive the send they are passed to? See
+	 *  {@link VirtualMachine#stackBlock}.
+	 */
+	public final boolean reusable;
 
 	// visible only to the package so no one else can randomly create these objects
 	public BlockDescriptor(STCompiledBlock blk, BlockContext activeContext) {
-		super(activeContext.vm.lookupClass("BlockDescriptor"));
+		super(activeContext.vm.core.blockDescriptorClass);
 		block = blk;
 		enclosingContext = activeContext;
 		enclosingMethodContext = activeContext.enclosingMethodContext;
 		receiver = activeContext.receiver;
+		copied = null;
+		reusable = false;
+	}
+
+	/** Create an empty reusable descriptor; see {@link VirtualMachine#stackBlock} */
+	public BlockDescriptor(VirtualMachine vm) {
+		super(vm.core.blockDescriptorClass);
+		reusable = true;
+	}
+
+	/** Create a closure-converted descriptor; see {@link VirtualMachine#newClosure} */
+	public BlockDescriptor(VirtualMachine vm, STCompiledBlock blk, STObject receiver,
+						   BlockContext enclosingMethodContext, STObject[] copied)
+	{
+		super(vm.core.blockDescriptorClass);
+		block = blk;
+		enclosingContext = null;
+		this.enclosingMethodContext = enclosingMethodContext;
+		this.receiver = receiver;
+		this.copied = copied;
+		reusable = false;
 	}
 
 //    BlockDescriptor_VALUE(BlockDescriptor::perform),
 //    BlockDescriptor_VALUE_1_ARG(BlockDescriptor::perform),
 //    BlockDescriptor_VALUE_2_ARGS(BlockDescriptor::perform),
+//    BlockDescriptor_WHILE_TRUE(BlockDescriptor::perform),
 	public static STObject perform(BlockContext ctx, int nArgs, Primitive primitive) {
         VirtualMachine vm = ctx.vm;
         int firstArg = ctx.sp - nArgs + 1;
@@ -79,18 +118,28 @@ public class BlockDescriptor extends STObject {
                 break;
             case BlockDescriptor_VALUE_1_ARG:
                 obj = ctx.stack[firstArg];
-                ctx.sp--;
+                ctx.sp-=2;
                 vm.pushContext(new BlockContext(vm,(BlockDescriptor)receiverObj));
                 vm.ctx.locals[0] = obj;
                 break;
             case BlockDescriptor_VALUE_2_ARGS:
-                obj = ctx.stack[firstArg+1];
-                STObject obj2 = ctx.stack[firstArg];
+                obj = ctx.stack[firstArg];
+                STObject obj2 = ctx.stack[firstArg+1];
                 ctx.sp-=3;
                 vm.pushContext(new BlockContext(vm,(BlockDescriptor)receiverObj));
                 vm.ctx.locals[0] = obj;
                 vm.ctx.locals[1] = obj2;
                 break;
+            case BlockDescriptor_WHILE_TRUE: // unlike value, runs its blocks to completion via invokeBlock
+                BlockDescriptor body = (BlockDescriptor)ctx.stack[firstArg];
+                ctx.sp-=2;
+                while ( true ) {
+                    STObject cond = vm.invokeBlock((BlockDescriptor)receiverObj);
+                    if ( cond==null ) return null; // ^ out of the condition
+                    if ( cond==vm.falseObject ) return vm.nil();
+                    if ( cond!=vm.trueObject ) vm.error(cond.asString().toString()+" is not a Boolean");
+                    if ( vm.invokeBlock(body)==null ) return null;
+                }
             default:
                 break;
         }
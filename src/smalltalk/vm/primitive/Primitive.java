@@ -45,6 +45,9 @@ public enum Primitive {
 	Integer_EQ(STInteger::perform),
 	Integer_MOD(STInteger::perform),
 	Integer_ASFLOAT(STInteger::perform),
+	Integer_TO_DO(STInteger::perform),			// loops evaluate their block via VirtualMachine.invokeBlock
+	Integer_TO_BY_DO(STInteger::perform),
+	Integer_TIMES_REPEAT(STInteger::perform),
 
     //
 	Float_ADD(STFloat::perform), // +
@@ -73,12 +76,14 @@ public enum Primitive {
 	BlockDescriptor_VALUE(BlockDescriptor::perform),
 	BlockDescriptor_VALUE_1_ARG(BlockDescriptor::perform),
 	BlockDescriptor_VALUE_2_ARGS(BlockDescriptor::perform),
+	BlockDescriptor_WHILE_TRUE(BlockDescriptor::perform),
 
     //
 	Array_Class_NEW(STArray::perform),
 	Array_SIZE(STArray::perform),
 	Array_AT(STArray::perform),
 	Array_AT_PUT(STArray::perform),
+	Array_DO(STArray::perform),
 
 	TranscriptStream_SHOW(VirtualMachine::TranscriptStream_SHOW)
 	;
@@ -91,6 +96,78 @@ public enum Primitive {
 	}
 
 	public STObject perform(BlockContext ctx, int nArgs) {
+		if ( fallback()!=null &&
+			 (ctx.vm.nesting>=VirtualMachine.MAX_NESTING || !loopOperands(ctx, nArgs)) )
+		{
+			return ctx.vm.fallBack(ctx, nArgs, this);
+		}
 		return performer.perform(ctx, nArgs, this);
 	}
+
+	/** The selector of the Smalltalk method in image.st that does what
+	 *  this primitive does without re-entering the interpreter from Java,
+	 *  or null if the primitive never does. The loops evaluate their
+	 *  block through {@link VirtualMachine#invokeBlock}, which nests the
+	 *  interpreter on the Java stack; past {@link VirtualMachine#MAX_NESTING}
+	 *  levels they run this method instead. So do loops over operands
+	 *  they can't run in Java; see {@link #loopOperands}.
+	 */
+	public String fallback() {
+		switch ( this ) {
+			case Integer_TO_DO:
+				return "slowTo:do:";
+			case Integer_TO_BY_DO:
+				return "slowTo:by:do:";
+			case Integer_TIMES_REPEAT:
+				return "slowTimesRepeat:";
+			case BlockDescriptor_WHILE_TRUE:
+				return "slowWhileTrue:";
+			case Array_DO:
+				return "slowDo:";
+			default:
+				return null;
+		}
+	}
+
+	/** Are the nArgs arguments on top of ctx's stack what a loop primitive
+	 *  runs itself: Integer bounds and steps, then a block? Anything else,
+	 *  like an object that only understands value:, gets the
+	 *  {@link #fallback} method, which sends it value: as usual.
+	 */
+	protected boolean loopOperands(BlockContext ctx, int nArgs) {
+		int firstArg = ctx.sp - nArgs + 1;
+		for (int i=0; i<nArgs-1; i++) {
+			if ( !(ctx.stack[firstArg+i] instanceof STInteger) ) return false;
+		}
+		return ctx.stack[ctx.sp] instanceof BlockDescriptor;
+	}
+
+	/** Might this primitive keep a reference to operand i (0 is the
+	 *  receiver) after it returns? The loops, conditionals and value only
+	 *  evaluate their block operands. The value: primitives hand their
+	 *  arguments to the block, which may keep them. We assume anything
+	 *  else might keep anything.
+	 *
+	 *  The VM copies a reused block descriptor (see
+	 *  {@link VirtualMachine#stackBlock}) to the heap before passing it
+	 *  where it might be kept.
+	 */
+	public boolean mayRetain(int operand) {
+		switch ( this ) {
+			case BlockDescriptor_VALUE_1_ARG:
+			case BlockDescriptor_VALUE_2_ARGS:
+				return operand>0;
+			case BlockDescriptor_VALUE:
+			case BlockDescriptor_WHILE_TRUE:
+			case Boolean_IFTRUE:
+			case Boolean_IFTRUE_IFFALSE:
+			case Integer_TO_DO:
+			case Integer_TO_BY_DO:
+			case Integer_TIMES_REPEAT:
+			case Array_DO:
+				return false;
+			default:
+				return true;
+		}
+	}
 }
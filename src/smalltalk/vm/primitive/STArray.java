@@ -11,7 +11,7 @@ public class STArray extends STObject {
 	public final STObject[] elements;
 
 	public STArray(VirtualMachine vm, int n, STObject fill) {
-		super(vm.lookupClass("Array"));
+		super(vm.core.arrayClass);
 		elements = new STObject[n];
         for (int i = 0; i < n ; i++){
             elements[i] = fill;
@@ -19,7 +19,7 @@ public class STArray extends STObject {
 	}
 
     public STArray(VirtualMachine vm, STObject[] stObjects) {
-        super(vm.lookupClass("Array"));
+        super(vm.core.arrayClass);
         elements = stObjects;
     }
 
@@ -27,6 +27,7 @@ public class STArray extends STObject {
 //    Array_SIZE(STArray::perform),
 //    Array_AT(STArray::perform),
 //    Array_AT_PUT(STArray::perform),
+//    Array_DO(STArray::perform),
 	public static STObject perform(BlockContext ctx, int nArgs, Primitive primitive) {
         VirtualMachine vm = ctx.vm;
         int firstArg = ctx.sp - nArgs + 1;
@@ -41,7 +42,7 @@ public class STArray extends STObject {
                 break;
             case Array_SIZE:
                 ctx.pop();
-                result = new STInteger(vm, ((STArray) receiverObj).elements.length);
+                result = vm.newInteger(((STArray) receiverObj).elements.length);
                 break;
             case Array_AT:
                 obj = (STInteger)ctx.pop();
@@ -55,6 +56,14 @@ public class STArray extends STObject {
                 receiverObj = ctx.pop();
                 ((STArray) receiverObj).elements[obj.v - 1] = put;
                 break;
+            case Array_DO:
+                BlockDescriptor blk = (BlockDescriptor)ctx.pop();
+                ctx.sp--;
+                for (STObject e : ((STArray) receiverObj).elements) {
+                    if ( vm.invokeBlock(blk, e)==null ) return null; // ^ out of blk
+                }
+                result = receiverObj;
+                break;
             default:
                 break;
         }
@@ -7,7 +7,7 @@ public class STBoolean extends STObject {
 	public final boolean b;
 
 	public STBoolean(VirtualMachine vm, boolean b) {
-		super(vm.lookupClass("Boolean"));
+		super(vm.core.booleanClass);
 		this.b = b;
 	}
 
@@ -41,7 +41,6 @@ public class STBoolean extends STObject {
                 }else{
                     vm.pushContext(new BlockContext(vm,(BlockDescriptor)obj2));
                 }
-                result = vm.nil();
                 break;
             case Boolean_NOT:
                 ctx.sp--;
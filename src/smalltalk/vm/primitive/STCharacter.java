@@ -6,7 +6,7 @@ public class STCharacter extends STObject {
 	public final int c;
 
 	public STCharacter(VirtualMachine vm, int c) {
-		super(vm.lookupClass("Character"));
+		super(vm.core.characterClass);
 		this.c = c;
 	}
 
@@ -23,12 +23,12 @@ public class STCharacter extends STObject {
             case Character_ASINTEGER:
                 ctx.sp--;
                 //odd
-                result = new STInteger( vm, ((STCharacter)receiverObj).c );
+                result = vm.newInteger(((STCharacter)receiverObj).c);
                 break;
             case Character_Class_NEW:
                 obj = (STInteger)ctx.pop();
                 ctx.sp--;
-                result = new STCharacter( vm, obj.v );
+                result = vm.newChar(obj.v);
                 break;
             default:
                 break;
@@ -7,7 +7,16 @@ import smalltalk.compiler.STBlock;
 import smalltalk.compiler.STMethod;
 import smalltalk.compiler.STPrimitiveMethod;
 import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.SymbolTable;
+import smalltalk.vm.ast.AstInterpreter;
+import smalltalk.vm.ast.MethodNode;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.jit.JitCode;
+import smalltalk.vm.register.RegisterCode;
+import smalltalk.vm.register.RegisterInterpreter;
 
+import java.util.Arrays;
 import java.util.List;
 
 /** This object represents the compiled code for a block or method.
@@ -41,14 +50,23 @@ public class STCompiledBlock {
 		"    <blocks; separator={<\\n>}>" +
 		"<endif>";
 
-	/** currently unused, but would be used to serialize a compiled block to disk */
+	/** currently unused, but would be used to serialize a compiled block to
+	 *  disk. Besides the code it records what the compiler computed that
+	 *  the VM relies on to run it: the stack depth, the closure conversion
+	 *  results and how trivial the method is.
+	 */
 	public static final String serializeTemplate =
 		"name: <name>\n" +
 		"qualifiedName: <qualifiedName>\n" +
 		"nargs: <nargs>\n" +
 		"nlocals: <nlocals>\n"+
+		"maxStack: <maxStack>\n" +
+		"captures: <captures>\n" + // null without closure conversion
+		"usesSelf: <usesSelf>\n" +
+		"hasNonLocalReturn: <hasNonLocalReturn>\n" +
+		"trivial: <trivialKind> <trivialOpcode> <trivialOperand>\n" +
 		"literals: <literals:{s | `<s>`}; separator={,}>\n" + // unique separator
-		"bytecode: <bytecode; separator={ }>" +
+		"bytecode: <bytecode; separator={ }>\n" +
 		"<if(blocks)>" +
 		"blocks:\n"+
 		"    <blocks>" +
@@ -69,9 +87,28 @@ public class STCompiledBlock {
 	/** Cache STString objects for literals */
 	public STString[] literalsAsSTStrings;
 
-	/** The byte code instructions for this specific block, if not primitive. */
+	/** The byte code instructions for this specific block, if not primitive.
+	 *  This is the canonical form used for serialization and disassembly.
+	 */
 	public byte[]     bytecode;
 
+	/** The pre-decoded instructions the VM actually executes: opcode then
+	 *  one int per operand. Computed from {@link #bytecode} at link time
+	 *  by {@link #predecode}. {@link BlockContext#ip} indexes this array.
+	 *  Selector and global name operands are symbol ids, not literal indexes.
+	 */
+	public int[]      code;
+
+	/** Maps an index into {@link #code} to the offset of the same
+	 *  instruction within {@link #bytecode}.
+	 */
+	public int[]      byteOffsets;
+
+	/** One inline cache per SEND/SEND_SUPER/TAIL_SEND, indexed by the offset of the
+	 *  send instruction within {@link #code}; null at other offsets.
+	 */
+	public InlineCache[] sendCaches;
+
 	/** If this is a compiled method, not just a block, this is the list
 	 *  of all nested blocks within the method. The BLOCK instruction refers to
 	 *  them by unique integer and finds them by indexing into this array.
@@ -81,6 +118,75 @@ public class STCompiledBlock {
  	 */
 	public STCompiledBlock[] blocks;
 
+	/** The method this block is nested in, or this block if it is a
+	 *  method. The BLOCK instruction finds blocks in method.blocks.
+	 */
+	public STCompiledBlock method;
+
+	/** Where the BLOCK instruction gets each value it copies into the
+	 *  descriptor when this block was compiled with closure conversion:
+	 *  i means local i of the creating context and ~i its own copied
+	 *  value i. Null without closure conversion; the descriptor then
+	 *  refers to the whole creating context instead.
+	 */
+	public int[] captures;
+
+	/** Does the block need the receiver? Only meaningful with {@link #captures}. */
+	public boolean usesSelf;
+
+	/** Can the block ^ return from its method, so that its descriptor
+	 *  needs the method context? Only meaningful with {@link #captures}.
+	 */
+	public boolean hasNonLocalReturn;
+
+	/** The single descriptor shared by every evaluation of BLOCK for a
+	 *  clean block, created on first use; see {@link #isClean()}.
+	 */
+	public BlockDescriptor cleanDescriptor;
+
+	public static final int NOT_TRIVIAL = 0;
+	public static final int RETURN_FIELD = 1;		// ^field
+	public static final int SET_FIELD = 2;			// field := arg, answering self
+	public static final int RETURN_SELF = 3;		// ^self, or an empty method
+	public static final int RETURN_CONSTANT = 4;	// ^nil, ^true, ^false, ^3 or ^$c
+
+	/** Is this a method so simple that SEND can run it without creating a
+	 *  context? One of the constants above; see {@link Bytecode#classifyTrivial}.
+	 */
+	public int trivialKind = NOT_TRIVIAL;
+
+	/** For RETURN_CONSTANT, the instruction that pushes the constant */
+	public int trivialOpcode;
+
+	/** The field index for RETURN_FIELD and SET_FIELD, or the operand of
+	 *  {@link #trivialOpcode} for RETURN_CONSTANT
+	 */
+	public int trivialOperand;
+
+	/** How often the interpreter invoked this method, and how often it
+	 *  jumped backwards within it; see {@link Jit#compiled}.
+	 */
+	public int invocations;
+	public int backEdges;
+
+	/** The JVM code {@link Jit} compiled this method to, if any */
+	public JitCode jitCode;
+
+	/** Did {@link Jit} try and fail to compile this method? */
+	public boolean jitFailed;
+
+	/** The node tree {@link AstInterpreter} built for this block, if any */
+	public MethodNode ast;
+
+	/** The register code {@link RegisterInterpreter} lowered this block to, if any */
+	public RegisterCode registerCode;
+
+	/** The deepest the operand stack gets while executing this block,
+	 *  computed by the compiler; see {@link Bytecode#maxStack}.
+	 *  {@link BlockContext} allocates exactly this many stack slots.
+	 */
+	public int maxStack;
+
 	/** The fixed number of arguments taken by this method */
 	public final int nargs;
 
@@ -115,12 +221,14 @@ public class STCompiledBlock {
 
         //mark wired
         if(blk.isMethod()){
+            method = this;
             //deal with all blocks
             List<Scope> STBlocks = blk.getAllNestedScopedSymbols();
             blocks = new STCompiledBlock[STBlocks.size()];
             for(int i=0; i<STBlocks.size();i++){
                 STBlock stb = ((STBlock)STBlocks.get(i));
                 blocks[stb.index] = stb.compiledBlock;
+                stb.compiledBlock.method = this;
             }
         }
 
@@ -130,6 +238,22 @@ public class STCompiledBlock {
 
 	public boolean isPrimitive() { return primitive!=null; }
 
+	/** A block compiled with closure conversion that captures no
+	 *  variables, doesn't use self and doesn't ^ return needs nothing from
+	 *  the context creating it, so all its descriptors would be alike.
+	 */
+	public boolean isClean() {
+		return captures!=null && captures.length==0 && !usesSelf && !hasNonLocalReturn;
+	}
+
+	/** Link this block for execution; see {@link Bytecode#predecode}. */
+	public void predecode(SymbolTable symbols) { Bytecode.predecode(this, symbols); }
+
+	/** Map an index into {@link #code} to its offset within {@link #bytecode} */
+	public int byteOffset(int pc) {
+		return pc<byteOffsets.length ? byteOffsets[pc] : bytecode.length;
+	}
+
 	public String toTestString() { return getAsString(testStringTemplate); }
 
 	public String serialize() { return getAsString(serializeTemplate); }
@@ -140,6 +264,13 @@ public class STCompiledBlock {
 		template.add("qualifiedName", qualifiedName);
 		template.add("nargs", nargs);
 		template.add("nlocals", nlocals);
+		template.add("maxStack", maxStack);
+		template.add("captures", Arrays.toString(captures));
+		template.add("usesSelf", usesSelf);
+		template.add("hasNonLocalReturn", hasNonLocalReturn);
+		template.add("trivialKind", trivialKind);
+		template.add("trivialOpcode", trivialOpcode);
+		template.add("trivialOperand", trivialOperand);
 		template.add("literals", literals);
 		template.add("bytecode", bytecode);
 		template.add("assembly", Bytecode.disassemble(this, 0));
@@ -10,7 +10,7 @@ public class STFloat extends STObject {
 	public final float v;
 
 	public STFloat(VirtualMachine vm, float v) {
-		super(vm.lookupClass("Float"));
+		super(vm.core.floatClass);
 		this.v = v;
 	}
 
@@ -90,7 +90,7 @@ public class STFloat extends STObject {
                 break;
             case Float_ASINTEGER:
                 ctx.pop();
-                result = new STInteger(vm,(int)(receiver.v));
+                result = vm.newInteger((int)(receiver.v));
                 break;
             default:
                 break;
@@ -7,7 +7,7 @@ public class STInteger extends STObject {
 	public final int v;
 
 	public STInteger(VirtualMachine vm, int v) {
-		super(vm.lookupClass("Integer"));
+		super(vm.core.integerClass);
 		this.v = v;
 	}
 
@@ -22,6 +22,9 @@ public class STInteger extends STObject {
 //    Integer_EQ(STInteger::perform),
 //    Integer_MOD(STInteger::perform),
 //    Integer_ASFLOAT(STInteger::perform),
+//    Integer_TO_DO(STInteger::perform),
+//    Integer_TO_BY_DO(STInteger::perform),
+//    Integer_TIMES_REPEAT(STInteger::perform),
 	public static STObject perform(BlockContext ctx, int nArgs, Primitive primitive) {
 		VirtualMachine vm = ctx.vm;
 		int firstArg = ctx.sp - nArgs + 1;
@@ -36,74 +39,108 @@ public class STInteger extends STObject {
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
 				v = receiver.v + ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				result = vm.newInteger(v);
 				break;
 			case Integer_SUB:
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
 				v = receiver.v - ((STInteger)ropnd).v;
-				result = new STInteger(vm, v);
+				result = vm.newInteger(v);
 				break;
             case Integer_MULT:
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v * ((STInteger)ropnd).v;
-                result = new STInteger(vm, v);
+                result = vm.newInteger(v);
                 break;
             case Integer_DIV:
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v / ((STInteger)ropnd).v;
-                result = new STInteger(vm, v);
+                result = vm.newInteger(v);
                 break;
             case Integer_LT: //less than
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v - ((STInteger)ropnd).v;
-                result = new STBoolean(vm, v < 0);
+                result = vm.newBoolean(v < 0);
                 break;
             case Integer_LE: //less or equal
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v - ((STInteger)ropnd).v;
-                result = new STBoolean(vm, v <= 0);
+                result = vm.newBoolean(v <= 0);
                 break;
             case Integer_GT:
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v - ((STInteger)ropnd).v;
-                result = new STBoolean(vm, v > 0);
+                result = vm.newBoolean(v > 0);
                 break;
             case Integer_GE:
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v - ((STInteger)ropnd).v;
-                result = new STBoolean(vm, v >= 0);
+                result = vm.newBoolean(v >= 0);
                 break;
 			case Integer_EQ:
 				ropnd = ctx.stack[firstArg]; // get right operand (first arg)
 				ctx.sp--; // pop ropnd
 				ctx.sp--; // pop receiver
-				result = new STBoolean(vm, receiver.v == ((STInteger)ropnd).v);
+				result = vm.newBoolean(receiver.v == ((STInteger)ropnd).v);
 				break;
             case Integer_MOD:
                 ropnd = ctx.stack[firstArg]; // get right operand (first arg)
                 ctx.sp--; // pop ropnd
                 ctx.sp--; // pop receiver
                 v = receiver.v % ((STInteger)ropnd).v;
-                result = new STInteger(vm, v);
+                result = vm.newInteger(v);
                 break;
             case Integer_ASFLOAT:
                 ctx.pop();
                 result = new STFloat(vm, (float)(receiver.v));
                 break;
+            // The loops run the block in place via invokeBlock, one context
+            // deep, and answer the receiver like the recursive versions did.
+            // A null from invokeBlock means the block did a ^ return.
+            case Integer_TO_DO: {
+                int n = ((STInteger)ctx.stack[firstArg]).v;
+                BlockDescriptor blk = (BlockDescriptor)ctx.stack[firstArg+1];
+                ctx.sp -= 3;
+                for (long i = receiver.v; i <= n; i++) {
+                    if ( vm.invokeBlock(blk, vm.newInteger((int)i))==null ) return null;
+                }
+                result = receiver;
+                break;
+            }
+            case Integer_TO_BY_DO: {
+                int n = ((STInteger)ctx.stack[firstArg]).v;
+                int step = ((STInteger)ctx.stack[firstArg+1]).v;
+                BlockDescriptor blk = (BlockDescriptor)ctx.stack[firstArg+2];
+                ctx.sp -= 4;
+                if ( step==0 ) vm.error("to:by:do: step must not be zero");
+                for (long i = receiver.v; step>0 ? i <= n : i >= n; i += step) {
+                    if ( vm.invokeBlock(blk, vm.newInteger((int)i))==null ) return null;
+                }
+                result = receiver;
+                break;
+            }
+            case Integer_TIMES_REPEAT: {
+                BlockDescriptor blk = (BlockDescriptor)ctx.stack[firstArg];
+                ctx.sp -= 2;
+                for (int i = 0; i < receiver.v; i++) {
+                    if ( vm.invokeBlock(blk)==null ) return null;
+                }
+                result = receiver;
+                break;
+            }
             default:
                 break;
 		}
@@ -25,8 +25,17 @@ public class STMetaClassObject extends STObject {
 	public STMetaClassObject superClass;
 
 	public final List<String> fields;
+
+	/** The methods defined in this class, not including inherited ones */
 	public final Map<String,STCompiledBlock> methods;
 
+	/** All methods understood by instances of this class, inherited ones
+	 *  included, indexed by selector id from {@link VirtualMachine#symbols}.
+	 *  Built by {@link #buildMethodTable()} once all classes are installed;
+	 *  null means not built yet.
+	 */
+	public STCompiledBlock[] methodTable;
+
 	public STMetaClassObject(VirtualMachine vm, STClass classSymbol) {
 		super(null); // metaclass for a metaclass is 'this' but 'this' doesn't exist yet; see override of getSTClass()
 
@@ -52,18 +61,37 @@ public class STMetaClassObject extends STObject {
 		methods = new HashMap<>();
 		for (MethodSymbol m : classSymbol.getDefinedMethods()) {
 			methods.put(m.getName(), ((STMethod)m).compiledBlock);
+			vm.symbols.intern(m.getName());
 		}
 
 
-        // set enclosingClass for all nested blocks within method
+        // set enclosingClass for all nested blocks within method and
+        // link them for execution
         for (STCompiledBlock blk1 : methods.values()){
-            blk1.enclosingClass = this;
-            for (STCompiledBlock blk2 : blk1.blocks){
-                blk2.enclosingClass = this;
-            }
+            link(blk1);
         }
 	}
 
+	/** Add or replace a method after construction. Any send may now
+	 *  resolve differently, so the VM's method caches are invalidated.
+	 */
+	public void defineMethod(String name, STCompiledBlock method) {
+		link(method);
+		methods.put(name, method);
+		vm.symbols.intern(name);
+		vm.buildMethodTables();
+		vm.invalidateMethodCaches();
+	}
+
+	protected void link(STCompiledBlock method) {
+		method.enclosingClass = this;
+		method.predecode(vm.symbols);
+		for (STCompiledBlock blk : method.blocks) {
+			blk.enclosingClass = this;
+			blk.predecode(vm.symbols);
+		}
+	}
+
 	@Override
 	public STMetaClassObject getSTClass() {
 		return this;
@@ -93,24 +121,32 @@ public class STMetaClassObject extends STObject {
 
 	public String getName() { return name; }
 
-	public STCompiledBlock resolveMethod(String name) {
-        //mark methods?
+	/** Flatten this class' method dictionary and those of all its
+	 *  superclasses into {@link #methodTable}. The superclass table is
+	 *  built first and copied, then this class' own methods override.
+	 */
+	public void buildMethodTable() {
+		STCompiledBlock[] table = new STCompiledBlock[vm.symbols.size()];
+		if ( superClass!=null ) {
+			if ( superClass.methodTable==null ) superClass.buildMethodTable();
+			STCompiledBlock[] inherited = superClass.methodTable;
+			System.arraycopy(inherited, 0, table, 0, Math.min(inherited.length, table.length));
+		}
+		for (Map.Entry<String,STCompiledBlock> m : methods.entrySet()) {
+			table[vm.symbols.lookup(m.getKey())] = m.getValue();
+		}
+		methodTable = table;
+	}
 
-		STCompiledBlock blk = methods.get(name);
-//        if ( name.equals("at:put:")){
-//            blk = vm.systemDict.lookupClass("Array").methods.get(name);
-//            superClass = vm.systemDict.lookupClass("Collection");
-//        }
-//        if(blk != null )
-//            System.out.println(blk.name);
-        if(blk == null){
-//            if ( superClass != null) {
-                blk = superClass.resolveMethod(name);
-//            }else {
-//                superClass = vm.systemDict.lookupClass("Collection");
-//            }
-        }
-		return blk;
+	/** Return the method for selector id or null if not understood */
+	public STCompiledBlock lookupMethod(int selector) {
+		if ( methodTable==null ) buildMethodTable();
+		return selector>=0 && selector<methodTable.length ? methodTable[selector] : null;
+	}
+
+	/** Return the method for name, inherited or not, or null if not understood */
+	public STCompiledBlock resolveMethod(String name) {
+		return lookupMethod(vm.symbols.lookup(name));
 	}
 
 	public int getNumberOfFields() {
@@ -4,7 +4,7 @@ import smalltalk.vm.VirtualMachine;
 
 public class STNil extends STObject {
 	public STNil(VirtualMachine vm) {
-		super(vm.lookupClass("UndefinedObject"));
+		super(vm.core.undefinedObjectClass);
 	}
 
 	@Override
@@ -81,7 +81,7 @@ public class STObject {
 				STObject y = ctx.stack[firstArg]; // get right operand (first arg)
 				//System.out.println("SAME "+x+", "+y);
 				ctx.sp -= 2;
-				result = vm.newBoolean(x == y);
+				result = vm.newBoolean(same(x, y));
 				break;
 			case Object_HASH:
                 ctx.sp--;
@@ -91,6 +91,22 @@ public class STObject {
 		return result;
 	}
 
+	/** Are x and y the same object? Integers and Characters are compared
+	 *  by value: the VM shares instances only for small values (see
+	 *  {@link VirtualMachine#newInteger} and {@link VirtualMachine#newChar}),
+	 *  and == shouldn't depend on which values those are.
+	 */
+	public static boolean same(STObject x, STObject y) {
+		if ( x==y ) return true;
+		if ( x instanceof STInteger && y instanceof STInteger ) {
+			return ((STInteger)x).v == ((STInteger)y).v;
+		}
+		if ( x instanceof STCharacter && y instanceof STCharacter ) {
+			return ((STCharacter)x).c == ((STCharacter)y).c;
+		}
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		if ( metaclass==null ) return "<no classdef>";
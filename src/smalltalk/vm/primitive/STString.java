@@ -10,7 +10,7 @@ public class STString extends STObject {
 	}
 
 	public STString(VirtualMachine vm, String s) {
-		super(vm.lookupClass("String"));
+		super(vm.core.stringClass);
 		this.s = s;
 	}
 
@@ -39,12 +39,13 @@ public class STString extends STObject {
             case String_EQ:
                 obj = ctx.pop();
                 ctx.sp--;
-                result = new STBoolean(vm,obj.toString().equals(receiverObj.toString()));
+                result = vm.newBoolean(obj.toString().equals(receiverObj.toString()));
                 break;
             case String_ASARRAY:
+                ctx.sp--; // pop receiver
                 STObject[] cArray = new STObject[receiverObj.toString().length()];
                 for (int i=0;i<receiverObj.toString().length();i++){
-                    cArray[i]=new STCharacter(vm,receiverObj.toString().charAt(i));
+                    cArray[i]=vm.newChar(receiverObj.toString().charAt(i));
                 }
                 result = new STArray(vm,cArray);
                 break;
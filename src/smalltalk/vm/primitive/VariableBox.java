@@ -0,0 +1,24 @@
+package smalltalk.vm.primitive;
+
+/** A heap cell holding a local variable that blocks capture but that can
+ *  still be assigned after they copy it. The local's slot and the
+ *  {@link BlockDescriptor#copied} values of the blocks all refer to the
+ *  same box, so they see each other's assignments without the blocks
+ *  keeping the defining context alive.
+ *
+ *  Like BlockDescriptor, this extends STObject only so it can sit in a
+ *  locals array; Smalltalk code never sees one.
+ */
+public class VariableBox extends STObject {
+	public STObject value;
+
+	public VariableBox(STObject value) {
+		super(null);
+		this.value = value;
+	}
+
+	@Override
+	public String toString() {
+		return "a VariableBox";
+	}
+}
@@ -0,0 +1,236 @@
+package smalltalk.vm.register;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STObject;
+
+/** The register form of one method or block, lowered from its pre-decoded
+ *  stack code by {@link RegisterLowering} and run by
+ *  {@link RegisterInterpreter}.
+ *
+ *  Instructions name their operands and result directly instead of
+ *  going through the operand stack. A register is one of:
+ *
+ *  <ul>
+ *  <li>0..nlocals-1: an argument or local of the context;</li>
+ *  <li>nlocals and up: a temporary, which is the operand stack slot a
+ *  value would have had in the stack code, so temporary nlocals+k lives
+ *  in slot k of the context's stack;</li>
+ *  <li>{@link #SELF}: the receiver;</li>
+ *  <li>below that, an entry of {@link #constants}.</li>
+ *  </ul>
+ *
+ *  Only locals and temporaries can be written. Like the stack code, the
+ *  instructions are ints: an opcode followed by its operands, with
+ *  {@link #size} giving the length of each.
+ */
+public class RegisterCode {
+	public static final int SELF = -1;
+	/** Register of constant i is CONSTANT-i */
+	public static final int CONSTANT = -2;
+
+	// INSTRUCTIONS; dst and src are registers
+
+	public static final int MOVE			= 1;	// src, dst
+	public static final int LOAD_INT		= 2;	// value, dst; for Integers the VM doesn't share
+	public static final int LOAD_CHAR		= 3;	// value, dst; for Characters the VM doesn't share
+	public static final int LOAD_FLOAT		= 4;	// float bits, dst
+	public static final int LOAD_FIELD		= 5;	// field, dst
+	public static final int STORE_FIELD		= 6;	// src, field
+	public static final int LOAD_OUTER		= 7;	// depth, index, dst: local of an enclosing context
+	public static final int STORE_OUTER		= 8;	// src, depth, index
+	public static final int LOAD_LITERAL	= 9;	// literal, dst
+	public static final int LOAD_GLOBAL		= 10;	// symbol, dst
+	public static final int LOAD_COPY		= 11;	// index, dst
+	public static final int LOAD_COPY_BOX	= 12;	// index, dst
+	public static final int STORE_COPY_BOX	= 13;	// src, index
+	public static final int LOAD_BOX		= 14;	// local, dst
+	public static final int STORE_BOX		= 15;	// src, local
+	public static final int BOX_LOCAL		= 16;	// local
+	public static final int ARRAY			= 17;	// n, dst, r1..rn
+	public static final int BLOCK			= 18;	// block, dst
+	public static final int STACK_BLOCK		= 19;	// block, dst
+	public static final int SEND			= 20;	// op, nargs, selector, slot, r0..rn; result in slot
+	public static final int SPECIAL_SEND	= 21;	// op, selector, r0, r1, dst, slot; a MOVE slot, dst follows if dst is a local
+	public static final int JUMP			= 22;	// target
+	public static final int JUMP_IF_TRUE	= 23;	// src, target, fallback, slot
+	public static final int JUMP_IF_FALSE	= 24;	// src, target, fallback, slot
+	public static final int RETURN			= 25;	// src, slot
+	public static final int BLOCK_RETURN	= 26;	// src
+	public static final int DBG				= 27;	// literal, line and char pos
+
+	/** Used for disassembly, indexed by opcode */
+	public static final String[] names = {
+		null, "move", "load_int", "load_char", "load_float", "load_field", "store_field",
+		"load_outer", "store_outer", "load_literal", "load_global", "load_copy", "load_copy_box",
+		"store_copy_box", "load_box", "store_box", "box_local", "array", "block", "stack_block",
+		"send", "special_send", "jump", "jump_if_true", "jump_if_false", "return",
+		"block_return", "dbg"
+	};
+
+	public final STCompiledBlock block;
+	public final RegisterInterpreter interpreter;
+
+	public final int[] code;
+	/** Registers below this are locals */
+	public final int nlocals;
+	public final STObject[] constants;
+	/** Where each instruction came from in the stack code, indexed by
+	 *  the instruction's address; sends and returns set
+	 *  {@link BlockContext#prev_ip} from it.
+	 */
+	public final int[] pcs;
+
+	public RegisterCode(STCompiledBlock block, RegisterInterpreter interpreter, int[] code,
+						STObject[] constants, int[] pcs)
+	{
+		this.block = block;
+		this.interpreter = interpreter;
+		this.code = code;
+		this.nlocals = block.nargs + block.nlocals;
+		this.constants = constants;
+		this.pcs = pcs;
+	}
+
+	public STObject get(BlockContext ctx, int r) {
+		if ( r>=nlocals ) return ctx.stack[ctx.stackBase + r - nlocals];
+		if ( r>=0 ) return ctx.locals[ctx.localsBase + r];
+		if ( r==SELF ) return ctx.receiver;
+		return constants[CONSTANT - r];
+	}
+
+	public void set(BlockContext ctx, int r, STObject v) {
+		if ( r>=nlocals ) ctx.stack[ctx.stackBase + r - nlocals] = v;
+		else ctx.locals[ctx.localsBase + r] = v;
+	}
+
+	/** How many ints the instruction at ip occupies, including the opcode */
+	public static int size(int[] code, int ip) {
+		switch ( code[ip] ) {
+			case BOX_LOCAL :
+			case JUMP :
+			case BLOCK_RETURN :
+				return 2;
+			case LOAD_OUTER :
+			case STORE_OUTER :
+				return 4;
+			case ARRAY :
+				return 3 + code[ip+1];
+			case SEND :
+				return 6 + code[ip+2];
+			case SPECIAL_SEND :
+				return 7;
+			case JUMP_IF_TRUE :
+			case JUMP_IF_FALSE :
+				return 5;
+			default :
+				return 3;
+		}
+	}
+
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (int ip=0; ip<code.length; ip+=size(code, ip)) {
+			buf.append(String.format("%04d: ", ip));
+			disassembleInstruction(buf, ip);
+			buf.append('\n');
+		}
+		return buf.toString();
+	}
+
+	public void disassembleInstruction(StringBuilder buf, int ip) {
+		int op = code[ip];
+		buf.append(names[op]);
+		switch ( op ) {
+			case MOVE :
+				buf.append(' ').append(register(code[ip+1])).append(" -> ").append(register(code[ip+2]));
+				break;
+			case LOAD_INT :
+			case LOAD_CHAR :
+			case LOAD_FIELD :
+			case LOAD_COPY :
+			case LOAD_COPY_BOX :
+			case LOAD_BOX :
+			case BLOCK :
+			case STACK_BLOCK :
+				buf.append(' ').append(code[ip+1]).append(" -> ").append(register(code[ip+2]));
+				break;
+			case LOAD_FLOAT :
+				buf.append(' ').append(Float.intBitsToFloat(code[ip+1])).append(" -> ").append(register(code[ip+2]));
+				break;
+			case LOAD_LITERAL :
+				buf.append(" '").append(block.literals[code[ip+1]]).append("' -> ").append(register(code[ip+2]));
+				break;
+			case LOAD_GLOBAL :
+				buf.append(" #").append(interpreter.vm.symbols.name(code[ip+1])).append(" -> ").append(register(code[ip+2]));
+				break;
+			case STORE_FIELD :
+			case STORE_COPY_BOX :
+			case STORE_BOX :
+				buf.append(' ').append(register(code[ip+1])).append(" -> ").append(code[ip+2]);
+				break;
+			case LOAD_OUTER :
+				buf.append(' ').append(code[ip+1]).append(", ").append(code[ip+2]);
+				buf.append(" -> ").append(register(code[ip+3]));
+				break;
+			case STORE_OUTER :
+				buf.append(' ').append(register(code[ip+1])).append(" -> ");
+				buf.append(code[ip+2]).append(", ").append(code[ip+3]);
+				break;
+			case BOX_LOCAL :
+				buf.append(' ').append(register(code[ip+1]));
+				break;
+			case ARRAY :
+				buf.append(' ');
+				operands(buf, ip+3, code[ip+1]);
+				buf.append(" -> ").append(register(code[ip+2]));
+				break;
+			case SEND : {
+				int nargs = code[ip+2];
+				if ( code[ip+1]==Bytecode.SEND_SUPER ) buf.append(" super");
+				buf.append(" #").append(interpreter.vm.symbols.name(code[ip+3])).append(' ');
+				operands(buf, ip+5, nargs+1);
+				buf.append(" -> ").append(register(nlocals + code[ip+4]));
+				break;
+			}
+			case SPECIAL_SEND :
+				buf.append(' ').append(Bytecode.specialSelectors[code[ip+1]-Bytecode.SEND_ADD]).append(' ');
+				operands(buf, ip+3, 2);
+				buf.append(" -> ").append(register(code[ip+5]));
+				break;
+			case JUMP :
+				buf.append(' ').append(code[ip+1]);
+				break;
+			case JUMP_IF_TRUE :
+			case JUMP_IF_FALSE :
+				buf.append(' ').append(register(code[ip+1])).append(", ").append(code[ip+2]);
+				buf.append(", ").append(code[ip+3]);
+				break;
+			case RETURN :
+			case BLOCK_RETURN :
+				buf.append(' ').append(register(code[ip+1]));
+				break;
+			case DBG :
+				buf.append(' ').append(block.literals[code[ip+1]]).append(':');
+				buf.append(Bytecode.lineFromCombined(code[ip+2])).append(':');
+				buf.append(Bytecode.charPosFromCombined(code[ip+2]));
+				break;
+		}
+	}
+
+	void operands(StringBuilder buf, int start, int n) {
+		for (int i=0; i<n; i++) {
+			if ( i>0 ) buf.append(", ");
+			buf.append(register(code[start+i]));
+		}
+	}
+
+	/** l0.. for locals, t0.. for temporaries, self, or a constant's value */
+	public String register(int r) {
+		if ( r>=nlocals ) return "t"+(r-nlocals);
+		if ( r>=0 ) return "l"+r;
+		if ( r==SELF ) return "self";
+		return String.valueOf(constants[CONSTANT - r]);
+	}
+}
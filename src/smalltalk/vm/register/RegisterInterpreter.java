@@ -0,0 +1,321 @@
+package smalltalk.vm.register;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.BlockContext;
+import smalltalk.vm.primitive.BlockDescriptor;
+import smalltalk.vm.primitive.STArray;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject;
+import smalltalk.vm.primitive.VariableBox;
+
+import static smalltalk.vm.register.RegisterCode.*;
+
+/** An execution engine that runs the {@link RegisterCode} of each block
+ *  instead of its stack code. {@link RegisterLowering} makes it the first
+ *  time the block runs and it is kept in
+ *  {@link STCompiledBlock#registerCode}.
+ *
+ *  Contexts are the same as under the bytecode loop, and like that loop
+ *  this one runs every context on one Java frame: ctx.ip is an address in
+ *  the register code, and sends and returns switch contexts just as SEND
+ *  and RETURN do. A send leaves its result in its receiver's stack slot,
+ *  so returning into a context works unchanged. That includes a special
+ *  send whose result goes straight to a local: the MOVE after it copies
+ *  the result from the slot when it has to be sent after all, and is
+ *  skipped when it isn't.
+ */
+public class RegisterInterpreter {
+	public final VirtualMachine vm;
+
+	/** How many blocks were lowered? */
+	public int blocksLowered;
+
+	/** How many instructions has the loop executed? Compare with
+	 *  {@link VirtualMachine#dispatched}. Only counted with
+	 *  {@link VirtualMachine#countDispatched} on.
+	 */
+	public long dispatched;
+
+	public RegisterInterpreter(VirtualMachine vm) {
+		this.vm = vm;
+	}
+
+	/** Run the active context, as {@link VirtualMachine#run} does, until it
+	 *  returns into a context at stopDepth or shallower.
+	 */
+	public void run(int stopDepth) {
+		BlockContext ctx = vm.ctx;
+		if ( ctx==null || ctx.depth<=stopDepth ) return;
+		boolean count = vm.countDispatched;
+		// rc and code must be reloaded whenever ctx changes
+		RegisterCode rc = code(ctx.compiledBlock);
+		int[] code = rc.code;
+		while ( ctx.ip < code.length ) {
+			int ip = ctx.ip;
+			if ( count ) dispatched++;
+			switch ( code[ip] ) {
+				case MOVE:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], rc.get(ctx, code[ip+1]));
+					break;
+				case LOAD_INT:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.newInteger(code[ip+1]));
+					break;
+				case LOAD_CHAR:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.newChar(code[ip+1]));
+					break;
+				case LOAD_FLOAT:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.newFloat(Float.intBitsToFloat(code[ip+1])));
+					break;
+				case LOAD_FIELD:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], ctx.receiver.fields[code[ip+1]]);
+					break;
+				case STORE_FIELD:
+					ctx.ip = ip + 3;
+					ctx.receiver.fields[code[ip+2]] = rc.get(ctx, code[ip+1]);
+					break;
+				case LOAD_OUTER: {
+					ctx.ip = ip + 4;
+					BlockContext blk = outer(ctx, code[ip+1]);
+					rc.set(ctx, code[ip+3], blk.locals[blk.localsBase + code[ip+2]]);
+					break;
+				}
+				case STORE_OUTER: {
+					ctx.ip = ip + 4;
+					BlockContext blk = outer(ctx, code[ip+2]);
+					blk.locals[blk.localsBase + code[ip+3]] = rc.get(ctx, code[ip+1]);
+					break;
+				}
+				case LOAD_LITERAL:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.newString(ctx.compiledBlock.literals[code[ip+1]]));
+					break;
+				case LOAD_GLOBAL:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.systemDict.lookup(code[ip+1]));
+					break;
+				case LOAD_COPY:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], ctx.copied[code[ip+1]]);
+					break;
+				case LOAD_COPY_BOX:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], ((VariableBox)ctx.copied[code[ip+1]]).value);
+					break;
+				case STORE_COPY_BOX:
+					ctx.ip = ip + 3;
+					((VariableBox)ctx.copied[code[ip+2]]).value = rc.get(ctx, code[ip+1]);
+					break;
+				case LOAD_BOX:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], ((VariableBox)ctx.locals[ctx.localsBase + code[ip+1]]).value);
+					break;
+				case STORE_BOX:
+					ctx.ip = ip + 3;
+					((VariableBox)ctx.locals[ctx.localsBase + code[ip+2]]).value = rc.get(ctx, code[ip+1]);
+					break;
+				case BOX_LOCAL: {
+					ctx.ip = ip + 2;
+					int index = ctx.localsBase + code[ip+1];
+					ctx.locals[index] = new VariableBox(ctx.locals[index]);
+					break;
+				}
+				case ARRAY: {
+					int n = code[ip+1];
+					ctx.ip = ip + 3 + n;
+					STObject[] elements = new STObject[n];
+					for (int i=0; i<n; i++) {
+						elements[i] = rc.get(ctx, code[ip+3+i]);
+					}
+					rc.set(ctx, code[ip+2], new STArray(vm, elements));
+					break;
+				}
+				case BLOCK: {
+					ctx.ip = ip + 3;
+					STCompiledBlock blk = ctx.compiledBlock.method.blocks[code[ip+1]];
+					if ( blk.captures!=null ) {
+						rc.set(ctx, code[ip+2], vm.newClosure(blk));
+					}
+					else {
+						ctx.materialize(); // the descriptor captures ctx
+						rc.set(ctx, code[ip+2], new BlockDescriptor(blk, ctx));
+					}
+					break;
+				}
+				case STACK_BLOCK:
+					ctx.ip = ip + 3;
+					rc.set(ctx, code[ip+2], vm.stackBlock(ctx.compiledBlock.method.blocks[code[ip+1]], code[ip+1]));
+					break;
+				case SEND: {
+					int nargs = code[ip+2];
+					ctx.ip = ip + 6 + nargs;
+					ctx.prev_ip = rc.pcs[ip];
+					int slot = ctx.stackBase + code[ip+4];
+					for (int i=0; i<=nargs; i++) {
+						ctx.stack[slot+i] = rc.get(ctx, code[ip+5+i]);
+					}
+					ctx.sp = slot + nargs;
+					if ( !send(ctx, code[ip+1], nargs, code[ip+3], rc.pcs[ip], stopDepth) ) return;
+					if ( vm.ctx!=ctx ) {
+						ctx = vm.ctx;
+						rc = code(ctx.compiledBlock);
+						code = rc.code;
+					}
+					break;
+				}
+				case SPECIAL_SEND: {
+					int op = code[ip+1];
+					STObject receiver = rc.get(ctx, code[ip+3]);
+					STObject arg = rc.get(ctx, code[ip+4]);
+					int dst = code[ip+5];
+					ctx.ip = ip + 7;
+					STObject result = vm.specialSend(op, receiver, arg);
+					if ( result!=null ) {
+						rc.set(ctx, dst, result);
+						if ( dst!=rc.nlocals + code[ip+6] ) ctx.ip = ip + 10; // skip the MOVE from the slot
+						break;
+					}
+					// not two numbers, or the operator was redefined: send it
+					ctx.prev_ip = rc.pcs[ip];
+					int slot = ctx.stackBase + code[ip+6];
+					ctx.stack[slot] = receiver;
+					ctx.stack[slot+1] = arg;
+					ctx.sp = slot + 1;
+					if ( !send(ctx, op, 1, code[ip+2], rc.pcs[ip], stopDepth) ) return;
+					if ( vm.ctx!=ctx ) {
+						ctx = vm.ctx;
+						rc = code(ctx.compiledBlock);
+						code = rc.code;
+					}
+					break;
+				}
+				case JUMP:
+					ctx.ip = code[ip+1];
+					break;
+				case JUMP_IF_TRUE:
+				case JUMP_IF_FALSE: {
+					STObject cond = rc.get(ctx, code[ip+1]);
+					if ( cond==vm.trueObject || cond==vm.falseObject ) {
+						boolean jump = (cond==vm.trueObject) == (code[ip]==JUMP_IF_TRUE);
+						ctx.ip = jump ? code[ip+2] : ip + 5;
+					}
+					else { // not a Boolean; leave it on the stack for the fallback send
+						ctx.sp = ctx.stackBase + code[ip+4];
+						ctx.stack[ctx.sp] = cond;
+						ctx.ip = code[ip+3];
+					}
+					break;
+				}
+				case BLOCK_RETURN: {
+					ctx.ip = ip + 2;
+					STObject br = rc.get(ctx, code[ip+1]);
+					vm.popContext();
+					ctx = vm.ctx;
+					ctx.push(br);
+					if ( ctx.depth<=stopDepth ) return;
+					rc = code(ctx.compiledBlock);
+					code = rc.code;
+					break;
+				}
+				case RETURN: {
+					ctx.ip = ip + 3;
+					ctx.prev_ip = rc.pcs[ip];
+					STObject r = rc.get(ctx, code[ip+1]);
+					BlockContext home = ctx.enclosingMethodContext;
+					// deal with double return: can't return from a method that already returned
+					if ( home.enclosingContext==BlockContext.RETURNED ) {
+						ctx.sp = ctx.stackBase + code[ip+2] - 1;
+						vm.error("BlockCannotReturn", ctx.compiledBlock.enclosingClass.getName() + ">>" +
+								 ctx.compiledBlock.name + " can't trigger return again from method " +
+								 home.compiledBlock.qualifiedName);
+					}
+					vm.ctx = home;
+					home.enclosingContext = BlockContext.RETURNED;
+					vm.popContext();
+					ctx = vm.ctx;
+					if ( ctx==null ) {
+						vm.returnValue = r;
+						return;
+					}
+					ctx.push(r);
+					if ( ctx.depth<=stopDepth ) return;
+					rc = code(ctx.compiledBlock);
+					code = rc.code;
+					break;
+				}
+				case DBG:
+					ctx.ip = ip + 3;
+					ctx.currentFile = ctx.compiledBlock.literals[code[ip+1]];
+					ctx.currentCharPos = Bytecode.charPosFromCombined(code[ip+2]);
+					ctx.currentLine = Bytecode.lineFromCombined(code[ip+2]);
+					break;
+				default:
+					throw new IllegalArgumentException("invalid register opcode "+code[ip]+" at "+ip+" of "+
+													   ctx.compiledBlock.qualifiedName);
+			}
+		}
+	}
+
+	/** Send to the receiver and nargs arguments on top of ctx's stack as
+	 *  SEND does: the result replaces them now, or once the callee
+	 *  context that becomes active returns. Return false if a ^ return out
+	 *  of a block that a primitive ran unwound to stopDepth or past.
+	 */
+	protected boolean send(BlockContext ctx, int op, int nargs, int selector, int pc, int stopDepth) {
+		STObject receiver = ctx.stack[ctx.sp - nargs];
+		STMetaClassObject cl = receiver.getSTClass();
+		boolean isClass = receiver instanceof STMetaClassObject;
+		InlineCache ic = ctx.compiledBlock.sendCaches[pc];
+		STCompiledBlock stb = ic.generation==vm.cacheGeneration ? ic.lookup(cl, isClass) : null;
+		if ( stb!=null ) {
+			ic.hits++;
+		}
+		else {
+			stb = vm.cacheMiss(ic, op, receiver, isClass, selector);
+		}
+		if ( ctx.liveStackBlocks>0 ) vm.passStackBlocks(stb, nargs);
+		if ( stb.trivialKind!=STCompiledBlock.NOT_TRIVIAL ) {
+			STObject result = vm.runTrivial(stb, receiver, ctx.top());
+			ctx.sp -= nargs + 1;
+			ctx.push(result);
+		}
+		else if ( stb.isPrimitive() ) {
+			STObject result = stb.primitive.perform(ctx, nargs);
+			if ( vm.ctx==null || vm.ctx.depth<=stopDepth ) return false; // ^ out of a block the primitive invoked
+			if ( result!=null ) vm.ctx.push(result);
+		}
+		else if ( !vm.useFrameStack || !vm.activateFrame(stb, receiver, nargs) ) {
+			BlockContext callee = new BlockContext(vm, stb, receiver);
+			for (int j=nargs-1; j>=0; j--) {
+				callee.locals[j] = ctx.pop();
+			}
+			ctx.pop();
+			vm.pushContext(callee);
+		}
+		return true;
+	}
+
+	/** The register code of blk for this interpreter, lowered on first use */
+	public RegisterCode code(STCompiledBlock blk) {
+		RegisterCode c = blk.registerCode;
+		if ( c==null || c.interpreter!=this ) { // compiled blocks are shared by VMs
+			if ( blk.code==null ) blk.predecode(vm.symbols);
+			c = new RegisterLowering(vm, blk).lower(this);
+			blk.registerCode = c;
+			blocksLowered++;
+		}
+		return c;
+	}
+
+	static BlockContext outer(BlockContext ctx, int depth) {
+		for (int j=0; j<depth; j++) ctx = ctx.enclosingContext;
+		return ctx;
+	}
+}
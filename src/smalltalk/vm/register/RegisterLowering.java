@@ -0,0 +1,366 @@
+package smalltalk.vm.register;
+
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/** Lower a block's pre-decoded stack code to {@link RegisterCode}.
+ *
+ *  The code is cut into basic blocks at every jump target, fallback
+ *  address and instruction after a conditional jump, as
+ *  {@link smalltalk.vm.ast.TreeBuilder} does. Within a basic block the
+ *  lowering simulates the operand stack with the register holding each
+ *  value. Pushing self, a constant or a local of this context just
+ *  names that register; nothing is emitted until an instruction uses the
+ *  value, and that instruction reads the register directly. Other pushes
+ *  load into the value's temporary, the stack slot it would have had.
+ *  An instruction that computes a value into the top temporary and is
+ *  followed by a store to a local writes the local instead. A special
+ *  send that does is followed by a MOVE from its temporary to the
+ *  local, which only runs when it has to be sent after all; see
+ *  {@link RegisterInterpreter}.
+ *
+ *  A value only named by its register must be moved to its own slot
+ *  when that register may change before the value is used: when the
+ *  local is stored to or boxed, and before anything that may send,
+ *  which might run a block that writes the local. Sends move every value
+ *  below their operands, so the context's stack looks just as it would
+ *  under the bytecode loop to the callee and to stack dumps; so do the
+ *  ends of basic blocks, so each starts with its values in their slots.
+ */
+public class RegisterLowering {
+	protected final VirtualMachine vm;
+	protected final STCompiledBlock blk;
+	protected final int[] code;
+	protected final int nlocals;
+
+	/** Operand stack depth before each instruction; -1 if unreachable */
+	protected int[] depth;
+	protected boolean[] leader;
+	/** Address of the register code for each basic block, by the pc it starts at */
+	protected int[] address;
+
+	protected int[] out = new int[64];
+	protected int[] pcs = new int[64];
+	protected int n = 0;
+	/** Addresses in out holding a stack code pc to turn into an address */
+	protected final List<Integer> jumps = new ArrayList<>();
+	protected final List<STObject> constants = new ArrayList<>();
+
+	/** The simulated stack of the basic block being lowered: the register holding each value */
+	protected int[] stack;
+	protected int sp;
+	/** Address of the dst operand of the last instruction emitted, if it
+	 *  computed the top value into its slot; -1 otherwise.
+	 */
+	protected int retargetable = -1;
+	/** Address of the last SPECIAL_SEND emitted; -1 if none */
+	protected int specialSend = -1;
+
+	public RegisterLowering(VirtualMachine vm, STCompiledBlock blk) {
+		this.vm = vm;
+		this.blk = blk;
+		this.code = blk.code;
+		this.nlocals = blk.nargs + blk.nlocals;
+		this.stack = new int[blk.maxStack+1];
+	}
+
+	public RegisterCode lower(RegisterInterpreter interpreter) {
+		findBlocks();
+		address = new int[code.length];
+		for (int pc=0; pc<code.length; pc++) {
+			if ( leader[pc] && depth[pc]>=0 ) lowerBlock(pc);
+		}
+		for (int j : jumps) {
+			int target = out[j];
+			out[j] = target<code.length ? address[target] : n;
+		}
+		return new RegisterCode(blk, interpreter, Arrays.copyOf(out, n),
+								constants.toArray(new STObject[constants.size()]), Arrays.copyOf(pcs, n));
+	}
+
+	protected void lowerBlock(int start) {
+		address[start] = n;
+		sp = depth[start];
+		for (int k=0; k<sp; k++) stack[k] = slot(k);
+		retargetable = -1;
+		int pc = start;
+		while ( true ) {
+			if ( pc>=code.length || (pc>start && leader[pc]) ) { // run off the end or into the next block
+				flush();
+				return;
+			}
+			if ( instruction(pc) ) return;
+			pc += Bytecode.decodedSize(code[pc]);
+		}
+	}
+
+	/** Lower the instruction at pc, returning true if it ends the basic block */
+	protected boolean instruction(int pc) {
+		int op = code[pc];
+		int opnd = code.length>pc+1 ? code[pc+1] : 0;
+		switch ( op ) {
+			case Bytecode.NIL :				push(constant(vm.nil())); break;
+			case Bytecode.SELF :			push(RegisterCode.SELF); break;
+			case Bytecode.TRUE :			push(constant(vm.trueObject)); break;
+			case Bytecode.FALSE :			push(constant(vm.falseObject)); break;
+			case Bytecode.PUSH_CHAR :
+				if ( (char)opnd<vm.characters.length ) push(constant(vm.newChar((char)opnd)));
+				else load(pc, RegisterCode.LOAD_CHAR, (char)opnd);
+				break;
+			case Bytecode.PUSH_INT :
+				if ( vm.smallIntegers!=null && opnd>=VirtualMachine.MIN_CACHED_INT &&
+					 opnd<=VirtualMachine.MAX_CACHED_INT )
+				{
+					push(constant(vm.newInteger(opnd)));
+				}
+				else load(pc, RegisterCode.LOAD_INT, opnd);
+				break;
+			case Bytecode.PUSH_FLOAT :		load(pc, RegisterCode.LOAD_FLOAT, opnd); break;
+			case Bytecode.PUSH_FIELD :		load(pc, RegisterCode.LOAD_FIELD, opnd); break;
+			case Bytecode.PUSH_LITERAL :	load(pc, RegisterCode.LOAD_LITERAL, opnd); break;
+			case Bytecode.PUSH_GLOBAL :		load(pc, RegisterCode.LOAD_GLOBAL, opnd); break;
+			case Bytecode.PUSH_COPY :		load(pc, RegisterCode.LOAD_COPY, opnd); break;
+			case Bytecode.PUSH_COPY_BOX :	load(pc, RegisterCode.LOAD_COPY_BOX, opnd); break;
+			case Bytecode.PUSH_BOX :		load(pc, RegisterCode.LOAD_BOX, opnd); break;
+			case Bytecode.BLOCK :			load(pc, RegisterCode.BLOCK, opnd); break;
+			case Bytecode.STACK_BLOCK :		load(pc, RegisterCode.STACK_BLOCK, opnd); break;
+			case Bytecode.PUSH_LOCAL :
+				if ( opnd==0 ) push(code[pc+2]);
+				else {
+					emit(pc, RegisterCode.LOAD_OUTER, opnd, code[pc+2], slot(sp));
+					push(slot(sp));
+					retargetable = n-1;
+				}
+				break;
+			case Bytecode.PUSH_ARRAY : {
+				int[] elements = pop(opnd);
+				int[] array = new int[3+opnd];
+				array[0] = RegisterCode.ARRAY;
+				array[1] = opnd;
+				array[2] = slot(sp);
+				System.arraycopy(elements, 0, array, 3, opnd);
+				emit(pc, array);
+				push(slot(sp));
+				retargetable = n-1-opnd;
+				break;
+			}
+			case Bytecode.STORE_FIELD :		emit(pc, RegisterCode.STORE_FIELD, top(), opnd); break;
+			case Bytecode.STORE_COPY_BOX :	emit(pc, RegisterCode.STORE_COPY_BOX, top(), opnd); break;
+			case Bytecode.STORE_BOX :		emit(pc, RegisterCode.STORE_BOX, top(), opnd); break;
+			case Bytecode.STORE_LOCAL :
+			case Bytecode.STORE_LOCAL_POP :
+				if ( opnd==0 ) storeLocal(pc, code[pc+2]);
+				else emit(pc, RegisterCode.STORE_OUTER, top(), opnd, code[pc+2]);
+				if ( op==Bytecode.STORE_LOCAL_POP ) sp--;
+				break;
+			case Bytecode.BOX_LOCAL :
+				spill(opnd);
+				emit(pc, RegisterCode.BOX_LOCAL, opnd);
+				break;
+			case Bytecode.POP :				sp--; break;
+			case Bytecode.DBG :				emit(pc, RegisterCode.DBG, opnd, code[pc+2]); break;
+			case Bytecode.JUMP :
+				flush();
+				emit(pc, RegisterCode.JUMP, opnd);
+				jumps.add(n-1);
+				return true;
+			case Bytecode.JUMP_IF_TRUE :
+			case Bytecode.JUMP_IF_FALSE : {
+				int cond = pop();
+				flush();
+				emit(pc, op==Bytecode.JUMP_IF_TRUE ? RegisterCode.JUMP_IF_TRUE : RegisterCode.JUMP_IF_FALSE,
+					 cond, opnd, code[pc+2], sp);
+				jumps.add(n-3);
+				jumps.add(n-2);
+				return true; // the next block is the fall-through
+			}
+			case Bytecode.RETURN :
+				returnFrom(pc, pop());
+				return true;
+			case Bytecode.RETURN_SELF :
+				returnFrom(pc, RegisterCode.SELF);
+				return true;
+			case Bytecode.BLOCK_RETURN :
+			case Bytecode.BLOCK_RETURN_NIL : {
+				int r = op==Bytecode.BLOCK_RETURN ? pop() : constant(vm.nil());
+				flush();
+				emit(pc, RegisterCode.BLOCK_RETURN, r);
+				return true;
+			}
+			case Bytecode.SEND :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.TAIL_SEND : // the callee's context stacks up like any other
+				send(pc, op, opnd, code[pc+2]);
+				break;
+			case Bytecode.SEND_0 :
+			case Bytecode.SEND_1 :
+			case Bytecode.SEND_2 :
+				send(pc, Bytecode.SEND, op - Bytecode.SEND_0, opnd);
+				break;
+			default :
+				if ( op>=Bytecode.SEND_ADD && op<=Bytecode.SEND_MOD ) {
+					int arg = pop();
+					int receiver = pop();
+					flush();
+					specialSend = n;
+					emit(pc, RegisterCode.SPECIAL_SEND, op, code[pc+2], receiver, arg, slot(sp), sp);
+					push(slot(sp));
+					retargetable = n-2;
+					break;
+				}
+				throw new IllegalArgumentException("invalid opcode "+op+" at "+pc+" of "+blk.qualifiedName);
+		}
+		return false;
+	}
+
+	/** The temporary for stack slot k */
+	protected int slot(int k) { return nlocals + k; }
+
+	protected int constant(STObject v) {
+		int i = constants.indexOf(v); // STObjects don't override equals
+		if ( i<0 ) {
+			i = constants.size();
+			constants.add(v);
+		}
+		return RegisterCode.CONSTANT - i;
+	}
+
+	protected void push(int r) { stack[sp++] = r; }
+
+	protected int pop() { return stack[--sp]; }
+
+	protected int top() { return stack[sp-1]; }
+
+	/** The top n registers, bottom first */
+	protected int[] pop(int n) {
+		sp -= n;
+		return Arrays.copyOfRange(stack, sp, sp+n);
+	}
+
+	/** Push a value that op with operand opnd loads into its slot */
+	protected void load(int pc, int op, int opnd) {
+		emit(pc, op, opnd, slot(sp));
+		push(slot(sp));
+		retargetable = n-1;
+	}
+
+	/** SEND the top nargs+1 values; the result lands in the receiver's slot */
+	protected void send(int pc, int op, int nargs, int selector) {
+		int[] operands = pop(nargs+1);
+		flush();
+		int[] send = new int[5+nargs+1];
+		send[0] = RegisterCode.SEND;
+		send[1] = op;
+		send[2] = nargs;
+		send[3] = selector;
+		send[4] = sp;
+		System.arraycopy(operands, 0, send, 5, nargs+1);
+		emit(pc, send);
+		push(slot(sp));
+	}
+
+	/** Store the top value into local i, leaving it on the stack */
+	protected void storeLocal(int pc, int i) {
+		int v = pop();
+		spill(i);
+		if ( v!=i ) {
+			if ( retargetable>=0 && v==slot(sp) ) { // compute it right into the local
+				out[retargetable] = i;
+				if ( retargetable==specialSend+5 ) { // a send's result lands in the slot instead
+					emit(-1, RegisterCode.MOVE, v, i);
+				}
+				retargetable = -1;
+				v = i;
+			}
+			else {
+				emit(pc, RegisterCode.MOVE, v, i);
+			}
+		}
+		push(v);
+	}
+
+	protected void returnFrom(int pc, int r) {
+		flush();
+		emit(pc, RegisterCode.RETURN, r, sp);
+	}
+
+	/** Move values only named by local i to their slots */
+	protected void spill(int i) {
+		for (int k=0; k<sp; k++) {
+			if ( stack[k]==i ) {
+				emit(-1, RegisterCode.MOVE, i, slot(k));
+				stack[k] = slot(k);
+			}
+		}
+	}
+
+	/** Move every value on the simulated stack to its slot */
+	protected void flush() {
+		for (int k=0; k<sp; k++) {
+			if ( stack[k]!=slot(k) ) {
+				emit(-1, RegisterCode.MOVE, stack[k], slot(k));
+				stack[k] = slot(k);
+			}
+		}
+	}
+
+	protected void emit(int pc, int... instruction) {
+		if ( n+instruction.length>out.length ) {
+			out = Arrays.copyOf(out, Math.max(out.length*2, n+instruction.length));
+			pcs = Arrays.copyOf(pcs, out.length);
+		}
+		pcs[n] = pc;
+		System.arraycopy(instruction, 0, out, n, instruction.length);
+		n += instruction.length;
+		retargetable = -1;
+	}
+
+	/** Find the stack depth at each reachable instruction and the first
+	 *  instruction of each basic block.
+	 */
+	protected void findBlocks() {
+		depth = new int[code.length];
+		leader = new boolean[code.length];
+		Arrays.fill(depth, -1);
+		Deque<Integer> work = new ArrayDeque<>();
+		flowTo(0, 0, work, true);
+		while ( !work.isEmpty() ) {
+			int pc = work.pop();
+			int d = depth[pc];
+			int op = code[pc];
+			int next = pc + Bytecode.decodedSize(op);
+			int after = d + Bytecode.stackEffect(op, code.length>pc+1 ? code[pc+1] : 0);
+			switch ( op ) {
+				case Bytecode.JUMP :
+					flowTo(code[pc+1], after, work, true);
+					break;
+				case Bytecode.JUMP_IF_TRUE :
+				case Bytecode.JUMP_IF_FALSE :
+					flowTo(code[pc+1], after, work, true);
+					flowTo(code[pc+2], d, work, true);
+					flowTo(next, after, work, true);
+					break;
+				default :
+					if ( Bytecode.isReturn(op) ) break;
+					flowTo(next, after, work, false);
+			}
+		}
+	}
+
+	protected void flowTo(int pc, int d, Deque<Integer> work, boolean target) {
+		if ( pc>=code.length ) return;
+		if ( target ) leader[pc] = true;
+		if ( depth[pc]<0 ) {
+			depth[pc] = d;
+			work.push(pc);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package smalltalk.bench;
+
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STObject;
+
+/** Measure the heap kept alive by blocks stored in a collection with and
+ *  without closure conversion. Each block captures one argument of the
+ *  method that creates it, which also has a large unrelated local.
+ *
+ *  Run with: java smalltalk.bench.ClosureRetentionBenchmark [blocks]
+ */
+public class ClosureRetentionBenchmark {
+	public static final String PROGRAM =
+		"class Maker [\n" +
+		"    adder: n [ |scratch| scratch := Array new: 200. ^[:x | x + n] ]\n" +
+		"]\n" +
+		"|m blks|\n" +
+		"m := Maker new. blks := Array new: %d.\n" +
+		"1 to: %d do: [:i | blks at: i put: (m adder: i)].\n" +
+		"^blks";
+
+	public static void main(String[] args) {
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+		report("contexts captured", retained(n, false));
+		report("closure converted", retained(n, true));
+	}
+
+	static long retained(int n, boolean convert) {
+		boolean saved = Run.optimize;
+		Run.optimize = convert;
+		STSymbolTable symtab;
+		try {
+			symtab = Run.compileCore(false);
+			Run.compileString(symtab, String.format(PROGRAM, n, n), false);
+		}
+		finally {
+			Run.optimize = saved;
+		}
+		long before = usedHeap();
+		STObject blocks = new VirtualMachine(symtab).execMain();
+		long after = usedHeap();
+		if ( blocks==null ) throw new IllegalStateException("no result");
+		return after - before;
+	}
+
+	static void report(String label, long bytes) {
+		System.out.printf("%s: %,d bytes retained%n", label, bytes);
+	}
+
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0; i<3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
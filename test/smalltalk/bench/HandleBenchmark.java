@@ -0,0 +1,78 @@
+package smalltalk.bench;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.jit.HandleCompiler;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.primitive.STObject;
+
+/** Time recursive fib: and summing a linked list interpreted, with hot
+ *  methods compiled to method handle trees by {@link HandleCompiler},
+ *  and compiled to classes, for comparison.
+ *
+ *  Run with: java smalltalk.bench.HandleBenchmark [fib-n] [list-length] [traversals]
+ */
+public class HandleBenchmark {
+	public static final String CLASSES =
+		"class Link [ |v n|\n" +
+		"    v: x n: l [ v := x. n := l ]\n" +
+		"    val [ ^v ]\n" +
+		"    nxt [ ^n ]\n" +
+		"]\n" +
+		"class Bench [\n" +
+		"    fib: n [ n < 2 ifTrue: [^n]. ^(self fib: n - 1) + (self fib: n - 2) ]\n" +
+		"    make: k [ |l i| l := nil. i := 0. [i < k] whileTrue: [l := Link new v: i n: l. i := i + 1]. ^l ]\n" +
+		"    sum: l [ |s p| s := 0. p := l. [p ~~ nil] whileTrue: [s := s + p val. p := p nxt]. ^s ]\n" +
+		"    sum: l times: k [ |t i| t := 0. i := 0. [i < k] whileTrue: [t := t + (self sum: l). i := i + 1]. ^t ]\n" +
+		"]\n";
+	public static final String FIB = CLASSES + "^Bench new fib: %d";
+	public static final String LIST = CLASSES + "|b| b := Bench new. ^b sum: (b make: %d) times: %d";
+
+	public static void main(String[] args) {
+		int fibN = args.length>0 ? Integer.parseInt(args[0]) : 30;
+		int length = args.length>1 ? Integer.parseInt(args[1]) : 1000;
+		int traversals = args.length>2 ? Integer.parseInt(args[2]) : 5000;
+		String[] programs = {String.format(FIB, fibN), String.format(LIST, length, traversals)};
+		String[] names = {"fib:", "list"};
+		for (int p=0; p<programs.length; p++) {
+			STSymbolTable interpreted = compile(programs[p]);
+			STSymbolTable handles = compile(programs[p]);
+			STSymbolTable classes = compile(programs[p]);
+			for (int warmup=0; warmup<3; warmup++) {
+				run(interpreted, false, false);
+				run(handles, true, true);
+				run(classes, true, false);
+			}
+			System.out.printf("%-5s interpreter   : %d ms%n", names[p], run(interpreted, false, false));
+			System.out.printf("%-5s handle trees  : %d ms%n", names[p], run(handles, true, true));
+			System.out.printf("%-5s classes       : %d ms%n", names[p], run(classes, true, false));
+		}
+	}
+
+	static STSymbolTable compile(String program) {
+		STSymbolTable symtab = Run.compileCore(false);
+		Compiler c = new Compiler(symtab);
+		c.inlineControlFlow = true;
+		c.peephole = true;
+		c.specialSends = true;
+		c.compactSends = true;
+		c.compactOperands = true;
+		c.compile(new ANTLRInputStream(program));
+		return symtab;
+	}
+
+	static long run(STSymbolTable symtab, boolean jit, boolean methodHandles) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		if ( jit ) {
+			vm.jit = new Jit(vm);
+			vm.jit.methodHandles = methodHandles;
+		}
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		if ( result==null ) throw new IllegalStateException("no result");
+		return (System.nanoTime()-start)/1000000;
+	}
+}
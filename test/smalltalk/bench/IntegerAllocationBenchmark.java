@@ -0,0 +1,56 @@
+package smalltalk.bench;
+
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STObject;
+
+import java.lang.management.ManagementFactory;
+
+/** Measure the bytes allocated by an integer-heavy loop with and without
+ *  the small-integer cache in {@link VirtualMachine#newInteger}.
+ *
+ *  Run with: java smalltalk.bench.IntegerAllocationBenchmark [iterations]
+ */
+public class IntegerAllocationBenchmark {
+	public static final String LOOP =
+		"|sum|\n" +
+		"sum := 0.\n" +
+		"1 to: %d do: [:i | sum := sum + (i mod: 7) - 3 * 2].\n" +
+		"^sum";
+
+	public static void main(String[] args) {
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 50000;
+		STSymbolTable symtab = Run.compileCore(false);
+		Run.compileString(symtab, String.format(LOOP, n), false);
+		for (int warmup=0; warmup<3; warmup++) {
+			run(symtab, false);
+			run(symtab, true);
+		}
+		report("uncached", run(symtab, false));
+		report("cached  ", run(symtab, true));
+	}
+
+	/** Returns {allocated bytes, elapsed ms} */
+	static long[] run(STSymbolTable symtab, boolean cacheSmallIntegers) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		if ( !cacheSmallIntegers ) vm.smallIntegers = null;
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		long elapsed = (System.nanoTime()-start)/1000000;
+		bytes = allocatedBytes() - bytes;
+		if ( result==null ) throw new IllegalStateException("no result");
+		return new long[] {bytes, elapsed};
+	}
+
+	static void report(String label, long[] r) {
+		System.out.printf("%s: %,d bytes allocated, %d ms%n", label, r[0], r[1]);
+	}
+
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
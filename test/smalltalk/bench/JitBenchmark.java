@@ -0,0 +1,93 @@
+package smalltalk.bench;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.ast.AstInterpreter;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.primitive.STObject;
+
+/** Time recursive fib: and a numeric loop interpreted, run on the
+ *  {@link AstInterpreter}'s node trees, with hot methods compiled by the
+ *  {@link Jit} with sends calling into the VM and linked by
+ *  invokedynamic, and written directly in Java.
+ *
+ *  Run with: java smalltalk.bench.JitBenchmark [fib-n] [loop-iterations]
+ */
+public class JitBenchmark {
+	public static final String PROGRAM =
+		"class Bench [\n" +
+		"    fib: n [ n < 2 ifTrue: [^n]. ^(self fib: n - 1) + (self fib: n - 2) ]\n" +
+		"    loop: n [ |sum i| sum := 0. i := 0.\n" +
+		"        [i < n] whileTrue: [sum := sum + (i * 3 mod: 7) - 2. i := i + 1]. ^sum ]\n" +
+		"]\n" +
+		"|b| b := Bench new.\n" +
+		"^{b fib: %d. b loop: %d}";
+
+	public static void main(String[] args) {
+		int fibN = args.length>0 ? Integer.parseInt(args[0]) : 27;
+		int loopN = args.length>1 ? Integer.parseInt(args[1]) : 1000000;
+		String program = String.format(PROGRAM, fibN, loopN);
+		STSymbolTable interpreted = compile(program);
+		STSymbolTable trees = compile(program);
+		STSymbolTable vmCalls = compile(program);
+		STSymbolTable linked = compile(program);
+		for (int warmup=0; warmup<3; warmup++) {
+			run(interpreted, false, false);
+			runAst(trees);
+			run(vmCalls, true, false);
+			run(linked, true, true);
+			java(fibN, loopN);
+		}
+		System.out.printf("interpreter      : %d ms%n", run(interpreted, false, false));
+		System.out.printf("node trees       : %d ms%n", runAst(trees));
+		System.out.printf("jit, VM sends    : %d ms%n", run(vmCalls, true, false));
+		System.out.printf("jit, indy sends  : %d ms%n", run(linked, true, true));
+		System.out.printf("java             : %d ms%n", java(fibN, loopN));
+	}
+
+	static STSymbolTable compile(String program) {
+		STSymbolTable symtab = Run.compileCore(false);
+		Compiler c = new Compiler(symtab);
+		c.inlineControlFlow = true;
+		c.peephole = true;
+		c.specialSends = true;
+		c.compactSends = true;
+		c.compactOperands = true;
+		c.compile(new ANTLRInputStream(program));
+		return symtab;
+	}
+
+	static long run(STSymbolTable symtab, boolean jit, boolean invokeDynamic) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		if ( jit ) {
+			vm.jit = new Jit(vm);
+			vm.jit.invokeDynamic = invokeDynamic;
+		}
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		if ( result==null ) throw new IllegalStateException("no result");
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	static long runAst(STSymbolTable symtab) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		vm.ast = new AstInterpreter(vm);
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		if ( result==null ) throw new IllegalStateException("no result");
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	static long java(int fibN, int loopN) {
+		long start = System.nanoTime();
+		int sum = 0;
+		for (int i=0; i<loopN; i++) sum = sum + (i * 3 % 7) - 2;
+		if ( fib(fibN) + sum==42 ) System.out.print("");
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	static int fib(int n) { return n<2 ? n : fib(n-1) + fib(n-2); }
+}
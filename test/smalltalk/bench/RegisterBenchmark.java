@@ -0,0 +1,91 @@
+package smalltalk.bench;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.register.RegisterInterpreter;
+import smalltalk.vm.primitive.STObject;
+
+/** Count the instructions the bytecode loop and {@link RegisterInterpreter}
+ *  dispatch for recursive fib:, summing a linked list and a counting loop,
+ *  and time both. The counts come from separate runs so that counting
+ *  doesn't slow down the timed ones.
+ *
+ *  Run with: java smalltalk.bench.RegisterBenchmark [fib-n] [list-length] [traversals] [loop-n]
+ */
+public class RegisterBenchmark {
+	public static final String CLASSES =
+		"class Link [ |v n|\n" +
+		"    v: x n: l [ v := x. n := l ]\n" +
+		"    val [ ^v ]\n" +
+		"    nxt [ ^n ]\n" +
+		"]\n" +
+		"class Bench [\n" +
+		"    fib: n [ n < 2 ifTrue: [^n]. ^(self fib: n - 1) + (self fib: n - 2) ]\n" +
+		"    make: k [ |l i| l := nil. i := 0. [i < k] whileTrue: [l := Link new v: i n: l. i := i + 1]. ^l ]\n" +
+		"    sum: l [ |s p| s := 0. p := l. [p ~~ nil] whileTrue: [s := s + p val. p := p nxt]. ^s ]\n" +
+		"    sum: l times: k [ |t i| t := 0. i := 0. [i < k] whileTrue: [t := t + (self sum: l). i := i + 1]. ^t ]\n" +
+		"    loop: k [ |s i| s := 0. i := 0. [i < k] whileTrue: [s := s + (i * i mod: 7). i := i + 1]. ^s ]\n" +
+		"]\n";
+	public static final String FIB = CLASSES + "^Bench new fib: %d";
+	public static final String LIST = CLASSES + "|b| b := Bench new. ^b sum: (b make: %d) times: %d";
+	public static final String LOOP = CLASSES + "^Bench new loop: %d";
+
+	public static void main(String[] args) {
+		int fibN = args.length>0 ? Integer.parseInt(args[0]) : 27;
+		int length = args.length>1 ? Integer.parseInt(args[1]) : 1000;
+		int traversals = args.length>2 ? Integer.parseInt(args[2]) : 1000;
+		int loopN = args.length>3 ? Integer.parseInt(args[3]) : 1000000;
+		String[] programs = {String.format(FIB, fibN), String.format(LIST, length, traversals),
+							 String.format(LOOP, loopN)};
+		String[] names = {"fib:", "list", "loop"};
+		for (int p=0; p<programs.length; p++) {
+			STSymbolTable symtab = compile(programs[p]);
+			for (int warmup=0; warmup<3; warmup++) {
+				run(symtab, false);
+				run(symtab, true);
+			}
+			long stackTime = run(symtab, false);
+			long registerTime = run(symtab, true);
+			VirtualMachine stack = new VirtualMachine(symtab);
+			stack.countDispatched = true;
+			time(stack);
+			VirtualMachine registers = new VirtualMachine(symtab);
+			registers.registers = new RegisterInterpreter(registers);
+			registers.countDispatched = true;
+			time(registers);
+			long s = stack.dispatched;
+			long r = registers.registers.dispatched;
+			System.out.printf("%-5s bytecode loop : %,12d instructions %6d ms%n", names[p], s, stackTime);
+			System.out.printf("%-5s registers     : %,12d instructions %6d ms  (%.1f%% fewer)%n",
+							  names[p], r, registerTime, 100.0*(s-r)/s);
+		}
+	}
+
+	static STSymbolTable compile(String program) {
+		STSymbolTable symtab = Run.compileCore(false);
+		Compiler c = new Compiler(symtab);
+		c.inlineControlFlow = true;
+		c.peephole = true;
+		c.specialSends = true;
+		c.compactSends = true;
+		c.compactOperands = true;
+		c.compile(new ANTLRInputStream(program));
+		return symtab;
+	}
+
+	static long run(STSymbolTable symtab, boolean registers) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		if ( registers ) vm.registers = new RegisterInterpreter(vm);
+		return time(vm);
+	}
+
+	static long time(VirtualMachine vm) {
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		if ( result==null ) throw new IllegalStateException("no result");
+		return (System.nanoTime()-start)/1000000;
+	}
+}
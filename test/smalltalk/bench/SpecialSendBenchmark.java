@@ -0,0 +1,50 @@
+package smalltalk.bench;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STObject;
+
+/** Time a numeric inner loop compiled with ordinary sends and with the
+ *  special arithmetic and comparison sends ({@link Compiler#specialSends}).
+ *
+ *  Run with: java smalltalk.bench.SpecialSendBenchmark [iterations]
+ */
+public class SpecialSendBenchmark {
+	public static final String LOOP =
+		"|sum i|\n" +
+		"sum := 0. i := 0.\n" +
+		"[i < %d] whileTrue: [sum := sum + (i * 3 mod: 7) - 2. i := i + 1].\n" +
+		"^sum";
+
+	public static void main(String[] args) {
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 1000000;
+		STSymbolTable plain = compile(n, false);
+		STSymbolTable special = compile(n, true);
+		for (int warmup=0; warmup<3; warmup++) {
+			run(plain);
+			run(special);
+		}
+		System.out.printf("sends        : %d ms%n", run(plain));
+		System.out.printf("special sends: %d ms%n", run(special));
+	}
+
+	static STSymbolTable compile(int n, boolean specialSends) {
+		STSymbolTable symtab = Run.compileCore(false);
+		Compiler c = new Compiler(symtab);
+		c.inlineControlFlow = true;
+		c.specialSends = specialSends;
+		c.compile(new ANTLRInputStream(String.format(LOOP, n)));
+		return symtab;
+	}
+
+	static long run(STSymbolTable symtab) {
+		VirtualMachine vm = new VirtualMachine(symtab);
+		long start = System.nanoTime();
+		STObject result = vm.execMain();
+		if ( result==null ) throw new IllegalStateException("no result");
+		return (System.nanoTime()-start)/1000000;
+	}
+}
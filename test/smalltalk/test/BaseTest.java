@@ -7,9 +7,12 @@ import smalltalk.Run;
 import smalltalk.compiler.Compiler;
 import smalltalk.compiler.STSymbolTable;
 import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.VMException;
 import smalltalk.vm.primitive.STMetaClassObject;
 import smalltalk.vm.primitive.STObject;
 
+import java.util.function.Consumer;
+
 import static junit.framework.TestCase.assertEquals;
 
 public class BaseTest {
@@ -84,6 +87,32 @@ public class BaseTest {
 		execAndCheck(input, expecting, genDbg);
 	}
 
+	/** Compile input over a fresh image.st and return a VM with both
+	 *  installed. options sets the flags of the Compiler for input, which
+	 *  generates debug info by default; image.st always gets debug info
+	 *  and default flags.
+	 */
+	public VirtualMachine load(String input, Consumer<Compiler> options) {
+		STSymbolTable symtab = Run.compileCore(true);
+		Compiler c = new Compiler(symtab);
+		c.genDbg = true;
+		options.accept(c);
+		ANTLRInputStream in = new ANTLRInputStream(input);
+		in.name = "<string>";
+		c.compile(in);
+		return new VirtualMachine(symtab);
+	}
+
+	/** Run main in vm; return its value or the VMException it raised as a string */
+	public String exec(VirtualMachine vm) {
+		try {
+			return vm.execMain().toString();
+		}
+		catch (VMException e) {
+			return e.toString();
+		}
+	}
+
 	public String compile(String input) {
 		return compile(input, false);
 	}
@@ -0,0 +1,164 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.ast.AstInterpreter;
+import smalltalk.vm.ast.Node;
+import smalltalk.vm.ast.SendNode;
+import smalltalk.vm.ast.SpecialSendNode;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAstInterpreter extends BaseTest {
+	public VirtualMachine load(String input) {
+		VirtualMachine vm = load(input, c -> {
+			c.inlineControlFlow = true;
+			c.peephole = true;
+			c.specialSends = true;
+			c.compactSends = true;
+			c.compactOperands = true;
+			c.tailSends = true;
+		});
+		vm.ast = new AstInterpreter(vm);
+		return vm;
+	}
+
+	/** The nodes of type c in the tree of method name in class cl */
+	public <T> List<T> nodes(VirtualMachine vm, String cl, String name, Class<T> c) {
+		List<T> found = new ArrayList<>();
+		collect(vm.lookupClass(cl).methods.get(name).ast, c, found);
+		return found;
+	}
+
+	<T> void collect(Node n, Class<T> c, List<T> found) {
+		if ( c.isInstance(n) ) found.add(c.cast(n));
+		for (Node child : n.getChildren()) collect(child, c, found);
+	}
+
+	@Test public void testIntegerNodes() {
+		String input =
+			"class T [ sum: n [ |s i| s := 0. i := 0. [i < n] whileTrue: [s := s + i. i := i + 1]. ^s ] ]\n" +
+			"^T new sum: 10";
+		VirtualMachine vm = load(input);
+		assertEquals("45", exec(vm));
+		List<SpecialSendNode> ops = nodes(vm, "T", "sum:", SpecialSendNode.class);
+		assertEquals(3, ops.size());
+		for (SpecialSendNode op : ops) assertTrue(op instanceof SpecialSendNode.IntegerOp);
+		assertEquals(2, nodes(vm, "T", "sum:", SpecialSendNode.Add.class).size());
+		assertEquals(1, nodes(vm, "T", "sum:", SpecialSendNode.LessThan.class).size());
+	}
+
+	@Test public void testIntegerNodeGeneralizes() {
+		String input =
+			"class T [ add: x to: y [ ^x + y ] ]\n" +
+			"|t| t := T new.\n" +
+			"^{t add: 1 to: 2. t add: 1.5 to: 2.0. t add: 3 to: 4}";
+		VirtualMachine vm = load(input);
+		assertEquals("{3. 3.5. 7}", exec(vm));
+		List<SpecialSendNode> ops = nodes(vm, "T", "add:to:", SpecialSendNode.class);
+		assertEquals(1, ops.size());
+		assertTrue(ops.get(0) instanceof SpecialSendNode.Generic);
+	}
+
+	@Test public void testSendCachesReceiverClasses() {
+		String input =
+			"class A [ f [ ^1 ] ]\n" +
+			"class B [ f [ ^2 + 0 ] ]\n" +
+			"class C [ f [ ^3 + 0 ] ]\n" +
+			"class D [ f [ ^4 + 0 ] ]\n" +
+			"class E [ f [ ^5 + 0 ] ]\n" +
+			"class T [ one: o [ ^o f ] two: o [ ^o f ] all: o [ ^o f ] ]\n" +
+			"|t a sum| t := T new.\n" +
+			"a := {A new. B new. C new. D new. E new}.\n" +
+			"sum := 0.\n" +
+			"1 to: 5 do: [:i | sum := sum + (t one: (a at: 2)) + (t two: (a at: (i mod: 2) + 1)) + (t all: (a at: i))].\n" +
+			"^sum";
+		VirtualMachine vm = load(input);
+		assertEquals("33", exec(vm));
+		SendNode one = nodes(vm, "T", "one:", SendNode.class).get(0);
+		assertEquals("Cached(Uninitialized)", one.dispatch.toString());
+		SendNode two = nodes(vm, "T", "two:", SendNode.class).get(0);
+		assertEquals("Cached(Cached(Uninitialized))", two.dispatch.toString());
+		SendNode all = nodes(vm, "T", "all:", SendNode.class).get(0);
+		assertTrue(all.dispatch instanceof SendNode.Generic);
+	}
+
+	@Test public void testRedefinedMethodResetsCache() {
+		String input =
+			"class T [ f [ ^1 + 0 ] g [ ^self f ] ]\n" +
+			"class U [ f [ ^2 + 0 ] ]\n" +
+			"|t sum| t := T new. sum := 0.\n" +
+			"1 to: 5 do: [:i | sum := sum + t g].\n" +
+			"^sum";
+		VirtualMachine vm = load(input);
+		assertEquals("5", exec(vm));
+		STMetaClassObject t = vm.lookupClass("T");
+		t.defineMethod("f", vm.lookupClass("U").methods.get("f"));
+		assertEquals("10", exec(vm));
+	}
+
+	@Test public void testNonLocalReturnUnwindsTrees() {
+		String input =
+			"class T [\n" +
+			"    apply: blk [ ^blk value ]\n" +
+			"    find: x in: a [ a do: [:e | e = x ifTrue: [^self apply: [^e * 10]]]. ^nil ]\n" +
+			"]\n" +
+			"|t| t := T new.\n" +
+			"^{t find: 2 in: {1. 2. 3}. t find: 4 in: {1. 2. 3}. t apply: [7]}";
+		assertEquals("{20. nil. 7}", exec(load(input)));
+	}
+
+	@Test public void testDeepRecursionGoesToBytecodeLoop() {
+		// past VirtualMachine.MAX_NESTING nested trees the bytecode loop runs the callees
+		String input =
+			"class T [\n" +
+			"    deep: n [ n = 0 ifTrue: [^0]. ^1 + (self deep: n - 1) ]\n" +
+			"    walk: n [ |s| n = 0 ifTrue: [^1]. s := 0. 1 to: 1 do: [:i | s := s + (self walk: n - 1)]. ^s ]\n" +
+			"    find: n [ n = 0 ifTrue: [^{1} do: [:e | ^e]]. ^1 + (self find: n - 1) ]\n" +
+			"]\n" +
+			"^{T new deep: 10000. T new walk: 10000. T new find: 10000}";
+		VirtualMachine vm = load(input);
+		vm.countDispatched = true;
+		assertEquals("{10000. 1. 10001}", exec(vm));
+		assertTrue(vm.dispatched>0);
+	}
+
+	@Test public void testTailSendsRunInPlace() {
+		String input =
+			"class T [ tail: n acc: a [ n = 0 ifTrue: [^a]. ^self tail: n - 1 acc: a + 1 ] ]\n" +
+			"^T new tail: 100000 acc: 0";
+		VirtualMachine vm = load(input);
+		vm.countDispatched = true;
+		assertEquals("100000", exec(vm));
+		assertEquals(0, vm.dispatched); // never nested deep enough to need the bytecode loop
+	}
+
+	@Test public void testTailSendErrorStackSameAsBytecodeLoop() {
+		String input =
+			"class T [ tail: n [ n = 0 ifTrue: [^n foo]. ^self tail: n - 1 ] ]\n" +
+			"^T new tail: 5";
+		VirtualMachine vm = load(input);
+		String ast = exec(vm);
+		vm = load(input);
+		vm.ast = null;
+		assertEquals(exec(vm), ast);
+		assertTrue(ast.contains("6 frame(s) elided by tail sends")); // main's send too
+	}
+
+	@Test public void testErrorStackSameAsBytecodeLoop() {
+		String input =
+			"class T [ f: x [ |y| y := x + 1. ^y foo ] ]\n" +
+			"^T new f: 1";
+		VirtualMachine vm = load(input);
+		String ast = exec(vm);
+		vm = load(input);
+		vm.ast = null;
+		assertEquals(exec(vm), ast);
+		assertTrue(ast.startsWith("MessageNotUnderstood: Integer does not understand foo"));
+	}
+}
@@ -590,4 +590,14 @@ public class TestBlocks extends BaseTest {
 		String expecting = "99";
 		execAndCheck(input, expecting);
 	}
+
+	@Test public void testRepeatedValueWithArgs() {
+		String input =
+			"|b c|\n" +
+			"b := [:x | x].\n" +
+			"c := [:x :y | x - y].\n" +
+			"^{b value: 1. b value: 2. c value: 10 value: 3. c value: 3 value: 10}";
+		String expecting = "{1. 2. 7. -7}";
+		execAndCheck(input, expecting);
+	}
 }
@@ -0,0 +1,11 @@
+package smalltalk.test;
+
+import org.junit.After;
+import org.junit.Before;
+import smalltalk.Run;
+
+/** Run all of {@link TestBlocks} on the node-tree interpreter */
+public class TestBlocksAst extends TestBlocks {
+	@Before public void useAst() { Run.ast = true; }
+	@After public void useBytecodeLoop() { Run.ast = false; }
+}
@@ -0,0 +1,11 @@
+package smalltalk.test;
+
+import org.junit.After;
+import org.junit.Before;
+import smalltalk.Run;
+
+/** Run all of {@link TestBlocks} on register code */
+public class TestBlocksRegisters extends TestBlocks {
+	@Before public void useRegisters() { Run.registers = true; }
+	@After public void useBytecodeLoop() { Run.registers = false; }
+}
@@ -0,0 +1,161 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.VMException;
+import smalltalk.vm.primitive.BlockDescriptor;
+import smalltalk.vm.primitive.STArray;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+import smalltalk.vm.primitive.STObject;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestClosureConversion extends BaseTest {
+	public STObject run(String input, boolean convert) {
+		boolean saved = Run.optimize;
+		Run.optimize = convert;
+		try {
+			STSymbolTable symtab = Run.compileCore(true);
+			Run.compileString(symtab, input, true);
+			return new VirtualMachine(symtab).execMain();
+		}
+		finally {
+			Run.optimize = saved;
+		}
+	}
+
+	public String exec(String input, boolean convert) {
+		try {
+			return run(input, convert).toString();
+		}
+		catch (VMException e) {
+			return e.toString();
+		}
+	}
+
+	public void checkBothModes(String input, String expecting) {
+		assertEquals(expecting, exec(input, false));
+		assertEquals(expecting, exec(input, true));
+	}
+
+	public STMetaClassObject compileConverted(String input) {
+		Compiler c = new Compiler();
+		c.closureConversion = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		return new VirtualMachine(symtab).lookupClass("T");
+	}
+
+	@Test public void testCopiedAndBoxedVariablesCode() {
+		String input =
+			"class T [ f: x [ |y n| y := x * 2. n := 0. ^{[:z | x + y + z]. [n := n + 1]. [:k | [k + y]]} ] ]";
+		STCompiledBlock f = compileConverted(input).methods.get("f:");
+		assertEquals( // n is assigned by a block so it's boxed; y is never assigned after [...] copies it
+			"0000:  box_local      2\n" +
+			"0003:  push_local     0, 0\n" +
+			"0008:  push_int       2\n" +
+			"0013:  send           1, '*'\n" +
+			"0018:  store_local    0, 1\n" +
+			"0023:  pop              \n" +
+			"0024:  push_int       0\n" +
+			"0029:  store_box      2\n" +
+			"0032:  pop              \n" +
+			"0033:  block          0\n" +
+			"0036:  block          1\n" +
+			"0039:  block          2\n" +
+			"0042:  push_array     3\n" +
+			"0045:  return           \n" +
+			"0046:  pop              \n" +
+			"0047:  self             \n" +
+			"0048:  return           \n",
+			Bytecode.disassemble(f, 0));
+		assertEquals(
+			"0000:  push_copy      0\n" +
+			"0003:  push_copy      1\n" +
+			"0006:  send           1, '+'\n" +
+			"0011:  push_local     0, 0\n" +
+			"0016:  send           1, '+'\n" +
+			"0021:  block_return     \n",
+			Bytecode.disassemble(f.blocks[0], 0));
+		assertEquals(
+			"0000:  push_copy_box  0\n" +
+			"0003:  push_int       1\n" +
+			"0008:  send           1, '+'\n" +
+			"0013:  store_copy_box 0\n" +
+			"0016:  block_return     \n",
+			Bytecode.disassemble(f.blocks[1], 0));
+		// [k + y] gets y from the copies of the block around it
+		assertEquals("[1]", Arrays.toString(f.blocks[2].captures));
+		assertEquals("[0, -1]", Arrays.toString(f.blocks[3].captures));
+	}
+
+	@Test public void testSharedAndMutatedCaptures() {
+		String input =
+			"|n inc get f blks i w|\n" +
+			"n := 0. inc := [n := n + 1]. get := [n]. inc value. inc value.\n" +
+			"f := [:k | k = 0 ifTrue: [0] ifFalse: [k + (f value: k - 1)]].\n" +
+			"blks := Array new: 3. 1 to: 3 do: [:j | blks at: j put: [j]].\n" +
+			"i := 0. w := {nil. nil}. [i < 2] whileTrue: [i := i + 1. w at: i put: [i]].\n" +
+			"^{get value. f value: 10. (blks at: 1) value. (blks at: 3) value. (w at: 1) value}";
+		checkBothModes(input, "{2. 55. 1. 3. 2}");
+	}
+
+	@Test public void testNestedBlocksAndSelf() {
+		String input =
+			"class T [ |a|\n" +
+			"    f: x [ a := 100. ^[:y | [:z | a + x + y + z] value: 1] value: 10 ]\n" +
+			"    g [ ^[self] ]\n" +
+			"]\n" +
+			"|t| t := T new.\n" +
+			"^{t f: 5. t g value == t}";
+		checkBothModes(input, "{116. true}");
+	}
+
+	@Test public void testNonLocalReturn() {
+		String input =
+			"class T [\n" +
+			"    find: n [ 1 to: 5 do: [:i | {1. 2. 3} do: [:j | i * j = n ifTrue: [^{i. j}]]]. ^nil ]\n" +
+			"    f [ ^[:x | ^x] ]\n" +
+			"]\n";
+		checkBothModes(input + "^{T new find: 6. T new find: 7}", "{{2. 3}. nil}");
+		String expecting = "BlockCannotReturn: T>>f-block0 can't trigger return again from method T>>f";
+		assertEquals(expecting, exec(input + "^T new f value: 1", false).split("\n")[0]);
+		assertEquals(expecting, exec(input + "^T new f value: 1", true).split("\n")[0]);
+	}
+
+	@Test public void testDescriptorsKeepOnlyWhatTheyNeed() {
+		String input =
+			"class T [\n" +
+			"    clean [ ^[:x | x + 1] ]\n" +
+			"    adder: n [ |unused| unused := {1. 2. 3}. ^[:x | x + n] ]\n" +
+			"    escaper [ ^[:x | ^x] ]\n" +
+			"]\n" +
+			"|t| t := T new.\n" +
+			"^{t clean. t clean. t adder: 3. t escaper}";
+		STObject[] blks = ((STArray)run(input, true)).elements;
+		assertSame(blks[0], blks[1]); // one descriptor per clean block
+		BlockDescriptor adder = (BlockDescriptor)blks[2];
+		assertNull(adder.enclosingContext);
+		assertNull(adder.enclosingMethodContext);
+		assertEquals(1, adder.copied.length);
+		assertEquals("3", adder.copied[0].toString());
+		BlockDescriptor escaper = (BlockDescriptor)blks[3];
+		assertNull(escaper.enclosingContext);
+		assertNotNull(escaper.enclosingMethodContext); // to ^ return through
+
+		blks = ((STArray)run(input, false)).elements;
+		assertNotSame(blks[0], blks[1]);
+		assertNotNull(((BlockDescriptor)blks[2]).enclosingContext);
+	}
+}
@@ -522,4 +522,22 @@ public class TestCodeGen extends BaseTest {
 		assertEquals(expecting, result);
 	}
 
+	@Test public void testMaxStack() {
+		String input =
+			"class T [\n" +
+			"    f [ ]\n" +
+			"    g: x [ ^x + 1 ]\n" +
+			"    h [ ^{1. 2. 3 + (4 * 5)} ]\n" +
+			"    k [ ^[:a | a] value: 1 ]\n" +
+			"]";
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile(new org.antlr.v4.runtime.ANTLRInputStream(input));
+		VirtualMachine vm = new VirtualMachine(symtab);
+		STMetaClassObject t = vm.lookupClass("T");
+		assertEquals(1, t.methods.get("f").maxStack);	// self
+		assertEquals(2, t.methods.get("g:").maxStack);	// x 1
+		assertEquals(5, t.methods.get("h").maxStack);	// 1 2 3 4 5
+		assertEquals(2, t.methods.get("k").maxStack);	// blk 1
+		assertEquals(1, t.methods.get("k").blocks[0].maxStack);	// a
+	}
 }
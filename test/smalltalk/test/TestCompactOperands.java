@@ -0,0 +1,96 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.SymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactOperands extends BaseTest {
+	public static final String T =
+		"class T [ |a b c d e f g h i j|\n" +
+		"    m: x [ |y| y := x. i := y. a := j. ^{a. i. 'str'. Object. [:z | z + x + i]} ]\n" +
+		"    set: x [ a := x. b := x. c := x. d := x. e := x. f := x. g := x. h := x. i := x. j := x ]\n" +
+		"    sum [ ^{a. b. c. d. e. f. g. h. i. j} ]\n" +
+		"]\n";
+
+	public VirtualMachine load(String input, boolean compactOperands) {
+		return load(input, c -> {
+			c.closureConversion = true;
+			c.compactOperands = compactOperands;
+		});
+	}
+
+	@Test public void testCompactForms() {
+		Compiler c = new Compiler();
+		c.closureConversion = true;
+		c.compactOperands = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(T));
+		STCompiledBlock m = new VirtualMachine(symtab).lookupClass("T").methods.get("m:");
+		assertEquals(
+			"0000:  push_local_0_0   \n" +
+			"0001:  store_local_b  0, 1\n" +
+			"0004:  pop              \n" +
+			"0005:  push_local_0_1   \n" +
+			"0006:  store_field_b  8\n" +
+			"0008:  pop              \n" +
+			"0009:  push_field_b   9\n" +
+			"0011:  store_field_b  0\n" +
+			"0013:  pop              \n" +
+			"0014:  push_field_0     \n" +
+			"0015:  push_field_b   8\n" +
+			"0017:  push_literal_b 'str'\n" +
+			"0019:  push_global_b  'Object'\n" +
+			"0021:  block          0\n" +
+			"0024:  push_array     5\n" +
+			"0027:  return           \n" +
+			"0028:  pop              \n" +
+			"0029:  self             \n" +
+			"0030:  return           \n",
+			Bytecode.disassemble(m, 0));
+		assertEquals(
+			"0000:  push_local_0_0   \n" +
+			"0001:  push_copy      0\n" +
+			"0004:  send           1, '+'\n" +
+			"0009:  push_field_b   8\n" +
+			"0011:  send           1, '+'\n" +
+			"0016:  block_return     \n",
+			Bytecode.disassemble(m.blocks[0], 0));
+	}
+
+	@Test public void testPredecodedCodeIsTheSame() {
+		String input = T + "|t| t := T new. t set: 3. ^{t m: 4. t sum}";
+		STCompiledBlock general = load(input, false).lookupClass("T").methods.get("m:");
+		STCompiledBlock compact = load(input, true).lookupClass("T").methods.get("m:");
+		assertTrue(compact.bytecode.length < general.bytecode.length);
+		general.predecode(new SymbolTable());
+		compact.predecode(new SymbolTable());
+		assertArrayEquals(general.code, compact.code);
+	}
+
+	@Test public void testSameResults() {
+		String input = T + "|t| t := T new. t set: 3. ^{(t m: 4) at: 5. t sum}";
+		String expecting = "{a BlockDescriptor. {3. 3. 3. 3. 3. 3. 3. 3. 4. 3}}"; // m: sets i
+		assertEquals(expecting, exec(load(input, false)));
+		assertEquals(expecting, exec(load(input, true)));
+		input = T + "|t| t := T new. t set: 3. ^((t m: 4) at: 5) value: 1";
+		assertEquals("9", exec(load(input, false))); // 1 + x + i
+		assertEquals("9", exec(load(input, true)));
+	}
+
+	@Test public void testErrorLocation() {
+		String input = "|x|\nx := 1.\nx foo";
+		String expecting =
+			"MessageNotUnderstood: Integer does not understand foo\n" +
+			"    at                              MainClass>>main[1][1](<string>:3:2)       executing 00%s:  send           0, 'foo'\n";
+		assertEquals(String.format(expecting, 30), exec(load(input, false)));
+		assertEquals(String.format(expecting, 18), exec(load(input, true))); // dbg_b is 4 bytes, not 7
+	}
+}
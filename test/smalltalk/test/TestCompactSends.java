@@ -0,0 +1,103 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactSends extends BaseTest {
+	public String exec(String input, boolean compactSends) {
+		return exec(load(input, c -> {
+			c.compactSends = compactSends;
+			c.tailSends = true;
+		}));
+	}
+
+	public STMetaClassObject compileT(String input) {
+		Compiler c = new Compiler();
+		c.compactSends = true;
+		c.tailSends = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		return new VirtualMachine(symtab).lookupClass("T");
+	}
+
+	@Test public void testCompactForms() {
+		String input = "class T [ f: x [ x foo. x bar: 1. x at: 1 put: 2. x a: 1 b: 2 c: 3. x yourself: [:y | y bar: 1. y]. ^x foo ] ]";
+		STCompiledBlock f = compileT(input).methods.get("f:");
+		assertEquals( // tail_send and sends of 3 args keep the general form
+			"0000:  push_local     0, 0\n" +
+			"0005:  send0          'foo'\n" +
+			"0007:  pop              \n" +
+			"0008:  push_local     0, 0\n" +
+			"0013:  push_int       1\n" +
+			"0018:  send1          'bar:'\n" +
+			"0020:  pop              \n" +
+			"0021:  push_local     0, 0\n" +
+			"0026:  push_int       1\n" +
+			"0031:  push_int       2\n" +
+			"0036:  send2          'at:put:'\n" +
+			"0038:  pop              \n" +
+			"0039:  push_local     0, 0\n" +
+			"0044:  push_int       1\n" +
+			"0049:  push_int       2\n" +
+			"0054:  push_int       3\n" +
+			"0059:  send           3, 'a:b:c:'\n" +
+			"0064:  pop              \n" +
+			"0065:  push_local     0, 0\n" +
+			"0070:  block          0\n" +
+			"0073:  send1          'yourself:'\n" +
+			"0075:  pop              \n" +
+			"0076:  push_local     0, 0\n" +
+			"0081:  tail_send      0, 'foo'\n" +
+			"0086:  return           \n" +
+			"0087:  pop              \n" +
+			"0088:  self             \n" +
+			"0089:  return           \n",
+			Bytecode.disassemble(f, 0));
+		assertEquals(
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_int       1\n" +
+			"0010:  send1          'bar:'\n" +
+			"0012:  pop              \n" +
+			"0013:  push_local     0, 0\n" +
+			"0018:  block_return     \n",
+			Bytecode.disassemble(f.blocks[0], 0));
+	}
+
+	@Test public void testLargeLiteralIndexKeepsGeneralForm() {
+		StringBuilder buf = new StringBuilder("class T [ f [ |a| a := {");
+		for (int i=0; i<256; i++) buf.append("'s").append(i).append("'. ");
+		buf.append("}. a size. ^a ] ]");
+		STCompiledBlock f = compileT(buf.toString()).methods.get("f");
+		String code = Bytecode.disassemble(f, 0);
+		assertTrue(code.contains("send           0, 'size'\n")); // literal 256
+	}
+
+	@Test public void testSameResults() {
+		String input =
+			"class T [ |n|\n" +
+			"    init [ n := 0 ]\n" +
+			"    add: k [ n := n + k ]\n" +
+			"    add: j and: k [ ^self add: j + k ]\n" +
+			"    total [ ^n ]\n" +
+			"    sum: k [ k = 0 ifTrue: [^0]. ^k + (self sum: k - 1) ]\n" +
+			"]\n" +
+			"|t a|\n" +
+			"t := T new. t init. t add: 3. t add: 4 and: 5.\n" +
+			"a := Array new: 2. a at: 1 put: t total. a at: 2 put: (t sum: 10).\n" +
+			"^{a. [:x :y | x * y] value: 6 value: 7. t foo}";
+		String expecting = "MessageNotUnderstood: T does not understand foo";
+		assertEquals(expecting, exec(input, false).split("\n")[0]);
+		assertEquals(expecting, exec(input, true).split("\n")[0]);
+		input = input.replace(". t foo}", "}");
+		assertEquals("{{12. 55}. 42}", exec(input, false));
+		assertEquals("{{12. 55}. 42}", exec(input, true));
+	}
+}
@@ -0,0 +1,127 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.VMException;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestControlFlowInlining extends BaseTest {
+	public String exec(String input, boolean inline) {
+		boolean saved = Run.optimize;
+		Run.optimize = inline;
+		try {
+			STSymbolTable symtab = Run.compileCore(true);
+			Run.compileString(symtab, input, true);
+			return exec(new VirtualMachine(symtab));
+		}
+		finally {
+			Run.optimize = saved;
+		}
+	}
+
+	public void checkBothModes(String input, String expecting) {
+		assertEquals(expecting, exec(input, false));
+		assertEquals(expecting, exec(input, true));
+	}
+
+	public STMetaClassObject compileInlined(String input) {
+		Compiler c = new Compiler();
+		c.inlineControlFlow = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		return new VirtualMachine(symtab).lookupClass("T");
+	}
+
+	@Test public void testConditionals() {
+		String input =
+			"^{3>2 ifTrue: [1] ifFalse: [2]. 3<2 ifTrue: [1] ifFalse: [2].\n" +
+			"  3>2 ifTrue: [1]. 3<2 ifTrue: [1]. 3>2 ifFalse: [1]. 3<2 ifFalse: [1].\n" +
+			"  true ifTrue: []}";
+		checkBothModes(input, "{1. 2. 1. nil. nil. 1. nil}");
+	}
+
+	@Test public void testAndOrShortCircuit() {
+		String input =
+			"|n|\n" +
+			"n := 0.\n" +
+			"^{(3<2) and: [n := n + 1. true]. (3>2) and: [n := n + 10. true].\n" +
+			"  (3>2) or: [n := n + 100. false]. (3<2) or: [n := n + 1000. false]. n}";
+		checkBothModes(input, "{false. true. true. false. 1010}");
+	}
+
+	@Test public void testWhileTrueWithNestedConditional() {
+		String input =
+			"|i sum|\n" +
+			"i := 0. sum := 0.\n" +
+			"[i < 10] whileTrue: [ (i mod: 2) = 0 ifTrue: [sum := sum + i]. i := i + 1 ].\n" +
+			"^sum";
+		checkBothModes(input, "20");
+	}
+
+	@Test public void testInlinedInsideBlockReachesOuterLocals() {
+		String input =
+			"|x|\n" +
+			"x := 5.\n" +
+			"^{[:y | y > 2 ifTrue: [x := x + y]. x] value: 4. x}";
+		checkBothModes(input, "{9. 9}");
+	}
+
+	@Test public void testReturnFromInlinedBlock() {
+		String input =
+			"class T [\n" +
+			"    f: n [ n > 3 ifTrue: [ n < 10 ifTrue: [^1] ifFalse: [^2] ]. ^n ]\n" +
+			"    find: n [ |i| i := 0. [true] whileTrue: [ i = n ifTrue: [^i]. i := i + 1 ] ]\n" +
+			"]\n" +
+			"^{T new f: 0. T new f: 5. T new f: 11. T new find: 7}";
+		checkBothModes(input, "{0. 1. 2. 7}");
+	}
+
+	@Test public void testBlockWithArgsNotInlined() {
+		String input =
+			"|blks i|\n" +
+			"i := 0. blks := {nil. nil}.\n" +
+			"[i < 2] whileTrue: [ i := i + 1. blks at: i put: [:x | x + i] ].\n" + // body has a real block
+			"^{(blks at: 1) value: 10. (blks at: 2) value: 10}";
+		checkBothModes(input, "{12. 12}");
+	}
+
+	@Test public void testNonBooleanReceiverSendsMustBeBoolean() {
+		String input =
+			"class T [ mustBeBoolean [ ^true ] ]\n" +
+			"^{T new ifTrue: [1] ifFalse: [2]. T new and: [3]}";
+		assertEquals("{1. 3}", exec(input, true));
+		assertEquals("VMException: 3 is not a Boolean", exec("^3 ifTrue: [1]", true).split("\n")[0]);
+	}
+
+	@Test public void testIfTrueIfFalseCode() {
+		String input =
+			"class T [ f: x [ ^x ifTrue: [1] ifFalse: [2] ] ]";
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  jump_if_false  34, 24\n" +
+			"0014:  push_int       1\n" +
+			"0019:  jump           39\n" +
+			"0024:  send           0, 'mustBeBoolean'\n" +
+			"0029:  jump           5\n" +
+			"0034:  push_int       2\n" +
+			"0039:  return           \n" +
+			"0040:  pop              \n" +
+			"0041:  self             \n" +
+			"0042:  return           \n";
+		STMetaClassObject t = compileInlined(input);
+		assertEquals(expecting, Bytecode.disassemble(t.methods.get("f:"), 0));
+	}
+
+	@Test public void testMaxStackFollowsJumps() {
+		String input =
+			"class T [ f [ |i| i := 0. [i < 3] whileTrue: [ i := i + (i > 1 ifTrue: [{1. 2}] ifFalse: [0]) size ]. ^i ] ]";
+		STMetaClassObject t = compileInlined(input);
+		assertEquals(3, t.methods.get("f").maxStack); // i 1 2; the test popped i > 1
+	}
+}
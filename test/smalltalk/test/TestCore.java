@@ -1079,4 +1079,60 @@ public class TestCore extends BaseTest {
 		}
 		assertEquals(expecting, result);
 	}
+
+	@Test public void testMessageNotUnderstood() {
+		String input =
+			"class T [\n" +
+			"    foo [^1]\n"+
+			"]\n" +
+			"^T new bar";
+		String expecting =
+			"MessageNotUnderstood: T does not understand bar\n" +
+			"    at                             MainClass>>main[][a T](<string>:4:3)       executing 0022:  send           0, 'bar'\n";
+		String result = "";
+		try {
+			execAndCheck(input, expecting);
+		}
+		catch (MessageNotUnderstood te) {
+			result = te.toString();
+		}
+		assertEquals(expecting, result);
+	}
+
+	@Test public void testInheritFromDeepHierarchy() {
+		String input =
+			"class A [ f [^'A>>f'] g [^'A>>g'] ]\n" +
+			"class B : A [ g [^'B>>g'] ]\n" +
+			"class C : B [ ]\n" +
+			"class D : C [ ]\n" +
+			"class E : D [ ]\n" +
+			"^{E new f. E new g. E new asString}";
+		String expecting = "{A>>f. B>>g. a E}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testSingletonIdentity() {
+		String input =
+			"^{true == true. (3 < 4) == true. (4 < 3) == (2 = 3). nil == nil. " +
+			"$a == $a. ('abc' asArray at: 1) == $a. true == false}";
+		String expecting = "{true. true. true. true. true. true. false}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testIntegerIdentityIsByValue() {
+		// whether or not the VM shares the instances
+		String input =
+			"^{100 == 100. 70000 == 70000. (60000 + 10000) == 70000. -5000 == (0 - 5000). " +
+			"3 == 4. 3 == 3.0. (Character new: 300) == (Character new: 300). 70000 ~~ 70000}";
+		String expecting = "{true. true. true. true. false. false. true. false}";
+		execAndCheck(input, expecting);
+	}
+
+	@Test public void testCoreClassesOfPrimitiveObjects() {
+		String input =
+			"^{3 className. 3.5 className. 'a' className. true className. nil className. " +
+			"$a className. {1} className. [1] className}";
+		String expecting = "{Integer. Float. String. Boolean. UndefinedObject. Character. Array. BlockDescriptor}";
+		execAndCheck(input, expecting);
+	}
 }
@@ -0,0 +1,11 @@
+package smalltalk.test;
+
+import org.junit.After;
+import org.junit.Before;
+import smalltalk.Run;
+
+/** Run all of {@link TestCore} on the node-tree interpreter */
+public class TestCoreAst extends TestCore {
+	@Before public void useAst() { Run.ast = true; }
+	@After public void useBytecodeLoop() { Run.ast = false; }
+}
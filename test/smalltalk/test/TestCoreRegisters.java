@@ -0,0 +1,11 @@
+package smalltalk.test;
+
+import org.junit.After;
+import org.junit.Before;
+import smalltalk.Run;
+
+/** Run all of {@link TestCore} on register code */
+public class TestCoreRegisters extends TestCore {
+	@Before public void useRegisters() { Run.registers = true; }
+	@After public void useBytecodeLoop() { Run.registers = false; }
+}
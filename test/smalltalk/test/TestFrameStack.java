@@ -0,0 +1,59 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFrameStack extends BaseTest {
+	public String exec(String input, boolean useFrameStack) {
+		STSymbolTable symtab = Run.compileCore(true);
+		Run.compileString(symtab, input, true);
+		VirtualMachine vm = new VirtualMachine(symtab);
+		vm.useFrameStack = useFrameStack;
+		return exec(vm);
+	}
+
+	public void checkBothModes(String input, String expecting) {
+		assertEquals(expecting, exec(input, false));
+		assertEquals(expecting, exec(input, true));
+	}
+
+	@Test public void testCapturedFrameOutlivesReturn() {
+		String input =
+			"class T [ adder: n [ |k| k := n * 2. ^[:x | x + n + k] ] ]\n" +
+			"|a b|\n" +
+			"a := T new adder: 10.\n" +
+			"b := T new adder: 20.\n" + // reuses the frame depth a was created at
+			"^{a value: 1. b value: 2}";
+		checkBothModes(input, "{31. 62}");
+	}
+
+	@Test public void testArgsPassedInPlace() {
+		String input =
+			"class T [ f: a g: b [ ^self h: b - a ] h: c [ ^c * 10 ] ]\n" +
+			"^(T new f: 3 g: 10) + (T new f: 1 g: 2)";
+		checkBothModes(input, "80");
+	}
+
+	@Test public void testDeepRecursionOverflowsToHeap() {
+		String input =
+			"class T [ count: n [ ^n = 0 ifTrue: [0] ifFalse: [1 + (self count: n - 1)] ] ]\n" +
+			"^T new count: 30000";
+		checkBothModes(input, "30000");
+	}
+
+	@Test public void testErrorStackSameInBothModes() {
+		String input =
+			"class T [ f: x [ |y| y := x + 1. ^self g: y ] g: z [ ^z foo ] ]\n" +
+			"^T new f: 1";
+		String expecting =
+			"MessageNotUnderstood: Integer does not understand foo\n" +
+			"    at                                        T>>g:[2][2](<string>:1:56)      executing 0012:  send           0, 'foo'\n" +
+			"    at                                      T>>f:[1, 2][](<string>:1:39)      executing 0048:  send           1, 'g:'\n" +
+			"    at                                MainClass>>main[][](<string>:2:7)       executing 0027:  send           1, 'f:'\n";
+		checkBothModes(input, expecting);
+	}
+}
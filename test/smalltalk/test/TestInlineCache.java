@@ -0,0 +1,147 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.InlineCache;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestInlineCache extends BaseTest {
+	public VirtualMachine execAndGetVM(String input, String expecting) {
+		STSymbolTable symtab = Run.compileCore(false);
+		Run.compile(symtab, "smalltalk/test/linkedlist.st", false);
+		Run.compileString(symtab, input, false);
+		VirtualMachine vm = new VirtualMachine(symtab);
+		STObject result = vm.execMain();
+		assertEquals(expecting, result.toString());
+		return vm;
+	}
+
+	@Test public void testMonomorphicSiteHits() {
+		String input =
+			"class T [\n" +
+			"    f: n [ ^n + 1 ]\n" +
+			"]\n" +
+			"|t sum|\n" +
+			"t := T new.\n" +
+			"sum := 0.\n" +
+			"1 to: 10 do: [:i | sum := sum + (t f: i)].\n" +
+			"^sum";
+		VirtualMachine vm = execAndGetVM(input, "65");
+		STCompiledBlock block = vm.lookupClass("MainClass").resolveMethod("main").blocks[0];
+		InlineCache send = findSite(block, "f:");
+		assertEquals(InlineCache.State.MONOMORPHIC, send.state);
+		assertEquals("T hits=9 misses=1", send.toString());
+	}
+
+	@Test public void testPolymorphicSite() {
+		String input =
+			"|a s|\n" +
+			"a := {3. 'x'. 4. 'y'}.\n" +
+			"s := ''.\n" +
+			"a do: [:e | s := s, e asString].\n" +
+			"^s";
+		VirtualMachine vm = execAndGetVM(input, "3x4y");
+		STCompiledBlock block = vm.lookupClass("MainClass").resolveMethod("main").blocks[0];
+		InlineCache asString = findSite(block, "asString");
+		// Integer, String, Integer, String: both classes stay cached
+		assertEquals(InlineCache.State.POLYMORPHIC, asString.state);
+		assertEquals("Integer,String hits=2 misses=2", asString.toString());
+	}
+
+	@Test public void testMegamorphicSiteUsesGlobalCache() {
+		String input =
+			"class A [ f [ ^1 ] ]\n" +
+			"class B [ f [ ^2 ] ]\n" +
+			"class C [ f [ ^3 ] ]\n" +
+			"class D [ f [ ^4 ] ]\n" +
+			"class E [ f [ ^5 ] ]\n" +
+			"|a sum|\n" +
+			"a := {A new. B new. C new. D new. E new}.\n" +
+			"sum := 0.\n" +
+			"1 to: 3 do: [:i | a do: [:o | sum := sum + o f]].\n" +
+			"^sum";
+		VirtualMachine vm = execAndGetVM(input, "45");
+		STCompiledBlock[] blocks = vm.lookupClass("MainClass").resolveMethod("main").blocks;
+		InlineCache f = null;
+		for (STCompiledBlock blk : blocks) {
+			for (InlineCache ic : blk.sendCaches) {
+				if ( ic!=null && ic.state==InlineCache.State.MEGAMORPHIC ) f = ic;
+			}
+		}
+		assertEquals(InlineCache.State.MEGAMORPHIC, f.state);
+		// 4 misses fill the site; the 5th overflows it and all 5 classes move
+		// to the global cache, so the remaining 10 sends hit there
+		assertEquals("<megamorphic> hits=10 misses=5", f.toString());
+		assertTrue(vm.getInlineCacheStateCounts()[InlineCache.State.MEGAMORPHIC.ordinal()] >= 1);
+	}
+
+	@Test public void testRedefineMethodInvalidatesCaches() {
+		String input =
+			"class T [ f [ ^1 ] ]\n" +
+			"class U [ f [ ^2 ] ]\n" +
+			"|t sum|\n" +
+			"t := T new.\n" +
+			"sum := 0.\n" +
+			"1 to: 3 do: [:i | sum := sum + t f].\n" +
+			"^sum";
+		VirtualMachine vm = execAndGetVM(input, "3");
+		STCompiledBlock otherF = vm.lookupClass("U").methods.get("f");
+		vm.lookupClass("T").defineMethod("f", otherF);
+		assertEquals("6", vm.execMain().toString());
+	}
+
+	@Test public void testRedefineClassInvalidatesCaches() {
+		String input =
+			"class T [ f [ ^1 ] ]\n" +
+			"class U [ f [ ^2 ] ]\n" +
+			"^T new f";
+		VirtualMachine vm = execAndGetVM(input, "1");
+		int generation = vm.cacheGeneration;
+		vm.systemDict.define("T", vm.lookupClass("U"));
+		assertTrue(vm.cacheGeneration > generation);
+		assertEquals("2", vm.execMain().toString());
+	}
+
+	@Test public void testStatsAccumulate() {
+		String input =
+			"|list|\n" +
+			"list := LinkedList new.\n" +
+			"1 to: 20 do: [:i | list add: i].\n" +
+			"^list size";
+		VirtualMachine vm = execAndGetVM(input, "20");
+		long[] stats = vm.getInlineCacheStats();
+		assertTrue("expected mostly hits but got "+stats[0]+"/"+stats[1], stats[0] > stats[1]);
+	}
+
+	@Test public void testSendAndGlobalOperandsAreSymbolIds() {
+		String input =
+			"class T [ f [ ^1 ] ]\n" +
+			"^T new f + T new f";
+		VirtualMachine vm = execAndGetVM(input, "2");
+		STCompiledBlock main = vm.lookupClass("MainClass").resolveMethod("main");
+		int f = vm.symbols.lookup("f");
+		int t = vm.symbols.lookup("T");
+		int sends = 0, globals = 0;
+		for (int pc=0; pc<main.code.length; pc++) {
+			if ( main.sendCaches[pc]!=null && main.code[pc+2]==f ) sends++;
+			if ( main.code[pc]==Bytecode.PUSH_GLOBAL && main.code[pc+1]==t ) globals++;
+		}
+		assertEquals(2, sends);
+		assertEquals(2, globals);
+		assertEquals(vm.lookupClass("T"), vm.systemDict.lookup(t));
+	}
+
+	InlineCache findSite(STCompiledBlock block, String selector) {
+		for (InlineCache ic : block.sendCaches) {
+			if ( ic!=null && ic.size>0 && ic.methods[0].name.equals(selector) ) return ic;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,230 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.VMException;
+import smalltalk.vm.jit.HandleCode;
+import smalltalk.vm.jit.Jit;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestJit extends BaseTest {
+	public VirtualMachine load(String input, boolean optimize) {
+		return load(input, c -> {
+			c.inlineControlFlow = optimize;
+			c.peephole = optimize;
+			c.specialSends = optimize;
+			c.compactSends = optimize;
+			c.compactOperands = optimize;
+		});
+	}
+
+	public VirtualMachine jit(VirtualMachine vm) {
+		vm.jit = new Jit(vm);
+		vm.jit.threshold = 2;
+		return vm;
+	}
+
+	public VirtualMachine handles(VirtualMachine vm) {
+		jit(vm).jit.methodHandles = true;
+		return vm;
+	}
+
+	/** Same answer interpreted and with the JIT, unoptimized and with -O code */
+	public void checkSameResults(String input, String expecting) {
+		assertEquals(expecting, exec(load(input, false)));
+		assertEquals(expecting, exec(jit(load(input, false))));
+		assertEquals(expecting, exec(handles(load(input, false))));
+		assertEquals(expecting, exec(load(input, true)));
+		assertEquals(expecting, exec(jit(load(input, true))));
+		assertEquals(expecting, exec(handles(load(input, true))));
+	}
+
+	public static final String T =
+		"class T [ |n a|\n" +
+		"    init [ n := 0. a := Array new: 3 ]\n" +
+		"    fib: k [ k < 2 ifTrue: [^k]. ^(self fib: k - 1) + (self fib: k - 2) ]\n" +
+		"    count: k [ |i| i := 0. [i < k] whileTrue: [i := i + 1. n := n + i]. ^n ]\n" +
+		"    fill [ a at: 1 put: 'str'. a at: 2 put: $c. a at: 3 put: 1.5. ^a ]\n" +
+		"    make: x [ ^{x. x + 1. true. false. nil. Object} ]\n" +
+		"    name [ ^'T' ]\n" +
+		"]\n" +
+		"class U : T [\n" +
+		"    name [ ^super name, 'U' ]\n" +
+		"]\n";
+
+	@Test public void testSameResults() {
+		String input = T +
+			"|t u r|\n" +
+			"t := T new. t init. u := U new.\n" +
+			"r := nil.\n" +
+			"1 to: 5 do: [:i | r := {t fib: 15. t count: 10. t fill. t make: i. u name}].\n" +
+			"^r";
+		checkSameResults(input, "{610. 275. {str. $c. 1.5}. {5. 6. true. false. nil. class Object}. TU}");
+	}
+
+	@Test public void testEligibleMethodsCompiled() {
+		String input = T +
+			"class V [ sum: x [ |s| s := 0. x do: [:e | s := s + e]. ^s ] ]\n" +
+			"|t v| t := T new. t init. v := V new.\n" +
+			"1 to: 5 do: [:i | t fib: 5. t count: 3. v sum: {1. 2}].\n" +
+			"^t count: 1";
+		VirtualMachine vm = jit(load(input, true));
+		assertEquals("31", exec(vm));
+		STMetaClassObject t = vm.lookupClass("T");
+		assertNotNull(t.methods.get("fib:").jitCode);
+		assertNotNull(t.methods.get("count:").jitCode);
+		STMetaClassObject v = vm.lookupClass("V");
+		assertNull(v.methods.get("sum:").jitCode); // makes a block
+		assertTrue(v.methods.get("sum:").jitFailed);
+	}
+
+	@Test public void testNonBooleanCondition() {
+		String input =
+			"class T [ test: x [ x ifTrue: [^1]. ^2 ] ]\n" +
+			"|t r| t := T new.\n" +
+			"r := {t test: true. t test: false. t test: true. t test: false}.\n" +
+			"^{r. t test: 3}";
+		String expecting = "VMException: 3 is not a Boolean"; // from the mustBeBoolean fallback
+		assertEquals(expecting, exec(load(input, true)).split("\n")[0]);
+		VirtualMachine vm = jit(load(input, true));
+		assertEquals(expecting, exec(vm).split("\n")[0]);
+		assertNotNull(vm.lookupClass("T").methods.get("test:").jitCode);
+	}
+
+	@Test public void testNonLocalReturnThroughCompiledMethod() {
+		String input =
+			"class T [\n" +
+			"    apply: blk [ ^blk value ]\n" +
+			"    find: x in: a [ a do: [:e | e = x ifTrue: [^self apply: [^e * 10]]]. ^nil ]\n" +
+			"]\n" +
+			"|t r| t := T new.\n" +
+			"r := nil.\n" +
+			"1 to: 5 do: [:i | r := {t find: i in: {1. 2. 3}. t apply: [i]}].\n" +
+			"^r";
+		checkSameResults(input, "{nil. 5}");
+		input = input.replace("{1. 2. 3}", "{1. 2. 3. 4. 5}");
+		checkSameResults(input, "{50. 5}");
+		VirtualMachine vm = jit(load(input, true));
+		exec(vm);
+		assertNotNull(vm.lookupClass("T").methods.get("apply:").jitCode);
+	}
+
+	@Test public void testDeepRecursionThroughCompiledMethods() {
+		// past VirtualMachine.MAX_NESTING compiled methods are interpreted in heap contexts
+		String input =
+			"class T [\n" +
+			"    deep: n [ n = 0 ifTrue: [^0]. ^1 + (self deep: n - 1) ]\n" +
+			"    tail: n acc: a [ n = 0 ifTrue: [^a]. ^self tail: n - 1 acc: a + 1 ]\n" +
+			"]\n" +
+			"^{T new deep: 10000. T new tail: 10000 acc: 0. T new deep: 10}";
+		checkSameResults(input, "{10000. 10000. 10}");
+		VirtualMachine vm = jit(load(input, true));
+		vm.jit.invokeDynamic = false;
+		assertEquals("{10000. 10000. 10}", exec(vm));
+		assertNotNull(vm.lookupClass("T").methods.get("deep:").jitCode);
+	}
+
+	@Test public void testErrorInCompiledMethod() {
+		String input =
+			"class T [ f: x [ ^x foo ] ]\n" +
+			"|t| t := T new.\n" +
+			"t f: Object new. t f: Object new.\n";
+		String expecting = "MessageNotUnderstood: Object does not understand foo";
+		VirtualMachine vm = jit(load(input, false));
+		vm.jit.threshold = 1;
+		assertEquals(expecting, exec(vm).split("\n")[0]);
+		assertNotNull(vm.lookupClass("T").methods.get("f:").jitCode);
+	}
+
+	@Test public void testSendsWithoutInvokeDynamic() {
+		String input = T +
+			"|t| t := T new. t init.\n" +
+			"1 to: 5 do: [:i | t fib: 10].\n" +
+			"^{t fib: 15. t count: 10}";
+		VirtualMachine vm = jit(load(input, true));
+		vm.jit.invokeDynamic = false;
+		assertEquals("{610. 55}", exec(vm));
+		assertNotNull(vm.lookupClass("T").methods.get("fib:").jitCode);
+	}
+
+	@Test public void testPolymorphicAndMegamorphicSites() {
+		String input =
+			"class A [ f [ ^1 ] ]\n" +
+			"class B [ |x| init [ x := 2 ] f [ ^x ] ]\n" +
+			"class C [ f [ ^3 + 0 ] ]\n" +
+			"class D [ f [ ^4 + 0 ] ]\n" +
+			"class E [ f [ ^5 + 0 ] ]\n" +
+			"class T [ sum: o [ ^o f ] ]\n" +
+			"|t a b sum| t := T new. b := B new. b init.\n" +
+			"a := {A new. b. C new. D new. E new. 7}.\n" +
+			"sum := 0.\n" +
+			"1 to: 5 do: [:i | 1 to: 5 do: [:j | sum := sum + (t sum: (a at: j))]].\n" +
+			"^{sum. t sum: (a at: 6)}";
+		String expecting = "MessageNotUnderstood: Integer does not understand f";
+		assertEquals(expecting, exec(load(input, true)).split("\n")[0]);
+		assertEquals(expecting, exec(jit(load(input, true))).split("\n")[0]);
+		input = input.replace(". t sum: (a at: 6)}", "}");
+		checkSameResults(input, "{75}");
+	}
+
+	@Test public void testRedefinedMethodRelinksSites() {
+		String input =
+			"class T [ f [ ^1 + 0 ] g [ ^self f ] ]\n" +
+			"class U [ f [ ^2 + 0 ] ]\n" +
+			"|t sum| t := T new. sum := 0.\n" +
+			"1 to: 5 do: [:i | sum := sum + t g].\n" +
+			"^sum";
+		VirtualMachine vm = jit(load(input, true));
+		assertEquals("5", exec(vm));
+		STMetaClassObject t = vm.lookupClass("T");
+		assertNotNull(t.methods.get("g").jitCode);
+		t.defineMethod("f", vm.lookupClass("U").methods.get("f"));
+		assertEquals("10", exec(vm));
+	}
+
+	@Test public void testMethodHandleTrees() {
+		String input = T +
+			"class V [ sum: x [ |s| s := 0. x do: [:e | s := s + e]. ^s ] ]\n" +
+			"|t v| t := T new. t init. v := V new.\n" +
+			"1 to: 5 do: [:i | t fib: 5. t count: 3. t make: i. v sum: {1. 2}].\n" +
+			"^{t count: 1. t fib: 10. t make: 1}";
+		VirtualMachine vm = handles(load(input, true));
+		assertEquals("{31. 55. {1. 2. true. false. nil. class Object}}", exec(vm));
+		STMetaClassObject t = vm.lookupClass("T");
+		assertTrue(t.methods.get("fib:").jitCode instanceof HandleCode);
+		assertTrue(t.methods.get("count:").jitCode instanceof HandleCode); // has a loop
+		assertTrue(t.methods.get("make:").jitCode instanceof HandleCode);
+		assertTrue(vm.lookupClass("V").methods.get("sum:").jitFailed);
+	}
+
+	@Test public void testDeepRecursionThroughHandleTrees() {
+		// handle trees go through the same callCompiled and sendFromCompiled as classes
+		String input =
+			"class T [\n" +
+			"    deep: n [ n = 0 ifTrue: [^0]. ^1 + (self deep: n - 1) ]\n" +
+			"    deep: n by: k [ n < k ifTrue: [^0]. ^1 + (self deep: n - k by: k) ]\n" +
+			"]\n" +
+			"^{T new deep: 10000. T new deep: 30000 by: 3}";
+		VirtualMachine vm = handles(load(input, true));
+		assertEquals("{10000. 10000}", exec(vm));
+		STMetaClassObject t = vm.lookupClass("T");
+		assertTrue(t.methods.get("deep:").jitCode instanceof HandleCode);
+		assertTrue(t.methods.get("deep:by:").jitCode instanceof HandleCode);
+	}
+
+	@Test public void testNonBooleanConditionInHandleTree() {
+		String input =
+			"class T [ test: x [ x ifTrue: [^1]. ^2 ] ]\n" +
+			"|t r| t := T new.\n" +
+			"r := {t test: true. t test: false. t test: true. t test: false}.\n" +
+			"^{r. t test: 3}";
+		VirtualMachine vm = handles(load(input, true));
+		assertEquals("VMException: 3 is not a Boolean", exec(vm).split("\n")[0]);
+		assertTrue(vm.lookupClass("T").methods.get("test:").jitCode instanceof HandleCode);
+	}
+}
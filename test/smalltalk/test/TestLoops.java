@@ -0,0 +1,120 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.exceptions.MessageNotUnderstood;
+import smalltalk.vm.exceptions.MismatchedBlockArg;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLoops extends BaseTest {
+	@Test public void testLongToDo() {
+		String input =
+			"|sum|\n" +
+			"sum := 0.\n" +
+			"1 to: 100000 do: [:i | sum := sum + (i mod: 3)].\n" +
+			"^sum";
+		execAndCheck(input, "100000");
+	}
+
+	@Test public void testToByDoAndTimesRepeat() {
+		String input =
+			"|a n|\n" +
+			"a := Array new: 4. n := 0.\n" +
+			"7 to: 1 by: -2 do: [:i | n := n + 1. a at: n put: i].\n" +
+			"3 timesRepeat: [n := n * 2].\n" +
+			"^{a. n. 5 to: 4 do: [:i | i foo]}";
+		execAndCheck(input, "{{7. 5. 3. 1}. 32. 5}");
+	}
+
+	@Test public void testWhileTrueAndArrayDo() {
+		String input =
+			"|i s|\n" +
+			"i := 0. s := 0.\n" +
+			"[i < 5] whileTrue: [i := i + 1].\n" +
+			"{10. 20. 30} do: [:x | s := s + x].\n" +
+			"'abc' do: [:c | s := s + c asInteger].\n" +
+			"^{i. s}";
+		execAndCheck(input, "{5. 354}");
+	}
+
+	@Test public void testReturnFromNestedLoops() {
+		String input =
+			"class T [\n" +
+			"    find: n [\n" +
+			"        1 to: 5 do: [:i | {1. 2. 3} do: [:j | i * j = n ifTrue: [^{i. j}]]].\n" +
+			"        ^nil\n" +
+			"    ]\n" +
+			"]\n" +
+			"^{T new find: 6. T new find: 7. T new find: 15}";
+		execAndCheck(input, "{{2. 3}. nil. {5. 3}}");
+	}
+
+	@Test public void testLoopRunsInConstantDepth() {
+		// the error's VM stack shows the blocks and main, not 1000 iterations
+		String input =
+			"1 to: 1000 do: [:i | i = 1000 ifTrue: [i foo]]";
+		String expecting =
+			"MessageNotUnderstood: Integer does not understand foo\n" +
+			"    at                   main-block0>>main-block1[][1000](<string>:1:41)      executing 0012:  send           0, 'foo'\n" +
+			"    at                          main>>main-block0[1000][](<string>:1:30)      executing 0032:  send           1, 'ifTrue:'\n" +
+			"    at                                MainClass>>main[][](<string>:1:2)       executing 0020:  send           2, 'to:do:'\n";
+		String result = "";
+		try {
+			execAndCheck(input, "");
+		}
+		catch (MessageNotUnderstood e) {
+			result = e.toString();
+		}
+		assertEquals(expecting, result);
+	}
+
+	@Test public void testDeepRecursionThroughLoops() {
+		// each level nests the loop primitives; past VirtualMachine.MAX_NESTING
+		// they fall back to the slow: methods instead of overflowing the Java stack
+		String input =
+			"class T [\n" +
+			"    walk: n [ |s| n = 0 ifTrue: [^1]. s := 0. 1 to: 1 do: [:i | s := s + (self walk: n - 1)]. ^s ]\n" +
+			"    each: n [ |s| n = 0 ifTrue: [^1]. s := 0. {n - 1} do: [:m | s := s + (self each: m)]. ^s ]\n" +
+			"    times: n [ |s| n = 0 ifTrue: [^1]. s := 0. 1 timesRepeat: [s := s + (self times: n - 1)]. ^s ]\n" +
+			"    by: n [ |s| n = 0 ifTrue: [^1]. s := 0. 0 to: 0 by: -1 do: [:i | s := s + (self by: n - 1)]. ^s ]\n" +
+			"    while: n [ |s c b| n = 0 ifTrue: [^0]. s := 0. c := [s = 0]. b := [s := 1 + (self while: n - 1)]. c whileTrue: b. ^s ]\n" +
+			"]\n" +
+			"^{T new walk: 10000. T new each: 10000. T new times: 10000. T new by: 10000. T new while: 10000}";
+		execAndCheck(input, "{1. 1. 1. 1. 10000}");
+	}
+
+	@Test public void testFallbackLoops() {
+		// the methods the loop primitives fall back on do the same thing
+		String input =
+			"|a n s|\n" +
+			"a := Array new: 4. n := 0. s := 0.\n" +
+			"7 slowTo: 1 by: -2 do: [:i | n := n + 1. a at: n put: i].\n" +
+			"3 slowTimesRepeat: [n := n * 2].\n" +
+			"1 slowTo: 4 do: [:i | s := s + i].\n" +
+			"{10. 20} slowDo: [:x | s := s + x].\n" +
+			"[s < 100] slowWhileTrue: [s := s + 1].\n" +
+			"^{a. n. s. 5 slowTo: 4 do: [:i | i foo]}";
+		execAndCheck(input, "{{7. 5. 3. 1}. 32. 100. 5}");
+	}
+
+	@Test public void testLoopsOverNonBlocks() {
+		// anything that understands value: will do; the primitives fall back to the slow: methods
+		String input =
+			"class Acc [ |sum| init [ sum := 0 ] value: x [ sum := sum + x ] value [ sum := sum + 1 ] total [ ^sum ] ]\n" +
+			"class Cond [ |n| init [ n := 0 ] value [ n := n + 1. ^n <= 3 ] ]\n" +
+			"|a c|\n" +
+			"a := Acc new. a init.\n" +
+			"{1. 2. 3} do: a.\n" +
+			"1 to: 4 do: a.\n" +
+			"10 to: 1 by: -5 do: a.\n" +
+			"2 timesRepeat: a.\n" +
+			"c := Cond new. c init.\n" +
+			"[c value] whileTrue: a.\n" +
+			"^a total";
+		execAndCheck(input, "36");
+	}
+
+	@Test(expected=MismatchedBlockArg.class) public void testWrongBlockArgCount() {
+		execAndCheck("1 to: 3 do: [:a :b | a]", "");
+	}
+}
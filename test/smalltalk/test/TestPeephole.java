@@ -0,0 +1,135 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestPeephole extends BaseTest {
+	public String exec(String input, boolean peephole, boolean inline) {
+		return exec(load(input, c -> {
+			c.peephole = peephole;
+			c.inlineControlFlow = inline;
+		}));
+	}
+
+	public void checkSameResults(String input, String expecting) {
+		assertEquals(expecting, exec(input, false, false));
+		assertEquals(expecting, exec(input, true, false));
+		assertEquals(expecting, exec(input, false, true));
+		assertEquals(expecting, exec(input, true, true));
+	}
+
+	public STMetaClassObject compileT(String input, boolean inline) {
+		Compiler c = new Compiler();
+		c.peephole = true;
+		c.inlineControlFlow = inline;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		return new VirtualMachine(symtab).lookupClass("T");
+	}
+
+	@Test public void testFusedInstructions() {
+		String input = "class T [ |f| m: x [ |y| y := x. y := y + 1. f := y. f foo: f. [] value ] n: x [ |y| y := x + 1. ^x ] ]";
+		STMetaClassObject t = compileT(input, false);
+		assertEquals(
+			"0000:  push_local     0, 0\n" +
+			"0005:  store_local    0, 1\n" +	// y := x. y ... drops the pop and push_local of y
+			"0010:  push_int       1\n" +
+			"0015:  send           1, '+'\n" +
+			"0020:  store_local    0, 1\n" +
+			"0025:  store_field    0\n" +
+			"0028:  push_field     0\n" +
+			"0031:  send           1, 'foo:'\n" +
+			"0036:  pop              \n" +
+			"0037:  block          0\n" +
+			"0040:  send           0, 'value'\n" +
+			"0045:  pop              \n" +
+			"0046:  return_self      \n",
+			Bytecode.disassemble(t.methods.get("m:"), 0));
+		assertEquals("0000:  block_ret_nil    \n", Bytecode.disassemble(t.methods.get("m:").blocks[0], 0));
+		assertEquals(
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_int       1\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  pop_local      0, 1\n" +
+			"0020:  push_local     0, 0\n" +
+			"0025:  return           \n",
+			Bytecode.disassemble(t.methods.get("n:"), 0));
+	}
+
+	@Test public void testUnreachableCodeAndJumps() {
+		String input = "class T [ m: x [ x > 0 ifTrue: [^1] ifFalse: [^2] ] ]";
+		STMetaClassObject t = compileT(input, true);
+		assertEquals( // nothing after the two returns; the jumps follow their targets
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_int       0\n" +
+			"0010:  send           1, '>'\n" +
+			"0015:  jump_if_false  40, 30\n" +
+			"0024:  push_int       1\n" +
+			"0029:  return           \n" +
+			"0030:  send           0, 'mustBeBoolean'\n" +
+			"0035:  jump           15\n" +
+			"0040:  push_int       2\n" +
+			"0045:  return           \n",
+			Bytecode.disassemble(t.methods.get("m:"), 0));
+	}
+
+	@Test public void testSameResults() {
+		String input =
+			"class T [ |n|\n" +
+			"    init [ n := 0 ]\n" +
+			"    count: k [ |i| i := 0. [i < k] whileTrue: [i := i + 1. n := n + i]. ^n ]\n" +
+			"    find: x in: a [ a do: [:e | e = x ifTrue: [^e]]. ^nil ]\n" +
+			"    fact: k [ k <= 1 ifTrue: [^1]. ^k * (self fact: k - 1) ]\n" +
+			"    empty [ ^[] value ]\n" +
+			"]\n" +
+			"|t r|\n" +
+			"t := T new. t init.\n" +
+			"r := {t count: 10. t find: 3 in: {1. 2. 3}. t find: 9 in: {1}. t fact: 10. t empty. t}.\n" +
+			"^r";
+		checkSameResults(input, "{55. 3. nil. 3628800. nil. a T}");
+	}
+
+	@Test public void testRepeatedDbgDroppedExceptAtJumpTargets() {
+		Code code = Code.join(
+			Compiler.dbg(0, 1, 0),
+			Compiler.push_true(),
+			Compiler.dbg(0, 1, 0),			// same location; dropped
+			Compiler.jump_if_false(15, 15),	// to the last dbg
+			Compiler.push_int(1),
+			Compiler.pop(),
+			Compiler.dbg(0, 1, 0),			// a jump target, so kept
+			Compiler.push_nil(),
+			Compiler.block_return());
+		Code expecting = Code.join(
+			Compiler.dbg(0, 1, 0),
+			Compiler.push_true(),
+			Compiler.jump_if_false(15, 15),
+			Compiler.push_int(1),
+			Compiler.pop(),
+			Compiler.dbg(0, 1, 0),
+			Code.of(Bytecode.BLOCK_RETURN_NIL));
+		assertArrayEquals(expecting.bytes(), PeepholeOptimizer.optimize(code.bytes()));
+	}
+
+	@Test public void testErrorLocationKept() {
+		String input =
+			"|x y|\n" +
+			"x := 1.\n" +
+			"y := x.\n" +
+			"y foo";
+		String expecting =
+			"MessageNotUnderstood: Integer does not understand foo\n" +
+			"    at                           MainClass>>main[1, 1][1](<string>:4:2)       executing 00%s:  send           0, 'foo'\n";
+		assertEquals(String.format(expecting, 48), exec(input, false, false));
+		assertEquals(String.format(expecting, 46), exec(input, true, false));
+	}
+}
@@ -0,0 +1,124 @@
+package smalltalk.test;
+
+import org.junit.Test;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.exceptions.VMException;
+import smalltalk.vm.register.RegisterInterpreter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRegisterInterpreter extends BaseTest {
+	public VirtualMachine load(String input) {
+		VirtualMachine vm = load(input, c -> {
+			c.genDbg = false;
+			c.inlineControlFlow = true;
+			c.peephole = true;
+			c.specialSends = true;
+			c.compactSends = true;
+			c.compactOperands = true;
+		});
+		vm.registers = new RegisterInterpreter(vm);
+		return vm;
+	}
+
+	public String registerCode(VirtualMachine vm, String cl, String name) {
+		return vm.lookupClass(cl).methods.get(name).registerCode.toString();
+	}
+
+	@Test public void testLoopReadsAndWritesLocals() {
+		String input =
+			"class T [ sum: n [ |s i| s := 0. i := 0. [i < n] whileTrue: [s := s + i. i := i + 1]. ^s ] ]\n" +
+			"^T new sum: 10";
+		String expecting =
+			"0000: move 0 -> l1\n" +
+			"0003: move 0 -> l2\n" +
+			"0006: special_send < l2, l0 -> t0\n" +
+			"0013: jump_if_false t0, 48, 40\n" +
+			"0018: special_send + l1, l2 -> l1\n" +
+			"0025: move t0 -> l1\n" + // skipped unless + has to be sent
+			"0028: special_send + l2, 1 -> l2\n" +
+			"0035: move t0 -> l2\n" +
+			"0038: jump 6\n" +
+			"0040: send #mustBeBoolean t0 -> t0\n" +
+			"0046: jump 13\n" +
+			"0048: return l1\n";
+		VirtualMachine vm = load(input);
+		assertEquals("45", exec(vm));
+		assertEquals(expecting, registerCode(vm, "T", "sum:"));
+	}
+
+	@Test public void testDeepRecursionThroughSpecialSendToLocal() {
+		// N>>+ is sent, not computed, and its result goes to a local; the callee runs in the same loop
+		String input =
+			"class N [\n" +
+			"    + k [ ^self rec: k ]\n" +
+			"    rec: k [ |t| k = 0 ifTrue: [^0]. t := self + (k - 1). ^t + 1 ]\n" +
+			"]\n" +
+			"^N new + 20000";
+		VirtualMachine vm = load(input);
+		assertEquals("20000", exec(vm));
+		assertTrue(registerCode(vm, "N", "rec:").contains("special_send + t0, t1 -> l1\n0040: move t0 -> l1"));
+	}
+
+	@Test public void testFewerInstructionsThanBytecodeLoop() {
+		String input =
+			"class T [\n" +
+			"    fib: n [ n < 2 ifTrue: [^n]. ^(self fib: n - 1) + (self fib: n - 2) ]\n" +
+			"    sum: n [ |s i| s := 0. i := 0. [i < n] whileTrue: [s := s + i. i := i + 1]. ^s ]\n" +
+			"]\n" +
+			"^{T new fib: 15. T new sum: 1000}";
+		VirtualMachine vm = load(input);
+		vm.countDispatched = true;
+		assertEquals("{610. 499500}", exec(vm));
+		long registers = vm.registers.dispatched;
+		vm = load(input);
+		vm.registers = null;
+		vm.countDispatched = true;
+		assertEquals("{610. 499500}", exec(vm));
+		assertTrue(registers+" vs "+vm.dispatched, registers < vm.dispatched * 0.6);
+	}
+
+	@Test public void testSendSpillsLocalItMightChange() {
+		String input =
+			"class T [ f [ |x| x := 1. ^{x. [x := 5] value. x} ] g [ |x| x := 1. ^x + [x := 5] value ] ]\n" +
+			"^{T new f. T new g}";
+		assertEquals("{{1. 5. 5}. 6}", exec(load(input)));
+	}
+
+	@Test public void testSpecialSendIntoLocalFallsBack() {
+		String input =
+			"class V [ |x| v: y [ x := y ] v [ ^x ] + w [ ^V new v: x + w v ] ]\n" +
+			"class T [ add: a to: b [ |c| c := a + b. ^c ] ]\n" +
+			"|t| t := T new.\n" +
+			"^{t add: 1 to: 2. (t add: (V new v: 3) to: (V new v: 4)) v. t add: 1.5 to: 2.0}";
+		VirtualMachine vm = load(input);
+		assertEquals("{3. 7. 3.5}", exec(vm));
+		assertTrue(registerCode(vm, "T", "add:to:").contains("special_send + l0, l1 -> l2"));
+	}
+
+	@Test public void testNonLocalReturnThroughSpecialSend() {
+		String input =
+			"class B [ + blk [ ^blk value ] ]\n" +
+			"class T [ f [ |r| r := B new + [^7]. ^r + 1 ] g [ |r| r := B new + [8]. ^r + 1 ] ]\n" +
+			"^{T new f. T new g}";
+		assertEquals("{7. 9}", exec(load(input)));
+	}
+
+	@Test public void testNonBooleanCondition() {
+		String input = "class T [ f: x [ x ifTrue: [^1]. ^2 ] ]\n^{T new f: true. T new f: false. T new f: 3}";
+		assertEquals("VMException: 3 is not a Boolean", exec(load(input)).split("\n")[0]);
+	}
+
+	@Test public void testErrorStackSameAsBytecodeLoop() {
+		String input =
+			"class T [ f: x [ |y| y := x + 1. ^{y. self. 3} at: y foo ] ]\n" +
+			"^T new f: 1";
+		VirtualMachine vm = load(input);
+		String registers = exec(vm);
+		vm = load(input);
+		vm.registers = null;
+		assertEquals(exec(vm), registers);
+		assertTrue(registers.startsWith("MessageNotUnderstood: Integer does not understand foo"));
+	}
+}
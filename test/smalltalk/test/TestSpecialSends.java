@@ -0,0 +1,82 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSpecialSends extends BaseTest {
+	public VirtualMachine load(String input, boolean specialSends) {
+		return load(input, c -> {
+			c.genDbg = false;
+			c.specialSends = specialSends;
+		});
+	}
+
+	public void checkBothModes(String input, String expecting) {
+		assertEquals(expecting, exec(load(input, false)));
+		assertEquals(expecting, exec(load(input, true)));
+	}
+
+	@Test public void testSpecialSelectorsCode() {
+		String input = "class T [ f: x [ ^{x + 1. x - 1. x * 2. x / 2. x < 1. x > 1. x <= 1. x >= 1. x = 1. x ~= 1. x mod: 3. x max: 3} ] ]";
+		Compiler c = new Compiler();
+		c.specialSends = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		STMetaClassObject t = new VirtualMachine(symtab).lookupClass("T");
+		String code = Bytecode.disassemble(t.methods.get("f:"), 0);
+		StringBuilder sends = new StringBuilder();
+		for (String line : code.split("\n")) {
+			if ( line.contains("send") ) sends.append(line.substring(7)).append('\n');
+		}
+		assertEquals(
+			"send_add       1, '+'\n" +
+			"send_sub       1, '-'\n" +
+			"send_mul       1, '*'\n" +
+			"send_div       1, '/'\n" +
+			"send_lt        1, '<'\n" +
+			"send_gt        1, '>'\n" +
+			"send_le        1, '<='\n" +
+			"send_ge        1, '>='\n" +
+			"send_eq        1, '='\n" +
+			"send_ne        1, '~='\n" +
+			"send_mod       1, 'mod:'\n" +
+			"send           1, 'max:'\n",
+			sends.toString());
+	}
+
+	@Test public void testNumbers() {
+		checkBothModes(
+			"^{3 + 4. 7 - 10. 6 * 7. 7 / 2. 3 < 4. 3 > 4. 4 <= 4. 3 >= 4. 3 = 3. 3 ~= 3. 7 mod: 3. " +
+			"1.5 + 2.25. 1.5 < 2.0. 2.0 = 2.0. 2.0 ~= 2.0. 100000 * 100000}",
+			"{7. -3. 42. 3. true. false. true. false. true. false. 1. 3.75. true. true. false. 1410065408}");
+	}
+
+	@Test public void testOtherReceiversStillSend() {
+		String input =
+			"class V [ |x|\n" +
+			"    x: v [ x := v ]\n" +
+			"    + v [ ^V new x: x * 10 + v ]\n" +
+			"    = v [ ^true ]\n" +
+			"    get [ ^x ]\n" +
+			"]\n" +
+			"^{((V new x: 1) + 2) get. (V new x: 1) ~= 5. $a + 1. nil ~= 3}";
+		checkBothModes(input, "{12. false. $b. true}");
+	}
+
+	@Test public void testRedefinedOperator() {
+		String input = "class Hack [ + y [ ^42 ] = y [ ^true ] ]\n^{3 + 4. 3 ~= 4}";
+		VirtualMachine vm = load(input, true);
+		STMetaClassObject integer = vm.lookupClass("Integer");
+		assertEquals("{7. true}", exec(vm));
+		STMetaClassObject hack = vm.lookupClass("Hack");
+		integer.defineMethod("+", hack.methods.get("+"));
+		integer.defineMethod("=", hack.methods.get("="));
+		assertEquals("{42. false}", exec(vm));
+	}
+}
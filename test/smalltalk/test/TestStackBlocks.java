@@ -0,0 +1,107 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestStackBlocks extends BaseTest {
+	/** Compile input with stack blocks on or off, with or without closure conversion */
+	public VirtualMachine load(String input, boolean stackBlocks, boolean closureConversion) {
+		return load(input, c -> {
+			c.stackBlocks = stackBlocks;
+			c.closureConversion = closureConversion;
+		});
+	}
+
+	public void checkAllModes(String input, String expecting) {
+		assertEquals(expecting, exec(load(input, false, false)));
+		assertEquals(expecting, exec(load(input, true, false)));
+		assertEquals(expecting, exec(load(input, false, true)));
+		assertEquals(expecting, exec(load(input, true, true)));
+	}
+
+	@Test public void testOnlyEvaluatedLiteralsAreStackBlocks() {
+		String input =
+			"class T [ f: a [ |b| a do: [:x | x]. b := [a]. [:k | k] value: [a]. ^{a. [a]} ] ]";
+		Compiler c = new Compiler();
+		c.stackBlocks = true;
+		c.closureConversion = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		STMetaClassObject t = new VirtualMachine(symtab).lookupClass("T");
+		assertEquals( // the argument of value: is handed to the block, which might keep it
+			"0000:  push_local     0, 0\n" +
+			"0005:  stack_block    0\n" +
+			"0008:  send           1, 'do:'\n" +
+			"0013:  pop              \n" +
+			"0014:  block          1\n" +
+			"0017:  store_local    0, 1\n" +
+			"0022:  pop              \n" +
+			"0023:  stack_block    2\n" +
+			"0026:  block          3\n" +
+			"0029:  send           1, 'value:'\n" +
+			"0034:  pop              \n" +
+			"0035:  push_local     0, 0\n" +
+			"0040:  block          4\n" +
+			"0043:  push_array     2\n" +
+			"0046:  return           \n" +
+			"0047:  pop              \n" +
+			"0048:  self             \n" +
+			"0049:  return           \n",
+			Bytecode.disassemble(t.methods.get("f:"), 0));
+	}
+
+	@Test public void testNestedBlockMayEscapeWithoutClosureConversion() {
+		String input = "class T [ f: a [ |b| a do: [:x | b := [x]]. a do: [:x | a do: [:y | x + y]]. ^b ] ]";
+		Compiler c = new Compiler();
+		c.stackBlocks = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		String code = Bytecode.disassemble(new VirtualMachine(symtab).lookupClass("T").methods.get("f:"), 0);
+		assertEquals("0005:  block          0", code.split("\n")[1]);
+		assertEquals("0019:  stack_block    2", code.split("\n")[5]);
+	}
+
+	@Test public void testBlocksPassedAlong() {
+		String input =
+			"class T [ |saved|\n" +
+			"    do: blk [ saved := blk ]\n" +  // keeps the block it should only evaluate
+			"    last [ ^saved ]\n" +
+			"]\n" +
+			"|t keep sum|\n" +
+			"t := T new. keep := Array new: 3. sum := 0.\n" +
+			"1 to: 3 do: [:i | t do: [:x | x + i]. keep at: i put: t last].\n" +
+			"1 to: 3 do: [:i | [:b | keep at: i put: b] value: [i * 10]].\n" +
+			"{1. 2} do: [:x | {3. 4} do: [:y | sum := sum + (x * y)]].\n" +
+			"^{(keep at: 1) value. (keep at: 3) value. sum}";
+		checkAllModes(input, "{10. 30. 21}");
+	}
+
+	@Test public void testNonLocalReturnAndRecursion() {
+		String input =
+			"class T [\n" +
+			"    find: n in: a [ a do: [:x | x = n ifTrue: [^x]]. ^nil ]\n" +
+			"    sum: n [ |s| s := 0. n = 0 ifTrue: [^0]. {n} do: [:x | s := x + (self sum: n - 1)]. ^s ]\n" +
+			"]\n" +
+			"^{T new find: 2 in: {1. 2. 3}. T new find: 5 in: {1}. T new sum: 10}";
+		checkAllModes(input, "{2. nil. 55}");
+	}
+
+	@Test public void testAllocationsElided() {
+		String input =
+			"|s a| s := 0. a := {1. 2. 3}.\n" +
+			"1 to: 100 do: [:i | a do: [:e | s := s + e]].\n" +
+			"^s";
+		VirtualMachine vm = load(input, true, true);
+		assertEquals("600", exec(vm));
+		assertEquals(99, vm.elidedBlocks); // the inner block allocates once
+		assertEquals(0, vm.escapedBlocks);
+		vm = load(input, false, true);
+		exec(vm);
+		assertEquals(0, vm.elidedBlocks);
+	}
+}
@@ -0,0 +1,110 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.Bytecode;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTailSends extends BaseTest {
+	public String exec(String input, boolean tailSends, boolean useFrameStack) {
+		boolean saved = Run.optimize;
+		Run.optimize = tailSends;
+		try {
+			STSymbolTable symtab = Run.compileCore(true);
+			Run.compileString(symtab, input, true);
+			VirtualMachine vm = new VirtualMachine(symtab);
+			vm.useFrameStack = useFrameStack;
+			return exec(vm);
+		}
+		finally {
+			Run.optimize = saved;
+		}
+	}
+
+	public void checkAllModes(String input, String expecting) {
+		assertEquals(expecting, exec(input, false, false));
+		assertEquals(expecting, exec(input, false, true));
+		assertEquals(expecting, exec(input, true, false));
+		assertEquals(expecting, exec(input, true, true));
+	}
+
+	@Test public void testOnlySendsWhoseResultIsReturnedAreMarked() {
+		String input =
+			"class T [\n" +
+			"    f: n [ ^self f: n - 1 ]\n" +	// tail: returned
+			"    g [ self g. ^1 ]\n" +			// not: value dropped
+			"    h [ ^[:x | self h: x] ]\n" +	// tail within the block
+			"    k [ ^[^self k] ]\n" +			// not: non-local return
+			"]";
+		Compiler c = new Compiler();
+		c.tailSends = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(input));
+		STMetaClassObject t = new VirtualMachine(symtab).lookupClass("T");
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  push_local     0, 0\n" +
+			"0006:  push_int       1\n" +
+			"0011:  send           1, '-'\n" +
+			"0016:  tail_send      1, 'f:'\n" +
+			"0021:  return           \n" +
+			"0022:  pop              \n" +
+			"0023:  self             \n" +
+			"0024:  return           \n",
+			Bytecode.disassemble(t.methods.get("f:"), 0));
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  send           0, 'g'\n" +
+			"0006:  pop              \n" +
+			"0007:  push_int       1\n" +
+			"0012:  return           \n" +
+			"0013:  pop              \n" +
+			"0014:  self             \n" +
+			"0015:  return           \n",
+			Bytecode.disassemble(t.methods.get("g"), 0));
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  push_local     0, 0\n" +
+			"0006:  tail_send      1, 'h:'\n" +
+			"0011:  block_return     \n",
+			Bytecode.disassemble(t.methods.get("h").blocks[0], 0));
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  send           0, 'k'\n" +
+			"0006:  return           \n" +
+			"0007:  block_return     \n",
+			Bytecode.disassemble(t.methods.get("k").blocks[0], 0));
+	}
+
+	@Test public void testDeepTailRecursion() {
+		String input =
+			"class T [ count: n acc: a [ n = 0 ifTrue: [^a]. ^self count: n - 1 acc: a + 1 ] ]\n" +
+			"^T new count: 100000 acc: 0";
+		checkAllModes(input, "100000");
+	}
+
+	@Test public void testCapturedContextNotReplaced() {
+		String input =
+			"class T [ f: n [ |b| b := [n]. n = 0 ifTrue: [^b value]. ^(self f: n - 1) + (b value) ] " +
+			"          g: n [ |b| b := [^n]. n = 0 ifTrue: [^0]. ^self h: b ] h: blk [ ^blk value ] ]\n" +
+			"^{T new f: 3. T new g: 5}";
+		checkAllModes(input, "{6. 5}");
+	}
+
+	@Test public void testVMStackNotesElidedFrames() {
+		String input =
+			"class T [ f: n [ n = 0 ifTrue: [^n foo]. ^self f: n - 1 ] ]\n" +
+			"^T new f: 3";
+		String expecting =
+			"MessageNotUnderstood: Integer does not understand foo\n" +
+			"    at                                        T>>f:[0][0](<string>:1:35)      executing 0029:  tail_send      0, 'foo'\n" +
+			"    ... 4 frame(s) elided by tail sends\n";
+		assertEquals(expecting, exec(input, true, false));
+		assertEquals(expecting, exec(input, true, true));
+	}
+}
@@ -0,0 +1,96 @@
+package smalltalk.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.Run;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STSymbolTable;
+import smalltalk.vm.VirtualMachine;
+import smalltalk.vm.primitive.STCompiledBlock;
+import smalltalk.vm.primitive.STMetaClassObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTrivialMethods extends BaseTest {
+	public static final String T =
+		"class T [ |a b|\n" +
+		"    getA [ ^a ]\n" +
+		"    b: x [ b := x ]\n" +
+		"    init [ ^self ]\n" +
+		"    nothing: x [ ]\n" +
+		"    three [ ^3 ]\n" +
+		"    yes [ ^true ]\n" +
+		"    none [ ^nil ]\n" +
+		"    c [ ^$c ]\n" +
+		"    getB [ ^b ]\n" +
+		"    setA: x [ a := x. ^x ]\n" +	// answers x, not self
+		"    swap: x [ b := a ]\n" +
+		"    a: x b: y [ a := x ]\n" +
+		"    twice [ ^a + a ]\n" +
+		"]\n";
+
+	public STMetaClassObject compileT(boolean genDbg, boolean peephole) {
+		Compiler c = new Compiler();
+		c.genDbg = genDbg;
+		c.peephole = peephole;
+		c.trivialMethods = true;
+		STSymbolTable symtab = c.compile(new ANTLRInputStream(T));
+		return new VirtualMachine(symtab).lookupClass("T");
+	}
+
+	public String classification(STMetaClassObject t) {
+		StringBuilder buf = new StringBuilder();
+		for (String m : new String[] {"getA", "b:", "init", "nothing:", "three", "yes", "none", "c",
+									  "getB", "setA:", "swap:", "a:b:", "twice"})
+		{
+			STCompiledBlock method = t.methods.get(m);
+			buf.append(m).append('=').append(method.trivialKind).append(':').append(method.trivialOperand).append(' ');
+		}
+		return buf.toString();
+	}
+
+	@Test public void testClassification() {
+		String expecting =
+			"getA=1:0 b:=2:1 init=3:0 nothing:=3:0 three=4:3 yes=4:0 none=4:0 c=4:99 " +
+			"getB=1:1 setA:=0:0 swap:=0:0 a:b:=0:0 twice=0:0 ";
+		assertEquals(expecting, classification(compileT(false, false)));
+		assertEquals(expecting, classification(compileT(true, false)));
+		assertEquals(expecting, classification(compileT(true, true)));
+	}
+
+	@Test public void testInlineSendsGiveSameResults() {
+		String input =
+			T +
+			"|t|\n" +
+			"t := T new.\n" +
+			"^{t b: 5. t getB. t getA. t init == t. (t nothing: 1) == t. t three. t yes. t none. t c. t setA: 7. t twice}";
+		String expecting = "{a T. 5. nil. true. true. 3. true. nil. $c. 7. 14}";
+		boolean saved = Run.optimize;
+		try {
+			Run.optimize = false;
+			execAndCheck(input, expecting, false);
+			Run.optimize = true;
+			execAndCheck(input, expecting, true);
+		}
+		finally {
+			Run.optimize = saved;
+		}
+	}
+
+	@Test public void testCollections() {
+		String input =
+			"|d sum|\n" +
+			"d := Dictionary newFrom: {'hi' -> 34. 'mom'->99}.\n" +
+			"d at: 'hi' put: 1.\n" +
+			"sum := 0. d values do: [:v | sum := sum + v].\n" +
+			"^{d at: 'hi'. d at: 'mom'. ('a' -> 2) value. sum}";
+		boolean saved = Run.optimize;
+		try {
+			Run.optimize = true;
+			execAndCheckWithDict(input, "{1. 99. 2. 100}");
+		}
+		finally {
+			Run.optimize = saved;
+		}
+	}
+}